@@ -0,0 +1,479 @@
+package com.novoda.downloadmanager.lib;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.Charset;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+
+import static com.novoda.downloadmanager.lib.IOHelpers.closeQuietly;
+
+/**
+ * Unpacks a tar or zip archive into a directory as it downloads, instead of saving the archive itself.
+ * <p/>
+ * The format is recognised from the first bytes of the archive. Progress is accounted in bytes of the archive,
+ * through the given {@link DataWriter}, which is where pause requests surface. Each extracted entry is reported
+ * as an {@link ExtractionCheckpoint}, from which a later transfer can resume: tar archives from the offset of the
+ * entry boundary, zip archives from the start, skipping the entries already extracted.
+ * <p/>
+ * As with the other transferers, a failure to read the archive ends the transfer, while a failure to write an entry
+ * stops the download.
+ */
+class ArchiveExtractor implements DataTransferer {
+
+    private static final byte[] ZIP_SIGNATURE = {'P', 'K', 3, 4};
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int TAR_NAME_OFFSET = 0;
+    private static final int TAR_NAME_LENGTH = 100;
+    private static final int TAR_SIZE_OFFSET = 124;
+    private static final int TAR_SIZE_LENGTH = 12;
+    private static final int TAR_TYPE_OFFSET = 156;
+    private static final int TAR_MAGIC_OFFSET = 257;
+    private static final int TAR_PREFIX_OFFSET = 345;
+    private static final int TAR_PREFIX_LENGTH = 155;
+    private static final String TAR_MAGIC = "ustar";
+    private static final int MAX_TAR_METADATA_SIZE = 64 * 1024;
+
+    private static final byte TAR_TYPE_FILE = '0';
+    private static final byte TAR_TYPE_OLD_FILE = 0;
+    private static final byte TAR_TYPE_CONTIGUOUS_FILE = '7';
+    private static final byte TAR_TYPE_DIRECTORY = '5';
+    private static final byte TAR_TYPE_GNU_LONG_NAME = 'L';
+    private static final byte TAR_TYPE_PAX_HEADER = 'x';
+
+    private final File directory;
+    private final ExtractionCheckpoint checkpoint;
+    private final SpaceVerifier spaceVerifier;
+    private final BufferPool bufferPool;
+    private final DataWriter progressWriter;
+    private final ExtractionListener extractionListener;
+
+    private DownloadTask.State state;
+    private CountingInputStream archive;
+    private long reportedBytes;
+    private boolean ended;
+
+    /**
+     * @param checkpoint where a previous extraction got to, null to extract every entry
+     */
+    ArchiveExtractor(File directory,
+                     ExtractionCheckpoint checkpoint,
+                     SpaceVerifier spaceVerifier,
+                     BufferPool bufferPool,
+                     DataWriter progressWriter,
+                     ExtractionListener extractionListener) {
+        this.directory = directory;
+        this.checkpoint = checkpoint;
+        this.spaceVerifier = spaceVerifier;
+        this.bufferPool = bufferPool;
+        this.progressWriter = progressWriter;
+        this.extractionListener = extractionListener;
+    }
+
+    @Override
+    public DownloadTask.State transferData(DownloadTask.State state, InputStream in) throws StopRequestException {
+        this.state = state;
+        byte[] buffer = bufferPool.lease(Constants.BUFFER_SIZE);
+        try {
+            if (isResumingWithinArchive()) {
+                archive = new CountingInputStream(in);
+                extractTar(buffer, checkpoint.getEntries());
+            } else {
+                PushbackInputStream pushback = new PushbackInputStream(in, ZIP_SIGNATURE.length);
+                boolean zip = startsWithZipSignature(pushback);
+                archive = new CountingInputStream(pushback);
+                if (zip) {
+                    extractZip(buffer);
+                } else {
+                    extractTar(buffer, 0);
+                }
+            }
+            drain(buffer);
+            return this.state;
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    private boolean isResumingWithinArchive() {
+        return checkpoint != null && checkpoint.getOffset() > 0;
+    }
+
+    private int entriesToSkip() {
+        return checkpoint == null ? 0 : checkpoint.getEntries();
+    }
+
+    private long startOffset() {
+        return isResumingWithinArchive() ? checkpoint.getOffset() : 0;
+    }
+
+    private boolean startsWithZipSignature(PushbackInputStream in) {
+        byte[] start = new byte[ZIP_SIGNATURE.length];
+        int read = 0;
+        try {
+            int readLast;
+            while (read < start.length && (readLast = in.read(start, read, start.length - read)) != Constants.NO_BYTES_READ) {
+                read += readLast;
+            }
+            in.unread(start, 0, read);
+        } catch (IOException e) {
+            ended = true;
+            return false;
+        }
+        if (read < ZIP_SIGNATURE.length) {
+            return false;
+        }
+        for (int i = 0; i < ZIP_SIGNATURE.length; i++) {
+            if (start[i] != ZIP_SIGNATURE[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void extractTar(byte[] buffer, int firstEntry) throws StopRequestException {
+        byte[] header = new byte[Constants.TAR_BLOCK_SIZE];
+        int entries = firstEntry;
+        String longName = null;
+        while (readFully(header, header.length)) {
+            if (isZeroBlock(header)) {
+                return;
+            }
+            long size = parseTarNumber(header, TAR_SIZE_OFFSET, TAR_SIZE_LENGTH);
+            long padding = (Constants.TAR_BLOCK_SIZE - size % Constants.TAR_BLOCK_SIZE) % Constants.TAR_BLOCK_SIZE;
+            byte type = header[TAR_TYPE_OFFSET];
+
+            if (type == TAR_TYPE_GNU_LONG_NAME || type == TAR_TYPE_PAX_HEADER) {
+                String metadata = readTarMetadata(size);
+                if (metadata == null || !skip(buffer, padding)) {
+                    return;
+                }
+                String name = type == TAR_TYPE_GNU_LONG_NAME ? metadata : paxPathOf(metadata);
+                if (name != null) {
+                    longName = name;
+                }
+                continue;
+            }
+
+            String name = longName == null ? tarNameOf(header) : longName;
+            longName = null;
+            boolean extracted;
+            if (entries < entriesToSkip()) {
+                extracted = skip(buffer, size);
+            } else if (type == TAR_TYPE_DIRECTORY) {
+                createDirectory(name);
+                extracted = skip(buffer, size);
+            } else if (type == TAR_TYPE_FILE || type == TAR_TYPE_OLD_FILE || type == TAR_TYPE_CONTIGUOUS_FILE) {
+                extracted = extractTarFile(name, size, buffer);
+            } else {
+                // Links and special files are not extracted
+                extracted = skip(buffer, size);
+            }
+            if (!extracted || !skip(buffer, padding)) {
+                return;
+            }
+            entries++;
+            extractionListener.onEntryExtracted(
+                    new ExtractionCheckpoint(ExtractionCheckpoint.FORMAT_TAR, startOffset() + archive.count, entries)
+            );
+        }
+    }
+
+    private boolean extractTarFile(String name, long size, byte[] buffer) throws StopRequestException {
+        File file = fileFor(name);
+        FileOutputStream out = openForWriting(file);
+        try {
+            long remaining = size;
+            while (remaining > 0) {
+                int read = read(buffer, (int) Math.min(buffer.length, remaining));
+                if (read == Constants.NO_BYTES_READ) {
+                    return false;
+                }
+                write(out, buffer, read);
+                remaining -= read;
+            }
+            return true;
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private String readTarMetadata(long size) throws StopRequestException {
+        if (size > MAX_TAR_METADATA_SIZE) {
+            throw new StopRequestException(DownloadStatus.FILE_ERROR, "Tar metadata entry too large: " + size);
+        }
+        byte[] metadata = new byte[(int) size];
+        if (!readFully(metadata, metadata.length)) {
+            return null;
+        }
+        return nullTerminated(metadata, 0, metadata.length);
+    }
+
+    private void extractZip(byte[] buffer) throws StopRequestException {
+        ZipInputStream zip = new ZipInputStream(archive);
+        int entries = 0;
+        try {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                if (entries >= entriesToSkip()) {
+                    if (entry.isDirectory()) {
+                        createDirectory(entry.getName());
+                    } else if (!extractZipFile(zip, entry.getName(), buffer)) {
+                        return;
+                    }
+                }
+                zip.closeEntry();
+                reportProgress();
+                entries++;
+                extractionListener.onEntryExtracted(new ExtractionCheckpoint(ExtractionCheckpoint.FORMAT_ZIP, 0, entries));
+            }
+        } catch (ZipException e) {
+            throw new StopRequestException(DownloadStatus.FILE_ERROR, "Archive cannot be extracted: " + e.getMessage());
+        } catch (IOException e) {
+            ended = true;
+        }
+    }
+
+    private boolean extractZipFile(ZipInputStream zip, String name, byte[] buffer) throws StopRequestException, IOException {
+        File file = fileFor(name);
+        FileOutputStream out = openForWriting(file);
+        try {
+            int read;
+            while ((read = zip.read(buffer, 0, buffer.length)) != Constants.NO_BYTES_READ) {
+                reportProgress();
+                write(out, buffer, read);
+            }
+            return true;
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private File fileFor(String name) throws StopRequestException {
+        File file = new File(directory, name);
+        try {
+            String directoryPath = directory.getCanonicalPath() + File.separator;
+            if (!file.getCanonicalPath().startsWith(directoryPath)) {
+                throw new StopRequestException(DownloadStatus.FILE_ERROR, "Archive entry outside of the extraction directory: " + name);
+            }
+        } catch (IOException e) {
+            throw new StopRequestException(DownloadStatus.FILE_ERROR, e);
+        }
+        return file;
+    }
+
+    private void createDirectory(String name) throws StopRequestException {
+        File entryDirectory = fileFor(name);
+        if (!entryDirectory.isDirectory() && !entryDirectory.mkdirs()) {
+            throw new StopRequestException(DownloadStatus.FILE_ERROR, "Failed to create directory " + entryDirectory);
+        }
+    }
+
+    private FileOutputStream openForWriting(File file) throws StopRequestException {
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new StopRequestException(DownloadStatus.FILE_ERROR, "Failed to create directory " + parent);
+        }
+        try {
+            return new FileOutputStream(file);
+        } catch (IOException e) {
+            throw new StopRequestException(DownloadStatus.FILE_ERROR, e);
+        }
+    }
+
+    private void write(FileOutputStream out, byte[] buffer, int count) throws StopRequestException {
+        spaceVerifier.verifySpacePreemptively(count);
+        try {
+            out.write(buffer, 0, count);
+        } catch (IOException e) {
+            spaceVerifier.verifySpace(count);
+            throw new StopRequestException(DownloadStatus.FILE_ERROR, "Failed to write data: " + e);
+        }
+    }
+
+    private int read(byte[] buffer, int count) throws StopRequestException {
+        if (ended) {
+            return Constants.NO_BYTES_READ;
+        }
+        int read;
+        try {
+            read = archive.read(buffer, 0, count);
+        } catch (IOException e) {
+            read = Constants.NO_BYTES_READ;
+        }
+        if (read == Constants.NO_BYTES_READ) {
+            ended = true;
+        }
+        reportProgress();
+        return read;
+    }
+
+    private boolean readFully(byte[] buffer, int count) throws StopRequestException {
+        int read = 0;
+        while (read < count) {
+            if (ended) {
+                return false;
+            }
+            int readLast;
+            try {
+                readLast = archive.read(buffer, read, count - read);
+            } catch (IOException e) {
+                readLast = Constants.NO_BYTES_READ;
+            }
+            if (readLast == Constants.NO_BYTES_READ) {
+                ended = true;
+                reportProgress();
+                return false;
+            }
+            read += readLast;
+        }
+        reportProgress();
+        return true;
+    }
+
+    private boolean skip(byte[] buffer, long count) throws StopRequestException {
+        long remaining = count;
+        while (remaining > 0) {
+            int read = read(buffer, (int) Math.min(buffer.length, remaining));
+            if (read == Constants.NO_BYTES_READ) {
+                return false;
+            }
+            remaining -= read;
+        }
+        return true;
+    }
+
+    /**
+     * Reads what follows the end of the archive, such as the padding of the last tar record,
+     * so that the download accounts for every byte of the response.
+     */
+    private void drain(byte[] buffer) throws StopRequestException {
+        while (read(buffer, buffer.length) != Constants.NO_BYTES_READ) {
+            // keep reading until the end of the response
+        }
+    }
+
+    private void reportProgress() throws StopRequestException {
+        long bytes = archive.count - reportedBytes;
+        if (bytes > 0) {
+            reportedBytes = archive.count;
+            state = progressWriter.write(state, null, (int) bytes);
+        }
+    }
+
+    private static boolean isZeroBlock(byte[] block) {
+        for (byte value : block) {
+            if (value != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String tarNameOf(byte[] header) {
+        String name = nullTerminated(header, TAR_NAME_OFFSET, TAR_NAME_LENGTH);
+        String magic = nullTerminated(header, TAR_MAGIC_OFFSET, TAR_MAGIC.length());
+        if (TAR_MAGIC.equals(magic)) {
+            String prefix = nullTerminated(header, TAR_PREFIX_OFFSET, TAR_PREFIX_LENGTH);
+            if (!prefix.isEmpty()) {
+                return prefix + "/" + name;
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Pax headers are made of {@code length key=value} records, each ending with a new line.
+     */
+    private static String paxPathOf(String records) {
+        for (String record : records.split("\n")) {
+            int keyStart = record.indexOf(' ') + 1;
+            if (record.startsWith("path=", keyStart)) {
+                return record.substring(keyStart + "path=".length());
+            }
+        }
+        return null;
+    }
+
+    private static String nullTerminated(byte[] bytes, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && bytes[end] != 0) {
+            end++;
+        }
+        return new String(bytes, offset, end - offset, UTF_8);
+    }
+
+    /**
+     * Tar numbers are octal text, or big-endian binary for values that do not fit when the first bit is set.
+     */
+    static long parseTarNumber(byte[] header, int offset, int length) throws StopRequestException {
+        if ((header[offset] & 0x80) != 0) {
+            long value = header[offset] & 0x7f;
+            for (int i = offset + 1; i < offset + length; i++) {
+                value = (value << 8) | (header[i] & 0xff);
+            }
+            return value;
+        }
+        long value = 0;
+        boolean started = false;
+        for (int i = offset; i < offset + length; i++) {
+            byte digit = header[i];
+            if (digit == 0 || digit == ' ') {
+                if (started) {
+                    break;
+                }
+                continue;
+            }
+            if (digit < '0' || digit > '7') {
+                throw new StopRequestException(DownloadStatus.FILE_ERROR, "Corrupt tar header");
+            }
+            started = true;
+            value = value * 8 + (digit - '0');
+        }
+        return value;
+    }
+
+    interface ExtractionListener {
+        void onEntryExtracted(ExtractionCheckpoint checkpoint);
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if (read != Constants.NO_BYTES_READ) {
+                count++;
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            long skipped = super.skip(byteCount);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package com.novoda.downloadmanager.lib;
+
+final class BatchEnqueueException extends RuntimeException {
+
+    BatchEnqueueException(Throwable cause) {
+        super("Failed to enqueue batch", cause);
+    }
+
+}
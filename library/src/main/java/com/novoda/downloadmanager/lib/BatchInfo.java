@@ -9,17 +9,20 @@ class BatchInfo {
     @NotificationVisibility.Value
     private final int visibility;
     private final String extraData;
+    private final int priority;
 
     public BatchInfo(String title,
                      String description,
                      String bigPictureUrl,
                      @NotificationVisibility.Value int visibility,
-                     String extraData) {
+                     String extraData,
+                     int priority) {
         this.title = title;
         this.description = description;
         this.bigPictureUrl = bigPictureUrl;
         this.visibility = visibility;
         this.extraData = extraData;
+        this.priority = priority;
     }
 
     public String getTitle() {
@@ -43,4 +46,8 @@ class BatchInfo {
         return extraData;
     }
 
+    public int getPriority() {
+        return priority;
+    }
+
 }
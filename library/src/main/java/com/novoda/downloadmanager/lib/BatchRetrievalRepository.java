@@ -3,12 +3,12 @@ package com.novoda.downloadmanager.lib;
 import android.content.ContentResolver;
 import android.database.Cursor;
 import android.net.Uri;
+import android.support.v4.util.LongSparseArray;
 
 import com.novoda.downloadmanager.notifications.NotificationVisibility;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.List;
 
 class BatchRetrievalRepository {
@@ -43,20 +43,38 @@ class BatchRetrievalRepository {
     }
 
     private List<DownloadBatch> marshallDownloadBatches(Collection<FileDownloadInfo> downloads, Cursor batchesCursor) {
+        LongSparseArray<List<FileDownloadInfo>> downloadsByBatch = groupByBatch(downloads);
         List<DownloadBatch> batches = new ArrayList<>(batchesCursor.getCount());
         while (batchesCursor.moveToNext()) {
-            batches.add(marshallDownloadBatch(downloads, batchesCursor));
+            long batchId = batchesCursor.getLong(batchesCursor.getColumnIndexOrThrow(DownloadContract.Batches._ID));
+            List<FileDownloadInfo> batchDownloads = downloadsByBatch.get(batchId, new ArrayList<FileDownloadInfo>(0));
+            batches.add(marshallDownloadBatch(batchDownloads, batchesCursor));
         }
 
         return batches;
     }
 
+    private LongSparseArray<List<FileDownloadInfo>> groupByBatch(Collection<FileDownloadInfo> downloads) {
+        LongSparseArray<List<FileDownloadInfo>> downloadsByBatch = new LongSparseArray<>();
+        for (FileDownloadInfo download : downloads) {
+            List<FileDownloadInfo> batchDownloads = downloadsByBatch.get(download.getBatchId());
+            if (batchDownloads == null) {
+                batchDownloads = new ArrayList<>(1);
+                downloadsByBatch.put(download.getBatchId(), batchDownloads);
+            }
+            batchDownloads.add(download);
+        }
+        return downloadsByBatch;
+    }
+
     DownloadBatch retrieveBatchFor(FileDownloadInfo download) {
         Cursor cursor = queryForSingleBatch(download.getBatchId());
 
         try {
             if (cursor.moveToFirst()) {
-                return marshallDownloadBatch(Collections.singletonList(download), cursor);
+                List<FileDownloadInfo> batchDownloads = new ArrayList<>(1);
+                batchDownloads.add(download);
+                return marshallDownloadBatch(batchDownloads, cursor);
             } else {
                 return DownloadBatch.DELETED;
             }
@@ -77,28 +95,26 @@ class BatchRetrievalRepository {
         return cursor;
     }
 
-    private DownloadBatch marshallDownloadBatch(Collection<FileDownloadInfo> downloads, Cursor cursor) {
+    private DownloadBatch marshallDownloadBatch(List<FileDownloadInfo> batchDownloads, Cursor cursor) {
         long id = cursor.getLong(cursor.getColumnIndexOrThrow(DownloadContract.Batches._ID));
-        String title = cursor.getString(cursor.getColumnIndexOrThrow(DownloadContract.Batches.COLUMN_TITLE));
-        String description = cursor.getString(cursor.getColumnIndexOrThrow(DownloadContract.Batches.COLUMN_DESCRIPTION));
-        String bigPictureUrl = cursor.getString(cursor.getColumnIndexOrThrow(DownloadContract.Batches.COLUMN_BIG_PICTURE));
         int status = cursor.getInt(cursor.getColumnIndexOrThrow(DownloadContract.Batches.COLUMN_STATUS));
-        @NotificationVisibility.Value int visibility = cursor.getInt(cursor.getColumnIndexOrThrow(DownloadContract.Batches.COLUMN_VISIBILITY));
-        String extraData = cursor.getString(cursor.getColumnIndexOrThrow(DownloadContract.Batches.COLUMN_EXTRA_DATA));
         long totalSizeBytes = cursor.getLong(cursor.getColumnIndexOrThrow(DownloadContract.BatchesWithSizes.COLUMN_TOTAL_BYTES));
         long currentSizeBytes = cursor.getLong(cursor.getColumnIndexOrThrow(DownloadContract.BatchesWithSizes.COLUMN_CURRENT_BYTES));
-        BatchInfo batchInfo = new BatchInfo(title, description, bigPictureUrl, visibility, extraData);
-
-        List<FileDownloadInfo> batchDownloads = new ArrayList<>(1);
-        for (FileDownloadInfo fileDownloadInfo : downloads) {
-            if (fileDownloadInfo.getBatchId() == id) {
-                batchDownloads.add(fileDownloadInfo);
-            }
-        }
+        BatchInfo batchInfo = readBatchInfo(cursor);
 
         return new DownloadBatch(id, batchInfo, batchDownloads, status, totalSizeBytes, currentSizeBytes);
     }
 
+    static BatchInfo readBatchInfo(Cursor cursor) {
+        String title = cursor.getString(cursor.getColumnIndexOrThrow(DownloadContract.Batches.COLUMN_TITLE));
+        String description = cursor.getString(cursor.getColumnIndexOrThrow(DownloadContract.Batches.COLUMN_DESCRIPTION));
+        String bigPictureUrl = cursor.getString(cursor.getColumnIndexOrThrow(DownloadContract.Batches.COLUMN_BIG_PICTURE));
+        @NotificationVisibility.Value int visibility = cursor.getInt(cursor.getColumnIndexOrThrow(DownloadContract.Batches.COLUMN_VISIBILITY));
+        String extraData = cursor.getString(cursor.getColumnIndexOrThrow(DownloadContract.Batches.COLUMN_EXTRA_DATA));
+        int priority = cursor.getInt(cursor.getColumnIndexOrThrow(DownloadContract.Batches.COLUMN_PRIORITY));
+        return new BatchInfo(title, description, bigPictureUrl, visibility, extraData, priority);
+    }
+
     Cursor retrieveFor(BatchQuery query) {
         Uri batchesUri = downloadsUriProvider.getBatchesUri();
         return resolver.query(
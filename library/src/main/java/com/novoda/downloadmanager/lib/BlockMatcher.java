@@ -0,0 +1,156 @@
+package com.novoda.downloadmanager.lib;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the blocks of a {@link DeltaManifest} in a previous version of the file, wherever they moved to, as zsync does.
+ * <p/>
+ * A window of a block slides over the previous version a byte at a time, updating its rolling checksum in constant
+ * time. Only the positions whose rolling checksum is the one of a block are hashed with MD5 to confirm the match,
+ * after which the window jumps a whole block ahead, as the following block usually follows in the previous version too.
+ */
+class BlockMatcher {
+
+    static final long NOT_FOUND = -1;
+
+    private static final int CANDIDATE_FILTER_SIZE = 1 << 16;
+
+    private final DeltaManifest manifest;
+
+    BlockMatcher(DeltaManifest manifest) {
+        this.manifest = manifest;
+    }
+
+    /**
+     * The short last block is never looked for, as it can only be at the very end of the previous version.
+     *
+     * @return for each block of the manifest, where it starts in the previous version, or {@link #NOT_FOUND}
+     */
+    long[] match(InputStream previousVersion) throws IOException {
+        long[] offsets = new long[manifest.getBlockCount()];
+        Arrays.fill(offsets, NOT_FOUND);
+
+        int blockSize = manifest.getBlockSize();
+        Map<Integer, List<Integer>> blocksByChecksum = new HashMap<>();
+        boolean[] candidateFilter = new boolean[CANDIDATE_FILTER_SIZE];
+        for (int block = 0; block < manifest.getBlockCount(); block++) {
+            if (manifest.getBlockLength(block) != blockSize) {
+                continue;
+            }
+            int checksum = manifest.getWeakChecksum(block);
+            List<Integer> blocks = blocksByChecksum.get(checksum);
+            if (blocks == null) {
+                blocks = new ArrayList<>(1);
+                blocksByChecksum.put(checksum, blocks);
+            }
+            blocks.add(block);
+            candidateFilter[filterIndexOf(checksum)] = true;
+        }
+        if (blocksByChecksum.isEmpty()) {
+            return offsets;
+        }
+
+        InputStream in = new BufferedInputStream(previousVersion, Constants.BUFFER_SIZE);
+        MessageDigest md5 = newMd5();
+        byte[] window = new byte[blockSize];
+        if (!readFully(in, window)) {
+            return offsets;
+        }
+        int checksum = DeltaManifest.weakChecksum(window, 0, blockSize);
+        int a = checksum & 0xFFFF;
+        int b = checksum >>> 16;
+        int head = 0;
+        long position = 0;
+        while (true) {
+            checksum = (b << 16) | a;
+            if (candidateFilter[filterIndexOf(checksum)]
+                    && blocksByChecksum.containsKey(checksum)
+                    && matchBlocks(blocksByChecksum.get(checksum), md5, window, head, position, offsets)) {
+                position += blockSize;
+                if (!readFully(in, window)) {
+                    return offsets;
+                }
+                checksum = DeltaManifest.weakChecksum(window, 0, blockSize);
+                a = checksum & 0xFFFF;
+                b = checksum >>> 16;
+                head = 0;
+                continue;
+            }
+
+            int next = in.read();
+            if (next == Constants.NO_BYTES_READ) {
+                return offsets;
+            }
+            int previous = window[head] & 0xFF;
+            window[head] = (byte) next;
+            head = head + 1 == blockSize ? 0 : head + 1;
+            a = (a - previous + next) & 0xFFFF;
+            b = (b - blockSize * previous + a) & 0xFFFF;
+            position++;
+        }
+    }
+
+    /**
+     * @return whether the window holds any of the blocks, recording where for those not found yet
+     */
+    private boolean matchBlocks(List<Integer> blocks, MessageDigest md5, byte[] window, int head, long position, long[] offsets) {
+        md5.update(window, head, window.length - head);
+        md5.update(window, 0, head);
+        String strongChecksum = StreamingChecksum.toHex(md5.digest());
+        boolean matched = false;
+        for (int block : blocks) {
+            if (manifest.getStrongChecksum(block).equals(strongChecksum)) {
+                matched = true;
+                if (offsets[block] == NOT_FOUND) {
+                    offsets[block] = position;
+                }
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * @return the MD5 of the bytes as lowercase hexadecimal, as listed in a {@link DeltaManifest}
+     */
+    static String strongChecksum(byte[] buffer, int offset, int count) {
+        MessageDigest md5 = newMd5();
+        md5.update(buffer, offset, count);
+        return StreamingChecksum.toHex(md5.digest());
+    }
+
+    private static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is always available", e);
+        }
+    }
+
+    private static int filterIndexOf(int checksum) {
+        return (checksum ^ (checksum >>> 16)) & (CANDIDATE_FILTER_SIZE - 1);
+    }
+
+    /**
+     * @return false when the stream ended before the buffer was full
+     */
+    private static boolean readFully(InputStream in, byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int read = in.read(buffer, offset, buffer.length - offset);
+            if (read == Constants.NO_BYTES_READ) {
+                return false;
+            }
+            offset += read;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,108 @@
+package com.novoda.downloadmanager.lib;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the transfer buffers around once a transfer is over, so the next transfer reuses them instead of allocating.
+ * <p/>
+ * Buffers are pooled by size, and at most {@link #MAX_POOLED_BUFFERS_PER_SIZE} of each size are kept: a buffer
+ * released to a full pool is left to the garbage collector. The hit and miss counts tell whether that bound fits
+ * the number of concurrent transfers. Applications read them through {@link DownloadManager#getTransferBufferReuseCount()}
+ * and {@link DownloadManager#getTransferBufferAllocationCount()}.
+ * <p/>
+ * Direct {@link ByteBuffer}s are pooled the same way, apart from the arrays, for the transfers that go through channels.
+ */
+class BufferPool {
+
+    static final int MAX_POOLED_BUFFERS_PER_SIZE = 8;
+
+    private static final BufferPool INSTANCE = new BufferPool(MAX_POOLED_BUFFERS_PER_SIZE);
+
+    private final int maxPooledBuffersPerSize;
+    private final Map<Integer, Deque<byte[]>> pooledBuffers = new HashMap<>();
+    private final Map<Integer, Deque<ByteBuffer>> pooledDirectBuffers = new HashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    static BufferPool getInstance() {
+        return INSTANCE;
+    }
+
+    BufferPool(int maxPooledBuffersPerSize) {
+        this.maxPooledBuffersPerSize = maxPooledBuffersPerSize;
+    }
+
+    /**
+     * The content of the buffer is whatever its previous user left in it.
+     */
+    byte[] lease(int size) {
+        byte[] buffer = poll(pooledBuffers, size);
+        if (buffer == null) {
+            misses.incrementAndGet();
+            return new byte[size];
+        }
+        hits.incrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * The buffer must not be used anymore once released.
+     */
+    void release(byte[] buffer) {
+        offer(pooledBuffers, buffer.length, buffer);
+    }
+
+    /**
+     * The buffer is cleared, but its content is whatever its previous user left in it.
+     */
+    ByteBuffer leaseDirect(int capacity) {
+        ByteBuffer buffer = poll(pooledDirectBuffers, capacity);
+        if (buffer == null) {
+            misses.incrementAndGet();
+            return ByteBuffer.allocateDirect(capacity);
+        }
+        hits.incrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * The buffer must not be used anymore once released.
+     */
+    void release(ByteBuffer buffer) {
+        offer(pooledDirectBuffers, buffer.capacity(), buffer);
+    }
+
+    private static <T> T poll(Map<Integer, Deque<T>> pool, int size) {
+        synchronized (pool) {
+            Deque<T> buffers = pool.get(size);
+            return buffers == null ? null : buffers.pollFirst();
+        }
+    }
+
+    private <T> void offer(Map<Integer, Deque<T>> pool, int size, T buffer) {
+        synchronized (pool) {
+            Deque<T> buffers = pool.get(size);
+            if (buffers == null) {
+                buffers = new ArrayDeque<>(maxPooledBuffersPerSize);
+                pool.put(size, buffers);
+            }
+            if (buffers.size() < maxPooledBuffersPerSize) {
+                buffers.offerFirst(buffer);
+            }
+        }
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+}
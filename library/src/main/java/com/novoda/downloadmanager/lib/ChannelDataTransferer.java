@@ -0,0 +1,87 @@
+package com.novoda.downloadmanager.lib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Moves the response body into the destination {@link FileChannel} through a pooled direct {@link ByteBuffer},
+ * in slices of {@link Constants#CHANNEL_TRANSFER_SLICE_SIZE}, instead of copying it buffer by buffer through the writer chain.
+ * {@link FileChannel#transferFrom} is not used, as Android allocates a new buffer of the slice size on every call
+ * when the source is not a file.
+ * <p/>
+ * Space is verified before each slice, and the given {@link DataWriter} only accounts for the bytes of each slice,
+ * which is where progress is reported and pause requests surface.
+ */
+class ChannelDataTransferer implements DataTransferer {
+
+    private final FileChannel destination;
+    private final SpaceVerifier spaceVerifier;
+    private final DataWriter progressWriter;
+    private final BufferPool bufferPool;
+
+    ChannelDataTransferer(FileChannel destination, SpaceVerifier spaceVerifier, DataWriter progressWriter, BufferPool bufferPool) {
+        this.destination = destination;
+        this.spaceVerifier = spaceVerifier;
+        this.progressWriter = progressWriter;
+        this.bufferPool = bufferPool;
+    }
+
+    @Override
+    public DownloadTask.State transferData(DownloadTask.State state, InputStream in) throws StopRequestException {
+        ReadableByteChannel source = Channels.newChannel(in);
+        ByteBuffer buffer = bufferPool.leaseDirect((int) Constants.CHANNEL_TRANSFER_SLICE_SIZE);
+        try {
+            DownloadTask.State newState = state;
+            boolean endOfStream = false;
+            while (!endOfStream) {
+                spaceVerifier.verifySpacePreemptively(buffer.capacity());
+
+                buffer.clear();
+                try {
+                    endOfStream = fill(source, buffer);
+                } catch (IOException e) {
+                    // Same as the regular transfer: the end of stream handling decides whether this is complete
+                    endOfStream = true;
+                }
+                buffer.flip();
+
+                int count = buffer.remaining();
+                if (count > 0) {
+                    write(buffer);
+                    newState = progressWriter.write(newState, null, count);
+                }
+            }
+            return newState;
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * @return whether the end of the stream was reached
+     */
+    private static boolean fill(ReadableByteChannel source, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (source.read(buffer) == -1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void write(ByteBuffer buffer) throws StopRequestException {
+        int count = buffer.remaining();
+        try {
+            while (buffer.hasRemaining()) {
+                destination.write(buffer);
+            }
+        } catch (IOException e) {
+            spaceVerifier.verifySpace(count);
+            throw new StopRequestException(DownloadStatus.FILE_ERROR, "Failed to write data: " + e);
+        }
+    }
+}
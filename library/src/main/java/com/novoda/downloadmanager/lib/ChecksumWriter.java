@@ -0,0 +1,23 @@
+package com.novoda.downloadmanager.lib;
+
+/**
+ * Hashes the bytes the wrapped writer wrote, so that the checksum only ever covers what reached the file.
+ */
+class ChecksumWriter implements DataWriter {
+
+    private final DataWriter dataWriter;
+    private final StreamingChecksum checksum;
+
+    public ChecksumWriter(DataWriter dataWriter, StreamingChecksum checksum) {
+        this.dataWriter = dataWriter;
+        this.checksum = checksum;
+    }
+
+    @Override
+    public DownloadTask.State write(DownloadTask.State state, byte[] buffer, int count) throws StopRequestException {
+        DownloadTask.State newState = dataWriter.write(state, buffer, count);
+        checksum.update(buffer, 0, count);
+        return newState;
+    }
+
+}
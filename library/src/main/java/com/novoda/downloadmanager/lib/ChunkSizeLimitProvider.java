@@ -0,0 +1,47 @@
+package com.novoda.downloadmanager.lib;
+
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.os.Bundle;
+
+import com.novoda.downloadmanager.lib.logger.LLog;
+
+/**
+ * Reads the bounds of the chunks a download is read and written in from the application meta-data, in bytes.
+ */
+class ChunkSizeLimitProvider {
+
+    private static final int DEFAULT_MIN_CHUNK_SIZE = Constants.BUFFER_SIZE;
+    private static final String METADATA_MIN_CHUNK_SIZE = "com.novoda.downloadmanager.MinChunkSize";
+    private static final int DEFAULT_MAX_CHUNK_SIZE = 128 * 1024;
+    private static final String METADATA_MAX_CHUNK_SIZE = "com.novoda.downloadmanager.MaxChunkSize";
+
+    private final PackageManager packageManager;
+    private final String packageName;
+
+    ChunkSizeLimitProvider(PackageManager packageManager, String packageName) {
+        this.packageManager = packageManager;
+        this.packageName = packageName;
+    }
+
+    public ChunkSizer getChunkSizer() {
+        Bundle metaData = getMetaData();
+        if (metaData == null) {
+            return new ChunkSizer(DEFAULT_MIN_CHUNK_SIZE, DEFAULT_MAX_CHUNK_SIZE);
+        }
+        int minChunkSize = metaData.getInt(METADATA_MIN_CHUNK_SIZE, DEFAULT_MIN_CHUNK_SIZE);
+        int maxChunkSize = metaData.getInt(METADATA_MAX_CHUNK_SIZE, DEFAULT_MAX_CHUNK_SIZE);
+        return new ChunkSizer(minChunkSize, maxChunkSize);
+    }
+
+    private Bundle getMetaData() {
+        try {
+            ApplicationInfo applicationInfo = packageManager.getApplicationInfo(packageName, PackageManager.GET_META_DATA);
+            return applicationInfo.metaData;
+        } catch (PackageManager.NameNotFoundException e) {
+            LLog.e("Application info not found for: " + packageName + " " + e.getMessage());
+            return null;
+        }
+    }
+
+}
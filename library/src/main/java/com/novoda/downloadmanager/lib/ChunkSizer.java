@@ -0,0 +1,40 @@
+package com.novoda.downloadmanager.lib;
+
+/**
+ * Sizes the chunks a download is read and written in after its measured speed, so that each chunk takes about
+ * {@link Constants#CHUNK_DURATION_MILLIS} to arrive.
+ * <p/>
+ * Fast downloads go through fewer and larger reads and writes, while slow downloads keep reporting progress and
+ * noticing pause requests as often as before. Sizes are powers of two within the bounds, which are rounded down to
+ * powers of two themselves.
+ */
+class ChunkSizer {
+
+    private static final int SMALLEST_CHUNK_SIZE = Constants.TAR_BLOCK_SIZE;
+
+    private final int minChunkSize;
+    private final int maxChunkSize;
+
+    ChunkSizer(int minChunkSize, int maxChunkSize) {
+        this.minChunkSize = Integer.highestOneBit(Math.max(minChunkSize, SMALLEST_CHUNK_SIZE));
+        this.maxChunkSize = Math.max(this.minChunkSize, Integer.highestOneBit(maxChunkSize));
+    }
+
+    /**
+     * @param bytesPerSecond the current speed of the download, 0 when not measured yet
+     */
+    int sizeFor(long bytesPerSecond) {
+        long idealSize = bytesPerSecond * Constants.CHUNK_DURATION_MILLIS / 1000;
+        if (idealSize <= minChunkSize) {
+            return minChunkSize;
+        }
+        if (idealSize >= maxChunkSize) {
+            return maxChunkSize;
+        }
+        return Integer.highestOneBit((int) idealSize);
+    }
+
+    int getMaxChunkSize() {
+        return maxChunkSize;
+    }
+}
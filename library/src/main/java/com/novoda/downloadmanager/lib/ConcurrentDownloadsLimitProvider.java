@@ -10,6 +10,8 @@ class ConcurrentDownloadsLimitProvider {
 
     private static final int DEFAULT_MAX_CONCURRENT_DOWNLOADS = 5;
     private static final String METADATA_MAX_CONCURRENT_DOWNLOADS = "com.novoda.downloadmanager.MaxConcurrentDownloads";
+    private static final int DEFAULT_MAX_CONCURRENT_DOWNLOADS_PER_BATCH = 1;
+    private static final String METADATA_MAX_CONCURRENT_DOWNLOADS_PER_BATCH = "com.novoda.downloadmanager.MaxConcurrentDownloadsPerBatch";
 
     private final PackageManager packageManager;
     private final String packageName;
@@ -29,6 +31,27 @@ class ConcurrentDownloadsLimitProvider {
         }
     }
 
+    /**
+     * How many downloads of a single batch may run at the same time, never more than {@link #getConcurrentDownloadsLimit()}.
+     */
+    public int getConcurrentDownloadsPerBatchLimit() {
+        try {
+            ApplicationInfo applicationInfo = packageManager.getApplicationInfo(packageName, PackageManager.GET_META_DATA);
+            int maximumConcurrentDownloads = getMaximumConcurrentDownloads(applicationInfo.metaData);
+            return Math.min(getMaximumConcurrentDownloadsPerBatch(applicationInfo.metaData), maximumConcurrentDownloads);
+        } catch (PackageManager.NameNotFoundException e) {
+            LLog.e("Application info not found for: " + packageName + " " + e.getMessage());
+            return DEFAULT_MAX_CONCURRENT_DOWNLOADS_PER_BATCH;
+        }
+    }
+
+    private int getMaximumConcurrentDownloadsPerBatch(Bundle bundle) {
+        if (bundle == null) {
+            return DEFAULT_MAX_CONCURRENT_DOWNLOADS_PER_BATCH;
+        }
+        return Math.max(1, bundle.getInt(METADATA_MAX_CONCURRENT_DOWNLOADS_PER_BATCH, DEFAULT_MAX_CONCURRENT_DOWNLOADS_PER_BATCH));
+    }
+
     private int getMaximumConcurrentDownloads(Bundle bundle) {
         if (bundle == null) {
             return DEFAULT_MAX_CONCURRENT_DOWNLOADS;
@@ -122,6 +122,61 @@ class Constants {
      */
     public static final int BUFFER_SIZE = 8 * TAR_BLOCK_SIZE;
 
+    /**
+     * The smallest byte range worth opening an extra connection for when segmenting a download
+     */
+    public static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    /**
+     * The most bytes moved by a single channel transfer, between two progress and pause checks
+     */
+    public static final long CHANNEL_TRANSFER_SLICE_SIZE = 256 * 1024;
+
+    /**
+     * How long the data of a single chunk should take to arrive, when sizing the chunks after the download speed
+     */
+    public static final long CHUNK_DURATION_MILLIS = 100;
+
+    /**
+     * The size of the chunks handed over to the disk when writing behind
+     */
+    public static final int WRITE_BEHIND_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * How many chunks can wait for the disk when writing behind, before reading from the network blocks
+     */
+    public static final int WRITE_BEHIND_BUFFER_COUNT = 4;
+
+    /**
+     * How much data is written between syncs, for downloads syncing periodically
+     */
+    public static final long DURABILITY_SYNC_INTERVAL_BYTES = 8 * 1024 * 1024;
+
+    /**
+     * The fraction of its usual speed below which a connection counts as stalled
+     */
+    public static final float STALL_SPEED_RATIO = 0.1f;
+
+    /**
+     * How long a connection has to stay below {@link #STALL_SPEED_RATIO} of its usual speed before it is dropped
+     */
+    public static final long STALL_WINDOW_MILLIS = 10 * 1000;
+
+    /**
+     * How many times a download reconnects after a stall within one attempt, before failing like any interrupted transfer
+     */
+    public static final int MAX_STALL_RECONNECTS = 5;
+
+    /**
+     * How often a download following the transfer of another checks whether it was paused or canceled while waiting
+     */
+    public static final long COALESCED_TRANSFER_CHECK_MILLIS = 1000;
+
+    /**
+     * How long the sources of a download with mirrors get to answer, before the first one is used anyway
+     */
+    public static final long SOURCE_PROBE_TIMEOUT_MILLIS = 5000;
+
     /**
      * The value representing the end of stream when, reading an InputStream
      */
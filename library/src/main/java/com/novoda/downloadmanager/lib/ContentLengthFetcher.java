@@ -20,17 +20,25 @@ class ContentLengthFetcher {
     private static final String HEADER_USER_AGENT = "User-Agent";
     private static final String METHOD_HEAD = "HEAD";
 
+    private final HttpConnectionFactory httpConnectionFactory;
+
+    ContentLengthFetcher(HttpConnectionFactory httpConnectionFactory) {
+        this.httpConnectionFactory = httpConnectionFactory;
+    }
+
     public long fetchContentLengthFor(FileDownloadInfo info) {
         HttpURLConnection conn = null;
+        int responseCode = IOHelpers.NO_RESPONSE;
         try {
-            conn = (HttpURLConnection) new URL(info.getUri()).openConnection();
+            conn = httpConnectionFactory.openConnection(new URL(info.getUri()));
             conn.setInstanceFollowRedirects(true);
             conn.setConnectTimeout(TIMEOUT_MILLIS);
             conn.setReadTimeout(TIMEOUT_MILLIS);
             conn.setRequestMethod(METHOD_HEAD);
             addRequestHeaders(info, conn);
 
-            if (conn.getResponseCode() == HTTP_OK) {
+            responseCode = conn.getResponseCode();
+            if (responseCode == HTTP_OK) {
                 return getHeaderFieldLong(conn, HEADER_CONTENT_LENGTH, UNKNOWN_CONTENT_LENGTH);
             } else {
                 return UNKNOWN_CONTENT_LENGTH;
@@ -40,7 +48,7 @@ class ContentLengthFetcher {
             LLog.e("Could not fetch content length.");
         } finally {
             if (conn != null) {
-                conn.disconnect();
+                IOHelpers.releaseConnection(conn, responseCode);
             }
         }
 
@@ -0,0 +1,227 @@
+package com.novoda.downloadmanager.lib;
+
+import com.novoda.downloadmanager.lib.logger.LLog;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves the size of the downloads that do not know it yet, in the background.
+ * <p/>
+ * {@link #prefetchFor(Collection)} only hands work over, so the update pass never waits on the network.
+ * Fetches are spread over a bounded executor with a limit per host, each download is fetched at most once at a time,
+ * and a download whose size could not be found is not tried again until its back-off has elapsed.
+ * Only sizes that were found are persisted.
+ * <p/>
+ * Only ids are handed to the fetching threads, which read their own copy of the download, as the downloads given to
+ * {@link #prefetchFor(Collection)} keep being updated in place on the update thread.
+ */
+class ContentLengthPrefetcher {
+
+    static final int MAX_FETCHES = 4;
+    static final int MAX_FETCHES_PER_HOST = 2;
+    static final long INITIAL_BACK_OFF_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    static final long MAX_BACK_OFF_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+    private static final String UNKNOWN_HOST = "";
+    private static final int KEEP_ALIVE_TIME = 10;
+
+    private final ContentLengthFetcher contentLengthFetcher;
+    private final DownloadsRepository downloadsRepository;
+    private final ExecutorService executor;
+    private final Clock clock;
+
+    private final Set<Long> requestedIds = new HashSet<>();
+    private final Map<String, Integer> fetchesPerHost = new HashMap<>();
+    private final Map<String, Queue<Long>> waitingPerHost = new HashMap<>();
+    private final Map<Long, Failure> failures = new HashMap<>();
+
+    static ContentLengthPrefetcher from(ContentLengthFetcher contentLengthFetcher, DownloadsRepository downloadsRepository) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                MAX_FETCHES,
+                MAX_FETCHES,
+                KEEP_ALIVE_TIME,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+        return new ContentLengthPrefetcher(contentLengthFetcher, downloadsRepository, executor, new Clock());
+    }
+
+    ContentLengthPrefetcher(ContentLengthFetcher contentLengthFetcher,
+                            DownloadsRepository downloadsRepository,
+                            ExecutorService executor,
+                            Clock clock) {
+        this.contentLengthFetcher = contentLengthFetcher;
+        this.downloadsRepository = downloadsRepository;
+        this.executor = executor;
+        this.clock = clock;
+    }
+
+    /**
+     * Requests the size of every download in need of one, skipping those that are already being fetched,
+     * backing off, running, which will find their size themselves, or completed.
+     */
+    synchronized void prefetchFor(Collection<FileDownloadInfo> downloads) {
+        long now = clock.currentTimeMillis();
+        Set<Long> unknownSizeIds = new HashSet<>();
+        for (FileDownloadInfo info : downloads) {
+            if (!needsPrefetch(info)) {
+                continue;
+            }
+            long id = info.getId();
+            unknownSizeIds.add(id);
+            if (requestedIds.contains(id) || isBackingOff(id, now)) {
+                continue;
+            }
+            requestedIds.add(id);
+            request(hostOf(info), id);
+        }
+        failures.keySet().retainAll(unknownSizeIds);
+    }
+
+    synchronized void shutdown() {
+        executor.shutdownNow();
+        waitingPerHost.clear();
+    }
+
+    private static boolean needsPrefetch(FileDownloadInfo info) {
+        return info.hasUnknownTotalBytes()
+                && !info.isSubmittedOrRunning()
+                && !DownloadStatus.isCompleted(info.getStatus());
+    }
+
+    private boolean isBackingOff(long id, long now) {
+        Failure failure = failures.get(id);
+        return failure != null && now < failure.retryAfterMillis;
+    }
+
+    private void request(String host, long id) {
+        int fetches = fetchesFor(host);
+        if (fetches < MAX_FETCHES_PER_HOST) {
+            fetchesPerHost.put(host, fetches + 1);
+            submit(host, id);
+        } else {
+            waitingFor(host).add(id);
+        }
+    }
+
+    private void submit(final String host, final long id) {
+        if (executor.isShutdown()) {
+            return;
+        }
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                boolean fetched = false;
+                long totalBytes = Constants.UNKNOWN_BYTE_SIZE;
+                try {
+                    FileDownloadInfo info = downloadsRepository.getDownloadFor(id);
+                    if (info != null && needsPrefetch(info)) {
+                        fetched = true;
+                        totalBytes = contentLengthFetcher.fetchContentLengthFor(info);
+                        if (totalBytes != Constants.UNKNOWN_BYTE_SIZE) {
+                            downloadsRepository.setTotalBytesIfUnknown(info, totalBytes);
+                        }
+                    }
+                } finally {
+                    onFetched(host, id, fetched, totalBytes);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param fetched false when the download no longer needed its size by the time its turn came
+     */
+    private synchronized void onFetched(String host, long id, boolean fetched, long totalBytes) {
+        requestedIds.remove(id);
+        if (fetched && totalBytes == Constants.UNKNOWN_BYTE_SIZE) {
+            Failure failure = failures.get(id);
+            int attempts = failure == null ? 1 : failure.attempts + 1;
+            long retryAfterMillis = clock.currentTimeMillis() + backOffFor(attempts);
+            failures.put(id, new Failure(attempts, retryAfterMillis));
+            LLog.v("Could not find the size of download " + id + ", attempt " + attempts);
+        } else {
+            failures.remove(id);
+        }
+
+        Long next = pollWaitingFor(host);
+        if (next == null) {
+            releaseFetchFor(host);
+        } else {
+            submit(host, next);
+        }
+    }
+
+    private static long backOffFor(int attempts) {
+        int doublings = Math.min(attempts - 1, 16);
+        return Math.min(INITIAL_BACK_OFF_MILLIS << doublings, MAX_BACK_OFF_MILLIS);
+    }
+
+    private Long pollWaitingFor(String host) {
+        Queue<Long> waiting = waitingPerHost.get(host);
+        if (waiting == null) {
+            return null;
+        }
+        Long next = waiting.poll();
+        if (waiting.isEmpty()) {
+            waitingPerHost.remove(host);
+        }
+        return next;
+    }
+
+    private void releaseFetchFor(String host) {
+        int fetches = fetchesFor(host) - 1;
+        if (fetches > 0) {
+            fetchesPerHost.put(host, fetches);
+        } else {
+            fetchesPerHost.remove(host);
+        }
+    }
+
+    private int fetchesFor(String host) {
+        Integer fetches = fetchesPerHost.get(host);
+        return fetches == null ? 0 : fetches;
+    }
+
+    private Queue<Long> waitingFor(String host) {
+        Queue<Long> waiting = waitingPerHost.get(host);
+        if (waiting == null) {
+            waiting = new ArrayDeque<>();
+            waitingPerHost.put(host, waiting);
+        }
+        return waiting;
+    }
+
+    private static String hostOf(FileDownloadInfo info) {
+        try {
+            String host = new URL(info.getUri()).getHost();
+            return host == null ? UNKNOWN_HOST : host.toLowerCase(Locale.US);
+        } catch (MalformedURLException e) {
+            return UNKNOWN_HOST;
+        }
+    }
+
+    private static class Failure {
+
+        private final int attempts;
+        private final long retryAfterMillis;
+
+        Failure(int attempts, long retryAfterMillis) {
+            this.attempts = attempts;
+            this.retryAfterMillis = retryAfterMillis;
+        }
+    }
+}
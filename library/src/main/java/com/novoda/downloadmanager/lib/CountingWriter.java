@@ -0,0 +1,18 @@
+package com.novoda.downloadmanager.lib;
+
+/**
+ * Accounts for bytes that have already been written to the destination file by other means,
+ * so that they can still flow through the usual progress reporting chain.
+ */
+class CountingWriter implements DataWriter {
+
+    @Override
+    public DownloadTask.State write(DownloadTask.State state, byte[] buffer, int count) throws StopRequestException {
+        if (count > 0) {
+            state.gotData = true;
+            state.currentBytes += count;
+        }
+        return state;
+    }
+
+}
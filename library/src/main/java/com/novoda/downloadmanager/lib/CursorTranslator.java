@@ -38,6 +38,10 @@ class CursorTranslator extends CursorWrapper {
                 return getStatus(super.getInt(getColumnIndex(DownloadContract.Downloads.COLUMN_STATUS)));
             case DownloadManager.COLUMN_BATCH_STATUS:
                 return getStatus(super.getInt(getColumnIndex(DownloadContract.Batches.COLUMN_STATUS)));
+            case DownloadManager.COLUMN_SPEED_BYTES_PER_SECOND:
+                return getSpeed();
+            case DownloadManager.COLUMN_TIME_REMAINING:
+                return getTimeRemaining();
             default:
                 return super.getLong(columnIndex);
         }
@@ -56,6 +60,27 @@ class CursorTranslator extends CursorWrapper {
         }
     }
 
+    /**
+     * The speed is left as it was by the last progress update, so it only holds while the download is running.
+     */
+    private long getSpeed() {
+        int status = getStatus(super.getInt(getColumnIndex(DownloadContract.Downloads.COLUMN_STATUS)));
+        if (status != DownloadManager.STATUS_RUNNING) {
+            return 0;
+        }
+        return super.getLong(getColumnIndex(DownloadManager.COLUMN_SPEED_BYTES_PER_SECOND));
+    }
+
+    private long getTimeRemaining() {
+        long bytesPerSecond = getSpeed();
+        long totalBytes = super.getLong(getColumnIndex(DownloadManager.COLUMN_TOTAL_SIZE_BYTES));
+        if (bytesPerSecond <= 0 || totalBytes <= 0) {
+            return -1;
+        }
+        long currentBytes = super.getLong(getColumnIndex(DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR));
+        return (Math.max(totalBytes - currentBytes, 0) * 1000) / bytesPerSecond;
+    }
+
     private int getStatus(int rawStatus) {
         return statusTranslator.translate(rawStatus);
     }
@@ -133,6 +158,9 @@ class CursorTranslator extends CursorWrapper {
             case DownloadStatus.FILE_ALREADY_EXISTS_ERROR:
                 return DownloadManager.ERROR_FILE_ALREADY_EXISTS;
 
+            case DownloadStatus.CHECKSUM_MISMATCH:
+                return DownloadManager.ERROR_CHECKSUM_MISMATCH;
+
             default:
                 return DownloadManager.ERROR_UNKNOWN;
         }
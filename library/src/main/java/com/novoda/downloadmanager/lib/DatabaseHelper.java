@@ -20,13 +20,137 @@ final class DatabaseHelper extends SQLiteOpenHelper {
     /**
      * Current database version
      */
-    private static final int DB_VERSION = 2;
+    private static final int DB_VERSION = 16;
 
     private static final String VERSION_ONE_TO_VERSION_TWO_MIGRATION_SCRIPT = "ALTER TABLE "
             + DownloadContract.Batches.BATCHES_TABLE_NAME
             + " ADD "
             + DownloadContract.Batches.COLUMN_HAS_STARTED + " BOOLEAN NOT NULL DEFAULT 0;";
 
+    private static final String[] VERSION_TWO_TO_VERSION_THREE_MIGRATION_SCRIPTS = {
+            "ALTER TABLE "
+                    + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+                    + " ADD "
+                    + DownloadContract.Downloads.COLUMN_MAX_SEGMENTS + " INTEGER NOT NULL DEFAULT 1;",
+            "ALTER TABLE "
+                    + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+                    + " ADD "
+                    + DownloadContract.Downloads.COLUMN_SEGMENTS + " TEXT;"
+    };
+
+    private static final String VERSION_THREE_TO_VERSION_FOUR_MIGRATION_SCRIPT = "ALTER TABLE "
+            + DownloadContract.Batches.BATCHES_TABLE_NAME
+            + " ADD "
+            + DownloadContract.Batches.COLUMN_PRIORITY + " INTEGER NOT NULL DEFAULT " + RequestBatch.PRIORITY_NORMAL + ";";
+
+    private static final String VERSION_FOUR_TO_VERSION_FIVE_MIGRATION_SCRIPT = "ALTER TABLE "
+            + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+            + " ADD "
+            + DownloadContract.Downloads.COLUMN_CHANNEL_TRANSFER + " BOOLEAN NOT NULL DEFAULT 0;";
+
+    private static final String VERSION_FIVE_TO_VERSION_SIX_MIGRATION_SCRIPT = "ALTER TABLE "
+            + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+            + " ADD "
+            + DownloadContract.Downloads.COLUMN_WRITE_BEHIND + " BOOLEAN NOT NULL DEFAULT 0;";
+
+    private static final String VERSION_SIX_TO_VERSION_SEVEN_CHECKSUM_ALGORITHM_MIGRATION_SCRIPT = "ALTER TABLE "
+            + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+            + " ADD "
+            + DownloadContract.Downloads.COLUMN_CHECKSUM_ALGORITHM + " TEXT;";
+
+    private static final String VERSION_SIX_TO_VERSION_SEVEN_EXPECTED_CHECKSUM_MIGRATION_SCRIPT = "ALTER TABLE "
+            + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+            + " ADD "
+            + DownloadContract.Downloads.COLUMN_EXPECTED_CHECKSUM + " TEXT;";
+
+    private static final String VERSION_SIX_TO_VERSION_SEVEN_CHECKSUM_STATE_MIGRATION_SCRIPT = "ALTER TABLE "
+            + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+            + " ADD "
+            + DownloadContract.Downloads.COLUMN_CHECKSUM_STATE + " TEXT;";
+
+    private static final String VERSION_SEVEN_TO_VERSION_EIGHT_EXTRACT_DIRECTORY_MIGRATION_SCRIPT = "ALTER TABLE "
+            + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+            + " ADD "
+            + DownloadContract.Downloads.COLUMN_EXTRACT_DIRECTORY + " TEXT;";
+
+    private static final String VERSION_SEVEN_TO_VERSION_EIGHT_EXTRACTION_CHECKPOINT_MIGRATION_SCRIPT = "ALTER TABLE "
+            + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+            + " ADD "
+            + DownloadContract.Downloads.COLUMN_EXTRACTION_CHECKPOINT + " TEXT;";
+
+    private static final String VERSION_SEVEN_TO_VERSION_EIGHT_EXTRACTED_ENTRIES_MIGRATION_SCRIPT = "ALTER TABLE "
+            + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+            + " ADD "
+            + DownloadContract.Downloads.COLUMN_EXTRACTED_ENTRIES + " INTEGER NOT NULL DEFAULT 0;";
+
+    private static final String VERSION_EIGHT_TO_VERSION_NINE_MIGRATION_SCRIPT = "ALTER TABLE "
+            + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+            + " ADD "
+            + DownloadContract.Downloads.COLUMN_STREAM_STAGES + " TEXT;";
+
+    private static final String VERSION_NINE_TO_VERSION_TEN_DURABILITY_MIGRATION_SCRIPT = "ALTER TABLE "
+            + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+            + " ADD "
+            + DownloadContract.Downloads.COLUMN_DURABILITY + " INTEGER NOT NULL DEFAULT " + Request.DURABILITY_ON_CLOSE + ";";
+
+    private static final String VERSION_NINE_TO_VERSION_TEN_DURABLE_BYTES_MIGRATION_SCRIPT = "ALTER TABLE "
+            + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+            + " ADD "
+            + DownloadContract.Downloads.COLUMN_DURABLE_BYTES + " INTEGER NOT NULL DEFAULT 0;";
+
+    private static final String VERSION_TEN_TO_VERSION_ELEVEN_MIGRATION_SCRIPT = "ALTER TABLE "
+            + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+            + " ADD "
+            + DownloadContract.Downloads.COLUMN_RECONNECT_COUNT + " INTEGER NOT NULL DEFAULT 0;";
+
+    private static final String VERSION_ELEVEN_TO_VERSION_TWELVE_MIGRATION_SCRIPT = "ALTER TABLE "
+            + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+            + " ADD "
+            + DownloadContract.Downloads.COLUMN_CONTENT_HASH + " TEXT;";
+
+    private static final String CONTENT_HASH_INDEX_NAME = "downloads_content_hash";
+    private static final String URI_ETAG_INDEX_NAME = "downloads_uri_etag";
+
+    private static final String VERSION_TWELVE_TO_VERSION_THIRTEEN_LAST_MODIFIED_HEADER_MIGRATION_SCRIPT = "ALTER TABLE "
+            + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+            + " ADD "
+            + DownloadContract.Downloads.COLUMN_LAST_MODIFIED_HEADER + " TEXT;";
+
+    private static final String VERSION_TWELVE_TO_VERSION_THIRTEEN_REVALIDATE_MIGRATION_SCRIPT = "ALTER TABLE "
+            + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+            + " ADD "
+            + DownloadContract.Downloads.COLUMN_REVALIDATE + " BOOLEAN NOT NULL DEFAULT 0;";
+
+    private static final String VERSION_THIRTEEN_TO_VERSION_FOURTEEN_DELTA_MANIFEST_URI_MIGRATION_SCRIPT = "ALTER TABLE "
+            + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+            + " ADD "
+            + DownloadContract.Downloads.COLUMN_DELTA_MANIFEST_URI + " TEXT;";
+
+    private static final String VERSION_THIRTEEN_TO_VERSION_FOURTEEN_DELTA_SEED_MIGRATION_SCRIPT = "ALTER TABLE "
+            + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+            + " ADD "
+            + DownloadContract.Downloads.COLUMN_DELTA_SEED + " TEXT;";
+
+    private static final String VERSION_THIRTEEN_TO_VERSION_FOURTEEN_REUSED_BYTES_MIGRATION_SCRIPT = "ALTER TABLE "
+            + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+            + " ADD "
+            + DownloadContract.Downloads.COLUMN_REUSED_BYTES + " INTEGER NOT NULL DEFAULT 0;";
+
+    private static final String VERSION_FOURTEEN_TO_VERSION_FIFTEEN_MIRRORS_MIGRATION_SCRIPT = "ALTER TABLE "
+            + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+            + " ADD "
+            + DownloadContract.Downloads.COLUMN_MIRRORS + " TEXT;";
+
+    private static final String VERSION_FOURTEEN_TO_VERSION_FIFTEEN_SERVED_BY_MIGRATION_SCRIPT = "ALTER TABLE "
+            + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+            + " ADD "
+            + DownloadContract.Downloads.COLUMN_SERVED_BY + " TEXT;";
+
+    private static final String VERSION_FIFTEEN_TO_VERSION_SIXTEEN_MIGRATION_SCRIPT = "ALTER TABLE "
+            + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+            + " ADD "
+            + DownloadContract.Downloads.COLUMN_SPEED + " INTEGER NOT NULL DEFAULT 0;";
+
     /**
      * columns to request from DownloadProvider.
      */
@@ -43,6 +167,7 @@ final class DatabaseHelper extends SQLiteOpenHelper {
             DownloadContract.Downloads.COLUMN_TOTAL_BYTES,
             DownloadContract.Downloads.DOWNLOADS_TABLE_NAME + "." + DownloadContract.Downloads.COLUMN_LAST_MODIFICATION,
             DownloadContract.Downloads.COLUMN_CURRENT_BYTES,
+            DownloadContract.Downloads.COLUMN_SPEED,
             DownloadContract.Downloads.COLUMN_NOTIFICATION_EXTRAS,
             DownloadContract.Downloads.DOWNLOADS_TABLE_NAME + "." + DownloadContract.Downloads.COLUMN_EXTRA_DATA,
             DownloadContract.Downloads.COLUMN_BATCH_ID,
@@ -95,6 +220,7 @@ final class DatabaseHelper extends SQLiteOpenHelper {
     public void onCreate(@NonNull SQLiteDatabase db) {
         LLog.v("populating new database");
         createDownloadsTable(db);
+        createCompletedContentIndexes(db);
         createHeadersTable(db);
         createBatchesTable(db);
         createBatchesWithSizesView(db);
@@ -113,9 +239,51 @@ final class DatabaseHelper extends SQLiteOpenHelper {
      */
     @Override
     public void onUpgrade(@NonNull SQLiteDatabase db, int oldVersion, final int newVersion) {
-        if (oldVersion == 1 && newVersion == 2) {
+        if (oldVersion < 2) {
             upgradeFromVersionOneToVersionTwo(db);
         }
+        if (oldVersion < 3) {
+            upgradeFromVersionTwoToVersionThree(db);
+        }
+        if (oldVersion < 4) {
+            upgradeFromVersionThreeToVersionFour(db);
+        }
+        if (oldVersion < 5) {
+            upgradeFromVersionFourToVersionFive(db);
+        }
+        if (oldVersion < 6) {
+            upgradeFromVersionFiveToVersionSix(db);
+        }
+        if (oldVersion < 7) {
+            upgradeFromVersionSixToVersionSeven(db);
+        }
+        if (oldVersion < 8) {
+            upgradeFromVersionSevenToVersionEight(db);
+        }
+        if (oldVersion < 9) {
+            upgradeFromVersionEightToVersionNine(db);
+        }
+        if (oldVersion < 10) {
+            upgradeFromVersionNineToVersionTen(db);
+        }
+        if (oldVersion < 11) {
+            upgradeFromVersionTenToVersionEleven(db);
+        }
+        if (oldVersion < 12) {
+            upgradeFromVersionElevenToVersionTwelve(db);
+        }
+        if (oldVersion < 13) {
+            upgradeFromVersionTwelveToVersionThirteen(db);
+        }
+        if (oldVersion < 14) {
+            upgradeFromVersionThirteenToVersionFourteen(db);
+        }
+        if (oldVersion < 15) {
+            upgradeFromVersionFourteenToVersionFifteen(db);
+        }
+        if (oldVersion < 16) {
+            upgradeFromVersionFifteenToVersionSixteen(db);
+        }
     }
 
     private void upgradeFromVersionOneToVersionTwo(@NonNull SQLiteDatabase db) {
@@ -127,6 +295,145 @@ final class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    private void upgradeFromVersionTwoToVersionThree(@NonNull SQLiteDatabase db) {
+        try {
+            for (String script : VERSION_TWO_TO_VERSION_THREE_MIGRATION_SCRIPTS) {
+                db.execSQL(script);
+            }
+        } catch (SQLException ex) {
+            LLog.e("couldn't update table in downloads database to v3");
+            throw ex;
+        }
+    }
+
+    private void upgradeFromVersionThreeToVersionFour(@NonNull SQLiteDatabase db) {
+        try {
+            db.execSQL(VERSION_THREE_TO_VERSION_FOUR_MIGRATION_SCRIPT);
+        } catch (SQLException ex) {
+            LLog.e("couldn't update table in downloads database to v4");
+            throw ex;
+        }
+    }
+
+    private void upgradeFromVersionFourToVersionFive(@NonNull SQLiteDatabase db) {
+        try {
+            db.execSQL(VERSION_FOUR_TO_VERSION_FIVE_MIGRATION_SCRIPT);
+        } catch (SQLException ex) {
+            LLog.e("couldn't update table in downloads database to v5");
+            throw ex;
+        }
+    }
+
+    private void upgradeFromVersionFiveToVersionSix(@NonNull SQLiteDatabase db) {
+        try {
+            db.execSQL(VERSION_FIVE_TO_VERSION_SIX_MIGRATION_SCRIPT);
+        } catch (SQLException ex) {
+            LLog.e("couldn't update table in downloads database to v6");
+            throw ex;
+        }
+    }
+
+    private void upgradeFromVersionSixToVersionSeven(@NonNull SQLiteDatabase db) {
+        try {
+            db.execSQL(VERSION_SIX_TO_VERSION_SEVEN_CHECKSUM_ALGORITHM_MIGRATION_SCRIPT);
+            db.execSQL(VERSION_SIX_TO_VERSION_SEVEN_EXPECTED_CHECKSUM_MIGRATION_SCRIPT);
+            db.execSQL(VERSION_SIX_TO_VERSION_SEVEN_CHECKSUM_STATE_MIGRATION_SCRIPT);
+        } catch (SQLException ex) {
+            LLog.e("couldn't update table in downloads database to v7");
+            throw ex;
+        }
+    }
+
+    private void upgradeFromVersionSevenToVersionEight(@NonNull SQLiteDatabase db) {
+        try {
+            db.execSQL(VERSION_SEVEN_TO_VERSION_EIGHT_EXTRACT_DIRECTORY_MIGRATION_SCRIPT);
+            db.execSQL(VERSION_SEVEN_TO_VERSION_EIGHT_EXTRACTION_CHECKPOINT_MIGRATION_SCRIPT);
+            db.execSQL(VERSION_SEVEN_TO_VERSION_EIGHT_EXTRACTED_ENTRIES_MIGRATION_SCRIPT);
+        } catch (SQLException ex) {
+            LLog.e("couldn't update table in downloads database to v8");
+            throw ex;
+        }
+    }
+
+    private void upgradeFromVersionEightToVersionNine(@NonNull SQLiteDatabase db) {
+        try {
+            db.execSQL(VERSION_EIGHT_TO_VERSION_NINE_MIGRATION_SCRIPT);
+        } catch (SQLException ex) {
+            LLog.e("couldn't update table in downloads database to v9");
+            throw ex;
+        }
+    }
+
+    private void upgradeFromVersionNineToVersionTen(@NonNull SQLiteDatabase db) {
+        try {
+            db.execSQL(VERSION_NINE_TO_VERSION_TEN_DURABILITY_MIGRATION_SCRIPT);
+            db.execSQL(VERSION_NINE_TO_VERSION_TEN_DURABLE_BYTES_MIGRATION_SCRIPT);
+        } catch (SQLException ex) {
+            LLog.e("couldn't update table in downloads database to v10");
+            throw ex;
+        }
+    }
+
+    private void upgradeFromVersionTenToVersionEleven(@NonNull SQLiteDatabase db) {
+        try {
+            db.execSQL(VERSION_TEN_TO_VERSION_ELEVEN_MIGRATION_SCRIPT);
+        } catch (SQLException ex) {
+            LLog.e("couldn't update table in downloads database to v11");
+            throw ex;
+        }
+    }
+
+    private void upgradeFromVersionElevenToVersionTwelve(@NonNull SQLiteDatabase db) {
+        try {
+            db.execSQL(VERSION_ELEVEN_TO_VERSION_TWELVE_MIGRATION_SCRIPT);
+            createCompletedContentIndexes(db);
+        } catch (SQLException ex) {
+            LLog.e("couldn't update table in downloads database to v12");
+            throw ex;
+        }
+    }
+
+    private void upgradeFromVersionTwelveToVersionThirteen(@NonNull SQLiteDatabase db) {
+        try {
+            db.execSQL(VERSION_TWELVE_TO_VERSION_THIRTEEN_LAST_MODIFIED_HEADER_MIGRATION_SCRIPT);
+            db.execSQL(VERSION_TWELVE_TO_VERSION_THIRTEEN_REVALIDATE_MIGRATION_SCRIPT);
+        } catch (SQLException ex) {
+            LLog.e("couldn't update table in downloads database to v13");
+            throw ex;
+        }
+    }
+
+    private void upgradeFromVersionThirteenToVersionFourteen(@NonNull SQLiteDatabase db) {
+        try {
+            db.execSQL(VERSION_THIRTEEN_TO_VERSION_FOURTEEN_DELTA_MANIFEST_URI_MIGRATION_SCRIPT);
+            db.execSQL(VERSION_THIRTEEN_TO_VERSION_FOURTEEN_DELTA_SEED_MIGRATION_SCRIPT);
+            db.execSQL(VERSION_THIRTEEN_TO_VERSION_FOURTEEN_REUSED_BYTES_MIGRATION_SCRIPT);
+        } catch (SQLException ex) {
+            LLog.e("couldn't update table in downloads database to v14");
+            throw ex;
+        }
+    }
+
+    private void upgradeFromVersionFourteenToVersionFifteen(@NonNull SQLiteDatabase db) {
+        try {
+            db.execSQL(VERSION_FOURTEEN_TO_VERSION_FIFTEEN_MIRRORS_MIGRATION_SCRIPT);
+            db.execSQL(VERSION_FOURTEEN_TO_VERSION_FIFTEEN_SERVED_BY_MIGRATION_SCRIPT);
+        } catch (SQLException ex) {
+            LLog.e("couldn't update table in downloads database to v15");
+            throw ex;
+        }
+    }
+
+    private void upgradeFromVersionFifteenToVersionSixteen(@NonNull SQLiteDatabase db) {
+        try {
+            db.execSQL(VERSION_FIFTEEN_TO_VERSION_SIXTEEN_MIGRATION_SCRIPT);
+            createDownloadsByBatchView(db);
+        } catch (SQLException ex) {
+            LLog.e("couldn't update table in downloads database to v16");
+            throw ex;
+        }
+    }
+
     /**
      * Creates the table that'll hold the download information.
      */
@@ -171,6 +478,29 @@ final class DatabaseHelper extends SQLiteOpenHelper {
                             + DownloadContract.Downloads.COLUMN_EXTRA_DATA + " TEXT, "
                             + DownloadContract.Downloads.COLUMN_ALWAYS_RESUME + " INTEGER NOT NULL DEFAULT 0, "
                             + DownloadContract.Downloads.COLUMN_ALLOW_TAR_UPDATES + " INTEGER NOT NULL DEFAULT 0, "
+                            + DownloadContract.Downloads.COLUMN_MAX_SEGMENTS + " INTEGER NOT NULL DEFAULT 1, "
+                            + DownloadContract.Downloads.COLUMN_SEGMENTS + " TEXT, "
+                            + DownloadContract.Downloads.COLUMN_CHANNEL_TRANSFER + " BOOLEAN NOT NULL DEFAULT 0, "
+                            + DownloadContract.Downloads.COLUMN_WRITE_BEHIND + " BOOLEAN NOT NULL DEFAULT 0, "
+                            + DownloadContract.Downloads.COLUMN_CHECKSUM_ALGORITHM + " TEXT, "
+                            + DownloadContract.Downloads.COLUMN_EXPECTED_CHECKSUM + " TEXT, "
+                            + DownloadContract.Downloads.COLUMN_CHECKSUM_STATE + " TEXT, "
+                            + DownloadContract.Downloads.COLUMN_EXTRACT_DIRECTORY + " TEXT, "
+                            + DownloadContract.Downloads.COLUMN_EXTRACTION_CHECKPOINT + " TEXT, "
+                            + DownloadContract.Downloads.COLUMN_EXTRACTED_ENTRIES + " INTEGER NOT NULL DEFAULT 0, "
+                            + DownloadContract.Downloads.COLUMN_STREAM_STAGES + " TEXT, "
+                            + DownloadContract.Downloads.COLUMN_DURABILITY + " INTEGER NOT NULL DEFAULT " + Request.DURABILITY_ON_CLOSE + ", "
+                            + DownloadContract.Downloads.COLUMN_DURABLE_BYTES + " INTEGER NOT NULL DEFAULT 0, "
+                            + DownloadContract.Downloads.COLUMN_RECONNECT_COUNT + " INTEGER NOT NULL DEFAULT 0, "
+                            + DownloadContract.Downloads.COLUMN_CONTENT_HASH + " TEXT, "
+                            + DownloadContract.Downloads.COLUMN_LAST_MODIFIED_HEADER + " TEXT, "
+                            + DownloadContract.Downloads.COLUMN_REVALIDATE + " BOOLEAN NOT NULL DEFAULT 0, "
+                            + DownloadContract.Downloads.COLUMN_DELTA_MANIFEST_URI + " TEXT, "
+                            + DownloadContract.Downloads.COLUMN_DELTA_SEED + " TEXT, "
+                            + DownloadContract.Downloads.COLUMN_REUSED_BYTES + " INTEGER NOT NULL DEFAULT 0, "
+                            + DownloadContract.Downloads.COLUMN_MIRRORS + " TEXT, "
+                            + DownloadContract.Downloads.COLUMN_SERVED_BY + " TEXT, "
+                            + DownloadContract.Downloads.COLUMN_SPEED + " INTEGER NOT NULL DEFAULT 0, "
                             + Constants.MEDIA_SCANNED + " BOOLEAN);"
             );
         } catch (SQLException ex) {
@@ -179,6 +509,16 @@ final class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    /**
+     * Lets a new download find a completed download of the same content, by checksum or by URI and ETag.
+     */
+    private void createCompletedContentIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + CONTENT_HASH_INDEX_NAME + " ON " + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+                           + "(" + DownloadContract.Downloads.COLUMN_CONTENT_HASH + ")");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + URI_ETAG_INDEX_NAME + " ON " + DownloadContract.Downloads.DOWNLOADS_TABLE_NAME
+                           + "(" + DownloadContract.Downloads.COLUMN_URI + ", " + Constants.ETAG + ")");
+    }
+
     /**
      * Set all existing downloads to the cache partition to be invisible in the downloads UI.
      */
@@ -214,7 +554,8 @@ final class DatabaseHelper extends SQLiteOpenHelper {
                         + DownloadContract.Batches.COLUMN_DELETED + " BOOLEAN NOT NULL DEFAULT 0,"
                         + DownloadContract.Batches.COLUMN_EXTRA_DATA + " TEXT,"
                         + DownloadContract.Batches.COLUMN_LAST_MODIFICATION + " TEXT,"
-                        + DownloadContract.Batches.COLUMN_HAS_STARTED + " BOOLEAN NOT NULL DEFAULT 0"
+                        + DownloadContract.Batches.COLUMN_HAS_STARTED + " BOOLEAN NOT NULL DEFAULT 0,"
+                        + DownloadContract.Batches.COLUMN_PRIORITY + " INTEGER NOT NULL DEFAULT " + RequestBatch.PRIORITY_NORMAL
                         + ");"
         );
     }
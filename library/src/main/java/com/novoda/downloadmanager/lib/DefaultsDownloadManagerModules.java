@@ -37,9 +37,13 @@ class DefaultsDownloadManagerModules implements DownloadManagerModules {
     private final NotificationInitialiser notificationInitialiser;
     @Nullable
     private final DestroyListener destroyListener;
+    @Nullable
+    private final HttpConnectionFactory httpConnectionFactory;
+    @Nullable
+    private final StreamStages streamStages;
 
     DefaultsDownloadManagerModules(Context context) {
-        this(context, null, null, null, null, null, null, null, null, null);
+        this(context, null, null, null, null, null, null, null, null, null, null, null);
     }
 
     public DefaultsDownloadManagerModules(Context context,
@@ -51,7 +55,9 @@ class DefaultsDownloadManagerModules implements DownloadManagerModules {
                                           @Nullable DownloadClientReadyChecker readyChecker,
                                           @Nullable NotificationImageRetriever imageRetriever,
                                           @Nullable NotificationInitialiser notificationInitialiser,
-                                          @Nullable DestroyListener destroyListener) {
+                                          @Nullable DestroyListener destroyListener,
+                                          @Nullable HttpConnectionFactory httpConnectionFactory,
+                                          @Nullable StreamStages streamStages) {
         this.context = context;
         this.queuedCustomiser = queuedCustomiser;
         this.downloadingCustomiser = downloadingCustomiser;
@@ -62,6 +68,8 @@ class DefaultsDownloadManagerModules implements DownloadManagerModules {
         this.imageRetriever = imageRetriever;
         this.notificationInitialiser = notificationInitialiser;
         this.destroyListener = destroyListener;
+        this.httpConnectionFactory = httpConnectionFactory;
+        this.streamStages = streamStages;
     }
 
     @Override
@@ -135,4 +143,20 @@ class DefaultsDownloadManagerModules implements DownloadManagerModules {
         return destroyListener;
     }
 
+    @Override
+    public HttpConnectionFactory getHttpConnectionFactory() {
+        if (httpConnectionFactory == null) {
+            return new OkHttpConnectionFactory();
+        }
+        return httpConnectionFactory;
+    }
+
+    @Override
+    public StreamStages getStreamStages() {
+        if (streamStages == null) {
+            return new StreamStages();
+        }
+        return streamStages;
+    }
+
 }
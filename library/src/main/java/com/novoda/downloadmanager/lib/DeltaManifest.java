@@ -0,0 +1,137 @@
+package com.novoda.downloadmanager.lib;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * The block checksums of a file, which tell which of its blocks a previous version of the file already holds.
+ * <p/>
+ * The manifest is a text file of {@code Length:} and {@code Block-Size:} header lines, an empty line, then a line
+ * per block with its {@link #weakChecksum rolling checksum} as 8 hexadecimal digits and its MD5, separated by a space.
+ * The last block is shorter when the length is not a multiple of the block size.
+ */
+class DeltaManifest {
+
+    private static final String LENGTH_HEADER = "Length";
+    private static final String BLOCK_SIZE_HEADER = "Block-Size";
+    private static final String HEADER_SEPARATOR = ":";
+    private static final String CHECKSUM_SEPARATOR = " ";
+    private static final int MAX_BLOCKS = 1024 * 1024;
+    private static final int MAX_BLOCK_SIZE = 16 * 1024 * 1024;
+
+    private final long length;
+    private final int blockSize;
+    private final int[] weakChecksums;
+    private final String[] strongChecksums;
+
+    /**
+     * @throws IOException when the manifest cannot be read or is malformed
+     */
+    static DeltaManifest parse(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, Charset.forName("US-ASCII")));
+        long length = -1;
+        int blockSize = -1;
+        String line;
+        while ((line = reader.readLine()) != null && !line.isEmpty()) {
+            int separator = line.indexOf(HEADER_SEPARATOR);
+            if (separator == -1) {
+                throw new IOException("Malformed delta manifest header: " + line);
+            }
+            String name = line.substring(0, separator).trim();
+            String value = line.substring(separator + 1).trim();
+            if (LENGTH_HEADER.equalsIgnoreCase(name)) {
+                length = parseNumber(value);
+            } else if (BLOCK_SIZE_HEADER.equalsIgnoreCase(name)) {
+                blockSize = (int) Math.min(Integer.MAX_VALUE, parseNumber(value));
+            }
+        }
+        if (length < 0 || blockSize <= 0) {
+            throw new IOException("Delta manifest without length or block size");
+        }
+        if (blockSize > MAX_BLOCK_SIZE) {
+            throw new IOException("Delta manifest with too large blocks: " + blockSize);
+        }
+        long blockCount = (length + blockSize - 1) / blockSize;
+        if (blockCount > MAX_BLOCKS) {
+            throw new IOException("Delta manifest with too many blocks: " + blockCount);
+        }
+
+        int[] weakChecksums = new int[(int) blockCount];
+        String[] strongChecksums = new String[(int) blockCount];
+        for (int block = 0; block < blockCount; block++) {
+            line = reader.readLine();
+            String[] checksums = line == null ? new String[0] : line.trim().split(CHECKSUM_SEPARATOR);
+            if (checksums.length != 2) {
+                throw new IOException("Missing or malformed checksums for block " + block + " of delta manifest");
+            }
+            try {
+                weakChecksums[block] = (int) Long.parseLong(checksums[0], 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed rolling checksum for block " + block + " of delta manifest");
+            }
+            strongChecksums[block] = checksums[1].toLowerCase(Locale.US);
+        }
+        return new DeltaManifest(length, blockSize, weakChecksums, strongChecksums);
+    }
+
+    private static long parseNumber(String value) throws IOException {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed number in delta manifest: " + value);
+        }
+    }
+
+    /**
+     * The rsync rolling checksum: the sum of the bytes in the low 16 bits, and the sum of those sums in the high ones.
+     */
+    static int weakChecksum(byte[] buffer, int offset, int count) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < count; i++) {
+            int value = buffer[offset + i] & 0xFF;
+            a += value;
+            b += (count - i) * value;
+        }
+        return ((b & 0xFFFF) << 16) | (a & 0xFFFF);
+    }
+
+    DeltaManifest(long length, int blockSize, int[] weakChecksums, String[] strongChecksums) {
+        this.length = length;
+        this.blockSize = blockSize;
+        this.weakChecksums = weakChecksums;
+        this.strongChecksums = strongChecksums;
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    int getBlockCount() {
+        return weakChecksums.length;
+    }
+
+    long getBlockStart(int block) {
+        return (long) block * blockSize;
+    }
+
+    int getBlockLength(int block) {
+        return (int) Math.min(blockSize, length - getBlockStart(block));
+    }
+
+    int getWeakChecksum(int block) {
+        return weakChecksums[block];
+    }
+
+    String getStrongChecksum(int block) {
+        return strongChecksums[block];
+    }
+}
@@ -0,0 +1,169 @@
+package com.novoda.downloadmanager.lib;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.support.v4.util.LongSparseArray;
+
+import com.novoda.notils.string.QueryUtils;
+import com.novoda.notils.string.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps the batches known to {@link DownloadService} in memory between update passes, the same way
+ * {@link DownloadInfoCache} keeps their downloads.
+ * <p/>
+ * Only the batch rows reported as changed are read again. The sizes of a batch are not cached but added up
+ * from the downloads handed in, so progress alone never needs a batch to be read.
+ * A change that cannot be tied to a batch causes the next read to refresh every row.
+ * <p/>
+ * Changes can be reported from any thread, while {@link #getBatchesFor(Collection)} belongs to the update thread.
+ */
+class DownloadBatchCache {
+
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    private final ContentResolver contentResolver;
+    private final DownloadsUriProvider downloadsUriProvider;
+
+    private final Set<Long> changedIds = new HashSet<>();
+    private boolean everythingChanged = true;
+
+    private LongSparseArray<BatchRow> batches = new LongSparseArray<>();
+
+    DownloadBatchCache(ContentResolver contentResolver, DownloadsUriProvider downloadsUriProvider) {
+        this.contentResolver = contentResolver;
+        this.downloadsUriProvider = downloadsUriProvider;
+    }
+
+    synchronized void onBatchChanged(long id) {
+        changedIds.add(id);
+    }
+
+    synchronized void onBatchesChanged() {
+        everythingChanged = true;
+    }
+
+    /**
+     * @return the batches of the given downloads, ordered by id, after reading the ones that changed since the last call.
+     * Like the batches query, a batch without any download is left out.
+     */
+    List<DownloadBatch> getBatchesFor(Collection<FileDownloadInfo> downloads) {
+        boolean refreshEverything;
+        List<Long> idsToRefresh;
+        synchronized (this) {
+            refreshEverything = everythingChanged;
+            idsToRefresh = new ArrayList<>(changedIds);
+            everythingChanged = false;
+            changedIds.clear();
+        }
+
+        if (refreshEverything) {
+            refreshAll();
+        } else if (!idsToRefresh.isEmpty()) {
+            refresh(idsToRefresh);
+        }
+
+        LongSparseArray<List<FileDownloadInfo>> downloadsByBatch = groupByBatch(downloads);
+        List<DownloadBatch> downloadBatches = new ArrayList<>(batches.size());
+        for (int i = 0; i < batches.size(); i++) {
+            List<FileDownloadInfo> batchDownloads = downloadsByBatch.get(batches.keyAt(i));
+            if (batchDownloads != null) {
+                downloadBatches.add(batches.valueAt(i).toDownloadBatch(batches.keyAt(i), batchDownloads));
+            }
+        }
+        return downloadBatches;
+    }
+
+    private LongSparseArray<List<FileDownloadInfo>> groupByBatch(Collection<FileDownloadInfo> downloads) {
+        LongSparseArray<List<FileDownloadInfo>> downloadsByBatch = new LongSparseArray<>();
+        for (FileDownloadInfo download : downloads) {
+            List<FileDownloadInfo> batchDownloads = downloadsByBatch.get(download.getBatchId());
+            if (batchDownloads == null) {
+                batchDownloads = new ArrayList<>(1);
+                downloadsByBatch.put(download.getBatchId(), batchDownloads);
+            }
+            batchDownloads.add(download);
+        }
+        return downloadsByBatch;
+    }
+
+    private void refreshAll() {
+        Cursor cursor = contentResolver.query(downloadsUriProvider.getBatchesUri(), null, null, null, null);
+        if (cursor == null) {
+            throw new BatchRetrievalException();
+        }
+        LongSparseArray<BatchRow> refreshedBatches = new LongSparseArray<>(cursor.getCount());
+        try {
+            int idColumn = cursor.getColumnIndexOrThrow(DownloadContract.Batches._ID);
+            while (cursor.moveToNext()) {
+                refreshedBatches.put(cursor.getLong(idColumn), BatchRow.from(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+        batches = refreshedBatches;
+    }
+
+    private void refresh(List<Long> ids) {
+        for (int start = 0; start < ids.size(); start += MAX_IDS_PER_QUERY) {
+            List<Long> batchOfIds = ids.subList(start, Math.min(start + MAX_IDS_PER_QUERY, ids.size()));
+            refreshBatchOf(batchOfIds);
+        }
+    }
+
+    private void refreshBatchOf(List<Long> ids) {
+        String selectionPlaceholders = QueryUtils.createSelectionPlaceholdersOfSize(ids.size());
+        String where = DownloadContract.Batches._ID + " IN (" + selectionPlaceholders + ")";
+        String[] selectionArgs = StringUtils.toStringArray(ids.toArray());
+        Cursor cursor = contentResolver.query(downloadsUriProvider.getBatchesUri(), null, where, selectionArgs, null);
+        if (cursor == null) {
+            throw new BatchRetrievalException();
+        }
+        Set<Long> removedIds = new HashSet<>(ids);
+        try {
+            int idColumn = cursor.getColumnIndexOrThrow(DownloadContract.Batches._ID);
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(idColumn);
+                batches.put(id, BatchRow.from(cursor));
+                removedIds.remove(id);
+            }
+        } finally {
+            cursor.close();
+        }
+        for (long id : removedIds) {
+            batches.remove(id);
+        }
+    }
+
+    private static class BatchRow {
+
+        private final BatchInfo info;
+        private final int status;
+
+        static BatchRow from(Cursor cursor) {
+            int status = cursor.getInt(cursor.getColumnIndexOrThrow(DownloadContract.Batches.COLUMN_STATUS));
+            return new BatchRow(BatchRetrievalRepository.readBatchInfo(cursor), status);
+        }
+
+        BatchRow(BatchInfo info, int status) {
+            this.info = info;
+            this.status = status;
+        }
+
+        DownloadBatch toDownloadBatch(long id, List<FileDownloadInfo> downloads) {
+            long currentSizeBytes = 0;
+            long totalSizeBytes = 0;
+            for (FileDownloadInfo download : downloads) {
+                currentSizeBytes += download.getCurrentBytes();
+                totalSizeBytes += download.getTotalBytes();
+            }
+            return new DownloadBatch(id, info, downloads, status, Math.max(totalSizeBytes, -1), currentSizeBytes);
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+package com.novoda.downloadmanager.lib;
+
+import android.util.Pair;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets downloads of the same request that run at the same time share a single network transfer.
+ * <p/>
+ * The first download of a request leads the transfer. The others follow it: they wait for it to complete,
+ * then copy its file to their own destination, each keeping its own status and progress. When the leading
+ * download does not succeed, its followers fetch the request themselves.
+ */
+class DownloadCoalescer {
+
+    private static final DownloadCoalescer INSTANCE = new DownloadCoalescer();
+
+    private final Map<String, Transfer> transfers = new HashMap<>();
+
+    static DownloadCoalescer getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the transfer in flight for the same request, or a new one led by this download
+     */
+    synchronized Transfer join(long downloadId, String uri, Collection<Pair<String, String>> headers) {
+        String key = keyOf(uri, headers);
+        Transfer transfer = transfers.get(key);
+        if (transfer == null) {
+            transfer = new Transfer(key, downloadId);
+            transfers.put(key, transfer);
+        }
+        return transfer;
+    }
+
+    /**
+     * Ends the transfer, so that the next download of the request leads a new one.
+     *
+     * @param state the state of the leading download once it succeeded, or null when it did not
+     */
+    synchronized void complete(Transfer transfer, DownloadTask.State state) {
+        if (transfers.get(transfer.key) == transfer) {
+            transfers.remove(transfer.key);
+        }
+        transfer.complete(state);
+    }
+
+    /**
+     * Headers are part of the request, as they can change the response; their order does not.
+     */
+    private static String keyOf(String uri, Collection<Pair<String, String>> headers) {
+        List<String> sortedHeaders = new ArrayList<>(headers.size());
+        for (Pair<String, String> header : headers) {
+            sortedHeaders.add(header.first + ": " + header.second);
+        }
+        Collections.sort(sortedHeaders);
+        StringBuilder key = new StringBuilder(uri);
+        for (String header : sortedHeaders) {
+            key.append('\n').append(header);
+        }
+        return key.toString();
+    }
+
+    static class Transfer {
+
+        private final String key;
+        private final long leaderId;
+        private final CountDownLatch completed = new CountDownLatch(1);
+
+        private volatile String filename;
+        private volatile String mimeType;
+        private volatile String eTag;
+        private volatile String lastModified;
+        private volatile String contentDisposition;
+        private volatile String contentLocation;
+
+        Transfer(String key, long leaderId) {
+            this.key = key;
+            this.leaderId = leaderId;
+        }
+
+        boolean isLedBy(long downloadId) {
+            return leaderId == downloadId;
+        }
+
+        private void complete(DownloadTask.State state) {
+            if (state != null) {
+                filename = state.filename;
+                mimeType = state.mimeType;
+                eTag = state.headerETag;
+                lastModified = state.headerLastModified;
+                contentDisposition = state.contentDisposition;
+                contentLocation = state.contentLocation;
+            }
+            completed.countDown();
+        }
+
+        /**
+         * @return whether the leading download completed in time
+         */
+        boolean awaitCompletion(long timeoutMillis) throws InterruptedException {
+            return completed.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * @return the file of the leading download, or null when it did not succeed
+         */
+        String getFilename() {
+            return filename;
+        }
+
+        String getMimeType() {
+            return mimeType;
+        }
+
+        String getETag() {
+            return eTag;
+        }
+
+        String getLastModified() {
+            return lastModified;
+        }
+
+        String getContentDisposition() {
+            return contentDisposition;
+        }
+
+        String getContentLocation() {
+            return contentLocation;
+        }
+    }
+}
@@ -259,6 +259,159 @@ final class DownloadContract {
          */
         public static final String COLUMN_ALLOW_TAR_UPDATES = "allow_tar_updates";
 
+        /**
+         * The maximum number of parallel connections a download can be split into,
+         * a value of 1 keeps the download on a single connection.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_MAX_SEGMENTS = "max_segments";
+
+        /**
+         * The byte ranges of a segmented download and how much of each has been written,
+         * as encoded by {@link DownloadSegments}. Null while the download is not segmented.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_SEGMENTS = "segments";
+
+        /**
+         * Whether the response body is moved into the file through its {@link java.nio.channels.FileChannel}
+         * in large slices, rather than through the buffered writer chain.
+         * <P>Type: BOOLEAN</P>
+         */
+        public static final String COLUMN_CHANNEL_TRANSFER = "channel_transfer";
+
+        /**
+         * Whether the file is written from a separate thread, so that disk writes and network reads do not
+         * wait on each other.
+         * <P>Type: BOOLEAN</P>
+         */
+        public static final String COLUMN_WRITE_BEHIND = "write_behind";
+
+        /**
+         * The algorithm of {@link #COLUMN_EXPECTED_CHECKSUM}, one of the {@code Request.CHECKSUM_*} values.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_CHECKSUM_ALGORITHM = "checksum_algorithm";
+
+        /**
+         * The checksum the downloaded file must match, as hexadecimal, or null when the file is not verified.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_EXPECTED_CHECKSUM = "expected_checksum";
+
+        /**
+         * The checksum of the first bytes of the file, saved when the download stopped so that resuming
+         * does not read them again. It records how many bytes it covers.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_CHECKSUM_STATE = "checksum_state";
+
+        /**
+         * The directory a tar or zip archive is unpacked into as it downloads, or null when the archive itself
+         * is saved. The archive is not kept in that case.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_EXTRACT_DIRECTORY = "extract_directory";
+
+        /**
+         * Where an extraction can resume from: the archive format, the offset of the last entry boundary
+         * and how many entries were extracted before it.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_EXTRACTION_CHECKPOINT = "extraction_checkpoint";
+
+        /**
+         * How many entries of the archive have been extracted so far.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_EXTRACTED_ENTRIES = "extracted_entries";
+
+        /**
+         * The names of the stream stages the downloaded data goes through on its way to the file, in order
+         * and separated by commas, or null to use the stages registered for the MIME type.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_STREAM_STAGES = "stream_stages";
+
+        /**
+         * When the downloaded data is synced to the storage: never, periodically or once the transfer ends.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_DURABILITY = "durability";
+
+        /**
+         * How many bytes of the file were last synced to the storage, which a download syncing periodically
+         * resumes from after a crash.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_DURABLE_BYTES = "durable_bytes";
+
+        /**
+         * How many times the download reconnected after its connection stalled.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_RECONNECT_COUNT = "reconnect_count";
+
+        /**
+         * The checksum of the completed file, as {@code algorithm:hex}, so that a download of the same content
+         * can reuse the file rather than fetch it again.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_CONTENT_HASH = "content_hash";
+
+        /**
+         * The Last-Modified header of the response, to revalidate the completed file with.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_LAST_MODIFIED_HEADER = "last_modified_header";
+
+        /**
+         * Whether the download asks the server if its completed file is still current, keeping it when it is,
+         * rather than fetch it again.
+         * <P>Type: BOOLEAN</P>
+         */
+        public static final String COLUMN_REVALIDATE = "revalidate";
+
+        /**
+         * The block checksum manifest of the file, to download only the blocks that differ from a previous version
+         * of it, or null to download the whole file.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_DELTA_MANIFEST_URI = "delta_manifest_uri";
+
+        /**
+         * The path of the previous version of the file, whose matching blocks are copied rather than downloaded.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_DELTA_SEED = "delta_seed";
+
+        /**
+         * How many bytes of the file were copied from the previous version rather than downloaded. They count
+         * towards {@link #COLUMN_CURRENT_BYTES} from the start, so the bytes actually transferred are the difference.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_REUSED_BYTES = "reused_bytes";
+
+        /**
+         * Other URIs serving the same file, one per line in order of preference, or null when the file only comes
+         * from {@link #COLUMN_URI}.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_MIRRORS = "mirrors";
+
+        /**
+         * The URI, among {@link #COLUMN_URI} and its {@link #COLUMN_MIRRORS}, that last served data to the download.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_SERVED_BY = "served_by";
+
+        /**
+         * The rate at which the download last received data, in bytes per second, as of its latest progress update.
+         * Only meaningful while the download is running.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_SPEED = "speed";
+
         private Downloads() {
             // non-instantiable class
         }
@@ -339,6 +492,14 @@ final class DownloadContract {
          */
         public static final String COLUMN_HAS_STARTED = "batch_has_started";
 
+        /**
+         * The share of the concurrent downloads given to this batch relative to the other batches,
+         * see {@link RequestBatch.Builder#withPriority(int)}.
+         * <P>Type: INTEGER</P>
+         * <P>Owner can Init/Read</P>
+         */
+        public static final String COLUMN_PRIORITY = "batch_priority";
+
         /**
          * One of the values taken by {@link DownloadContract.Batches#COLUMN_DELETED}.
          * This value is used when the batch is marked as deleted and will be actually removed soon.
@@ -0,0 +1,119 @@
+package com.novoda.downloadmanager.lib;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.novoda.downloadmanager.lib.IOHelpers.closeQuietly;
+
+/**
+ * Hands the pause, cancel and delete requests written to {@link DownloadProvider} straight to the running downloads,
+ * so they do not have to poll the database for them.
+ * <p/>
+ * A stopping request also closes the streams the download is reading from, aborting any read in flight.
+ */
+class DownloadControlRegistry {
+
+    private static final DownloadControlRegistry INSTANCE = new DownloadControlRegistry();
+
+    private final Map<Long, Registration> registrations = new HashMap<>();
+
+    static DownloadControlRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * The current control status is read once the registration exists, so that no request can fall in between.
+     */
+    Registration register(long downloadId, FileDownloadInfo.ControlStatus.Reader controlReader) {
+        Registration registration = new Registration();
+        synchronized (registrations) {
+            registrations.put(downloadId, registration);
+        }
+        registration.initialise(controlReader.newControlStatus());
+        return registration;
+    }
+
+    void unregister(long downloadId, Registration registration) {
+        synchronized (registrations) {
+            if (registrations.get(downloadId) == registration) {
+                registrations.remove(downloadId);
+            }
+        }
+    }
+
+    /**
+     * @param control null when unchanged
+     * @param status  null when unchanged
+     */
+    void publish(Collection<Long> downloadIds, Integer control, Integer status, boolean deleted) {
+        List<Registration> affected = new ArrayList<>(downloadIds.size());
+        synchronized (registrations) {
+            for (Long downloadId : downloadIds) {
+                Registration registration = registrations.get(downloadId);
+                if (registration != null) {
+                    affected.add(registration);
+                }
+            }
+        }
+        for (Registration registration : affected) {
+            registration.update(control, status, deleted);
+        }
+    }
+
+    static class Registration {
+
+        private final Set<Closeable> streams = new HashSet<>();
+
+        private boolean published;
+        private FileDownloadInfo.ControlStatus controlStatus;
+
+        synchronized FileDownloadInfo.ControlStatus getControlStatus() {
+            return controlStatus;
+        }
+
+        /**
+         * The stream is closed as soon as the download is asked to stop, or straight away when it already was.
+         */
+        void abortOnStop(Closeable stream) {
+            synchronized (this) {
+                if (!controlStatus.isStopping()) {
+                    streams.add(stream);
+                    return;
+                }
+            }
+            closeQuietly(stream);
+        }
+
+        synchronized void forget(Closeable stream) {
+            streams.remove(stream);
+        }
+
+        private synchronized void initialise(FileDownloadInfo.ControlStatus initialControlStatus) {
+            if (!published) {
+                controlStatus = initialControlStatus;
+            }
+        }
+
+        private void update(Integer control, Integer status, boolean deleted) {
+            List<Closeable> streamsToClose;
+            synchronized (this) {
+                published = true;
+                controlStatus = FileDownloadInfo.ControlStatus.merge(controlStatus, control, status, deleted);
+                if (!controlStatus.isStopping()) {
+                    return;
+                }
+                streamsToClose = new ArrayList<>(streams);
+                streams.clear();
+            }
+            for (Closeable stream : streamsToClose) {
+                closeQuietly(stream);
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.novoda.downloadmanager.lib;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.support.v4.util.LongSparseArray;
+
+import com.novoda.notils.string.QueryUtils;
+import com.novoda.notils.string.StringUtils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps the downloads known to {@link DownloadService} in memory between update passes.
+ * <p/>
+ * Only the downloads reported as changed are read again, into the existing {@link FileDownloadInfo}
+ * instances, so an update pass does not rebuild every download nor query their request headers.
+ * A change that cannot be tied to a download causes the next read to refresh every row, still in place.
+ * <p/>
+ * Changes can be reported from any thread, while {@link #getAllDownloads()} belongs to the update thread.
+ * The cached instances are mutated in place, so they must not be handed to other threads.
+ */
+class DownloadInfoCache {
+
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    private final ContentResolver contentResolver;
+    private final DownloadsUriProvider downloadsUriProvider;
+    private final DownloadsRepository.DownloadInfoCreator downloadInfoCreator;
+
+    private final Set<Long> changedIds = new HashSet<>();
+    private boolean everythingChanged = true;
+
+    private LongSparseArray<FileDownloadInfo> downloads = new LongSparseArray<>();
+
+    DownloadInfoCache(ContentResolver contentResolver,
+                      DownloadsUriProvider downloadsUriProvider,
+                      DownloadsRepository.DownloadInfoCreator downloadInfoCreator) {
+        this.contentResolver = contentResolver;
+        this.downloadsUriProvider = downloadsUriProvider;
+        this.downloadInfoCreator = downloadInfoCreator;
+    }
+
+    synchronized void onDownloadChanged(long id) {
+        changedIds.add(id);
+    }
+
+    synchronized void onDownloadsChanged() {
+        everythingChanged = true;
+    }
+
+    /**
+     * @return every download, ordered by id, after reading the ones that changed since the last call
+     */
+    List<FileDownloadInfo> getAllDownloads() {
+        boolean refreshEverything;
+        List<Long> idsToRefresh;
+        synchronized (this) {
+            refreshEverything = everythingChanged;
+            idsToRefresh = new ArrayList<>(changedIds);
+            everythingChanged = false;
+            changedIds.clear();
+        }
+
+        if (refreshEverything) {
+            refreshAll();
+        } else if (!idsToRefresh.isEmpty()) {
+            refresh(idsToRefresh);
+        }
+
+        List<FileDownloadInfo> allDownloads = new ArrayList<>(downloads.size());
+        for (int i = 0; i < downloads.size(); i++) {
+            allDownloads.add(downloads.valueAt(i));
+        }
+        return allDownloads;
+    }
+
+    private void refreshAll() {
+        Cursor cursor = contentResolver.query(downloadsUriProvider.getAllDownloadsUri(), null, null, null, null);
+        if (cursor == null) {
+            return;
+        }
+        LongSparseArray<FileDownloadInfo> refreshedDownloads = new LongSparseArray<>(cursor.getCount());
+        try {
+            FileDownloadInfo.Reader reader = new FileDownloadInfo.Reader(contentResolver, cursor);
+            int idColumn = cursor.getColumnIndexOrThrow(DownloadContract.Downloads._ID);
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(idColumn);
+                refreshedDownloads.put(id, read(reader, downloads.get(id)));
+            }
+        } finally {
+            cursor.close();
+        }
+        downloads = refreshedDownloads;
+    }
+
+    private void refresh(List<Long> ids) {
+        for (int start = 0; start < ids.size(); start += MAX_IDS_PER_QUERY) {
+            List<Long> batchOfIds = ids.subList(start, Math.min(start + MAX_IDS_PER_QUERY, ids.size()));
+            refreshBatchOf(batchOfIds);
+        }
+    }
+
+    private void refreshBatchOf(List<Long> ids) {
+        String selectionPlaceholders = QueryUtils.createSelectionPlaceholdersOfSize(ids.size());
+        String where = DownloadContract.Downloads._ID + " IN (" + selectionPlaceholders + ")";
+        String[] selectionArgs = StringUtils.toStringArray(ids.toArray());
+        Cursor cursor = contentResolver.query(downloadsUriProvider.getAllDownloadsUri(), null, where, selectionArgs, null);
+        if (cursor == null) {
+            return;
+        }
+        Set<Long> removedIds = new HashSet<>(ids);
+        try {
+            FileDownloadInfo.Reader reader = new FileDownloadInfo.Reader(contentResolver, cursor);
+            int idColumn = cursor.getColumnIndexOrThrow(DownloadContract.Downloads._ID);
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(idColumn);
+                downloads.put(id, read(reader, downloads.get(id)));
+                removedIds.remove(id);
+            }
+        } finally {
+            cursor.close();
+        }
+        for (long id : removedIds) {
+            downloads.remove(id);
+        }
+    }
+
+    private FileDownloadInfo read(FileDownloadInfo.Reader reader, FileDownloadInfo cachedInfo) {
+        if (cachedInfo == null) {
+            return downloadInfoCreator.create(reader);
+        }
+        reader.updateFromDatabase(cachedInfo);
+        return cachedInfo;
+    }
+
+}
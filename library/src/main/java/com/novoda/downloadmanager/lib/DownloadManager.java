@@ -17,15 +17,19 @@
 package com.novoda.downloadmanager.lib;
 
 import android.annotation.TargetApi;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
 import android.provider.Settings;
 import android.provider.Settings.SettingNotFoundException;
 import android.text.TextUtils;
@@ -37,6 +41,8 @@ import com.novoda.downloadmanager.notifications.NotificationVisibility;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * The download manager is a system service that handles long-running HTTP downloads. Clients may
@@ -173,6 +179,19 @@ public class DownloadManager {
      */
     public static final String COLUMN_BYTES_DOWNLOADED_SO_FAR = "bytes_so_far";
 
+    /**
+     * Current speed of the download in bytes per second, updated along with {@link #COLUMN_BYTES_DOWNLOADED_SO_FAR}.
+     * This will be 0 unless the download is {@link #STATUS_RUNNING}.
+     */
+    public static final String COLUMN_SPEED_BYTES_PER_SECOND = "speed";
+
+    /**
+     * Estimated time until the download completes in milliseconds, at its current
+     * {@link #COLUMN_SPEED_BYTES_PER_SECOND}. This will be -1 when it cannot be estimated, that is unless the
+     * download is {@link #STATUS_RUNNING} with a known {@link #COLUMN_TOTAL_SIZE_BYTES}.
+     */
+    public static final String COLUMN_TIME_REMAINING = "time_remaining";
+
     /**
      * Timestamp when the download was last modified, in {@link System#currentTimeMillis
      * System.currentTimeMillis()} (wall clock time in UTC).
@@ -275,6 +294,12 @@ public class DownloadManager {
      */
     public static final int ERROR_FILE_ALREADY_EXISTS = 1009;
 
+    /**
+     * Value of {@link #COLUMN_REASON} when the downloaded file did not match the checksum set with
+     * {@link Request#setExpectedChecksum(String, String)}.
+     */
+    public static final int ERROR_CHECKSUM_MISMATCH = 1010;
+
     /**
      * Value of {@link #COLUMN_REASON} when the download is paused because some network error
      * occurred and the download manager is waiting before retrying the request.
@@ -390,6 +415,7 @@ public class DownloadManager {
             DownloadContract.Downloads.COLUMN_TOTAL_BYTES + " AS " + COLUMN_TOTAL_SIZE_BYTES,
             DownloadContract.Downloads.COLUMN_LAST_MODIFICATION,
             DownloadContract.Downloads.COLUMN_CURRENT_BYTES + " AS " + COLUMN_BYTES_DOWNLOADED_SO_FAR,
+            DownloadContract.Downloads.COLUMN_SPEED + " AS " + COLUMN_SPEED_BYTES_PER_SECOND,
             DownloadContract.Downloads.COLUMN_BATCH_ID,
             DownloadContract.Downloads.COLUMN_EXTRA_DATA,
             DownloadContract.Downloads.COLUMN_NOTIFICATION_EXTRAS,
@@ -405,7 +431,8 @@ public class DownloadManager {
          * eliminates need to have lot of methods in CursorTranslator
          */
             "'placeholder' AS " + COLUMN_LOCAL_URI,
-            "'placeholder' AS " + COLUMN_REASON
+            "'placeholder' AS " + COLUMN_REASON,
+            "'placeholder' AS " + COLUMN_TIME_REMAINING
     };
 
     //CHECKSTYLE END IGNORE MagicNumber
@@ -796,6 +823,8 @@ public class DownloadManager {
     /**
      * Restart the given downloads, which must have already completed (successfully or not).  This
      * method will only work when called from within the download manager's process.
+     * <p/>
+     * The files are downloaded again in full; see {@link #revalidateDownload(long...)} to only do so when they changed.
      *
      * @param ids the IDs of the downloads
      */
@@ -819,11 +848,65 @@ public class DownloadManager {
         values.put(DownloadContract.Downloads.COLUMN_CURRENT_BYTES, 0);
         values.put(DownloadContract.Downloads.COLUMN_TOTAL_BYTES, -1);
         values.putNull(DownloadContract.Downloads.COLUMN_DATA);
+        values.putNull(DownloadContract.Downloads.COLUMN_SEGMENTS);
         values.put(DownloadContract.Downloads.COLUMN_STATUS, DownloadStatus.PENDING);
         values.put(DownloadContract.Downloads.COLUMN_FAILED_CONNECTIONS, 0);
         contentResolver.update(baseUri, values, getWhereClauseFor(ids, DownloadContract.Downloads._ID), longArrayToStringArray(ids));
     }
 
+    /**
+     * Runs the given downloads again, which must have completed successfully, asking the server whether their files
+     * are still current with the ETag and Last-Modified date of the responses. Files that are still current are kept,
+     * costing a single request each, while the others are downloaded again in full. This method will only work when
+     * called from within the download manager's process.
+     *
+     * @param ids the IDs of the downloads
+     */
+    public void revalidateDownload(long... ids) {
+        Cursor cursor = query(new Query().setFilterById(ids));
+        try {
+            for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                int status = cursor.getInt(cursor.getColumnIndex(COLUMN_STATUS));
+                if (status != STATUS_SUCCESSFUL) {
+                    throw new IllegalArgumentException(
+                            "Cannot revalidate unsuccessful download: "
+                                    + cursor.getLong(cursor.getColumnIndex(COLUMN_ID))
+                    );
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(DownloadContract.Downloads.COLUMN_REVALIDATE, true);
+        values.put(DownloadContract.Downloads.COLUMN_STATUS, DownloadStatus.PENDING);
+        values.put(DownloadContract.Downloads.COLUMN_FAILED_CONNECTIONS, 0);
+        contentResolver.update(baseUri, values, getWhereClauseFor(ids, DownloadContract.Downloads._ID), longArrayToStringArray(ids));
+    }
+
+    /**
+     * Returns how many times a transfer reused a buffer from the pool instead of allocating one, since the process
+     * started. Downloads run in the process of the application, so this covers all of its downloads.
+     * Compared with {@link #getTransferBufferAllocationCount()}, it tells whether the pool keeps enough buffers
+     * for the number of concurrent downloads.
+     *
+     * @return the number of transfer buffers reused
+     */
+    public static long getTransferBufferReuseCount() {
+        return BufferPool.getInstance().getHitCount();
+    }
+
+    /**
+     * Returns how many times a transfer had to allocate a buffer because the pool had none of the right size,
+     * since the process started. See {@link #getTransferBufferReuseCount()}.
+     *
+     * @return the number of transfer buffers allocated
+     */
+    public static long getTransferBufferAllocationCount() {
+        return BufferPool.getInstance().getMissCount();
+    }
+
     /**
      * Returns maximum size, in bytes, of downloads that may go over a mobile connection; or null if
      * there's no limit
@@ -1008,27 +1091,60 @@ public class DownloadManager {
      * calls related to this batch.
      */
     public long enqueue(RequestBatch batch) {
-        long batchId = insert(batch);
-        for (Request request : batch.getRequests()) {
+        List<Request> requests = batch.getRequests();
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(requests.size() + 1);
+        operations.add(
+                ContentProviderOperation.newInsert(downloadsUriProvider.getBatchesUri())
+                        .withValues(toPendingBatchValues(batch))
+                        .build()
+        );
+        for (Request request : requests) {
+            operations.add(
+                    ContentProviderOperation.newInsert(downloadsUriProvider.getContentUri())
+                            .withValues(request.toContentValues())
+                            .withValueBackReference(DownloadContract.Downloads.COLUMN_BATCH_ID, 0)
+                            .build()
+            );
+        }
+
+        long batchId = applyInSingleTransaction(operations);
+        for (Request request : requests) {
             request.setBatchId(batchId);
-            insert(request);
         }
         notifyBatchesHaveChanged();
 
         return batchId;
     }
 
+    /**
+     * @return the id of the batch, inserted by the first operation
+     */
+    private long applyInSingleTransaction(ArrayList<ContentProviderOperation> operations) {
+        try {
+            ContentProviderResult[] results = contentResolver.applyBatch(DownloadProvider.AUTHORITY, operations);
+            return ContentUris.parseId(results[0].uri);
+        } catch (RemoteException e) {
+            throw new BatchEnqueueException(e);
+        } catch (OperationApplicationException e) {
+            throw new BatchEnqueueException(e);
+        }
+    }
+
     private void notifyBatchesHaveChanged() {
         contentResolver.notifyChange(getBatchesUri(), null);
         contentResolver.notifyChange(getBatchesWithoutProgressUri(), null);
     }
 
     private long insert(RequestBatch batch) {
+        Uri batchUri = contentResolver.insert(downloadsUriProvider.getBatchesUri(), toPendingBatchValues(batch));
+        return ContentUris.parseId(batchUri);
+    }
+
+    private ContentValues toPendingBatchValues(RequestBatch batch) {
         ContentValues values = batch.toContentValues();
         values.put(DownloadContract.Batches.COLUMN_STATUS, DownloadStatus.PENDING);
         values.put(DownloadContract.Batches.COLUMN_LAST_MODIFICATION, systemFacade.currentTimeMillis());
-        Uri batchUri = contentResolver.insert(downloadsUriProvider.getBatchesUri(), values);
-        return ContentUris.parseId(batchUri);
+        return values;
     }
 
     public Uri getDownloadsWithoutProgressUri() {
@@ -31,6 +31,10 @@ public interface DownloadManagerModules {
 
     DestroyListener getDestroyListener();
 
+    HttpConnectionFactory getHttpConnectionFactory();
+
+    StreamStages getStreamStages();
+
     class Builder {
 
         private final Context context;
@@ -44,6 +48,8 @@ public interface DownloadManagerModules {
         private NotificationImageRetriever imageRetriever;
         private NotificationInitialiser notificationInitialiser;
         private DestroyListener destroyListener;
+        private HttpConnectionFactory httpConnectionFactory;
+        private final StreamStages streamStages = new StreamStages();
 
         public static Builder from(@NonNull Context context) {
             return new Builder(context.getApplicationContext());
@@ -98,6 +104,32 @@ public interface DownloadManagerModules {
             return this;
         }
 
+        /**
+         * Replaces the transport used for downloads, by default a shared {@link OkHttpConnectionFactory}.
+         * Use {@link HttpConnectionFactory.Platform} to go back to the platform {@link java.net.HttpURLConnection}.
+         */
+        public Builder withHttpConnectionFactory(@NonNull HttpConnectionFactory httpConnectionFactory) {
+            this.httpConnectionFactory = httpConnectionFactory;
+            return this;
+        }
+
+        /**
+         * Registers a stage downloads can go through, by the name given to {@link Request#addStreamStage(String)}.
+         */
+        public Builder withStreamStage(@NonNull String name, @NonNull StreamStage stage) {
+            streamStages.register(name, stage);
+            return this;
+        }
+
+        /**
+         * Has the downloads of the given MIME type go through the named stages, in order,
+         * unless their {@link Request} chooses its own.
+         */
+        public Builder withStreamStagesFor(@NonNull String mimeType, @NonNull String... stageNames) {
+            streamStages.registerFor(mimeType, stageNames);
+            return this;
+        }
+
         public DownloadManagerModules build() {
             return new DefaultsDownloadManagerModules(
                     context,
@@ -109,7 +141,9 @@ public interface DownloadManagerModules {
                     readyChecker,
                     imageRetriever,
                     notificationInitialiser,
-                    destroyListener
+                    destroyListener,
+                    httpConnectionFactory,
+                    streamStages
             );
         }
 
@@ -17,10 +17,13 @@
 package com.novoda.downloadmanager.lib;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
@@ -50,6 +53,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -156,6 +160,11 @@ public final class DownloadProvider extends ContentProvider {
             DownloadContract.Downloads.COLUMN_BATCH_ID,
             DownloadContract.Downloads.COLUMN_ALWAYS_RESUME,
             DownloadContract.Downloads.COLUMN_ALLOW_TAR_UPDATES,
+            DownloadContract.Downloads.COLUMN_EXTRACTED_ENTRIES,
+            DownloadContract.Downloads.COLUMN_RECONNECT_COUNT,
+            DownloadContract.Downloads.COLUMN_REUSED_BYTES,
+            DownloadContract.Downloads.COLUMN_SERVED_BY,
+            DownloadContract.Downloads.COLUMN_SPEED,
             DownloadContract.Batches._ID,
             DownloadContract.Batches.COLUMN_STATUS,
             DownloadContract.Batches.COLUMN_TITLE,
@@ -168,6 +177,18 @@ public final class DownloadProvider extends ContentProvider {
             OpenableColumns.SIZE,
     };
 
+    /**
+     * Columns that are only written to report the progress of a running download
+     */
+    private static final List<String> PROGRESS_COLUMNS = Arrays.asList(
+            DownloadContract.Downloads.COLUMN_CURRENT_BYTES,
+            DownloadContract.Downloads.COLUMN_SPEED,
+            DownloadContract.Downloads.COLUMN_SEGMENTS,
+            DownloadContract.Downloads.COLUMN_EXTRACTION_CHECKPOINT,
+            DownloadContract.Downloads.COLUMN_EXTRACTED_ENTRIES,
+            DownloadContract.Downloads.COLUMN_DURABLE_BYTES
+    );
+
     private static final Set<String> APP_READABLE_COLUMNS_SET;
 
     private static final Map<String, String> COLUMNS_MAP;
@@ -175,12 +196,19 @@ public final class DownloadProvider extends ContentProvider {
     private static final List<String> DOWNLOAD_MANAGER_COLUMNS_LIST = Arrays.asList(DownloadManager.UNDERLYING_COLUMNS);
 
     private final DownloadsUriProvider downloadsUriProvider;
+    private final DownloadControlRegistry controlRegistry;
 
     /**
      * Different base URIs that could be used to access an individual download
      */
     private final Uri[] baseUris;
+    private final Uri[] progressUris;
 
+    /**
+     * Changes made by {@link #applyBatch(ArrayList)} or {@link #bulkInsert(Uri, ContentValues[])} on the current thread,
+     * notified once the whole batch has been applied
+     */
+    private final ThreadLocal<DeferredNotifications> deferredNotifications = new ThreadLocal<>();
 
     /**
      * The database that lies underneath this content provider
@@ -223,12 +251,18 @@ public final class DownloadProvider extends ContentProvider {
 
     public DownloadProvider() {
         downloadsUriProvider = DownloadsUriProvider.getInstance();
+        controlRegistry = DownloadControlRegistry.getInstance();
 
         baseUris = new Uri[]{
                 downloadsUriProvider.getContentUri(),
                 downloadsUriProvider.getAllDownloadsUri(),
                 downloadsUriProvider.getBatchesUri()
         };
+        progressUris = new Uri[]{
+                downloadsUriProvider.getContentUri(),
+                downloadsUriProvider.getBatchesUri(),
+                downloadsUriProvider.getDownloadsProgressUri()
+        };
     }
 
     /**
@@ -357,6 +391,99 @@ public final class DownloadProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Applies the operations in a single transaction, notifying each changed URI only once at the end.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations) throws OperationApplicationException {
+        SQLiteDatabase db = openHelper.getWritableDatabase();
+        boolean deferring = startDeferringNotifications();
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            db.endTransaction();
+            if (deferring) {
+                sendDeferredNotifications();
+            }
+        }
+    }
+
+    /**
+     * Inserts the rows in a single transaction, notifying each changed URI only once at the end.
+     */
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        SQLiteDatabase db = openHelper.getWritableDatabase();
+        boolean deferring = startDeferringNotifications();
+        db.beginTransaction();
+        try {
+            int count = 0;
+            for (ContentValues rowValues : values) {
+                if (insert(uri, rowValues) != null) {
+                    count++;
+                }
+            }
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+            if (deferring) {
+                sendDeferredNotifications();
+            }
+        }
+    }
+
+    private boolean startDeferringNotifications() {
+        if (deferredNotifications.get() != null) {
+            return false;
+        }
+        deferredNotifications.set(new DeferredNotifications());
+        return true;
+    }
+
+    private void sendDeferredNotifications() {
+        DeferredNotifications notifications = deferredNotifications.get();
+        deferredNotifications.remove();
+        for (Uri uri : notifications.uris) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+        if (notifications.startService) {
+            startDownloadService();
+        }
+    }
+
+    private void notifyChange(Uri uri) {
+        DeferredNotifications notifications = deferredNotifications.get();
+        if (notifications == null) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        } else {
+            notifications.uris.add(uri);
+        }
+    }
+
+    private void requestDownloadServiceStart() {
+        DeferredNotifications notifications = deferredNotifications.get();
+        if (notifications == null) {
+            startDownloadService();
+        } else {
+            notifications.startService = true;
+        }
+    }
+
+    private void startDownloadService() {
+        Context context = getContext();
+        context.startService(new Intent(context, DownloadService.class));
+    }
+
+    private static class DeferredNotifications {
+        private final Set<Uri> uris = new LinkedHashSet<>();
+        private boolean startService;
+    }
+
     /**
      * Inserts a row in the database
      */
@@ -371,7 +498,7 @@ public final class DownloadProvider extends ContentProvider {
         }
         if (match == BATCHES) {
             long rowId = db.insert(DownloadContract.Batches.BATCHES_TABLE_NAME, null, values);
-            notifyBatchesChanged();
+            notifyBatchChanged(rowId);
             return ContentUris.withAppendedId(downloadsUriProvider.getBatchesUri(), rowId);
         }
         LLog.d("calling insert on an unknown/invalid URI: " + uri);
@@ -492,6 +619,17 @@ public final class DownloadProvider extends ContentProvider {
         copyBoolean(DownloadContract.Downloads.COLUMN_ALLOW_METERED, values, filteredValues);
         copyBoolean(DownloadContract.Downloads.COLUMN_ALWAYS_RESUME, values, filteredValues);
         copyBoolean(DownloadContract.Downloads.COLUMN_ALLOW_TAR_UPDATES, values, filteredValues);
+        copyInteger(DownloadContract.Downloads.COLUMN_MAX_SEGMENTS, values, filteredValues);
+        copyBoolean(DownloadContract.Downloads.COLUMN_CHANNEL_TRANSFER, values, filteredValues);
+        copyBoolean(DownloadContract.Downloads.COLUMN_WRITE_BEHIND, values, filteredValues);
+        copyString(DownloadContract.Downloads.COLUMN_CHECKSUM_ALGORITHM, values, filteredValues);
+        copyString(DownloadContract.Downloads.COLUMN_EXPECTED_CHECKSUM, values, filteredValues);
+        copyString(DownloadContract.Downloads.COLUMN_EXTRACT_DIRECTORY, values, filteredValues);
+        copyString(DownloadContract.Downloads.COLUMN_STREAM_STAGES, values, filteredValues);
+        copyInteger(DownloadContract.Downloads.COLUMN_DURABILITY, values, filteredValues);
+        copyString(DownloadContract.Downloads.COLUMN_DELTA_MANIFEST_URI, values, filteredValues);
+        copyString(DownloadContract.Downloads.COLUMN_DELTA_SEED, values, filteredValues);
+        copyString(DownloadContract.Downloads.COLUMN_MIRRORS, values, filteredValues);
 
         copyInteger(DownloadContract.Downloads.COLUMN_BATCH_ID, values, filteredValues);
 
@@ -512,20 +650,48 @@ public final class DownloadProvider extends ContentProvider {
          * DownloadManager.addCompletedDownload(String, String, String,
          * boolean, String, String, long) need special treatment
          */
-        Context context = getContext();
-        context.startService(new Intent(context, DownloadService.class));
+        requestDownloadServiceStart();
         notifyContentChanged(uri, match);
         notifyDownloadStatusChanged();
         return ContentUris.withAppendedId(downloadsUriProvider.getContentUri(), rowID);
     }
 
     private void notifyDownloadStatusChanged() {
-        getContext().getContentResolver().notifyChange(downloadsUriProvider.getDownloadsWithoutProgressUri(), null);
+        notifyChange(downloadsUriProvider.getDownloadsWithoutProgressUri());
     }
 
     private void notifyBatchesChanged() {
-        getContext().getContentResolver().notifyChange(downloadsUriProvider.getBatchesWithoutProgressUri(), null);
-        getContext().getContentResolver().notifyChange(downloadsUriProvider.getBatchesUri(), null);
+        notifyChange(downloadsUriProvider.getBatchesWithoutProgressUri());
+        notifyChange(downloadsUriProvider.getBatchesUri());
+        notifyChange(downloadsUriProvider.getBatchChangesUri());
+    }
+
+    /**
+     * Same as {@link #notifyBatchesChanged()}, except that the service is told which batch to read back.
+     */
+    private void notifyBatchChanged(long batchId) {
+        notifyChange(downloadsUriProvider.getBatchesWithoutProgressUri());
+        notifyChange(downloadsUriProvider.getBatchesUri());
+        notifyChange(ContentUris.withAppendedId(downloadsUriProvider.getBatchChangesUri(), batchId));
+    }
+
+    private void notifyBatchesChanged(Uri uri, int match) {
+        if (match == BATCHES_ID) {
+            notifyBatchChanged(Long.parseLong(uri.getLastPathSegment()));
+        } else {
+            notifyBatchesChanged();
+        }
+    }
+
+    private static boolean changesBatchInfoOrStatus(ContentValues values) {
+        return values.containsKey(DownloadContract.Batches.COLUMN_STATUS)
+                || values.containsKey(DownloadContract.Batches.COLUMN_DELETED)
+                || values.containsKey(DownloadContract.Batches.COLUMN_TITLE)
+                || values.containsKey(DownloadContract.Batches.COLUMN_DESCRIPTION)
+                || values.containsKey(DownloadContract.Batches.COLUMN_BIG_PICTURE)
+                || values.containsKey(DownloadContract.Batches.COLUMN_VISIBILITY)
+                || values.containsKey(DownloadContract.Batches.COLUMN_EXTRA_DATA)
+                || values.containsKey(DownloadContract.Batches.COLUMN_PRIORITY);
     }
 
     /**
@@ -795,7 +961,9 @@ public final class DownloadProvider extends ContentProvider {
             case ALL_DOWNLOADS_ID:
                 SqlSelection selection = getWhereClause(uri, where, whereArgs, match);
                 if (filteredValues.size() > 0) {
+                    List<Long> controlledIds = queryIdsIfControlChanged(db, selection, filteredValues);
                     count = db.update(DownloadContract.Downloads.DOWNLOADS_TABLE_NAME, filteredValues, selection.getSelection(), selection.getParameters());
+                    publishControlChange(controlledIds, filteredValues);
                 } else {
                     count = 0;
                 }
@@ -805,8 +973,8 @@ public final class DownloadProvider extends ContentProvider {
             case BATCHES_ID:
                 SqlSelection batchSelection = getWhereClause(uri, where, whereArgs, match);
                 count = db.update(DownloadContract.Batches.BATCHES_TABLE_NAME, values, batchSelection.getSelection(), batchSelection.getParameters());
-                if (values.containsKey(DownloadContract.Batches.COLUMN_STATUS) || values.containsKey(DownloadContract.Batches.COLUMN_DELETED)){
-                    notifyBatchesChanged();
+                if (changesBatchInfoOrStatus(values)) {
+                    notifyBatchesChanged(uri, match);
                 }
                 break;
             default:
@@ -814,15 +982,72 @@ public final class DownloadProvider extends ContentProvider {
                 throw new UnsupportedOperationException("Cannot update URI: " + uri);
         }
 
-        notifyContentChanged(uri, match);
+        if (isProgressOnly(filteredValues)) {
+            notifyContentChanged(uri, match, progressUris);
+        } else {
+            notifyContentChanged(uri, match, baseUris);
+        }
 
         if (startService) {
-            Context context = getContext();
-            context.startService(new Intent(context, DownloadService.class));
+            requestDownloadServiceStart();
         }
         return count;
     }
 
+    /**
+     * The ids are read before the update, as its where clause might not match the downloads any more afterwards.
+     */
+    private List<Long> queryIdsIfControlChanged(SQLiteDatabase db, SqlSelection selection, ContentValues values) {
+        if (!isControlChange(values)) {
+            return Collections.emptyList();
+        }
+        String[] projection = new String[]{DownloadContract.Downloads._ID};
+        Cursor cursor = db.query(
+                DownloadContract.Downloads.DOWNLOADS_TABLE_NAME, projection,
+                selection.getSelection(), selection.getParameters(), null, null, null
+        );
+        List<Long> ids = new ArrayList<>(cursor.getCount());
+        try {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+
+    private static boolean isControlChange(ContentValues values) {
+        if (values.containsKey(DownloadContract.Downloads.COLUMN_CONTROL)) {
+            return true;
+        }
+        Integer status = values.getAsInteger(DownloadContract.Downloads.COLUMN_STATUS);
+        if (status != null && (status == DownloadStatus.CANCELED || status == DownloadStatus.BATCH_FAILED)) {
+            return true;
+        }
+        return isDeletion(values);
+    }
+
+    private static boolean isDeletion(ContentValues values) {
+        Integer deleted = values.getAsInteger(DownloadContract.Downloads.COLUMN_DELETED);
+        return deleted != null && deleted == 1;
+    }
+
+    /**
+     * Running downloads are told straight away instead of having to poll for it.
+     */
+    private void publishControlChange(List<Long> downloadIds, ContentValues values) {
+        if (downloadIds.isEmpty()) {
+            return;
+        }
+        controlRegistry.publish(
+                downloadIds,
+                values.getAsInteger(DownloadContract.Downloads.COLUMN_CONTROL),
+                values.getAsInteger(DownloadContract.Downloads.COLUMN_STATUS),
+                isDeletion(values)
+        );
+    }
+
     private void notifyStatusIfDownloadStatusChanged(ContentValues values) {
         if (values.containsKey(DownloadContract.Downloads.COLUMN_STATUS)) {
             notifyDownloadStatusChanged();
@@ -830,6 +1055,21 @@ public final class DownloadProvider extends ContentProvider {
     }
 
 
+    /**
+     * Progress is written every few kilobytes, so it is kept off /all_downloads where it would wake up the download service.
+     */
+    private boolean isProgressOnly(ContentValues values) {
+        if (values.size() == 0) {
+            return false;
+        }
+        for (String column : values.keySet()) {
+            if (!PROGRESS_COLUMNS.contains(column)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Notify of a change through both URIs (/my_downloads and /all_downloads)
      *
@@ -837,15 +1077,19 @@ public final class DownloadProvider extends ContentProvider {
      * @param uriMatch the match ID from {@link #URI_MATCHER}
      */
     private void notifyContentChanged(final Uri uri, int uriMatch) {
+        notifyContentChanged(uri, uriMatch, baseUris);
+    }
+
+    private void notifyContentChanged(final Uri uri, int uriMatch, Uri[] urisToNotify) {
         Long downloadId = null;
         if (uriMatch == MY_DOWNLOADS_ID || uriMatch == ALL_DOWNLOADS_ID) {
             downloadId = Long.parseLong(getDownloadIdFromUri(uri));
         }
-        for (Uri uriToNotify : baseUris) {
+        for (Uri uriToNotify : urisToNotify) {
             if (downloadId != null) {
                 uriToNotify = ContentUris.withAppendedId(uriToNotify, downloadId);
             }
-            getContext().getContentResolver().notifyChange(uriToNotify, null);
+            notifyChange(uriToNotify);
         }
     }
 
@@ -896,7 +1140,7 @@ public final class DownloadProvider extends ContentProvider {
             case BATCHES_ID:
                 SqlSelection batchSelection = getWhereClause(uri, where, whereArgs, match);
                 count = db.delete(DownloadContract.Batches.BATCHES_TABLE_NAME, batchSelection.getSelection(), batchSelection.getParameters());
-                notifyBatchesChanged();
+                notifyBatchesChanged(uri, match);
                 break;
 
             default:
@@ -0,0 +1,86 @@
+package com.novoda.downloadmanager.lib;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shares the concurrent downloads between every batch that is ready to download.
+ * <p/>
+ * Free slots are handed out one at a time to the batch with the fewest active downloads relative to its priority,
+ * so batches progress side by side instead of queueing behind each other, and a higher priority batch gets
+ * a proportionally larger share, up to the per batch limit. Ties go to the higher priority, then to the batch
+ * that was enqueued first, which is all that tells batches apart when the per batch limit is 1.
+ */
+class DownloadScheduler {
+
+    private final int maxConcurrentDownloads;
+    private final int maxConcurrentDownloadsPerBatch;
+
+    DownloadScheduler(int maxConcurrentDownloads, int maxConcurrentDownloadsPerBatch) {
+        this.maxConcurrentDownloads = maxConcurrentDownloads;
+        this.maxConcurrentDownloadsPerBatch = maxConcurrentDownloadsPerBatch;
+    }
+
+    /**
+     * @param candidates       the batches that may start downloads, in the order they were enqueued
+     * @param runningDownloads the number of downloads already submitted or running, across all batches
+     * @return the downloads to start, in the order they should be submitted
+     */
+    List<FileDownloadInfo> schedule(List<Candidate> candidates, int runningDownloads) {
+        List<FileDownloadInfo> scheduled = new ArrayList<>();
+        int freeSlots = maxConcurrentDownloads - runningDownloads;
+        while (freeSlots > 0) {
+            Candidate next = null;
+            for (Candidate candidate : candidates) {
+                if (!candidate.canStartDownload(maxConcurrentDownloadsPerBatch)) {
+                    continue;
+                }
+                if (next == null || candidate.deservesSlotBefore(next)) {
+                    next = candidate;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            scheduled.add(next.startNextDownload());
+            freeSlots--;
+        }
+        return scheduled;
+    }
+
+    static class Candidate {
+
+        private final int priority;
+        private final List<FileDownloadInfo> pendingDownloads;
+        private int activeDownloads;
+
+        /**
+         * @param priority         the weight of the batch, see {@link RequestBatch.Builder#withPriority(int)}
+         * @param activeDownloads  the downloads of the batch that are already submitted or running
+         * @param pendingDownloads the downloads of the batch that are ready to start, in order
+         */
+        Candidate(int priority, int activeDownloads, List<FileDownloadInfo> pendingDownloads) {
+            this.priority = Math.max(1, priority);
+            this.activeDownloads = activeDownloads;
+            this.pendingDownloads = new ArrayList<>(pendingDownloads);
+        }
+
+        boolean canStartDownload(int maxConcurrentDownloadsPerBatch) {
+            return !pendingDownloads.isEmpty() && activeDownloads < maxConcurrentDownloadsPerBatch;
+        }
+
+        boolean deservesSlotBefore(Candidate other) {
+            long share = (long) activeDownloads * other.priority;
+            long otherShare = (long) other.activeDownloads * priority;
+            if (share != otherShare) {
+                return share < otherShare;
+            }
+            return priority > other.priority;
+        }
+
+        FileDownloadInfo startNextDownload() {
+            activeDownloads++;
+            return pendingDownloads.remove(0);
+        }
+    }
+}
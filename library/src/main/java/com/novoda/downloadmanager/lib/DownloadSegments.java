@@ -0,0 +1,172 @@
+package com.novoda.downloadmanager.lib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The byte ranges a segmented download is split into, together with how far each range has got.
+ * <p/>
+ * Persisted in {@link DownloadContract.Downloads#COLUMN_SEGMENTS} as {@code start-end-written} triples
+ * separated by {@code ;}, where {@code end} is inclusive.
+ */
+class DownloadSegments {
+
+    private static final String SEGMENT_SEPARATOR = ";";
+    private static final String FIELD_SEPARATOR = "-";
+    private static final int FIELDS_PER_SEGMENT = 3;
+
+    private final List<Segment> segments;
+
+    static DownloadSegments split(long totalBytes, int numberOfSegments) {
+        if (totalBytes <= 0 || numberOfSegments <= 0) {
+            throw new IllegalArgumentException("Cannot split " + totalBytes + " bytes into " + numberOfSegments + " segments");
+        }
+        List<Segment> segments = new ArrayList<>(numberOfSegments);
+        long segmentSize = totalBytes / numberOfSegments;
+        long start = 0;
+        for (int i = 0; i < numberOfSegments; i++) {
+            long end = (i == numberOfSegments - 1) ? totalBytes - 1 : start + segmentSize - 1;
+            segments.add(new Segment(start, end, 0));
+            start = end + 1;
+        }
+        return new DownloadSegments(segments);
+    }
+
+    /**
+     * Splits the file into runs of blocks found in its previous version and runs of blocks to fetch. Nothing is
+     * written yet; the runs found are advanced as they are copied, so that whatever could not be copied is fetched.
+     *
+     * @param blockOffsets for each block of the manifest, where it is in the previous version or {@link BlockMatcher#NOT_FOUND}
+     */
+    static DownloadSegments forDelta(DeltaManifest manifest, long[] blockOffsets) {
+        if (manifest.getBlockCount() == 0) {
+            throw new IllegalArgumentException("Cannot split an empty file into segments");
+        }
+        List<Segment> segments = new ArrayList<>();
+        int runStart = 0;
+        for (int block = 1; block <= manifest.getBlockCount(); block++) {
+            boolean endOfRun = block == manifest.getBlockCount()
+                    || (blockOffsets[block] == BlockMatcher.NOT_FOUND) != (blockOffsets[runStart] == BlockMatcher.NOT_FOUND);
+            if (endOfRun) {
+                long start = manifest.getBlockStart(runStart);
+                long end = manifest.getBlockStart(block - 1) + manifest.getBlockLength(block - 1) - 1;
+                segments.add(new Segment(start, end, 0));
+                runStart = block;
+            }
+        }
+        return new DownloadSegments(segments);
+    }
+
+    /**
+     * @return the segments stored in the database, or null if the value is missing or malformed
+     */
+    static DownloadSegments fromDatabaseValue(String value) {
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        String[] rawSegments = value.split(SEGMENT_SEPARATOR);
+        List<Segment> segments = new ArrayList<>(rawSegments.length);
+        try {
+            for (String rawSegment : rawSegments) {
+                String[] fields = rawSegment.split(FIELD_SEPARATOR);
+                if (fields.length != FIELDS_PER_SEGMENT) {
+                    return null;
+                }
+                segments.add(new Segment(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return new DownloadSegments(segments);
+    }
+
+    private DownloadSegments(List<Segment> segments) {
+        this.segments = segments;
+    }
+
+    List<Segment> getSegments() {
+        return Collections.unmodifiableList(segments);
+    }
+
+    long getTotalBytes() {
+        return segments.get(segments.size() - 1).end + 1;
+    }
+
+    long getDownloadedBytes() {
+        long downloadedBytes = 0;
+        for (Segment segment : segments) {
+            downloadedBytes += segment.getWritten();
+        }
+        return downloadedBytes;
+    }
+
+    boolean isComplete() {
+        for (Segment segment : segments) {
+            if (!segment.isComplete()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    String toDatabaseValue() {
+        StringBuilder builder = new StringBuilder();
+        for (Segment segment : segments) {
+            if (builder.length() > 0) {
+                builder.append(SEGMENT_SEPARATOR);
+            }
+            builder.append(segment.start)
+                    .append(FIELD_SEPARATOR)
+                    .append(segment.end)
+                    .append(FIELD_SEPARATOR)
+                    .append(segment.getWritten());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * A single inclusive byte range of the file. Only the thread fetching the range advances it,
+     * other threads may read its progress at any time.
+     */
+    static class Segment {
+
+        private final long start;
+        private final long end;
+        private volatile long written;
+
+        Segment(long start, long end, long written) {
+            this.start = start;
+            this.end = end;
+            this.written = written;
+        }
+
+        long getStart() {
+            return start;
+        }
+
+        long getEnd() {
+            return end;
+        }
+
+        long getWritten() {
+            return written;
+        }
+
+        long getNextPosition() {
+            return start + written;
+        }
+
+        long getRemainingBytes() {
+            return end - start + 1 - written;
+        }
+
+        boolean isComplete() {
+            return getRemainingBytes() <= 0;
+        }
+
+        void advance(long count) {
+            written += count;
+        }
+    }
+}
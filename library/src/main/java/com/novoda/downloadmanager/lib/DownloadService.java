@@ -21,7 +21,6 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.ContentResolver;
 import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
@@ -46,9 +45,11 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static android.text.format.DateUtils.MINUTE_IN_MILLIS;
 
@@ -66,14 +67,22 @@ public class DownloadService extends Service {
     // DownloadReceiver to protect our entire workflow.
 
     private static final boolean DEBUG_LIFECYCLE = false;
-    private final ContentLengthFetcher contentLengthFetcher = new ContentLengthFetcher();
+    private ContentLengthFetcher contentLengthFetcher;
+    private ContentLengthPrefetcher contentLengthPrefetcher;
+    private ProgressAggregator progressAggregator;
+    private ChunkSizer chunkSizer;
+    private StreamStages streamStages;
+    private HttpConnectionFactory httpConnectionFactory;
 
     private SystemFacade systemFacade;
     private AlarmManager alarmManager;
     private StorageManager storageManager;
     private DownloadManagerContentObserver downloadManagerContentObserver;
+    private DownloadProgressObserver downloadProgressObserver;
+    private BatchContentObserver batchContentObserver;
     private DownloadNotifier downloadNotifier;
     private ExecutorService executor;
+    private DownloadScheduler downloadScheduler;
     private DownloadScanner downloadScanner;
 
     private HandlerThread updateThread;
@@ -85,6 +94,8 @@ public class DownloadService extends Service {
     private DownloadDeleter downloadDeleter;
     private DownloadReadyChecker downloadReadyChecker;
     private DownloadsUriProvider downloadsUriProvider;
+    private DownloadInfoCache downloadInfoCache;
+    private DownloadBatchCache downloadBatchCache;
     private BatchInformationBroadcaster batchInformationBroadcaster;
     private NetworkChecker networkChecker;
     private DestroyListener destroyListener;
@@ -100,10 +111,88 @@ public class DownloadService extends Service {
 
         @Override
         public void onChange(final boolean selfChange) {
+            downloadInfoCache.onDownloadsChanged();
+            enqueueUpdate();
+        }
+
+        @Override
+        public void onChange(final boolean selfChange, Uri uri) {
+            markChanged(uri);
             enqueueUpdate();
         }
     }
 
+    /**
+     * Receives the frequent progress-only changes, which only need to refresh the notifications.
+     */
+    private class DownloadProgressObserver extends ContentObserver {
+        public DownloadProgressObserver() {
+            super(new Handler());
+        }
+
+        @Override
+        public void onChange(final boolean selfChange) {
+            downloadInfoCache.onDownloadsChanged();
+            enqueueProgressUpdate();
+        }
+
+        @Override
+        public void onChange(final boolean selfChange, Uri uri) {
+            markChanged(uri);
+            enqueueProgressUpdate();
+        }
+    }
+
+    /**
+     * Receives the changes to the batches themselves, which the downloads never notify.
+     */
+    private class BatchContentObserver extends ContentObserver {
+        public BatchContentObserver() {
+            super(new Handler());
+        }
+
+        @Override
+        public void onChange(final boolean selfChange) {
+            downloadBatchCache.onBatchesChanged();
+            enqueueUpdate();
+        }
+
+        @Override
+        public void onChange(final boolean selfChange, Uri uri) {
+            markBatchChanged(uri);
+            enqueueUpdate();
+        }
+    }
+
+    /**
+     * Changes to a single download are notified on its own URI, anything else could have touched any download.
+     */
+    private void markChanged(Uri uri) {
+        List<String> pathSegments = uri == null ? Collections.<String>emptyList() : uri.getPathSegments();
+        if (pathSegments.size() < 2) {
+            downloadInfoCache.onDownloadsChanged();
+            return;
+        }
+        try {
+            downloadInfoCache.onDownloadChanged(Long.parseLong(pathSegments.get(1)));
+        } catch (NumberFormatException e) {
+            downloadInfoCache.onDownloadsChanged();
+        }
+    }
+
+    private void markBatchChanged(Uri uri) {
+        List<String> pathSegments = uri == null ? Collections.<String>emptyList() : uri.getPathSegments();
+        if (pathSegments.size() < 2) {
+            downloadBatchCache.onBatchesChanged();
+            return;
+        }
+        try {
+            downloadBatchCache.onBatchChanged(Long.parseLong(pathSegments.get(1)));
+        } catch (NumberFormatException e) {
+            downloadBatchCache.onBatchesChanged();
+        }
+    }
+
     /**
      * Returns an IBinder instance when someone wants to connect to this
      * service. Binding to this service is not allowed.
@@ -131,6 +220,9 @@ public class DownloadService extends Service {
         DownloadManagerModules modules = getDownloadManagerModules();
         this.destroyListener = modules.getDestroyListener();
         DownloadClientReadyChecker downloadClientReadyChecker = modules.getDownloadClientReadyChecker();
+        this.httpConnectionFactory = modules.getHttpConnectionFactory();
+        this.streamStages = modules.getStreamStages();
+        this.contentLengthFetcher = new ContentLengthFetcher(httpConnectionFactory);
         PublicFacingDownloadMarshaller downloadMarshaller = new PublicFacingDownloadMarshaller();
         this.downloadReadyChecker = new DownloadReadyChecker(this.systemFacade, networkChecker, downloadClientReadyChecker, downloadMarshaller);
 
@@ -161,12 +253,27 @@ public class DownloadService extends Service {
                 downloadsUriProvider.getAllDownloadsUri(),
                 true, downloadManagerContentObserver
         );
+        downloadProgressObserver = new DownloadProgressObserver();
+        getContentResolver().registerContentObserver(
+                downloadsUriProvider.getDownloadsProgressUri(),
+                true, downloadProgressObserver
+        );
+        batchContentObserver = new BatchContentObserver();
+        getContentResolver().registerContentObserver(
+                downloadsUriProvider.getBatchChangesUri(),
+                true, batchContentObserver
+        );
 
         PackageManager packageManager = getPackageManager();
         String packageName = getApplicationContext().getPackageName();
         ConcurrentDownloadsLimitProvider concurrentDownloadsLimitProvider = new ConcurrentDownloadsLimitProvider(packageManager, packageName);
         DownloadExecutorFactory factory = new DownloadExecutorFactory(concurrentDownloadsLimitProvider);
         executor = factory.createExecutor();
+        downloadScheduler = new DownloadScheduler(
+                concurrentDownloadsLimitProvider.getConcurrentDownloadsLimit(),
+                concurrentDownloadsLimitProvider.getConcurrentDownloadsPerBatchLimit()
+        );
+        chunkSizer = new ChunkSizeLimitProvider(packageManager, packageName).getChunkSizer();
 
         this.downloadsRepository = new DownloadsRepository(
                 systemFacade, getContentResolver(), new DownloadsRepository.DownloadInfoCreator() {
@@ -176,6 +283,19 @@ public class DownloadService extends Service {
             }
         }, downloadsUriProvider
         );
+        this.downloadInfoCache = new DownloadInfoCache(
+                getContentResolver(), downloadsUriProvider, new DownloadsRepository.DownloadInfoCreator() {
+            @Override
+            public FileDownloadInfo create(FileDownloadInfo.Reader reader) {
+                return createNewDownloadInfo(reader);
+            }
+        }
+        );
+        this.downloadBatchCache = new DownloadBatchCache(getContentResolver(), downloadsUriProvider);
+
+        this.contentLengthPrefetcher = ContentLengthPrefetcher.from(contentLengthFetcher, downloadsRepository);
+        this.progressAggregator = new ProgressAggregator(downloadsRepository, downloadNotifier, Executors.newSingleThreadScheduledExecutor());
+        progressAggregator.start();
 
         unlockStaleDownloads();
 
@@ -233,11 +353,21 @@ public class DownloadService extends Service {
     private void shutDown() {
         LLog.d("Shutting down service");
         getContentResolver().unregisterContentObserver(downloadManagerContentObserver);
+        getContentResolver().unregisterContentObserver(downloadProgressObserver);
+        getContentResolver().unregisterContentObserver(batchContentObserver);
         downloadScanner.shutdown();
         executor.shutdownNow();
+        contentLengthPrefetcher.shutdown();
+        progressAggregator.stop();
+        logBufferPoolUsage();
         updateThread.quit();
     }
 
+    private void logBufferPoolUsage() {
+        BufferPool bufferPool = BufferPool.getInstance();
+        LLog.v("Transfer buffers reused " + bufferPool.getHitCount() + " times, allocated " + bufferPool.getMissCount() + " times");
+    }
+
     /**
      * Enqueue an {#updateLocked()} pass to occur in future.
      */
@@ -260,14 +390,29 @@ public class DownloadService extends Service {
         );
     }
 
+    /**
+     * Enqueue an {#updateProgressLocked()} pass, unless one is already waiting.
+     */
+    private void enqueueProgressUpdate() {
+        if (updateThread.isAlive() && !updateHandler.hasMessages(MSG_PROGRESS)) {
+            updateHandler.sendEmptyMessage(MSG_PROGRESS);
+        }
+    }
+
     private static final int MSG_UPDATE = 1;
     private static final int MSG_FINAL_UPDATE = 2;
+    private static final int MSG_PROGRESS = 3;
 
     private final Handler.Callback updateCallback = new Handler.Callback() {
         @Override
         public boolean handleMessage(@NonNull Message msg) {
             Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 
+            if (msg.what == MSG_PROGRESS) {
+                updateProgressLocked();
+                return true;
+            }
+
             final int startId = msg.arg1;
             if (DEBUG_LIFECYCLE) {
                 LLog.v("Updating for startId " + startId);
@@ -337,30 +482,23 @@ public class DownloadService extends Service {
         long nextRetryTimeMillis = Long.MAX_VALUE;
         long now = systemFacade.currentTimeMillis();
 
-        Collection<FileDownloadInfo> allDownloads = downloadsRepository.getAllDownloads();
-        updateTotalBytesFor(allDownloads);
+        Collection<FileDownloadInfo> allDownloads = downloadInfoCache.getAllDownloads();
+        contentLengthPrefetcher.prefetchFor(allDownloads);
 
-        List<DownloadBatch> downloadBatches = batchRepository.retrieveBatchesFor(allDownloads);
-        for (DownloadBatch downloadBatch : downloadBatches) {
-            if (downloadBatch.isActive()) {
-                isActive = true;
-                break;
-            }
-        }
+        List<DownloadBatch> downloadBatches = downloadBatchCache.getBatchesFor(allDownloads);
+        List<DownloadScheduler.Candidate> candidates = new ArrayList<>(downloadBatches.size());
 
         for (DownloadBatch downloadBatch : downloadBatches) {
             if (downloadBatch.isDeleted() || downloadBatch.prune(downloadDeleter)) {
                 continue;
             }
 
-            if (!isActive && downloadReadyChecker.canDownload(downloadBatch)) {
-                boolean isBatchStartingForTheFirstTime = batchRepository.isBatchStartingForTheFirstTime(downloadBatch.getBatchId());
-                if (isBatchStartingForTheFirstTime) {
-                    handleBatchStartingForTheFirstTime(downloadBatch);
-                }
-
-                downloadOrContinueBatch(downloadBatch.getDownloads());
+            if (downloadBatch.isActive()) {
                 isActive = true;
+            }
+
+            if (downloadReadyChecker.canDownload(downloadBatch)) {
+                candidates.add(candidateFor(downloadBatch, now));
             } else if (downloadBatch.scanCompletedMediaIfReady(downloadScanner)) {
                 isActive = true;
             }
@@ -368,6 +506,16 @@ public class DownloadService extends Service {
             nextRetryTimeMillis = downloadBatch.nextActionMillis(now, nextRetryTimeMillis);
         }
 
+        List<FileDownloadInfo> scheduledDownloads = downloadScheduler.schedule(candidates, countSubmittedOrRunning(allDownloads));
+        for (FileDownloadInfo info : scheduledDownloads) {
+            long batchId = info.getBatchId();
+            if (batchRepository.isBatchStartingForTheFirstTime(batchId)) {
+                handleBatchStartingForTheFirstTime(batchId);
+            }
+            download(info);
+            isActive = true;
+        }
+
         batchRepository.deleteMarkedBatchesFor(allDownloads);
         updateUserVisibleNotification(downloadBatches);
 
@@ -388,18 +536,37 @@ public class DownloadService extends Service {
         return isActive;
     }
 
-    private void handleBatchStartingForTheFirstTime(DownloadBatch downloadBatch) {
-        batchRepository.markBatchAsStarted(downloadBatch.getBatchId());
-        batchInformationBroadcaster.notifyBatchStartedFor(downloadBatch.getBatchId());
+    /**
+     * Refresh the user-visible notifications with the latest progress, without scheduling anything.
+     * <p/>
+     * Progress no longer triggers {#updateLocked()}, so it also postpones the final update pass
+     * that would otherwise mistake a long running download for a missed update.
+     */
+    private void updateProgressLocked() {
+        Collection<FileDownloadInfo> allDownloads = downloadInfoCache.getAllDownloads();
+        List<DownloadBatch> downloadBatches = downloadBatchCache.getBatchesFor(allDownloads);
+        updateUserVisibleNotification(downloadBatches);
+
+        if (updateHandler.hasMessages(MSG_FINAL_UPDATE)) {
+            enqueueFinalUpdate();
+        }
+    }
+
+    private void handleBatchStartingForTheFirstTime(long batchId) {
+        batchRepository.markBatchAsStarted(batchId);
+        batchInformationBroadcaster.notifyBatchStartedFor(batchId);
     }
 
     private void moveSubmittedTasksToBatchStatusIfNecessary() {
-        List<FileDownloadInfo> allDownloads = downloadsRepository.getAllDownloads();
-        List<DownloadBatch> downloadBatches = batchRepository.retrieveBatchesFor(allDownloads);
+        List<FileDownloadInfo> allDownloads = downloadInfoCache.getAllDownloads();
+        List<DownloadBatch> downloadBatches = downloadBatchCache.getBatchesFor(allDownloads);
 
         for (DownloadBatch downloadBatch : downloadBatches) {
             List<Long> ids = getSubmittedDownloadIdsFrom(downloadBatch);
             downloadsRepository.moveDownloadsStatusTo(ids, downloadBatch.getStatus());
+            for (long id : ids) {
+                downloadInfoCache.onDownloadChanged(id);
+            }
         }
     }
 
@@ -414,16 +581,54 @@ public class DownloadService extends Service {
         return ids;
     }
 
-    private void downloadOrContinueBatch(List<FileDownloadInfo> downloads) {
+    private DownloadScheduler.Candidate candidateFor(DownloadBatch downloadBatch, long now) {
+        List<FileDownloadInfo> downloads = downloadBatch.getDownloads();
+        List<FileDownloadInfo> pendingDownloads = new ArrayList<>(downloads.size());
+        int submittedOrRunning = 0;
+        for (FileDownloadInfo info : downloads) {
+            if (info.isSubmittedOrRunning()) {
+                submittedOrRunning++;
+            } else if (!DownloadStatus.isCompleted(info.getStatus()) && isReadyToStart(info, now)) {
+                pendingDownloads.add(info);
+            }
+        }
+        return new DownloadScheduler.Candidate(downloadBatch.getInfo().getPriority(), submittedOrRunning, pendingDownloads);
+    }
+
+    private int countSubmittedOrRunning(Collection<FileDownloadInfo> downloads) {
+        int submittedOrRunning = 0;
         for (FileDownloadInfo info : downloads) {
-            if (!DownloadStatus.isCompleted(info.getStatus()) && !info.isSubmittedOrRunning()) {
-                download(info);
-                return;
+            if (info.isSubmittedOrRunning()) {
+                submittedOrRunning++;
             }
         }
+        return submittedOrRunning;
     }
 
-    private void download(FileDownloadInfo info) {
+    /**
+     * Siblings of a running download can each be waiting on something different, so the readiness
+     * of the batch alone is not enough to decide whether one of them may start.
+     */
+    private boolean isReadyToStart(FileDownloadInfo info, long now) {
+        switch (info.getStatus()) {
+            case DownloadStatus.WAITING_TO_RETRY:
+                return info.restartTime(now) <= now;
+            case DownloadStatus.WAITING_FOR_NETWORK:
+            case DownloadStatus.QUEUED_FOR_WIFI:
+                return networkChecker.checkCanUseNetwork(info) == FileDownloadInfo.NetworkState.OK;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * The task gets its own copy of the download, as the cached one keeps being updated on the update thread.
+     */
+    private void download(FileDownloadInfo cachedInfo) {
+        FileDownloadInfo info = downloadsRepository.getDownloadFor(cachedInfo.getId());
+        if (info == null) {
+            info = cachedInfo;
+        }
         Uri downloadUri = ContentUris.withAppendedId(downloadsUriProvider.getAllDownloadsUri(), info.getId());
         FileDownloadInfo.ControlStatus.Reader controlReader = new FileDownloadInfo.ControlStatus.Reader(getContentResolver(), downloadUri);
         DownloadBatch downloadBatch = batchRepository.retrieveBatchFor(info);
@@ -431,28 +636,21 @@ public class DownloadService extends Service {
                 this, systemFacade, info, downloadBatch, storageManager, downloadNotifier,
                 batchInformationBroadcaster, batchRepository, downloadsUriProvider,
                 controlReader, networkChecker, downloadReadyChecker, new Clock(),
-                downloadsRepository
+                downloadsRepository, httpConnectionFactory, DownloadControlRegistry.getInstance(),
+                progressAggregator, BufferPool.getInstance(), chunkSizer, streamStages,
+                DownloadCoalescer.getInstance()
         );
 
         downloadsRepository.setDownloadSubmitted(info);
+        downloadInfoCache.onDownloadChanged(info.getId());
 
         int batchStatus = batchRepository.calculateBatchStatus(info.getBatchId());
         batchRepository.updateBatchStatus(info.getBatchId(), batchStatus);
+        downloadBatchCache.onBatchChanged(info.getBatchId());
 
         executor.submit(downloadTask);
     }
 
-    private void updateTotalBytesFor(Collection<FileDownloadInfo> downloadInfos) {
-        ContentValues values = new ContentValues(1);
-        for (FileDownloadInfo downloadInfo : downloadInfos) {
-            if (downloadInfo.hasUnknownTotalBytes()) {
-                long totalBytes = contentLengthFetcher.fetchContentLengthFor(downloadInfo);
-                values.put(DownloadContract.Downloads.COLUMN_TOTAL_BYTES, totalBytes);
-                getContentResolver().update(downloadInfo.getAllDownloadsUri(), values, null, null);
-            }
-        }
-    }
-
     private void updateUserVisibleNotification(Collection<DownloadBatch> batches) {
         downloadNotifier.updateWith(batches, notificationsCreatedListener);
     }
@@ -0,0 +1,86 @@
+package com.novoda.downloadmanager.lib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The equivalent URIs a download can be served from: its own, then its mirrors in order of preference,
+ * together with the one in use.
+ * <p/>
+ * Mirrors are persisted in {@link DownloadContract.Downloads#COLUMN_MIRRORS} one per line.
+ */
+class DownloadSources {
+
+    private static final String MIRROR_SEPARATOR = "\n";
+
+    private final List<String> sources;
+    private int current;
+    private int failovers;
+
+    static DownloadSources from(String uri, String mirrors) {
+        List<String> sources = new ArrayList<>();
+        sources.add(uri);
+        if (mirrors != null) {
+            for (String mirror : mirrors.split(MIRROR_SEPARATOR)) {
+                if (!mirror.isEmpty() && !sources.contains(mirror)) {
+                    sources.add(mirror);
+                }
+            }
+        }
+        return new DownloadSources(sources);
+    }
+
+    static String joinMirrors(List<String> mirrors) {
+        StringBuilder joined = new StringBuilder();
+        for (String mirror : mirrors) {
+            if (joined.length() > 0) {
+                joined.append(MIRROR_SEPARATOR);
+            }
+            joined.append(mirror);
+        }
+        return joined.toString();
+    }
+
+    private DownloadSources(List<String> sources) {
+        this.sources = sources;
+    }
+
+    List<String> getAll() {
+        return Collections.unmodifiableList(sources);
+    }
+
+    int size() {
+        return sources.size();
+    }
+
+    boolean hasMirrors() {
+        return sources.size() > 1;
+    }
+
+    String getCurrent() {
+        return sources.get(current);
+    }
+
+    boolean isPrimary() {
+        return current == 0;
+    }
+
+    void select(int index) {
+        current = index;
+    }
+
+    /**
+     * Moves on to the next source, wrapping around, so that every source gets a turn before giving up.
+     *
+     * @return false when every other source has already been failed over to
+     */
+    boolean failOver() {
+        if (failovers >= sources.size() - 1) {
+            return false;
+        }
+        failovers++;
+        current = (current + 1) % sources.size();
+        return true;
+    }
+}
@@ -159,6 +159,10 @@ public final class DownloadStatus {
      * This download couldn't be completed because another download in the batch failed.
      */
     public static final int BATCH_FAILED = 498;
+    /**
+     * This download couldn't be completed because the downloaded file did not match its expected checksum.
+     */
+    public static final int CHECKSUM_MISMATCH = 499;
 
     /**
      * Returns whether the status is informational (i.e. 1xx).
@@ -299,6 +303,8 @@ public final class DownloadStatus {
                 return "HTTP_EXCEPTION";
             case TOO_MANY_REDIRECTS:
                 return "TOO_MANY_REDIRECTS";
+            case CHECKSUM_MISMATCH:
+                return "CHECKSUM_MISMATCH";
             default:
                 return Integer.toString(status);
         }
@@ -19,11 +19,17 @@ package com.novoda.downloadmanager.lib;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.annotation.TargetApi;
 import android.drm.DrmManagerClient;
 import android.net.NetworkInfo;
 import android.net.TrafficStats;
+import android.os.Build;
 import android.os.PowerManager;
 import android.os.Process;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.text.TextUtils;
 import android.util.Pair;
 
@@ -31,18 +37,24 @@ import com.novoda.downloadmanager.lib.logger.LLog;
 import com.novoda.downloadmanager.notifications.DownloadNotifier;
 
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Method;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.UnknownHostException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 
@@ -76,6 +88,8 @@ class DownloadTask implements Runnable {
 
     private static final int DEFAULT_TIMEOUT = (int) (20 * SECOND_IN_MILLIS);
 
+    private static final Object BATCH_STATUS_LOCK = new Object();
+
     private final Context context;
     private final FileDownloadInfo originalDownloadInfo;
     private final DownloadBatch originalDownloadBatch;
@@ -90,6 +104,25 @@ class DownloadTask implements Runnable {
     private final DownloadReadyChecker downloadReadyChecker;
     private final Clock clock;
     private final DownloadsRepository downloadsRepository;
+    private final HttpConnectionFactory httpConnectionFactory;
+    private final DownloadControlRegistry controlRegistry;
+    private final ProgressAggregator progressAggregator;
+    private final BufferPool bufferPool;
+    private final ChunkSizer chunkSizer;
+    private final StreamStages streamStages;
+    private final DownloadCoalescer coalescer;
+
+    /**
+     * The transfer of this request other downloads can follow, when this download leads it.
+     */
+    private DownloadCoalescer.Transfer leadingTransfer;
+
+    /**
+     * Watches the connection of the transfer in progress, when it can reconnect.
+     */
+    private StallDetector stallDetector;
+
+    private DownloadControlRegistry.Registration controlRegistration;
 
     public DownloadTask(Context context,
                         SystemFacade systemFacade,
@@ -104,7 +137,14 @@ class DownloadTask implements Runnable {
                         NetworkChecker networkChecker,
                         DownloadReadyChecker downloadReadyChecker,
                         Clock clock,
-                        DownloadsRepository downloadsRepository) {
+                        DownloadsRepository downloadsRepository,
+                        HttpConnectionFactory httpConnectionFactory,
+                        DownloadControlRegistry controlRegistry,
+                        ProgressAggregator progressAggregator,
+                        BufferPool bufferPool,
+                        ChunkSizer chunkSizer,
+                        StreamStages streamStages,
+                        DownloadCoalescer coalescer) {
         this.context = context;
         this.systemFacade = systemFacade;
         this.originalDownloadInfo = originalDownloadInfo;
@@ -119,6 +159,13 @@ class DownloadTask implements Runnable {
         this.downloadReadyChecker = downloadReadyChecker;
         this.clock = clock;
         this.downloadsRepository = downloadsRepository;
+        this.httpConnectionFactory = httpConnectionFactory;
+        this.controlRegistry = controlRegistry;
+        this.progressAggregator = progressAggregator;
+        this.bufferPool = bufferPool;
+        this.chunkSizer = chunkSizer;
+        this.streamStages = streamStages;
+        this.coalescer = coalescer;
     }
 
     /**
@@ -144,9 +191,8 @@ class DownloadTask implements Runnable {
         public long totalBytes = UNKNOWN_BYTE_SIZE;
         public long currentBytes = 0;
         public String headerETag;
+        public String headerLastModified;
         public boolean continuingDownload = false;
-        public long bytesNotified = 0;
-        public long timeLastNotification = 0;
         public int networkType = -1; //ConnectivityManager.TYPE_NONE;
 
         /**
@@ -170,12 +216,81 @@ class DownloadTask implements Runnable {
         public URL url;
         public boolean shouldPause;
 
+        public boolean acceptsRanges;
+        public DownloadSegments segments;
+
+        /**
+         * Checksum of the first bytes of the file, when it has to be verified.
+         */
+        public StreamingChecksum checksum;
+
+        /**
+         * Where the extraction of the archive got to, when it is extracted as it downloads.
+         */
+        public ExtractionCheckpoint extractionCheckpoint;
+
+        /**
+         * The file space is reserved for in the {@link StorageManager}, until the download finishes.
+         */
+        public String spaceReservedFor;
+
+        /**
+         * How many times the download reconnected after its connection stalled.
+         */
+        public int reconnectCount;
+
+        /**
+         * A completed download of the same URI whose file becomes the file of this download, should the server
+         * tell it did not change.
+         */
+        public FileDownloadInfo reusableDownload;
+
+        /**
+         * Whether the completed file is kept until the server tells if it is still current. Stays set once it did.
+         */
+        public boolean revalidating;
+
+        /**
+         * The block checksums of the file, when a previous version of it holds some of its blocks.
+         */
+        public DeltaManifest deltaManifest;
+
+        /**
+         * For each block of the {@link #deltaManifest}, where it is in the previous version, if anywhere.
+         */
+        public long[] deltaBlockOffsets;
+
+        /**
+         * The URI of the download and its mirrors, with the one currently serving it.
+         */
+        public DownloadSources sources;
+
+        /**
+         * The source the {@link #headerETag} came from, as mirrors of the same file rarely agree on ETags.
+         */
+        public String eTagSource;
+
+        /**
+         * The source last recorded as serving the download.
+         */
+        public String servedBy;
+
+        public boolean sourcesProbed;
+
         public State(FileDownloadInfo info) {
             mimeType = normalizeMimeType(info.getMimeType());
             requestUri = info.getUri();
             filename = info.getFileName();
             totalBytes = info.getTotalBytes();
             currentBytes = info.getCurrentBytes();
+            reconnectCount = info.getReconnectCount();
+            sources = DownloadSources.from(info.getUri(), info.getMirrors());
+            servedBy = info.getServedBy();
+            if (servedBy != null && sources.getAll().contains(servedBy)) {
+                // Resume from the source the file came from
+                sources.select(sources.getAll().indexOf(servedBy));
+            }
+            eTagSource = sources.getCurrent();
         }
 
         State() {
@@ -188,6 +303,7 @@ class DownloadTask implements Runnable {
             contentDisposition = null;
             contentLocation = null;
             redirectionCount = 0;
+            acceptsRanges = false;
         }
     }
 
@@ -208,10 +324,12 @@ class DownloadTask implements Runnable {
     @Override
     public void run() {
         Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        controlRegistration = controlRegistry.register(originalDownloadInfo.getId(), controlReader);
         try {
             runInternal();
         } finally {
-            downloadNotifier.notifyDownloadSpeed(originalDownloadInfo.getId(), 0);
+            controlRegistry.unregister(originalDownloadInfo.getId(), controlRegistration);
+            progressAggregator.finish(originalDownloadInfo.getId());
         }
     }
 
@@ -271,13 +389,17 @@ class DownloadTask implements Runnable {
 
             try {
                 // TODO: migrate URL sanity checking into client side of API
-                state.url = new URL(state.requestUri);
+                state.url = new URL(currentSourceOf(state));
             } catch (MalformedURLException e) {
                 throw new StopRequestException(DownloadStatus.BAD_REQUEST, e);
             }
 
-            executeDownload(state);
+            if (!reuseCompletedDownload(state) && !copyFromCoalescedTransfer(state)) {
+                executeDownloadReconnectingOnStall(state);
+            }
 
+            verifyChecksum(state);
+            recordContentHash(state);
             finalizeDestinationFile(state);
 
             if (batchHasPausedFiles(originalDownloadBatch.getBatchId())) {
@@ -328,6 +450,8 @@ class DownloadTask implements Runnable {
         } finally {
             TrafficStats.clearThreadStatsTag();
 
+            completeLeadingTransfer(state, finalStatus);
+            releaseSpace(state);
             cleanupDestination(state, finalStatus);
 
             notifyDownloadCompleted(state, finalStatus, errorMsg, numFailed);
@@ -372,6 +496,394 @@ class DownloadTask implements Runnable {
         }
     }
 
+    /**
+     * Follows the transfer of the same request when another download is fetching it already, otherwise leads it.
+     *
+     * @return whether the file was copied from the download leading the transfer, rather than to be fetched
+     */
+    private boolean copyFromCoalescedTransfer(State state) throws StopRequestException {
+        if (!keepsResponseAsReceived(state)) {
+            return false;
+        }
+        DownloadCoalescer.Transfer transfer = coalescer.join(originalDownloadInfo.getId(), originalDownloadInfo.getUri(), originalDownloadInfo.getHeaders());
+        if (transfer.isLedBy(originalDownloadInfo.getId())) {
+            leadingTransfer = transfer;
+            return false;
+        }
+        if (!TextUtils.isEmpty(state.filename) || state.currentBytes > 0) {
+            // Already part way through its own transfer
+            return false;
+        }
+        return followTransfer(state, transfer);
+    }
+
+    /**
+     * Only downloads whose file holds the response as received can share or reuse the file of another.
+     */
+    private boolean keepsResponseAsReceived(State state) {
+        return !originalDownloadInfo.shouldExtractArchive()
+                && !originalDownloadInfo.shouldAllowTarUpdate(state.mimeType)
+                && !usesStreamStages(state)
+                && !DownloadDrmHelper.isDrmConvertNeeded(state.mimeType);
+    }
+
+    /**
+     * Waits for the leading download, then copies its file through the usual writers, so that this download
+     * still gets its own progress, space checks and checksum.
+     *
+     * @return false when the leading download did not succeed or its file is gone, leaving this one to fetch the request
+     */
+    private boolean followTransfer(State state, DownloadCoalescer.Transfer transfer) throws StopRequestException {
+        LLog.i("Download " + originalDownloadInfo.getId() + " waiting for the transfer of the same request");
+        try {
+            while (!transfer.awaitCompletion(Constants.COALESCED_TRANSFER_CHECK_MILLIS)) {
+                checkIsPausedOrCanceled();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StopRequestException(DownloadStatus.UNKNOWN_ERROR, "Interrupted while waiting for the transfer of the same request");
+        }
+        if (transfer.getFilename() == null) {
+            return false;
+        }
+        return adoptFile(
+                state,
+                new File(transfer.getFilename()),
+                transfer.getMimeType(),
+                transfer.getETag(),
+                transfer.getLastModified(),
+                transfer.getContentDisposition(),
+                transfer.getContentLocation(),
+                false
+        );
+    }
+
+    /**
+     * Satisfies the download with the file of a completed download of the same content, found by the expected
+     * checksum, without any request. Otherwise looks for a completed download of the same URI, for the server
+     * to tell whether its file is still current rather than send the body again.
+     *
+     * @return whether the file of a completed download was reused
+     */
+    private boolean reuseCompletedDownload(State state) throws StopRequestException {
+        if (!keepsResponseAsReceived(state) || !TextUtils.isEmpty(state.filename) || state.currentBytes > 0) {
+            return false;
+        }
+        long id = originalDownloadInfo.getId();
+        if (originalDownloadInfo.hasExpectedChecksum()) {
+            String contentHash = StreamingChecksum.contentHash(originalDownloadInfo.getChecksumAlgorithm(), originalDownloadInfo.getExpectedChecksum());
+            for (FileDownloadInfo completedDownload : downloadsRepository.getCompletedDownloadsWithContent(contentHash, id)) {
+                File source = new File(completedDownload.getFileName());
+                if (!keptResponseAsReceived(completedDownload) || source.length() != completedDownload.getTotalBytes()) {
+                    continue;
+                }
+                // The file could have changed since, so it is checked before it is trusted
+                StreamingChecksum checksum = checksumOf(source);
+                if (checksum == null || !checksum.toHex().equalsIgnoreCase(originalDownloadInfo.getExpectedChecksum().trim())) {
+                    continue;
+                }
+                state.checksum = checksum;
+                LLog.i("Download " + id + " has the same content as download " + completedDownload.getId());
+                if (adoptFileOf(state, completedDownload)) {
+                    return true;
+                }
+                state.checksum = null;
+            }
+        }
+        for (FileDownloadInfo completedDownload : downloadsRepository.getCompletedDownloadsOf(originalDownloadInfo.getUri(), id)) {
+            if (keptResponseAsReceived(completedDownload)
+                    && new File(completedDownload.getFileName()).length() == completedDownload.getTotalBytes()) {
+                state.reusableDownload = completedDownload;
+                break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The query already leaves out every other transformation of the file, but not stream stages registered
+     * for the MIME type of the completed download.
+     */
+    private boolean keptResponseAsReceived(FileDownloadInfo completedDownload) {
+        return !streamStages.appliesTo(completedDownload.getStreamStages(), completedDownload.getMimeType());
+    }
+
+    private boolean adoptFileOf(State state, FileDownloadInfo completedDownload) throws StopRequestException {
+        return adoptFile(
+                state,
+                new File(completedDownload.getFileName()),
+                completedDownload.getMimeType(),
+                completedDownload.getETag(),
+                completedDownload.getLastModifiedHeader(),
+                null,
+                null,
+                true
+        );
+    }
+
+    /**
+     * Makes another file the file of this download. A hard link saves the copy when the file can be shared as is,
+     * otherwise it is copied through the usual writers, so that this download still gets its own progress,
+     * space checks and checksum.
+     *
+     * @return false when the file is gone
+     */
+    private boolean adoptFile(State state,
+                              File source,
+                              String mimeType,
+                              String eTag,
+                              String lastModified,
+                              String contentDisposition,
+                              String contentLocation,
+                              boolean linkable) throws StopRequestException {
+        InputStream in;
+        try {
+            in = new FileInputStream(source);
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+
+        FileOutputStream out = null;
+        FileDescriptor outFd = null;
+        try {
+            if (state.mimeType == null) {
+                state.mimeType = mimeType;
+            }
+            state.headerETag = eTag;
+            state.headerLastModified = lastModified;
+            state.contentLength = source.length();
+            state.totalBytes = state.contentLength;
+            state.filename = Helpers.generateSaveFile(
+                    originalDownloadInfo.getUri(),
+                    originalDownloadInfo.getHint(),
+                    contentDisposition,
+                    contentLocation,
+                    state.mimeType,
+                    originalDownloadInfo.getDestination(),
+                    state.contentLength,
+                    storageManager
+            );
+            updateDownloadInfoFieldsFrom(state);
+            downloadsRepository.updateDatabaseFromHeaders(
+                    originalDownloadInfo,
+                    state.filename,
+                    state.headerETag,
+                    state.headerLastModified,
+                    state.mimeType,
+                    state.totalBytes
+            );
+
+            if (linkable && link(source, new File(state.filename))) {
+                LLog.i("Download " + originalDownloadInfo.getId() + " linked " + source + " instead of fetching it again");
+                state.currentBytes = state.contentLength;
+                downloadsRepository.updateDownloadEndOfStream(originalDownloadInfo, state.currentBytes, state.contentLength);
+                return true;
+            }
+            LLog.i("Download " + originalDownloadInfo.getId() + " copying " + source + " instead of fetching it again");
+
+            reserveSpace(state);
+            try {
+                out = new FileOutputStream(state.filename, true);
+                outFd = out.getFD();
+            } catch (IOException e) {
+                throw new StopRequestException(DownloadStatus.FILE_ERROR, e);
+            }
+            prepareChecksum(state);
+            transferData(state, in, out, outFd);
+        } catch (StopRequestException exception) {
+            progressAggregator.finish(originalDownloadInfo.getId());
+            throw controlStopOr(exception);
+        } finally {
+            closeQuietly(in);
+            closeAfterWrite(out, shouldSyncOnClose() ? outFd : null);
+        }
+        return true;
+    }
+
+    /**
+     * @return false when hard links are not available or the files are on different file systems
+     */
+    private static boolean link(File source, File destination) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        // The name was reserved with an empty file
+        if (!destination.delete()) {
+            return false;
+        }
+        try {
+            hardLink(source, destination);
+            return true;
+        } catch (ErrnoException e) {
+            LLog.w("Unable to link " + source + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void hardLink(File source, File destination) throws ErrnoException {
+        Os.link(source.getPath(), destination.getPath());
+    }
+
+    /**
+     * Indexes the verified file by its checksum, for later downloads of the same content to reuse it.
+     */
+    private void recordContentHash(State state) {
+        if (state.checksum == null || !keepsResponseAsReceived(state)) {
+            return;
+        }
+        String contentHash = StreamingChecksum.contentHash(state.checksum.getAlgorithm(), state.checksum.toHex());
+        downloadsRepository.updateContentHash(originalDownloadInfo, contentHash);
+    }
+
+    private void completeLeadingTransfer(State state, int finalStatus) {
+        if (leadingTransfer != null) {
+            coalescer.complete(leadingTransfer, finalStatus == DownloadStatus.SUCCESS ? state : null);
+            leadingTransfer = null;
+        }
+    }
+
+    /**
+     * Executes the download again after its connection stalled, resuming from where it got to with a range request,
+     * rather than waiting on a connection that only trickles.
+     */
+    private void executeDownloadReconnectingOnStall(State state) throws StopRequestException {
+        int reconnects = 0;
+        while (true) {
+            try {
+                executeDownload(state);
+                return;
+            } catch (StalledConnectionException stall) {
+                if (reconnects >= Constants.MAX_STALL_RECONNECTS) {
+                    throw stall;
+                }
+                reconnects++;
+                state.reconnectCount++;
+                downloadsRepository.updateReconnectCount(originalDownloadInfo, state.reconnectCount);
+                LLog.i("Reconnecting download " + originalDownloadInfo.getId() + " after a stall: " + stall.getMessage());
+                if (state.sources.failOver()) {
+                    switchSource(state);
+                }
+            } catch (StopRequestException error) {
+                if (!canFailOver(state, error) || !state.sources.failOver()) {
+                    throw error;
+                }
+                LLog.i("Download " + originalDownloadInfo.getId() + " failed over after: " + error.getMessage());
+                switchSource(state);
+            }
+        }
+    }
+
+    /**
+     * Another source is only tried for errors of the source, and when the download can carry on from where it got to.
+     */
+    private boolean canFailOver(State state, StopRequestException error) {
+        int status = error.getFinalStatus();
+        return status != DownloadStatus.QUEUED_DUE_CLIENT_RESTRICTIONS
+                && isStatusRetryable(status)
+                && (canReconnect(state) || state.currentBytes == 0);
+    }
+
+    private void switchSource(State state) throws StopRequestException {
+        LLog.i("Download " + originalDownloadInfo.getId() + " switching to " + state.sources.getCurrent());
+        try {
+            state.url = new URL(currentSourceOf(state));
+        } catch (MalformedURLException e) {
+            throw new StopRequestException(DownloadStatus.BAD_REQUEST, e);
+        }
+    }
+
+    /**
+     * The primary source is the request URI, which follows permanent redirects.
+     */
+    private static String currentSourceOf(State state) {
+        return state.sources.isPrimary() ? state.requestUri : state.sources.getCurrent();
+    }
+
+    /**
+     * Races the sources to the first byte of the file, rather than favouring the first one listed.
+     * Downloads carrying on from where they got to stay with the source they came from.
+     */
+    private void selectFastestSource(State state) throws StopRequestException {
+        state.sourcesProbed = true;
+        checkConnectivity();
+        final List<String> sources = new ArrayList<>(state.sources.getAll());
+        sources.set(0, state.requestUri);
+        SourceProber prober = new SourceProber(
+                new SourceProber.Probe() {
+                    @Override
+                    public void probe(String source) throws Exception {
+                        probeSource(source);
+                    }
+                }, Constants.SOURCE_PROBE_TIMEOUT_MILLIS
+        );
+        int fastest;
+        try {
+            fastest = prober.fastest(sources);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StopRequestException(HTTP_DATA_ERROR, e);
+        }
+        if (fastest == SourceProber.NONE) {
+            LLog.w("No source of download " + originalDownloadInfo.getId() + " answered in time, trying them in order");
+            return;
+        }
+        state.sources.select(fastest);
+        switchSource(state);
+    }
+
+    /**
+     * Asks for the first byte only, so that the time it takes is the time to first byte of the source.
+     * The connection is released rather than closed, for the download to carry on over it.
+     */
+    private void probeSource(String source) throws IOException {
+        HttpURLConnection conn = null;
+        int responseCode = IOHelpers.NO_RESPONSE;
+        try {
+            conn = httpConnectionFactory.openConnection(new URL(source));
+            conn.setInstanceFollowRedirects(true);
+            conn.setConnectTimeout((int) Constants.SOURCE_PROBE_TIMEOUT_MILLIS);
+            conn.setReadTimeout((int) Constants.SOURCE_PROBE_TIMEOUT_MILLIS);
+            addCustomRequestHeaders(conn);
+            conn.addRequestProperty("Range", "bytes=0-0");
+
+            responseCode = conn.getResponseCode();
+            if (responseCode != HTTP_OK && responseCode != HTTP_PARTIAL) {
+                throw new IOException("HTTP " + responseCode + " from " + source);
+            }
+        } finally {
+            if (conn != null) {
+                IOHelpers.releaseConnection(conn, responseCode);
+            }
+        }
+    }
+
+    private void recordServedBy(State state) {
+        String source = state.sources.getCurrent();
+        if (state.sources.hasMirrors() && !source.equals(state.servedBy)) {
+            state.servedBy = source;
+            downloadsRepository.updateServedBy(originalDownloadInfo, source);
+        }
+    }
+
+    /**
+     * An ETag only guards a resume against the source it came from.
+     */
+    private static boolean hasETagOfCurrentSource(State state) {
+        return state.headerETag != null && state.sources.getCurrent().equals(state.eTagSource);
+    }
+
+    /**
+     * Only downloads resuming from the length of their file can reconnect; the others would start again.
+     */
+    private boolean canReconnect(State state) {
+        return originalDownloadInfo.isResumable()
+                && !originalDownloadInfo.shouldExtractArchive()
+                && !originalDownloadInfo.shouldAllowTarUpdate(state.mimeType)
+                && !usesStreamStages(state)
+                && !DownloadDrmHelper.isDrmConvertNeeded(state.mimeType);
+    }
+
     /**
      * Fully execute a single download request. Setup and send the request,
      * handle the response, and transfer the data to the destination file.
@@ -385,48 +897,92 @@ class DownloadTask implements Runnable {
         }
 
         // skip when already finished; remove after fixing race in 5217390
-        if (downloadAlreadyFinished(state)) {
+        // A revalidating download is complete by definition, yet still has to ask the server
+        if (!state.revalidating && downloadAlreadyFinished(state)) {
             LLog.i("Skipping initiating request for download " + originalDownloadInfo.getId() + "; already completed");
             return;
         }
 
+        if (state.segments != null) {
+            LLog.i("Resuming segmented download " + originalDownloadInfo.getId());
+            checkConnectivity();
+            transferSegments(state, null);
+            return;
+        }
+
+        if (shouldPrepareDelta(state)) {
+            prepareDelta(state);
+        }
+
+        if (state.sources.hasMirrors() && !state.sourcesProbed && !state.continuingDownload) {
+            selectFastestSource(state);
+        }
+
         while (state.redirectionCount++ < Constants.MAX_REDIRECTS) {
             // Open connection and follow any redirects until we have a useful
             // response with body.
             HttpURLConnection conn = null;
+            int responseCode = IOHelpers.NO_RESPONSE;
             try {
                 checkConnectivity();
-                conn = (HttpURLConnection) state.url.openConnection();
+                conn = httpConnectionFactory.openConnection(state.url);
                 conn.setInstanceFollowRedirects(false);
                 conn.setConnectTimeout(DEFAULT_TIMEOUT);
                 conn.setReadTimeout(DEFAULT_TIMEOUT);
 
                 addRequestHeaders(state, conn);
 
-                final int responseCode = conn.getResponseCode();
+                responseCode = conn.getResponseCode();
                 switch (responseCode) {
                     case HTTP_OK:
                         if (state.continuingDownload) {
                             throw new StopRequestException(DownloadStatus.CANNOT_RESUME, "Expected partial, but received OK");
                         }
+                        if (state.revalidating) {
+                            LLog.i("Download " + originalDownloadInfo.getId() + " changed, downloading it again");
+                            discardCompletedFile(state);
+                        }
                         processResponseHeaders(state, conn);
-                        transferData(state, conn);
+                        recordServedBy(state);
+                        if (canUpdateByDelta(state)) {
+                            transferDelta(state, conn);
+                        } else if (shouldSegment(state)) {
+                            transferSegments(state, conn);
+                        } else {
+                            transferData(state, conn);
+                        }
                         return;
 
                     case HTTP_PARTIAL:
                         if (!state.continuingDownload) {
                             throw new StopRequestException(DownloadStatus.CANNOT_RESUME, "Expected OK, but received partial");
                         }
+                        recordServedBy(state);
                         transferData(state, conn);
                         return;
 
+                    case HTTP_NOT_MODIFIED:
+                        if (state.revalidating) {
+                            keepCompletedFile(state);
+                            return;
+                        }
+                        if (state.reusableDownload == null) {
+                            StopRequestException.throwUnhandledHttpError(responseCode, conn.getResponseMessage());
+                        }
+                        if (adoptFileOf(state, state.reusableDownload)) {
+                            return;
+                        }
+                        // The file the server validated is gone, so ask for the body this time
+                        state.reusableDownload = null;
+                        continue;
+
                     case HTTP_MOVED_PERM:
                     case HTTP_MOVED_TEMP:
                     case HTTP_SEE_OTHER:
                     case HTTP_TEMP_REDIRECT:
                         final String location = conn.getHeaderField("Location");
                         state.url = new URL(state.url, location);
-                        if (responseCode == HTTP_MOVED_PERM) {
+                        if (responseCode == HTTP_MOVED_PERM && state.sources.isPrimary()) {
                             // Push updated URL back to database
                             state.requestUri = state.url.toString();
                         }
@@ -456,7 +1012,7 @@ class DownloadTask implements Runnable {
 
             } finally {
                 if (conn != null) {
-                    conn.disconnect();
+                    IOHelpers.releaseConnection(conn, responseCode);
                 }
             }
         }
@@ -466,22 +1022,23 @@ class DownloadTask implements Runnable {
 
     /**
      * Check if the download has been paused or canceled, stopping the request appropriately if it
-     * has been.
+     * has been. Control requests are pushed through the {@link DownloadControlRegistry}, so they are
+     * checked on every chunk, while the client rules are still only asked once per second.
      */
     private void checkDownloadCanProceed() throws StopRequestException {
+        checkIsPausedOrCanceled();
+
         if (clock.intervalLessThan(Clock.Interval.ONE_SECOND)) {
             return;
         }
 
         clock.startInterval();
 
-        checkIsPausedOrCanceled();
-
         checkClientRules();
     }
 
     private void checkIsPausedOrCanceled() throws StopRequestException {
-        FileDownloadInfo.ControlStatus controlStatus = controlReader.newControlStatus();
+        FileDownloadInfo.ControlStatus controlStatus = controlRegistration.getControlStatus();
 
         if (controlStatus.isPaused()) {
             throw new StopRequestException(DownloadStatus.PAUSED_BY_APP, "download paused by owner");
@@ -489,6 +1046,24 @@ class DownloadTask implements Runnable {
         if (controlStatus.isCanceled()) {
             throw new StopRequestException(DownloadStatus.CANCELED, "download canceled");
         }
+        if (controlStatus.isBatchFailed()) {
+            throw new StopRequestException(DownloadStatus.BATCH_FAILED, "another download of the batch failed");
+        }
+        if (controlStatus.isDeleted()) {
+            throw new StopRequestException(DownloadStatus.CANCELED, "download deleted");
+        }
+    }
+
+    /**
+     * A read aborted by a pause or cancel fails like a dropped connection, so the request to stop takes precedence.
+     */
+    private StopRequestException controlStopOr(StopRequestException exception) {
+        try {
+            checkIsPausedOrCanceled();
+            return exception;
+        } catch (StopRequestException controlStop) {
+            return controlStop;
+        }
     }
 
     private void checkClientRules() throws StopRequestException {
@@ -515,6 +1090,15 @@ class DownloadTask implements Runnable {
             } catch (IOException e) {
                 throw new StopRequestException(HTTP_DATA_ERROR, e);
             }
+            controlRegistration.abortOnStop(in);
+            stallDetector = canReconnect(state) ? new StallDetector(Constants.STALL_SPEED_RATIO, Constants.STALL_WINDOW_MILLIS) : null;
+
+            if (originalDownloadInfo.shouldExtractArchive()) {
+                extractArchive(state, in);
+                return;
+            }
+
+            reserveSpace(state);
 
             try {
                 if (DownloadDrmHelper.isDrmConvertNeeded(state.mimeType)) {
@@ -526,14 +1110,24 @@ class DownloadTask implements Runnable {
                 } else {
                     out = new FileOutputStream(state.filename, true);
                     outFd = ((FileOutputStream) out).getFD();
+                    if (originalDownloadInfo.shouldWriteBehind() && !originalDownloadInfo.shouldUseChannelTransfer()) {
+                        out = new WriteBehindOutputStream(
+                                out,
+                                bufferPool,
+                                Constants.WRITE_BEHIND_BUFFER_SIZE,
+                                Constants.WRITE_BEHIND_BUFFER_COUNT
+                        );
+                    }
                 }
             } catch (IOException e) {
                 throw new StopRequestException(DownloadStatus.FILE_ERROR, e);
             }
 
+            prepareChecksum(state);
+
             // Start streaming data, periodically watch for pause/cancel
             // commands and checking disk space as needed.
-            transferData(state, in, out);
+            transferData(state, in, out, outFd);
 
 //            try {
 //                if (out instanceof DrmOutputStream) {
@@ -544,21 +1138,327 @@ class DownloadTask implements Runnable {
 //            }
 
         } catch (StopRequestException exception) {
-            if (exception.getFinalStatus() == DownloadStatus.PAUSED_BY_APP) {
-                notifyThroughDatabase(state, DownloadStatus.PAUSING, exception.getMessage(), 0);
+            progressAggregator.finish(originalDownloadInfo.getId());
+            if (state.checksum != null) {
+                downloadsRepository.updateChecksumState(originalDownloadInfo, state.checksum);
+            }
+            if (state.extractionCheckpoint != null) {
+                downloadsRepository.updateExtractionCheckpoint(originalDownloadInfo, state.extractionCheckpoint);
+            }
+            StopRequestException stop = controlStopOr(exception);
+            if (stop.getFinalStatus() == DownloadStatus.PAUSED_BY_APP) {
+                notifyThroughDatabase(state, DownloadStatus.PAUSING, stop.getMessage(), 0);
             }
             // We still have to throw the exception, otherwise the parent
             // thinks that the download has been completed OK, when is not
             // We should remove exceptions as a flow control in order to avoid this
-            throw exception;
+            throw stop;
         } finally {
 //            if (drmClient != null) {
 //                drmClient.release();
 //            }
 
+            if (in != null) {
+                controlRegistration.forget(in);
+            }
+            closeQuietly(in);
+
+            stallDetector = null;
+
+            boolean synced = closeAfterWrite(out, shouldSyncOnClose() ? outFd : null);
+            if (synced && out != null && originalDownloadInfo.getDurability() == Request.DURABILITY_PERIODIC) {
+                recordDurableBytes(new File(state.filename).length());
+            }
+        }
+    }
+
+    private boolean shouldPrepareDelta(State state) {
+        return originalDownloadInfo.getDeltaManifestUri() != null
+                && originalDownloadInfo.getDeltaSeed() != null
+                && state.deltaManifest == null
+                && TextUtils.isEmpty(state.filename)
+                && keepsResponseAsReceived(state);
+    }
+
+    /**
+     * Fetches the block manifest of the file and finds which of its blocks the previous version already holds.
+     * The whole file is downloaded when either of them cannot be used.
+     */
+    private void prepareDelta(State state) throws StopRequestException {
+        File previousVersion = new File(originalDownloadInfo.getDeltaSeed());
+        if (!previousVersion.isFile()) {
+            LLog.i("Download " + originalDownloadInfo.getId() + " has no previous version at " + previousVersion + ", downloading all of it");
+            return;
+        }
+        DeltaManifest manifest = fetchDeltaManifest();
+        if (manifest == null) {
+            return;
+        }
+
+        InputStream in = null;
+        try {
+            in = new FileInputStream(previousVersion);
+            controlRegistration.abortOnStop(in);
+            state.deltaBlockOffsets = new BlockMatcher(manifest).match(in);
+            state.deltaManifest = manifest;
+        } catch (IOException e) {
+            checkIsPausedOrCanceled();
+            LLog.w("Unable to read the previous version " + previousVersion + ": " + e.getMessage());
+        } finally {
+            if (in != null) {
+                controlRegistration.forget(in);
+            }
             closeQuietly(in);
+        }
+    }
+
+    /**
+     * @return the manifest, or null when it is unavailable or malformed
+     */
+    private DeltaManifest fetchDeltaManifest() throws StopRequestException {
+        HttpURLConnection conn = null;
+        InputStream in = null;
+        int responseCode = IOHelpers.NO_RESPONSE;
+        try {
+            checkConnectivity();
+            conn = httpConnectionFactory.openConnection(new URL(originalDownloadInfo.getDeltaManifestUri()));
+            conn.setConnectTimeout(DEFAULT_TIMEOUT);
+            conn.setReadTimeout(DEFAULT_TIMEOUT);
+            addCustomRequestHeaders(conn);
+
+            responseCode = conn.getResponseCode();
+            if (responseCode != HTTP_OK) {
+                LLog.w("Delta manifest of download " + originalDownloadInfo.getId() + " unavailable: " + responseCode);
+                return null;
+            }
+            in = conn.getInputStream();
+            return DeltaManifest.parse(in);
+        } catch (IOException e) {
+            LLog.w("Unable to fetch the delta manifest of download " + originalDownloadInfo.getId() + ": " + e.getMessage());
+            return null;
+        } finally {
+            closeQuietly(in);
+            if (conn != null) {
+                IOHelpers.releaseConnection(conn, responseCode);
+            }
+        }
+    }
+
+    /**
+     * The manifest has to describe the file the server sends, and the blocks missing locally have to be fetched by range.
+     */
+    private boolean canUpdateByDelta(State state) {
+        if (state.deltaManifest == null) {
+            return false;
+        }
+        if (state.contentLength != state.deltaManifest.getLength() || state.contentLength <= 0 || !state.acceptsRanges) {
+            LLog.w("Delta manifest of download " + originalDownloadInfo.getId() + " does not fit the response, downloading all of it");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Copies the blocks the previous version holds into the file, then fetches the others through range requests.
+     * These go through the segmented download, which resumes them like any other segments. The copied bytes count
+     * towards the progress from the start, so only the fetched ones show as transferred.
+     */
+    private void transferDelta(State state, HttpURLConnection conn) throws StopRequestException {
+        DeltaManifest manifest = state.deltaManifest;
+        state.segments = DownloadSegments.forDelta(manifest, state.deltaBlockOffsets);
+
+        RandomAccessFile file = null;
+        RandomAccessFile previousVersion = null;
+        try {
+            file = new RandomAccessFile(state.filename, "rw");
+            reserveSpace(state);
+            preallocate(state, file, manifest.getLength());
+            // Recorded before any copy, so that an interruption fetches the blocks rather than trusts a partial copy
+            downloadsRepository.updateDownloadSegments(originalDownloadInfo, state.segments);
+
+            previousVersion = new RandomAccessFile(originalDownloadInfo.getDeltaSeed(), "r");
+            copyMatchingBlocks(state, manifest, previousVersion, file);
+            file.getFD().sync();
+        } catch (IOException e) {
+            throw new StopRequestException(DownloadStatus.FILE_ERROR, e);
+        } finally {
+            closeQuietly(previousVersion);
+            closeQuietly(file);
+        }
+
+        state.currentBytes = state.segments.getDownloadedBytes();
+        downloadsRepository.updateReusedBytes(originalDownloadInfo, state.currentBytes);
+        LLog.i("Download " + originalDownloadInfo.getId() + " reused " + state.currentBytes + " of " + manifest.getLength() + " bytes");
+        transferSegments(state, conn);
+    }
 
-            closeAfterWrite(out, outFd);
+    /**
+     * Each block is checked against the manifest once copied, as the previous version could have changed since it was
+     * matched. A run of blocks is only copied up to its first block that does not match, the rest of it is fetched.
+     */
+    private void copyMatchingBlocks(State state,
+                                    DeltaManifest manifest,
+                                    RandomAccessFile previousVersion,
+                                    RandomAccessFile file) throws IOException, StopRequestException {
+        byte[] buffer = new byte[manifest.getBlockSize()];
+        for (DownloadSegments.Segment segment : state.segments.getSegments()) {
+            int block = (int) (segment.getStart() / manifest.getBlockSize());
+            while (!segment.isComplete() && state.deltaBlockOffsets[block] != BlockMatcher.NOT_FOUND) {
+                checkDownloadCanProceed();
+                int length = manifest.getBlockLength(block);
+                previousVersion.seek(state.deltaBlockOffsets[block]);
+                try {
+                    previousVersion.readFully(buffer, 0, length);
+                } catch (EOFException e) {
+                    break;
+                }
+                if (!BlockMatcher.strongChecksum(buffer, 0, length).equals(manifest.getStrongChecksum(block))) {
+                    break;
+                }
+                file.seek(segment.getNextPosition());
+                file.write(buffer, 0, length);
+                segment.advance(length);
+                block++;
+            }
+        }
+    }
+
+    private boolean shouldSegment(State state) {
+        return originalDownloadInfo.getMaxSegments() > 1
+                && state.acceptsRanges
+                && state.contentLength >= 2 * Constants.MIN_SEGMENT_SIZE
+                && !originalDownloadInfo.shouldAllowTarUpdate(state.mimeType)
+                && !originalDownloadInfo.shouldExtractArchive()
+                && !usesStreamStages(state)
+                && !DownloadDrmHelper.isDrmConvertNeeded(state.mimeType);
+    }
+
+    /**
+     * Transfer data over parallel ranged requests into a file allocated up front. When given a connection,
+     * its response body is used for the first range instead of opening a new one.
+     */
+    private void transferSegments(State state, HttpURLConnection firstSegmentConnection) throws StopRequestException {
+        if (state.segments == null) {
+            int numberOfSegments = (int) Math.min(originalDownloadInfo.getMaxSegments(), state.contentLength / Constants.MIN_SEGMENT_SIZE);
+            state.segments = DownloadSegments.split(state.contentLength, numberOfSegments);
+        }
+
+        RandomAccessFile file = null;
+        InputStream firstSegmentStream = null;
+        try {
+            try {
+                file = new RandomAccessFile(state.filename, "rw");
+                reserveSpace(state);
+                if (file.length() < state.segments.getTotalBytes()) {
+                    preallocate(state, file, state.segments.getTotalBytes());
+                } else {
+                    // Whether an earlier attempt allocated its blocks is unknown, so it is counted as sparse
+                    trackSparseFile(state);
+                }
+            } catch (IOException e) {
+                throw new StopRequestException(DownloadStatus.FILE_ERROR, e);
+            }
+
+            if (firstSegmentConnection != null) {
+                try {
+                    firstSegmentStream = firstSegmentConnection.getInputStream();
+                } catch (IOException e) {
+                    throw new StopRequestException(HTTP_DATA_ERROR, e);
+                }
+                controlRegistration.abortOnStop(firstSegmentStream);
+            }
+
+            downloadsRepository.updateDownloadSegments(originalDownloadInfo, state.segments);
+
+            SegmentedDownloader segmentedDownloader = new SegmentedDownloader(
+                    state.segments,
+                    file.getChannel(),
+                    rangeRequesterFor(state),
+                    new StorageSpaceVerifier(storageManager, originalDownloadInfo.getDestination(), state.filename),
+                    newProgressWriter(new CountingWriter()),
+                    checkpointSegments,
+                    bufferPool,
+                    Math.max(1, originalDownloadInfo.getMaxSegments())
+            );
+            State newState = segmentedDownloader.download(state, firstSegmentStream);
+            progressAggregator.finish(originalDownloadInfo.getId());
+
+            downloadsRepository.clearDownloadSegments(originalDownloadInfo);
+            handleEndOfStream(newState);
+        } catch (StopRequestException exception) {
+            progressAggregator.finish(originalDownloadInfo.getId());
+            StopRequestException stop = controlStopOr(exception);
+            if (stop.getFinalStatus() == DownloadStatus.PAUSED_BY_APP) {
+                notifyThroughDatabase(state, DownloadStatus.PAUSING, stop.getMessage(), 0);
+            }
+            throw stop;
+        } finally {
+            if (firstSegmentStream != null) {
+                controlRegistration.forget(firstSegmentStream);
+            }
+            closeQuietly(firstSegmentStream);
+            closeQuietly(file);
+        }
+    }
+
+    private final SegmentedDownloader.CheckpointListener checkpointSegments = new SegmentedDownloader.CheckpointListener() {
+        @Override
+        public void onCheckpoint(DownloadSegments segments) {
+            downloadsRepository.updateDownloadSegments(originalDownloadInfo, segments);
+        }
+    };
+
+    private SegmentedDownloader.RangeRequester rangeRequesterFor(final State state) {
+        return new SegmentedDownloader.RangeRequester() {
+            @Override
+            public InputStream openRange(long start, long end) throws StopRequestException {
+                return openRangeStream(state, start, end);
+            }
+        };
+    }
+
+    /**
+     * Request a single inclusive byte range of the download, guarded by the ETag when we have one.
+     */
+    private InputStream openRangeStream(State state, long start, long end) throws StopRequestException {
+        HttpURLConnection conn = null;
+        InputStream in = null;
+        int responseCode = IOHelpers.NO_RESPONSE;
+        try {
+            conn = httpConnectionFactory.openConnection(state.url);
+            conn.setConnectTimeout(DEFAULT_TIMEOUT);
+            conn.setReadTimeout(DEFAULT_TIMEOUT);
+
+            addCustomRequestHeaders(conn);
+            if (hasETagOfCurrentSource(state)) {
+                conn.addRequestProperty("If-Match", state.headerETag);
+            }
+            conn.addRequestProperty("Range", "bytes=" + start + "-" + end);
+
+            responseCode = conn.getResponseCode();
+            switch (responseCode) {
+                case HTTP_PARTIAL:
+                    in = conn.getInputStream();
+                    controlRegistration.abortOnStop(in);
+                    return in;
+
+                case HTTP_OK:
+                    throw new StopRequestException(DownloadStatus.CANNOT_RESUME, "Expected partial, but received OK");
+
+                case HTTP_REQUESTED_RANGE_NOT_SATISFIABLE:
+                    throw new StopRequestException(DownloadStatus.CANNOT_RESUME, "Requested range not satisfiable");
+
+                default:
+                    throw StopRequestException.throwUnhandledHttpError(responseCode, conn.getResponseMessage());
+            }
+        } catch (UnknownHostException e) {
+            throw new StopRequestException(HTTP_NOT_FOUND, e);
+        } catch (IOException e) {
+            throw new StopRequestException(HTTP_DATA_ERROR, e);
+        } finally {
+            if (in == null && conn != null) {
+                IOHelpers.releaseConnection(conn, responseCode);
+            }
         }
     }
 
@@ -595,35 +1495,263 @@ class DownloadTask implements Runnable {
      * Transfer as much data as possible from the HTTP response to the
      * destination file.
      */
-    private void transferData(State state, InputStream in, OutputStream out) throws StopRequestException {
+    private void transferData(State state, InputStream in, OutputStream out, FileDescriptor outFd) throws StopRequestException {
         StorageSpaceVerifier spaceVerifier = new StorageSpaceVerifier(storageManager, originalDownloadInfo.getDestination(), state.filename);
-        DataWriter checkedWriter = new CheckedWriter(spaceVerifier, out);
-        DataWriter dataWriter = new NotifierWriter(
-                getContentResolver(),
-                checkedWriter,
-                downloadNotifier,
-                originalDownloadInfo,
-                checkOnWrite
-        );
+        OutputStream stagesIn = openStreamStages(state, out);
+        try {
+            DataWriter checkedWriter = new CheckedWriter(spaceVerifier, stagesIn);
+            if (state.checksum != null) {
+                checkedWriter = new ChecksumWriter(checkedWriter, state.checksum);
+            }
+            DataWriter dataWriter = newProgressWriter(syncingPeriodically(state, checkedWriter, out, outFd));
+
+            DataTransferer dataTransferer;
+            if (originalDownloadInfo.shouldAllowTarUpdate(state.mimeType)) {
+                dataTransferer = new TarTruncator(dataWriter, bufferPool);
+            } else if (originalDownloadInfo.shouldUseChannelTransfer() && stagesIn instanceof FileOutputStream) {
+                FileChannel destination = ((FileOutputStream) stagesIn).getChannel();
+                DataWriter progressWriter = newProgressWriter(syncingPeriodically(state, new CountingWriter(), out, outFd));
+                dataTransferer = new ChannelDataTransferer(destination, spaceVerifier, progressWriter, bufferPool);
+            } else {
+                dataTransferer = new RegularDataTransferer(dataWriter, bufferPool, chunkSizer);
+            }
 
-        DataTransferer dataTransferer;
-        if (originalDownloadInfo.shouldAllowTarUpdate(state.mimeType)) {
-            dataTransferer = new TarTruncator(dataWriter);
-        } else {
-            dataTransferer = new RegularDataTransferer(dataWriter);
+            State newState = dataTransferer.transferData(state, in);
+            finishStreamStages(stagesIn, out, spaceVerifier);
+            flushWrites(out, spaceVerifier);
+            progressAggregator.finish(originalDownloadInfo.getId());
+            checkIsPausedOrCanceled();
+            handleEndOfStream(newState);
+        } finally {
+            if (stagesIn != out) {
+                closeQuietly(stagesIn);
+            }
+        }
+    }
+
+    private boolean shouldSyncOnClose() {
+        return originalDownloadInfo.getDurability() != Request.DURABILITY_NONE;
+    }
+
+    /**
+     * Downloads going through stream stages start again from the beginning anyway, so they are not synced periodically.
+     */
+    private DataWriter syncingPeriodically(State state, DataWriter dataWriter, OutputStream out, FileDescriptor outFd) {
+        if (originalDownloadInfo.getDurability() != Request.DURABILITY_PERIODIC || outFd == null || usesStreamStages(state)) {
+            return dataWriter;
+        }
+        return new SyncingWriter(dataWriter, out, outFd, Constants.DURABILITY_SYNC_INTERVAL_BYTES, new SyncingWriter.SyncListener() {
+            @Override
+            public void onSynced(long durableBytes) {
+                recordDurableBytes(durableBytes);
+            }
+        });
+    }
+
+    private void recordDurableBytes(long durableBytes) {
+        originalDownloadInfo.setDurableBytes(durableBytes);
+        downloadsRepository.updateDurableBytes(originalDownloadInfo, durableBytes);
+    }
+
+    private boolean usesStreamStages(State state) {
+        return streamStages.appliesTo(originalDownloadInfo.getStreamStages(), state.mimeType);
+    }
+
+    private OutputStream openStreamStages(State state, OutputStream out) throws StopRequestException {
+        List<StreamStage> stages = streamStages.stagesFor(originalDownloadInfo.getStreamStages(), state.mimeType);
+        try {
+            return StreamStages.open(stages, out);
+        } catch (IOException e) {
+            throw new StopRequestException(DownloadStatus.FILE_ERROR, e);
+        }
+    }
+
+    /**
+     * Closing the stages writes out what they still hold, such as the end of a decompressed stream.
+     */
+    private static void finishStreamStages(OutputStream stagesIn, OutputStream out, SpaceVerifier spaceVerifier) throws StopRequestException {
+        if (stagesIn == out) {
+            return;
         }
+        try {
+            stagesIn.close();
+        } catch (IOException e) {
+            spaceVerifier.verifySpace(Constants.BUFFER_SIZE);
+            throw new StopRequestException(DownloadStatus.FILE_ERROR, "Failed to finish stream stages: " + e);
+        }
+    }
+
+    /**
+     * Unpack the archive from the HTTP response into the extraction directory, instead of writing it to the
+     * destination file. Where the extraction got to is saved as it goes, so that it can resume from there.
+     */
+    private void extractArchive(final State state, InputStream in) throws StopRequestException {
+        File directory = new File(originalDownloadInfo.getExtractDirectory());
+        StorageSpaceVerifier spaceVerifier = new StorageSpaceVerifier(storageManager, originalDownloadInfo.getDestination(), directory.getPath());
+        ArchiveExtractor.ExtractionListener saveCheckpoints = new ArchiveExtractor.ExtractionListener() {
+            private long lastSaveTime = SystemClock.elapsedRealtime();
+
+            @Override
+            public void onEntryExtracted(ExtractionCheckpoint checkpoint) {
+                state.extractionCheckpoint = checkpoint;
+                long now = SystemClock.elapsedRealtime();
+                if (now - lastSaveTime > Constants.MIN_PROGRESS_TIME) {
+                    downloadsRepository.updateExtractionCheckpoint(originalDownloadInfo, checkpoint);
+                    lastSaveTime = now;
+                }
+            }
+        };
+        DataTransferer extractor = new ArchiveExtractor(
+                directory,
+                state.extractionCheckpoint,
+                spaceVerifier,
+                bufferPool,
+                newProgressWriter(new CountingWriter()),
+                saveCheckpoints
+        );
 
-        State newState = dataTransferer.transferData(state, in);
+        State newState = extractor.transferData(state, in);
+        progressAggregator.finish(originalDownloadInfo.getId());
+        if (state.extractionCheckpoint != null) {
+            downloadsRepository.updateExtractionCheckpoint(originalDownloadInfo, state.extractionCheckpoint);
+        }
+        checkIsPausedOrCanceled();
         handleEndOfStream(newState);
     }
 
+    /**
+     * Makes sure that what was counted as written did reach the file, as writes may still be pending when writing behind.
+     */
+    private static void flushWrites(OutputStream out, SpaceVerifier spaceVerifier) throws StopRequestException {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            spaceVerifier.verifySpace(Constants.WRITE_BEHIND_BUFFER_SIZE);
+            throw new StopRequestException(DownloadStatus.FILE_ERROR, "Failed to write data: " + e);
+        }
+    }
+
+    private DataWriter newProgressWriter(DataWriter dataWriter) {
+        return new NotifierWriter(
+                progressAggregator,
+                dataWriter,
+                originalDownloadInfo,
+                checkOnWrite
+        );
+    }
+
     private final NotifierWriter.WriteChunkListener checkOnWrite = new NotifierWriter.WriteChunkListener() {
         @Override
         public void chunkWritten(FileDownloadInfo downloadInfo) throws StopRequestException {
             checkDownloadCanProceed();
+            checkNotStalled();
+        }
+
+        @Override
+        public void speedSampled(long now, long bytesPerSecond) {
+            if (stallDetector != null) {
+                stallDetector.onSpeedSample(now, bytesPerSecond);
+            }
         }
     };
 
+    private void checkNotStalled() throws StopRequestException {
+        if (stallDetector != null && stallDetector.isStalled()) {
+            throw new StalledConnectionException(
+                    "connection stalled below " + (long) (stallDetector.getReferenceSpeed() * Constants.STALL_SPEED_RATIO) + " bytes/s"
+            );
+        }
+    }
+
+    /**
+     * Brings the checksum up to the bytes already in the file, from its saved state when it can, before more data
+     * streams through it.
+     */
+    private void prepareChecksum(State state) throws StopRequestException {
+        if (!originalDownloadInfo.hasExpectedChecksum()) {
+            return;
+        }
+        checksumUpTo(state, state.currentBytes);
+    }
+
+    /**
+     * Checks the complete file against its expected checksum. Only the bytes that did not stream through the
+     * checksum, as with segmented downloads, are read back from the file.
+     */
+    private void verifyChecksum(State state) throws StopRequestException {
+        if (!originalDownloadInfo.hasExpectedChecksum() || originalDownloadInfo.shouldExtractArchive() || state.filename == null) {
+            return;
+        }
+        if (state.revalidating) {
+            // The server confirmed the file that was verified when it completed
+            return;
+        }
+        String expectedChecksum = originalDownloadInfo.getExpectedChecksum();
+        // With stream stages the file holds the processed data, while the checksum covers what was received
+        long checksumLength = usesStreamStages(state) ? state.currentBytes : new File(state.filename).length();
+        checksumUpTo(state, checksumLength);
+        String checksum = state.checksum.toHex();
+        if (!checksum.equalsIgnoreCase(expectedChecksum.trim())) {
+            throw new StopRequestException(
+                    DownloadStatus.CHECKSUM_MISMATCH,
+                    state.checksum.getAlgorithm() + " checksum " + checksum + " does not match " + expectedChecksum
+            );
+        }
+    }
+
+    private void checksumUpTo(State state, long length) throws StopRequestException {
+        String algorithm = originalDownloadInfo.getChecksumAlgorithm();
+        if (state.checksum == null) {
+            state.checksum = StreamingChecksum.fromState(algorithm, originalDownloadInfo.getChecksumState());
+        }
+        if (state.checksum == null || state.checksum.getLength() > length) {
+            state.checksum = StreamingChecksum.newInstance(algorithm);
+        }
+        if (state.checksum.getLength() == length) {
+            return;
+        }
+
+        try {
+            hashFile(state.checksum, new File(state.filename), length);
+        } catch (IOException e) {
+            throw new StopRequestException(DownloadStatus.FILE_ERROR, e);
+        }
+    }
+
+    /**
+     * @return the checksum of the whole file, with the algorithm this download expects, or null when it cannot be read
+     */
+    private StreamingChecksum checksumOf(File file) {
+        StreamingChecksum checksum = StreamingChecksum.newInstance(originalDownloadInfo.getChecksumAlgorithm());
+        try {
+            hashFile(checksum, file, file.length());
+            return checksum;
+        } catch (IOException e) {
+            LLog.w("Unable to checksum " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void hashFile(StreamingChecksum checksum, File file, long length) throws IOException {
+        RandomAccessFile randomAccessFile = null;
+        byte[] buffer = bufferPool.lease(Constants.BUFFER_SIZE);
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            randomAccessFile.seek(checksum.getLength());
+            while (checksum.getLength() < length) {
+                int count = (int) Math.min(buffer.length, length - checksum.getLength());
+                int read = randomAccessFile.read(buffer, 0, count);
+                if (read == Constants.NO_BYTES_READ) {
+                    throw new IOException("File shorter than expected while checksumming");
+                }
+                checksum.update(buffer, 0, read);
+            }
+        } finally {
+            bufferPool.release(buffer);
+            closeQuietly(randomAccessFile);
+        }
+    }
+
     /**
      * Called after a successful completion to take any necessary action on the downloaded file.
      */
@@ -690,6 +1818,7 @@ class DownloadTask implements Runnable {
         // TODO: fallocate the entire file if header gave us specific length
 
         readResponseHeaders(state, conn);
+        state.eTagSource = state.sources.getCurrent();
 
         state.filename = Helpers.generateSaveFile(
                 originalDownloadInfo.getUri(),
@@ -703,13 +1832,21 @@ class DownloadTask implements Runnable {
         );
 
         updateDownloadInfoFieldsFrom(state);
-        downloadsRepository.updateDatabaseFromHeaders(originalDownloadInfo, state.filename, state.headerETag, state.mimeType, state.totalBytes);
+        downloadsRepository.updateDatabaseFromHeaders(
+                originalDownloadInfo,
+                state.filename,
+                state.headerETag,
+                state.headerLastModified,
+                state.mimeType,
+                state.totalBytes
+        );
         // check connectivity again now that we know the total size
         checkConnectivity();
     }
 
     private void updateDownloadInfoFieldsFrom(State state) {
         originalDownloadInfo.setETag(state.headerETag);
+        originalDownloadInfo.setTotalBytes(state.totalBytes);
         originalDownloadInfo.setMimeType(state.mimeType);
     }
 
@@ -725,6 +1862,8 @@ class DownloadTask implements Runnable {
         }
 
         state.headerETag = conn.getHeaderField("ETag");
+        state.headerLastModified = conn.getHeaderField("Last-Modified");
+        state.acceptsRanges = "bytes".equalsIgnoreCase(conn.getHeaderField("Accept-Ranges"));
 
         final String transferEncoding = conn.getHeaderField("Transfer-Encoding");
         if (transferEncoding == null) {
@@ -762,6 +1901,10 @@ class DownloadTask implements Runnable {
      * appropriately for resumption.
      */
     private void setupDestinationFile(State state) throws StopRequestException {
+        if (originalDownloadInfo.shouldRevalidate()) {
+            setupRevalidation(state);
+            return;
+        }
         if (TextUtils.isEmpty(state.filename)) {
             // only true if we've already run a thread for this download
             return;
@@ -771,17 +1914,27 @@ class DownloadTask implements Runnable {
             LLog.d("Yeah we know we are bad for downloading to internal storage");
 //                throw new StopRequestException(Downloads.Impl.STATUS_FILE_ERROR, "found invalid internal destination filename");
         }
+        if (originalDownloadInfo.shouldExtractArchive()) {
+            setupExtraction(state);
+            return;
+        }
         // We're resuming a download that got interrupted
         File destinationFile = new File(state.filename);
         if (destinationFile.exists()) {
             LLog.i("resuming download for id: " + originalDownloadInfo.getId() + ", and state.filename: " + state.filename);
-            long fileLength = destinationFile.length();
+            long fileLength = reconcileWithDurableBytes(destinationFile);
             if (fileLength == 0) {
                 // The download hadn't actually started, we can restart from scratch
                 LLog.d("setupDestinationFile() found fileLength=0, deleting " + state.filename);
                 destinationFile.delete();
                 state.filename = null;
                 LLog.i("resuming download for id: " + originalDownloadInfo.getId() + ", BUT starting from scratch again: ");
+            } else if (usesStreamStages(state)) {
+                // The file holds the output of the stream stages, which cannot tell how much was received
+                LLog.d("setupDestinationFile() cannot resume through stream stages, deleting " + state.filename);
+                destinationFile.delete();
+                state.filename = null;
+                state.currentBytes = 0;
             } else if (!originalDownloadInfo.isResumable()) {
                 // This should've been caught upon failure
                 LLog.d("setupDestinationFile() unable to resume download, deleting " + state.filename);
@@ -790,7 +1943,14 @@ class DownloadTask implements Runnable {
             } else {
                 // All right, we'll be able to resume this download
                 LLog.i("resuming download for id: " + originalDownloadInfo.getId() + ", and starting with file of length: " + fileLength);
-                state.currentBytes = (int) fileLength;
+                DownloadSegments segments = DownloadSegments.fromDatabaseValue(originalDownloadInfo.getSegments());
+                if (segments != null && segments.getTotalBytes() == fileLength) {
+                    // The file was allocated up front, the segments know how much of it holds data
+                    state.segments = segments;
+                    state.currentBytes = segments.getDownloadedBytes();
+                } else {
+                    state.currentBytes = (int) fileLength;
+                }
                 if (originalDownloadInfo.getTotalBytes() != UNKNOWN_BYTE_SIZE) {
                     state.contentLength = originalDownloadInfo.getTotalBytes();
                 }
@@ -801,10 +1961,173 @@ class DownloadTask implements Runnable {
         }
     }
 
+    /**
+     * Keeps the completed file until the server tells whether it is still current. A file that cannot be revalidated,
+     * as it is gone, was extracted or came without an ETag or Last-Modified date, is downloaded again from scratch.
+     */
+    private void setupRevalidation(State state) {
+        boolean hasValidators = originalDownloadInfo.getETag() != null || originalDownloadInfo.getLastModifiedHeader() != null;
+        if (!TextUtils.isEmpty(state.filename) && new File(state.filename).isFile() && hasValidators && !originalDownloadInfo.shouldExtractArchive()) {
+            LLog.i("Download " + originalDownloadInfo.getId() + " revalidating " + state.filename);
+            state.revalidating = true;
+            state.headerETag = originalDownloadInfo.getETag();
+            state.headerLastModified = originalDownloadInfo.getLastModifiedHeader();
+            return;
+        }
+        discardCompletedFile(state);
+    }
+
+    private void keepCompletedFile(State state) {
+        LLog.i("Download " + originalDownloadInfo.getId() + " not modified, keeping " + state.filename);
+        state.currentBytes = new File(state.filename).length();
+        state.totalBytes = state.currentBytes;
+        originalDownloadInfo.setRevalidate(false);
+        downloadsRepository.finishRevalidation(originalDownloadInfo, true);
+    }
+
+    private void discardCompletedFile(State state) {
+        if (!TextUtils.isEmpty(state.filename)) {
+            new File(state.filename).delete();
+        }
+        state.filename = null;
+        state.currentBytes = 0;
+        state.revalidating = false;
+        originalDownloadInfo.setRevalidate(false);
+        downloadsRepository.finishRevalidation(originalDownloadInfo, false);
+    }
+
+    /**
+     * A download syncing periodically only trusts the file up to its last sync, as a crash can leave the data after it
+     * missing or zeroed while the file length says otherwise. Anything beyond is cut off and downloaded again.
+     *
+     * @return the length of the file to resume from
+     */
+    private long reconcileWithDurableBytes(File destinationFile) throws StopRequestException {
+        long fileLength = destinationFile.length();
+        long durableBytes = originalDownloadInfo.getDurableBytes();
+        if (originalDownloadInfo.getDurability() != Request.DURABILITY_PERIODIC
+                || originalDownloadInfo.getSegments() != null
+                || fileLength <= durableBytes) {
+            return fileLength;
+        }
+        LLog.i("truncating download for id: " + originalDownloadInfo.getId() + " from " + fileLength + " to its last sync at " + durableBytes);
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(destinationFile, "rw");
+            file.setLength(durableBytes);
+        } catch (IOException e) {
+            throw new StopRequestException(DownloadStatus.FILE_ERROR, e);
+        } finally {
+            closeQuietly(file);
+        }
+        return durableBytes;
+    }
+
+    /**
+     * Archives being extracted never reach the destination file, so an extraction resumes from its checkpoint:
+     * within the archive when the server allows it, otherwise from the start, skipping the entries already extracted.
+     */
+    private void setupExtraction(State state) {
+        ExtractionCheckpoint checkpoint = ExtractionCheckpoint.fromDatabaseValue(originalDownloadInfo.getExtractionCheckpoint());
+        if (checkpoint != null && checkpoint.getOffset() > 0 && originalDownloadInfo.isResumable()) {
+            LLog.i("resuming extraction for id: " + originalDownloadInfo.getId() + " from archive offset: " + checkpoint.getOffset());
+            state.extractionCheckpoint = checkpoint;
+            state.currentBytes = checkpoint.getOffset();
+            if (originalDownloadInfo.getTotalBytes() != UNKNOWN_BYTE_SIZE) {
+                state.contentLength = originalDownloadInfo.getTotalBytes();
+            }
+            state.headerETag = originalDownloadInfo.getETag();
+            state.continuingDownload = true;
+        } else {
+            state.extractionCheckpoint = checkpoint == null ? null : checkpoint.fromStart();
+            state.currentBytes = 0;
+        }
+    }
+
+    /**
+     * Reserves the space the rest of the download needs before transferring any of it, so that running out of space
+     * fails the download straight away. Only done when the file will hold as many bytes as the response.
+     */
+    private void reserveSpace(State state) throws StopRequestException {
+        if (state.contentLength == UNKNOWN_BYTE_SIZE || state.filename == null || usesStreamStages(state)) {
+            return;
+        }
+        if (state.spaceReservedFor != null && !state.spaceReservedFor.equals(state.filename)) {
+            storageManager.releaseSpace(state.spaceReservedFor);
+        }
+        state.spaceReservedFor = state.filename;
+        storageManager.reserveSpace(originalDownloadInfo.getDestination(), state.filename, state.contentLength);
+    }
+
+    private void releaseSpace(State state) {
+        if (state.spaceReservedFor != null) {
+            storageManager.releaseSpace(state.spaceReservedFor);
+            state.spaceReservedFor = null;
+        }
+    }
+
+    /**
+     * Allocates the blocks of the file up front where the platform allows it, otherwise only sets its length,
+     * which most filesystems leave sparse. The space reserved for a sparse file then follows the segments written.
+     */
+    private void preallocate(State state, RandomAccessFile file, long length) throws IOException, StopRequestException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            try {
+                fallocate(file, length);
+                return;
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.ENOSPC) {
+                    throw new StopRequestException(DownloadStatus.INSUFFICIENT_SPACE_ERROR, "not enough space to allocate " + length + " bytes");
+                }
+                LLog.w("Unable to allocate the file up front: " + e.getMessage());
+            }
+        }
+        file.setLength(length);
+        trackSparseFile(state);
+    }
+
+    private void trackSparseFile(State state) {
+        if (state.spaceReservedFor != null) {
+            storageManager.trackSparseFile(state.spaceReservedFor, state.segments);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void fallocate(RandomAccessFile file, long length) throws IOException, ErrnoException {
+        Os.posix_fallocate(file.getFD(), 0, length);
+    }
+
     /**
      * Add custom headers for this download to the HTTP request.
      */
     private void addRequestHeaders(State state, HttpURLConnection conn) {
+        addCustomRequestHeaders(conn);
+
+        if (state.continuingDownload) {
+            if (hasETagOfCurrentSource(state)) {
+                conn.addRequestProperty("If-Match", state.headerETag);
+            }
+            conn.addRequestProperty("Range", "bytes=" + state.currentBytes + "-");
+        } else if (state.revalidating) {
+            addValidators(conn, state.headerETag, state.headerLastModified);
+        } else if (state.reusableDownload != null) {
+            addValidators(conn, state.reusableDownload.getETag(), state.reusableDownload.getLastModifiedHeader());
+        }
+    }
+
+    /**
+     * Makes the request conditional, for the server to answer 304 Not Modified rather than send a file we already have.
+     */
+    private static void addValidators(HttpURLConnection conn, String eTag, String lastModified) {
+        if (eTag != null) {
+            conn.addRequestProperty("If-None-Match", eTag);
+        }
+        if (lastModified != null) {
+            conn.addRequestProperty("If-Modified-Since", lastModified);
+        }
+    }
+
+    private void addCustomRequestHeaders(HttpURLConnection conn) {
         for (Pair<String, String> header : originalDownloadInfo.getHeaders()) {
             conn.addRequestProperty(header.first, header.second);
         }
@@ -817,13 +2140,6 @@ class DownloadTask implements Runnable {
         // Defeat transparent gzip compression, since it doesn't allow us to
         // easily resume partial downloads.
         conn.setRequestProperty("Accept-Encoding", "identity");
-
-        if (state.continuingDownload) {
-            if (state.headerETag != null) {
-                conn.addRequestProperty("If-Match", state.headerETag);
-            }
-            conn.addRequestProperty("Range", "bytes=" + state.currentBytes + "-");
-        }
     }
 
     /**
@@ -877,18 +2193,29 @@ class DownloadTask implements Runnable {
         return context.getContentResolver();
     }
 
+    /**
+     * Downloads of the same batch can finish concurrently, so the status is recalculated under a lock
+     * and the batch is only failed or reported as completed by the first download to get it there.
+     */
     private void updateBatchStatus(long batchId, long downloadId) {
-        int batchStatus = batchRepository.calculateBatchStatus(batchId);
+        synchronized (BATCH_STATUS_LOCK) {
+            int previousBatchStatus = batchRepository.getBatchStatus(batchId);
+            if (DownloadStatus.isFailure(previousBatchStatus)) {
+                return;
+            }
+
+            int batchStatus = batchRepository.calculateBatchStatus(batchId);
 
-        batchRepository.updateBatchStatus(batchId, batchStatus);
+            batchRepository.updateBatchStatus(batchId, batchStatus);
 
-        if (DownloadStatus.isCancelled(batchStatus)) {
-            batchRepository.setBatchItemsCancelled(batchId);
-        } else if (DownloadStatus.isFailure(batchStatus)) {
-            batchRepository.setBatchItemsFailed(batchId, downloadId);
-            batchInformationBroadcaster.notifyBatchFailedFor(batchId);
-        } else if (DownloadStatus.isSuccess(batchStatus)) {
-            batchInformationBroadcaster.notifyBatchCompletedFor(batchId);
+            if (DownloadStatus.isCancelled(batchStatus)) {
+                batchRepository.setBatchItemsCancelled(batchId);
+            } else if (DownloadStatus.isFailure(batchStatus)) {
+                batchRepository.setBatchItemsFailed(batchId, downloadId);
+                batchInformationBroadcaster.notifyBatchFailedFor(batchId);
+            } else if (DownloadStatus.isSuccess(batchStatus) && !DownloadStatus.isSuccess(previousBatchStatus)) {
+                batchInformationBroadcaster.notifyBatchCompletedFor(batchId);
+            }
         }
     }
 
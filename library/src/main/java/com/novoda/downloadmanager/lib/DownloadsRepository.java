@@ -1,10 +1,13 @@
 package com.novoda.downloadmanager.lib;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.RemoteException;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
@@ -14,7 +17,10 @@ import com.novoda.notils.string.StringUtils;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static com.novoda.downloadmanager.lib.Constants.UNKNOWN_BYTE_SIZE;
 import static com.novoda.downloadmanager.lib.DownloadContract.Downloads.*;
@@ -72,7 +78,9 @@ class DownloadsRepository {
         Cursor downloadsCursor = contentResolver.query(uri, null, null, null, null);
         if (downloadsCursor != null) {
             try {
-                downloadsCursor.moveToFirst();
+                if (!downloadsCursor.moveToFirst()) {
+                    return null;
+                }
                 FileDownloadInfo.Reader reader = new FileDownloadInfo.Reader(contentResolver, downloadsCursor);
                 return downloadInfoCreator.create(reader);
             } finally {
@@ -164,6 +172,48 @@ class DownloadsRepository {
         contentResolver.update(downloadInfo.getAllDownloadsUri(), values, null, null);
     }
 
+    /**
+     * Writes the progress and the speed of several downloads in a single transaction.
+     * A download only gets the columns it has a value for.
+     */
+    public void updateProgress(Map<Long, Long> currentBytesById, Map<Long, Long> speedById) {
+        Set<Long> ids = new HashSet<>(currentBytesById.keySet());
+        ids.addAll(speedById.keySet());
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(ids.size());
+        for (long id : ids) {
+            Uri downloadUri = ContentUris.withAppendedId(downloadsUriProvider.getAllDownloadsUri(), id);
+            ContentProviderOperation.Builder operation = ContentProviderOperation.newUpdate(downloadUri);
+            Long currentBytes = currentBytesById.get(id);
+            if (currentBytes != null) {
+                operation.withValue(COLUMN_CURRENT_BYTES, currentBytes);
+            }
+            Long speed = speedById.get(id);
+            if (speed != null) {
+                operation.withValue(COLUMN_SPEED, speed);
+            }
+            operations.add(operation.build());
+        }
+        try {
+            contentResolver.applyBatch(DownloadProvider.AUTHORITY, operations);
+        } catch (RemoteException e) {
+            LLog.e(e, "Could not update the progress of downloads");
+        } catch (OperationApplicationException e) {
+            LLog.e(e, "Could not update the progress of downloads");
+        }
+    }
+
+    /**
+     * Records a size found ahead of the download, unless the download learnt it first.
+     */
+    public void setTotalBytesIfUnknown(FileDownloadInfo downloadInfo, long totalBytes) {
+        ContentValues values = new ContentValues(1);
+        values.put(COLUMN_TOTAL_BYTES, totalBytes);
+
+        String where = COLUMN_TOTAL_BYTES + " = ?";
+        String[] selectionArgs = {String.valueOf(UNKNOWN_BYTE_SIZE)};
+        contentResolver.update(downloadInfo.getAllDownloadsUri(), values, where, selectionArgs);
+    }
+
     public void setDownloadRunning(FileDownloadInfo downloadInfo) {
         ContentValues contentValues = new ContentValues(1);
         contentValues.put(COLUMN_STATUS, DownloadStatus.RUNNING);
@@ -187,12 +237,16 @@ class DownloadsRepository {
         contentResolver.update(downloadInfo.getAllDownloadsUri(), values, null, null);
     }
 
-    public void updateDatabaseFromHeaders(FileDownloadInfo downloadInfo, String filename, String headerETag, String mimeType, long totalBytes) {
-        ContentValues values = new ContentValues(4);
+    public void updateDatabaseFromHeaders(FileDownloadInfo downloadInfo, String filename, String headerETag, String headerLastModified,
+                                          String mimeType, long totalBytes) {
+        ContentValues values = new ContentValues(5);
         values.put(DownloadContract.Downloads.COLUMN_DATA, filename);
         if (headerETag != null) {
             values.put(Constants.ETAG, headerETag);
         }
+        if (headerLastModified != null) {
+            values.put(COLUMN_LAST_MODIFIED_HEADER, headerLastModified);
+        }
         if (mimeType != null) {
             values.put(DownloadContract.Downloads.COLUMN_MIME_TYPE, mimeType);
         }
@@ -201,6 +255,133 @@ class DownloadsRepository {
         contentResolver.update(downloadInfo.getAllDownloadsUri(), values, null, null);
     }
 
+    public void updateDownloadSegments(FileDownloadInfo downloadInfo, DownloadSegments segments) {
+        ContentValues values = new ContentValues(2);
+        values.put(COLUMN_SEGMENTS, segments.toDatabaseValue());
+        values.put(COLUMN_CURRENT_BYTES, segments.getDownloadedBytes());
+        contentResolver.update(downloadInfo.getAllDownloadsUri(), values, null, null);
+    }
+
+    public void updateChecksumState(FileDownloadInfo downloadInfo, StreamingChecksum checksum) {
+        ContentValues values = new ContentValues(1);
+        values.put(COLUMN_CHECKSUM_STATE, checksum.saveState());
+        contentResolver.update(downloadInfo.getAllDownloadsUri(), values, null, null);
+    }
+
+    public void updateReconnectCount(FileDownloadInfo downloadInfo, int reconnectCount) {
+        ContentValues values = new ContentValues(1);
+        values.put(COLUMN_RECONNECT_COUNT, reconnectCount);
+        contentResolver.update(downloadInfo.getAllDownloadsUri(), values, null, null);
+    }
+
+    public void updateServedBy(FileDownloadInfo downloadInfo, String source) {
+        ContentValues values = new ContentValues(1);
+        values.put(COLUMN_SERVED_BY, source);
+        contentResolver.update(downloadInfo.getAllDownloadsUri(), values, null, null);
+    }
+
+    public void updateDurableBytes(FileDownloadInfo downloadInfo, long durableBytes) {
+        ContentValues values = new ContentValues(1);
+        values.put(COLUMN_DURABLE_BYTES, durableBytes);
+        contentResolver.update(downloadInfo.getAllDownloadsUri(), values, null, null);
+    }
+
+    public void updateExtractionCheckpoint(FileDownloadInfo downloadInfo, ExtractionCheckpoint checkpoint) {
+        ContentValues values = new ContentValues(2);
+        values.put(COLUMN_EXTRACTION_CHECKPOINT, checkpoint.toDatabaseValue());
+        values.put(COLUMN_EXTRACTED_ENTRIES, checkpoint.getEntries());
+        contentResolver.update(downloadInfo.getAllDownloadsUri(), values, null, null);
+    }
+
+    public void updateReusedBytes(FileDownloadInfo downloadInfo, long reusedBytes) {
+        ContentValues values = new ContentValues(1);
+        values.put(COLUMN_REUSED_BYTES, reusedBytes);
+        contentResolver.update(downloadInfo.getAllDownloadsUri(), values, null, null);
+    }
+
+    public void updateContentHash(FileDownloadInfo downloadInfo, String contentHash) {
+        ContentValues values = new ContentValues(1);
+        values.put(COLUMN_CONTENT_HASH, contentHash);
+        contentResolver.update(downloadInfo.getAllDownloadsUri(), values, null, null);
+    }
+
+    /**
+     * @return the successful downloads, other than the given one, whose file has the given content hash, most recent first
+     */
+    public List<FileDownloadInfo> getCompletedDownloadsWithContent(String contentHash, long excludedId) {
+        return getCompletedDownloads(COLUMN_CONTENT_HASH + " = ?", contentHash, excludedId);
+    }
+
+    /**
+     * @return the successful downloads of the given URI, other than the given one, that recorded an ETag or a Last-Modified
+     * date to revalidate their file with, most recent first
+     */
+    public List<FileDownloadInfo> getCompletedDownloadsOf(String uri, long excludedId) {
+        String where = COLUMN_URI + " = ? AND (" + Constants.ETAG + " IS NOT NULL OR " + COLUMN_LAST_MODIFIED_HEADER + " IS NOT NULL)";
+        return getCompletedDownloads(where, uri, excludedId);
+    }
+
+    /**
+     * Ends the revalidation of a completed file, either keeping the file or forgetting about it to download it again.
+     */
+    public void finishRevalidation(FileDownloadInfo downloadInfo, boolean keepFile) {
+        ContentValues values = new ContentValues(4);
+        values.put(COLUMN_REVALIDATE, false);
+        if (!keepFile) {
+            values.putNull(COLUMN_DATA);
+            values.putNull(COLUMN_SEGMENTS);
+            values.put(COLUMN_CURRENT_BYTES, 0);
+        }
+        contentResolver.update(downloadInfo.getAllDownloadsUri(), values, null, null);
+    }
+
+    /**
+     * Leaves out the deleted downloads, and those whose file is not the response as received: truncated for tar updates,
+     * extracted, run through stream stages they asked for, or DRM converted. Stream stages registered for a MIME type
+     * are not known to the database, so they are left to the caller.
+     */
+    private List<FileDownloadInfo> getCompletedDownloads(String where, String value, long excludedId) {
+        Cursor downloadsCursor = contentResolver.query(
+                downloadsUriProvider.getAllDownloadsUri(),
+                null,
+                where + " AND " + COLUMN_STATUS + " = ? AND " + COLUMN_DATA + " IS NOT NULL AND " + DownloadContract.Downloads._ID + " != ?"
+                        + " AND " + COLUMN_DELETED + " = 0"
+                        + " AND " + COLUMN_EXTRACT_DIRECTORY + " IS NULL"
+                        + " AND " + COLUMN_STREAM_STAGES + " IS NULL"
+                        + " AND NOT (" + COLUMN_ALLOW_TAR_UPDATES + " = 1 AND " + COLUMN_MIME_TYPE + " = ?)"
+                        + " AND (" + COLUMN_MIME_TYPE + " IS NULL OR " + COLUMN_MIME_TYPE + " != ?)",
+                new String[]{
+                        value,
+                        String.valueOf(DownloadStatus.SUCCESS),
+                        String.valueOf(excludedId),
+                        FileDownloadInfo.TAR_MIME_TYPE,
+                        DownloadDrmHelper.MIMETYPE_DRM_MESSAGE
+                },
+                DownloadContract.Downloads._ID + " DESC"
+        );
+
+        try {
+            List<FileDownloadInfo> downloads = new ArrayList<>();
+            FileDownloadInfo.Reader reader = new FileDownloadInfo.Reader(contentResolver, downloadsCursor);
+
+            while (downloadsCursor != null && downloadsCursor.moveToNext()) {
+                downloads.add(downloadInfoCreator.create(reader));
+            }
+
+            return downloads;
+        } finally {
+            if (downloadsCursor != null) {
+                downloadsCursor.close();
+            }
+        }
+    }
+
+    public void clearDownloadSegments(FileDownloadInfo downloadInfo) {
+        ContentValues values = new ContentValues(1);
+        values.putNull(COLUMN_SEGMENTS);
+        contentResolver.update(downloadInfo.getAllDownloadsUri(), values, null, null);
+    }
+
     public void deleteDownload(Uri downloadUri) {
         ContentValues values = new ContentValues(1);
         values.put(DownloadContract.Downloads.COLUMN_DELETED, TRUE_THIS_IS_CLEARER_NOW);
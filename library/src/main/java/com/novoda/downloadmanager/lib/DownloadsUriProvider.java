@@ -12,6 +12,8 @@ public class DownloadsUriProvider { // Why is this a singleton if all fields are
     private final Uri contentUri;
     private final Uri downloadsWithoutProgressUri;
     private final Uri batchesWithoutProgressUri;
+    private final Uri downloadsProgressUri;
+    private final Uri batchChangesUri;
 
     public static DownloadsUriProvider getInstance() {
         return LazyInitialisationHelper.INSTANCE;
@@ -31,6 +33,8 @@ public class DownloadsUriProvider { // Why is this a singleton if all fields are
         Uri contentUri = Uri.parse(authority + "/my_downloads");
         Uri downloadsByStatusUri = Uri.parse(authority + "/downloads_without_progress");
         Uri batchesByStatusUri = Uri.parse(authority + "/batches_without_progress");
+        Uri downloadsProgressUri = Uri.parse(authority + "/downloads_progress");
+        Uri batchChangesUri = Uri.parse(authority + "/batch_changes");
 
         return new DownloadsUriProvider(
                 publiclyAccessibleDownloadsUri,
@@ -39,7 +43,9 @@ public class DownloadsUriProvider { // Why is this a singleton if all fields are
                 batchesUri,
                 contentUri,
                 downloadsByStatusUri,
-                batchesByStatusUri
+                batchesByStatusUri,
+                downloadsProgressUri,
+                batchChangesUri
         );
     }
 
@@ -49,7 +55,9 @@ public class DownloadsUriProvider { // Why is this a singleton if all fields are
             Uri allDownloadsUri,
             Uri batchesUri,
             Uri contentUri,
-            Uri downloadsWithoutProgressUri, Uri batchesWithoutProgressUri) {
+            Uri downloadsWithoutProgressUri, Uri batchesWithoutProgressUri,
+            Uri downloadsProgressUri,
+            Uri batchChangesUri) {
         this.publiclyAccessibleDownloadsUri = publiclyAccessibleDownloadsUri;
         this.downloadsByBatchUri = downloadsByBatchUri;
         this.allDownloadsUri = allDownloadsUri;
@@ -57,6 +65,8 @@ public class DownloadsUriProvider { // Why is this a singleton if all fields are
         this.contentUri = contentUri;
         this.downloadsWithoutProgressUri = downloadsWithoutProgressUri;
         this.batchesWithoutProgressUri = batchesWithoutProgressUri;
+        this.downloadsProgressUri = downloadsProgressUri;
+        this.batchChangesUri = batchChangesUri;
     }
 
     /**
@@ -115,4 +125,21 @@ public class DownloadsUriProvider { // Why is this a singleton if all fields are
     public Uri getBatchesWithoutProgressUri() {
         return batchesWithoutProgressUri;
     }
+
+    /**
+     * The content:// URI notified, with the download id appended, when only the progress of a download changed.
+     * Changes to {@link #getAllDownloadsUri()} are not notified for progress, so that they only signal
+     * changes the download service has to act on.
+     */
+    public Uri getDownloadsProgressUri() {
+        return downloadsProgressUri;
+    }
+
+    /**
+     * The content:// URI notified, with the batch id appended when it is known, whenever the download service
+     * has to read a batch again. It only serves notifications to the service and cannot be queried.
+     */
+    Uri getBatchChangesUri() {
+        return batchChangesUri;
+    }
 }
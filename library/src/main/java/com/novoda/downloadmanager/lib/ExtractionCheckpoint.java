@@ -0,0 +1,70 @@
+package com.novoda.downloadmanager.lib;
+
+/**
+ * Where the extraction of an archive can resume from: the offset in the archive of the last entry boundary
+ * and how many entries were extracted before it.
+ * <p/>
+ * Tar archives can resume reading from the offset. Zip archives cannot, as their entries can only be found
+ * by reading from the start, so their offset stays at zero and the entries already extracted are skipped instead.
+ * <p/>
+ * Persisted in {@link DownloadContract.Downloads#COLUMN_EXTRACTION_CHECKPOINT} as {@code format:offset:entries}.
+ */
+class ExtractionCheckpoint {
+
+    static final String FORMAT_TAR = "tar";
+    static final String FORMAT_ZIP = "zip";
+
+    private static final String FIELD_SEPARATOR = ":";
+    private static final int FIELDS = 3;
+
+    private final String format;
+    private final long offset;
+    private final int entries;
+
+    /**
+     * @return the checkpoint stored in the database, or null if the value is missing or malformed
+     */
+    static ExtractionCheckpoint fromDatabaseValue(String value) {
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        String[] fields = value.split(FIELD_SEPARATOR);
+        if (fields.length != FIELDS || !(FORMAT_TAR.equals(fields[0]) || FORMAT_ZIP.equals(fields[0]))) {
+            return null;
+        }
+        try {
+            return new ExtractionCheckpoint(fields[0], Long.parseLong(fields[1]), Integer.parseInt(fields[2]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    ExtractionCheckpoint(String format, long offset, int entries) {
+        this.format = format;
+        this.offset = offset;
+        this.entries = entries;
+    }
+
+    String getFormat() {
+        return format;
+    }
+
+    long getOffset() {
+        return offset;
+    }
+
+    int getEntries() {
+        return entries;
+    }
+
+    /**
+     * The same entries, to be skipped while reading the archive again from its start.
+     */
+    ExtractionCheckpoint fromStart() {
+        return new ExtractionCheckpoint(format, 0, entries);
+    }
+
+    String toDatabaseValue() {
+        return format + FIELD_SEPARATOR + offset + FIELD_SEPARATOR + entries;
+    }
+}
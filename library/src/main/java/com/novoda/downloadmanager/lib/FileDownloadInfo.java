@@ -20,7 +20,7 @@ import java.util.List;
  */
 class FileDownloadInfo {
 
-    private static final String TAR_MIME_TYPE = "application/x-tar";
+    static final String TAR_MIME_TYPE = "application/x-tar";
 
     // TODO: move towards these in-memory objects being sources of truth, and periodically pushing to provider.
 
@@ -100,6 +100,25 @@ class FileDownloadInfo {
     private long batchId;
     private boolean alwaysResume;
     private boolean allowTarUpdates;
+    private int maxSegments;
+    private String segments;
+    private boolean channelTransfer;
+    private boolean writeBehind;
+    private String checksumAlgorithm;
+    private String expectedChecksum;
+    private String checksumState;
+    private String extractDirectory;
+    private String extractionCheckpoint;
+    private String streamStages;
+    private int durability;
+    private long durableBytes;
+    private int reconnectCount;
+    private String lastModifiedHeader;
+    private boolean revalidate;
+    private String deltaManifestUri;
+    private String deltaSeed;
+    private String mirrors;
+    private String servedBy;
 
     private final List<Pair<String, String>> requestHeaders = new ArrayList<>();
     private final SystemFacade systemFacade;
@@ -180,6 +199,18 @@ class FileDownloadInfo {
         this.eTag = eTag;
     }
 
+    public void setTotalBytes(long totalBytes) {
+        this.totalBytes = totalBytes;
+    }
+
+    public void setDurableBytes(long durableBytes) {
+        this.durableBytes = durableBytes;
+    }
+
+    public void setRevalidate(boolean revalidate) {
+        this.revalidate = revalidate;
+    }
+
     public boolean isDeleted() {
         return deleted;
     }
@@ -338,6 +369,90 @@ class FileDownloadInfo {
         requestHeaders.clear();
     }
 
+    public int getMaxSegments() {
+        return maxSegments;
+    }
+
+    public String getSegments() {
+        return segments;
+    }
+
+    public boolean shouldUseChannelTransfer() {
+        return channelTransfer;
+    }
+
+    public boolean shouldWriteBehind() {
+        return writeBehind;
+    }
+
+    public String getChecksumAlgorithm() {
+        return checksumAlgorithm;
+    }
+
+    public String getExpectedChecksum() {
+        return expectedChecksum;
+    }
+
+    public String getChecksumState() {
+        return checksumState;
+    }
+
+    public boolean hasExpectedChecksum() {
+        return checksumAlgorithm != null && expectedChecksum != null;
+    }
+
+    public String getExtractDirectory() {
+        return extractDirectory;
+    }
+
+    public String getExtractionCheckpoint() {
+        return extractionCheckpoint;
+    }
+
+    public boolean shouldExtractArchive() {
+        return extractDirectory != null;
+    }
+
+    public String getStreamStages() {
+        return streamStages;
+    }
+
+    public int getDurability() {
+        return durability;
+    }
+
+    public long getDurableBytes() {
+        return durableBytes;
+    }
+
+    public int getReconnectCount() {
+        return reconnectCount;
+    }
+
+    public String getLastModifiedHeader() {
+        return lastModifiedHeader;
+    }
+
+    public boolean shouldRevalidate() {
+        return revalidate;
+    }
+
+    public String getDeltaManifestUri() {
+        return deltaManifestUri;
+    }
+
+    public String getDeltaSeed() {
+        return deltaSeed;
+    }
+
+    public String getMirrors() {
+        return mirrors;
+    }
+
+    public String getServedBy() {
+        return servedBy;
+    }
+
     public boolean isResumable() {
         return alwaysResume || (eTag != null && isNoIntegrity());
     }
@@ -406,6 +521,25 @@ class FileDownloadInfo {
             info.batchId = getLong(DownloadContract.Downloads.COLUMN_BATCH_ID);
             info.alwaysResume = getInt(DownloadContract.Downloads.COLUMN_ALWAYS_RESUME) != 0;
             info.allowTarUpdates = getInt(DownloadContract.Downloads.COLUMN_ALLOW_TAR_UPDATES) != 0;
+            info.maxSegments = getInt(DownloadContract.Downloads.COLUMN_MAX_SEGMENTS);
+            info.segments = getString(DownloadContract.Downloads.COLUMN_SEGMENTS);
+            info.channelTransfer = getInt(DownloadContract.Downloads.COLUMN_CHANNEL_TRANSFER) != 0;
+            info.writeBehind = getInt(DownloadContract.Downloads.COLUMN_WRITE_BEHIND) != 0;
+            info.checksumAlgorithm = getString(DownloadContract.Downloads.COLUMN_CHECKSUM_ALGORITHM);
+            info.expectedChecksum = getString(DownloadContract.Downloads.COLUMN_EXPECTED_CHECKSUM);
+            info.checksumState = getString(DownloadContract.Downloads.COLUMN_CHECKSUM_STATE);
+            info.extractDirectory = getString(DownloadContract.Downloads.COLUMN_EXTRACT_DIRECTORY);
+            info.extractionCheckpoint = getString(DownloadContract.Downloads.COLUMN_EXTRACTION_CHECKPOINT);
+            info.streamStages = getString(DownloadContract.Downloads.COLUMN_STREAM_STAGES);
+            info.durability = getInt(DownloadContract.Downloads.COLUMN_DURABILITY);
+            info.durableBytes = getLong(DownloadContract.Downloads.COLUMN_DURABLE_BYTES);
+            info.reconnectCount = getInt(DownloadContract.Downloads.COLUMN_RECONNECT_COUNT);
+            info.lastModifiedHeader = getString(DownloadContract.Downloads.COLUMN_LAST_MODIFIED_HEADER);
+            info.revalidate = getInt(DownloadContract.Downloads.COLUMN_REVALIDATE) == 1;
+            info.deltaManifestUri = getString(DownloadContract.Downloads.COLUMN_DELTA_MANIFEST_URI);
+            info.deltaSeed = getString(DownloadContract.Downloads.COLUMN_DELTA_SEED);
+            info.mirrors = getString(DownloadContract.Downloads.COLUMN_MIRRORS);
+            info.servedBy = getString(DownloadContract.Downloads.COLUMN_SERVED_BY);
 
             synchronized (this) {
                 info.control = getInt(DownloadContract.Downloads.COLUMN_CONTROL);
@@ -455,10 +589,27 @@ class FileDownloadInfo {
 
         private int control;
         private int status;
+        private boolean deleted;
 
-        public ControlStatus(int control, int status) {
+        public ControlStatus(int control, int status, boolean deleted) {
             this.control = control;
             this.status = status;
+            this.deleted = deleted;
+        }
+
+        /**
+         * @param control null when unchanged
+         * @param status  null when unchanged
+         */
+        static ControlStatus merge(ControlStatus controlStatus, Integer control, Integer status, boolean deleted) {
+            ControlStatus base = controlStatus == null
+                    ? new ControlStatus(DownloadsControl.CONTROL_RUN, DownloadStatus.RUNNING, false)
+                    : controlStatus;
+            return new ControlStatus(
+                    control == null ? base.control : control,
+                    status == null ? base.status : status,
+                    base.deleted || deleted
+            );
         }
 
         public boolean isPaused() {
@@ -469,10 +620,24 @@ class FileDownloadInfo {
             return status == DownloadStatus.CANCELED;
         }
 
-        static final class Reader {
+        public boolean isBatchFailed() {
+            return status == DownloadStatus.BATCH_FAILED;
+        }
+
+        public boolean isDeleted() {
+            return deleted;
+        }
+
+        public boolean isStopping() {
+            return isPaused() || isCanceled() || isBatchFailed() || isDeleted();
+        }
+
+        static class Reader {
 
             private static final String[] PROJECTION = new String[]{
-                    DownloadContract.Downloads.COLUMN_CONTROL, DownloadContract.Downloads.COLUMN_STATUS
+                    DownloadContract.Downloads.COLUMN_CONTROL,
+                    DownloadContract.Downloads.COLUMN_STATUS,
+                    DownloadContract.Downloads.COLUMN_DELETED
             };
 
             private final ContentResolver contentResolver;
@@ -489,7 +654,8 @@ class FileDownloadInfo {
                     downloadsCursor.moveToFirst();
                     int control = downloadsCursor.getInt(0);
                     int status = downloadsCursor.getInt(1);
-                    return new FileDownloadInfo.ControlStatus(control, status);
+                    boolean deleted = downloadsCursor.getInt(2) == 1;
+                    return new FileDownloadInfo.ControlStatus(control, status, deleted);
                 } finally {
                     downloadsCursor.close();
                 }
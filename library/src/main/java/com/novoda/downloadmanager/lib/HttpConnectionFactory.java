@@ -0,0 +1,28 @@
+package com.novoda.downloadmanager.lib;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Opens the connections used to fetch downloads and their sizes.
+ * <p/>
+ * Connections are released by closing their response body rather than by disconnecting them,
+ * so that an implementation backed by a connection pool can reuse them for the next request to the same host.
+ */
+public interface HttpConnectionFactory {
+
+    HttpURLConnection openConnection(URL url) throws IOException;
+
+    /**
+     * Uses the platform {@link HttpURLConnection}.
+     */
+    class Platform implements HttpConnectionFactory {
+
+        @Override
+        public HttpURLConnection openConnection(URL url) throws IOException {
+            return (HttpURLConnection) url.openConnection();
+        }
+    }
+
+}
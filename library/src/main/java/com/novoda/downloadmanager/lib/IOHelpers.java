@@ -5,17 +5,24 @@ import com.novoda.downloadmanager.lib.logger.LLog;
 import java.io.Closeable;
 import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.HttpURLConnection;
 
 final class IOHelpers {
 
+    static final int NO_RESPONSE = -1;
+
     private IOHelpers() {
     }
 
     /**
      * Closes an outputStream and the FileDescriptor associated with it after ensuring all data as been written to disk.
+     * Without a FileDescriptor the data is only flushed, and left for the system to write when it sees fit.
+     *
+     * @return whether the data was flushed and, when given a FileDescriptor, synced
      */
-    static void closeAfterWrite(OutputStream out, FileDescriptor outFd) {
+    static boolean closeAfterWrite(OutputStream out, FileDescriptor outFd) {
         try {
             if (out != null) {
                 out.flush();
@@ -23,13 +30,38 @@ final class IOHelpers {
             if (outFd != null) {
                 outFd.sync();
             }
+            return true;
         } catch (IOException e) {
             LLog.e("Fail sync");
+            return false;
         } finally {
             closeQuietly(out);
         }
     }
 
+    /**
+     * Closes the body of a response instead of disconnecting, so that the connection can be reused.
+     * Only the body of a response that has already been received is requested, as asking for it
+     * earlier would send the request again.
+     */
+    static void releaseConnection(HttpURLConnection conn, int responseCode) {
+        if (responseCode == NO_RESPONSE) {
+            conn.disconnect();
+            return;
+        }
+        InputStream body;
+        try {
+            body = responseCode >= HttpURLConnection.HTTP_BAD_REQUEST ? conn.getErrorStream() : conn.getInputStream();
+        } catch (IOException e) {
+            body = null;
+        }
+        if (body == null) {
+            conn.disconnect();
+        } else {
+            closeQuietly(body);
+        }
+    }
+
     /**
      * Closes a resource ignoring any error in the process.
      */
@@ -1,31 +1,23 @@
 package com.novoda.downloadmanager.lib;
 
-import android.content.ContentResolver;
-import android.content.ContentValues;
 import android.os.SystemClock;
 
-import com.novoda.downloadmanager.notifications.DownloadNotifier;
-
-import static com.novoda.downloadmanager.lib.DownloadContract.Downloads.COLUMN_CURRENT_BYTES;
-
+/**
+ * Reports the progress of the wrapped writer to the {@link ProgressAggregator}, which persists it.
+ */
 class NotifierWriter implements DataWriter {
 
-    private final ContentResolver contentResolver;
+    private final ProgressAggregator progressAggregator;
     private final DataWriter dataWriter;
-    private final DownloadNotifier downloadNotifier;
     private final FileDownloadInfo downloadInfo;
     private final WriteChunkListener writeChunkListener;
 
-    private final ContentValues values = new ContentValues();
-
-    public NotifierWriter(ContentResolver contentResolver,
+    public NotifierWriter(ProgressAggregator progressAggregator,
                           DataWriter dataWriter,
-                          DownloadNotifier downloadNotifier,
                           FileDownloadInfo downloadInfo,
                           WriteChunkListener writeChunkListener) {
-        this.contentResolver = contentResolver;
+        this.progressAggregator = progressAggregator;
         this.dataWriter = dataWriter;
-        this.downloadNotifier = downloadNotifier;
         this.downloadInfo = downloadInfo;
         this.writeChunkListener = writeChunkListener;
     }
@@ -54,29 +46,22 @@ class NotifierWriter implements DataWriter {
 
             // Only notify once we have a full sample window
             if (state.speedSampleStart != 0) {
-                downloadNotifier.notifyDownloadSpeed(downloadInfo.getId(), state.speed);
+                progressAggregator.reportSpeed(downloadInfo.getId(), state.speed);
+                writeChunkListener.speedSampled(now, sampleSpeed);
             }
 
             state.speedSampleStart = now;
             state.speedSampleBytes = state.currentBytes;
         }
 
-        if (state.currentBytes - state.bytesNotified > Constants.MIN_PROGRESS_STEP &&
-                now - state.timeLastNotification > Constants.MIN_PROGRESS_TIME) {
-            updateCurrentBytesValues(state);
-            contentResolver.update(downloadInfo.getAllDownloadsUri(), values, null, null);
-            state.bytesNotified = state.currentBytes;
-            state.timeLastNotification = now;
-        }
+        progressAggregator.reportBytes(downloadInfo.getId(), state.currentBytes);
         return state;
     }
 
-    private void updateCurrentBytesValues(DownloadTask.State state) {
-        values.put(COLUMN_CURRENT_BYTES, state.currentBytes);
-    }
-
     public interface WriteChunkListener {
         void chunkWritten(FileDownloadInfo downloadInfo) throws StopRequestException;
+
+        void speedSampled(long now, long bytesPerSecond);
     }
 
 }
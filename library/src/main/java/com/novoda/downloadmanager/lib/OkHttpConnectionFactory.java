@@ -0,0 +1,38 @@
+package com.novoda.downloadmanager.lib;
+
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.OkUrlFactory;
+import com.squareup.okhttp.Protocol;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+
+/**
+ * Opens every connection through a single {@link OkHttpClient}, so that downloads from the same host share its
+ * connection pool and, where the server supports it, are multiplexed over one HTTP/2 connection.
+ */
+public class OkHttpConnectionFactory implements HttpConnectionFactory {
+
+    private final OkUrlFactory urlFactory;
+
+    public OkHttpConnectionFactory() {
+        this(createDefaultClient());
+    }
+
+    public OkHttpConnectionFactory(OkHttpClient client) {
+        this.urlFactory = new OkUrlFactory(client);
+    }
+
+    private static OkHttpClient createDefaultClient() {
+        OkHttpClient client = new OkHttpClient();
+        client.setProtocols(Arrays.asList(Protocol.HTTP_2, Protocol.SPDY_3, Protocol.HTTP_1_1));
+        return client;
+    }
+
+    @Override
+    public HttpURLConnection openConnection(URL url) {
+        return urlFactory.open(url);
+    }
+
+}
@@ -0,0 +1,157 @@
+package com.novoda.downloadmanager.lib;
+
+import com.novoda.downloadmanager.notifications.DownloadNotifier;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the progress of every running download and persists it on a fixed cadence.
+ * <p/>
+ * Writers only update per download counters, without taking any lock. Each tick writes the progress and the speed
+ * of all the downloads that moved in a single transaction, where {@link DownloadManager#COLUMN_SPEED_BYTES_PER_SECOND}
+ * and {@link DownloadManager#COLUMN_TIME_REMAINING} read them, and hands their latest speed to the {@link DownloadNotifier},
+ * so the database sees one write per tick whatever the number of concurrent downloads.
+ */
+class ProgressAggregator {
+
+    private final DownloadsRepository downloadsRepository;
+    private final DownloadNotifier downloadNotifier;
+    private final ScheduledExecutorService flushExecutor;
+
+    private final ConcurrentHashMap<Long, Progress> progresses = new ConcurrentHashMap<>();
+    private final Object flushLock = new Object();
+
+    ProgressAggregator(DownloadsRepository downloadsRepository,
+                       DownloadNotifier downloadNotifier,
+                       ScheduledExecutorService flushExecutor) {
+        this.downloadsRepository = downloadsRepository;
+        this.downloadNotifier = downloadNotifier;
+        this.flushExecutor = flushExecutor;
+    }
+
+    void start() {
+        flushExecutor.scheduleWithFixedDelay(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                },
+                Constants.MIN_PROGRESS_TIME,
+                Constants.MIN_PROGRESS_TIME,
+                TimeUnit.MILLISECONDS
+        );
+    }
+
+    void stop() {
+        flushExecutor.shutdownNow();
+        flush();
+    }
+
+    void reportBytes(long downloadId, long currentBytes) {
+        progressFor(downloadId).setBytes(currentBytes);
+    }
+
+    void reportSpeed(long downloadId, long bytesPerSecond) {
+        progressFor(downloadId).setSpeed(bytesPerSecond);
+    }
+
+    /**
+     * Persists the pending progress of the download, clears its speed and stops tracking it, so that no later tick
+     * can overwrite what the download itself writes once its transfer is over.
+     */
+    void finish(long downloadId) {
+        synchronized (flushLock) {
+            Progress progress = progresses.remove(downloadId);
+            if (progress == null) {
+                return;
+            }
+            Map<Long, Long> currentBytes = Collections.emptyMap();
+            if (progress.takeBytesChange()) {
+                currentBytes = Collections.singletonMap(downloadId, progress.getBytes());
+            }
+            Map<Long, Long> speed = Collections.emptyMap();
+            if (progress.getSpeed() != 0) {
+                speed = Collections.singletonMap(downloadId, 0L);
+            }
+            if (!currentBytes.isEmpty() || !speed.isEmpty()) {
+                downloadsRepository.updateProgress(currentBytes, speed);
+            }
+            downloadNotifier.notifyDownloadSpeed(downloadId, 0);
+        }
+    }
+
+    void flush() {
+        synchronized (flushLock) {
+            Map<Long, Long> currentBytes = new HashMap<>();
+            Map<Long, Long> speed = new HashMap<>();
+            for (Map.Entry<Long, Progress> entry : progresses.entrySet()) {
+                long downloadId = entry.getKey();
+                Progress progress = entry.getValue();
+                if (progress.takeBytesChange()) {
+                    currentBytes.put(downloadId, progress.getBytes());
+                }
+                if (progress.takeSpeedChange()) {
+                    speed.put(downloadId, progress.getSpeed());
+                    downloadNotifier.notifyDownloadSpeed(downloadId, progress.getSpeed());
+                }
+            }
+            if (!currentBytes.isEmpty() || !speed.isEmpty()) {
+                downloadsRepository.updateProgress(currentBytes, speed);
+            }
+        }
+    }
+
+    private Progress progressFor(long downloadId) {
+        Progress progress = progresses.get(downloadId);
+        if (progress == null) {
+            Progress newProgress = new Progress();
+            progress = progresses.putIfAbsent(downloadId, newProgress);
+            if (progress == null) {
+                progress = newProgress;
+            }
+        }
+        return progress;
+    }
+
+    private static class Progress {
+
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicBoolean bytesChanged = new AtomicBoolean();
+        private final AtomicLong speed = new AtomicLong();
+        private final AtomicBoolean speedChanged = new AtomicBoolean();
+
+        void setBytes(long currentBytes) {
+            bytes.set(currentBytes);
+            bytesChanged.set(true);
+        }
+
+        void setSpeed(long bytesPerSecond) {
+            speed.set(bytesPerSecond);
+            speedChanged.set(true);
+        }
+
+        boolean takeBytesChange() {
+            return bytesChanged.getAndSet(false);
+        }
+
+        boolean takeSpeedChange() {
+            return speedChanged.getAndSet(false);
+        }
+
+        long getBytes() {
+            return bytes.get();
+        }
+
+        long getSpeed() {
+            return speed.get();
+        }
+    }
+}
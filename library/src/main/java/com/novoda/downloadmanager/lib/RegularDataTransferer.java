@@ -3,28 +3,48 @@ package com.novoda.downloadmanager.lib;
 import java.io.IOException;
 import java.io.InputStream;
 
+/**
+ * Reads the response body in chunks sized after the download speed, handing each full chunk to the {@link DataWriter}.
+ */
 class RegularDataTransferer implements DataTransferer {
 
     private final DataWriter dataWriter;
+    private final BufferPool bufferPool;
+    private final ChunkSizer chunkSizer;
 
-    public RegularDataTransferer(DataWriter dataWriter) {
+    public RegularDataTransferer(DataWriter dataWriter, BufferPool bufferPool, ChunkSizer chunkSizer) {
         this.dataWriter = dataWriter;
+        this.bufferPool = bufferPool;
+        this.chunkSizer = chunkSizer;
     }
 
     @Override
     public DownloadTask.State transferData(DownloadTask.State state, InputStream in) throws StopRequestException {
         DownloadTask.State newState = state;
+        byte[] buffer = bufferPool.lease(chunkSizer.getMaxChunkSize());
+        int filled = 0;
         try {
-            byte[] buffer = new byte[Constants.BUFFER_SIZE];
-            int readLast = in.read(buffer);
+            int readLast = 0;
             while (readLast != Constants.NO_BYTES_READ) {
-                newState = dataWriter.write(newState, buffer, readLast);
-                readLast = in.read(buffer);
+                int chunkSize = chunkSizer.sizeFor(newState.speed);
+                while (filled < chunkSize && (readLast = in.read(buffer, filled, chunkSize - filled)) != Constants.NO_BYTES_READ) {
+                    filled += readLast;
+                }
+                if (filled > 0) {
+                    int count = filled;
+                    filled = 0;
+                    newState = dataWriter.write(newState, buffer, count);
+                }
             }
             return newState;
         } catch (IOException e) {
-            // It was doing the same thing in regular and exception cases
+            // It was doing the same thing in regular and exception cases, once what was read is written
+            if (filled > 0) {
+                newState = dataWriter.write(newState, buffer, filled);
+            }
             return newState;
+        } finally {
+            bufferPool.release(buffer);
         }
     }
 
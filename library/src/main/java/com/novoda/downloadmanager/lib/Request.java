@@ -40,6 +40,44 @@ public class Request {
      */
     public static final int NETWORK_BLUETOOTH = 1 << 2;
 
+    /**
+     * Algorithm for {@link #setExpectedChecksum(String, String)}.
+     */
+    public static final String CHECKSUM_MD5 = StreamingChecksum.MD5;
+
+    /**
+     * Algorithm for {@link #setExpectedChecksum(String, String)}.
+     */
+    public static final String CHECKSUM_SHA_1 = StreamingChecksum.SHA_1;
+
+    /**
+     * Algorithm for {@link #setExpectedChecksum(String, String)}.
+     */
+    public static final String CHECKSUM_SHA_256 = StreamingChecksum.SHA_256;
+
+    /**
+     * Algorithm for {@link #setExpectedChecksum(String, String)}.
+     */
+    public static final String CHECKSUM_CRC32C = StreamingChecksum.CRC32C;
+
+    /**
+     * Durability for {@link #setDurability(int)}: the file is never synced, leaving it to the system to write the data
+     * when it sees fit. Suits small files that are cheap to download again, which then do not each pay for a sync.
+     */
+    public static final int DURABILITY_NONE = 0;
+
+    /**
+     * Durability for {@link #setDurability(int)}: the file is synced once the transfer ends. This is the default.
+     */
+    public static final int DURABILITY_ON_CLOSE = 1;
+
+    /**
+     * Durability for {@link #setDurability(int)}: the file is synced every few megabytes as well as when the transfer
+     * ends, and after a crash the download resumes from the last sync rather than trusting what the file holds.
+     * Suits large files, which then only download again what was written since.
+     */
+    public static final int DURABILITY_PERIODIC = 2;
+
     private final List<Pair<String, String>> requestHeaders = new ArrayList<>();
 
     private URI uri;
@@ -59,6 +97,17 @@ public class Request {
     private boolean alwaysResume;
     private boolean allowTarUpdates;
     private boolean noIntegrity;
+    private int maxSegments = 1;
+    private boolean channelTransfer;
+    private boolean writeBehind;
+    private int durability = DURABILITY_ON_CLOSE;
+    private String checksumAlgorithm;
+    private String expectedChecksum;
+    private String extractDirectory;
+    private final List<String> streamStages = new ArrayList<>();
+    private String deltaManifestUri;
+    private String deltaSeed;
+    private final List<String> mirrors = new ArrayList<>();
 
     /**
      * if a file is designated as a MediaScanner scannable file, the following value is
@@ -281,6 +330,142 @@ public class Request {
         return this;
     }
 
+    /**
+     * Split the download into up to {@code maxSegments} byte ranges fetched over parallel connections.
+     * This only applies when the server reports the size of the file and advertises support for
+     * byte ranges, otherwise the file is downloaded over a single connection.
+     */
+    public Request allowSegmentedDownload(int maxSegments) {
+        if (maxSegments < 1) {
+            throw new IllegalArgumentException("maxSegments must be at least 1, was " + maxSegments);
+        }
+        this.maxSegments = maxSegments;
+        return this;
+    }
+
+    /**
+     * Move the response body into the destination file through its channel in large slices, checking progress,
+     * pause and storage space once per slice rather than once per buffer. This does not apply to downloads
+     * with {@link #allowTarUpdates()}, which need to inspect the data as it goes.
+     */
+    public Request useChannelTransfer() {
+        channelTransfer = true;
+        return this;
+    }
+
+    /**
+     * Write the file from a separate thread, so that a slow storage does not hold up reading from the network
+     * and the reverse. The data is handed over through a bounded set of buffers and written in large chunks.
+     * This does not combine with {@link #useChannelTransfer()}, which takes precedence.
+     */
+    public Request useWriteBehind() {
+        writeBehind = true;
+        return this;
+    }
+
+    /**
+     * Choose when the downloaded data is synced to the storage, trading the cost of syncing against how much
+     * has to be downloaded again after the process or the device dies.
+     *
+     * @param durability one of {@link #DURABILITY_NONE}, {@link #DURABILITY_ON_CLOSE} or {@link #DURABILITY_PERIODIC}
+     */
+    public Request setDurability(int durability) {
+        if (durability != DURABILITY_NONE && durability != DURABILITY_ON_CLOSE && durability != DURABILITY_PERIODIC) {
+            throw new IllegalArgumentException("Unknown durability: " + durability);
+        }
+        this.durability = durability;
+        return this;
+    }
+
+    /**
+     * Verify the downloaded file against the given checksum, computed as the data arrives rather than by reading
+     * the file again once downloaded. A file that does not match fails with {@link DownloadManager#ERROR_CHECKSUM_MISMATCH}
+     * and is deleted.
+     *
+     * @param algorithm one of {@link #CHECKSUM_MD5}, {@link #CHECKSUM_SHA_1}, {@link #CHECKSUM_SHA_256} or {@link #CHECKSUM_CRC32C}
+     * @param checksum  the expected checksum, as hexadecimal
+     */
+    public Request setExpectedChecksum(String algorithm, String checksum) {
+        if (!StreamingChecksum.isSupported(algorithm)) {
+            throw new IllegalArgumentException("Unsupported checksum algorithm: " + algorithm);
+        }
+        this.checksumAlgorithm = algorithm;
+        this.expectedChecksum = checksum;
+        return this;
+    }
+
+    /**
+     * Unpack the downloaded tar or zip archive into the given directory as it arrives, rather than keeping the archive.
+     * The extraction resumes from the last extracted entry, and entries already extracted are skipped when the archive
+     * has to be downloaded again. Such downloads are not segmented and the expected checksum is not applied,
+     * as the archive itself is never stored.
+     *
+     * @param directory the directory to unpack into, created if needed
+     */
+    public Request extractArchiveTo(File directory) {
+        this.extractDirectory = directory.getAbsolutePath();
+        return this;
+    }
+
+    /**
+     * Pass the downloaded data through the {@link StreamStage} registered under this name before it reaches the file.
+     * Stages apply in the order they are added, replacing those registered for the MIME type of the download.
+     * The download then cannot resume, and starts again from the beginning when interrupted.
+     *
+     * @param name the name given to {@link DownloadManagerModules.Builder#withStreamStage(String, StreamStage)}
+     */
+    public Request addStreamStage(String name) {
+        if (name == null || name.isEmpty() || name.contains(StreamStages.NAME_SEPARATOR)) {
+            throw new IllegalArgumentException("Invalid stream stage name: " + name);
+        }
+        streamStages.add(name);
+        return this;
+    }
+
+    /**
+     * Only download the blocks of the file that differ from a previous version of it already on the device, as listed
+     * by a block checksum manifest published next to the file. Blocks found anywhere in the previous version are copied
+     * from it, the others are fetched with range requests, so the server has to support them. When the manifest or the
+     * previous version cannot be used, or does not describe the file the server sends, the whole file is downloaded.
+     * <p/>
+     * The manifest is a text file of {@code Length:} and {@code Block-Size:} header lines, an empty line, then a line per
+     * block with its rolling checksum as 8 hexadecimal digits and its MD5, separated by a space. The copied blocks are
+     * checked against the manifest, the fetched ones are not, so setting an {@link #setExpectedChecksum expected checksum}
+     * is recommended as well.
+     *
+     * @param manifestUri     the block checksum manifest of the file
+     * @param previousVersion the previous version of the file, which is left untouched
+     */
+    public Request setDeltaUpdate(URI manifestUri, File previousVersion) {
+        this.deltaManifestUri = manifestUri.toString();
+        this.deltaSeed = previousVersion.getAbsolutePath();
+        return this;
+    }
+
+    /**
+     * Add another URI serving the same file, byte for byte. The sources are raced when the download starts and the
+     * first one to answer is used. Should it fail or stall, the download carries on from another source, resuming
+     * where it got to. The source used last is reported in {@link DownloadContract.Downloads#COLUMN_SERVED_BY}.
+     *
+     * @param mirror an HTTP URI, tried after the download URI and the mirrors added before it when they answer as fast
+     */
+    public Request addMirror(URI mirror) {
+        validateUriScheme(mirror.toString(), mirror.getScheme());
+        mirrors.add(mirror.toString());
+        return this;
+    }
+
+    private String joinStreamStages() {
+        StringBuilder names = new StringBuilder();
+        for (String name : streamStages) {
+            if (names.length() > 0) {
+                names.append(StreamStages.NAME_SEPARATOR);
+            }
+            names.append(name);
+        }
+        return names.toString();
+    }
+
     /**
      * When a ETag header is present, the application should check the integrity of the
      * downloaded file, otherwise the current download won't be able to be resumed
@@ -516,6 +701,21 @@ public class Request {
         values.put(DownloadContract.Downloads.COLUMN_ALWAYS_RESUME, alwaysResume);
         values.put(DownloadContract.Downloads.COLUMN_ALLOW_TAR_UPDATES, allowTarUpdates);
         values.put(DownloadContract.Downloads.COLUMN_NO_INTEGRITY, noIntegrity);
+        values.put(DownloadContract.Downloads.COLUMN_MAX_SEGMENTS, maxSegments);
+        values.put(DownloadContract.Downloads.COLUMN_CHANNEL_TRANSFER, channelTransfer);
+        values.put(DownloadContract.Downloads.COLUMN_WRITE_BEHIND, writeBehind);
+        values.put(DownloadContract.Downloads.COLUMN_DURABILITY, durability);
+        values.put(DownloadContract.Downloads.COLUMN_CHECKSUM_ALGORITHM, checksumAlgorithm);
+        values.put(DownloadContract.Downloads.COLUMN_EXPECTED_CHECKSUM, expectedChecksum);
+        values.put(DownloadContract.Downloads.COLUMN_EXTRACT_DIRECTORY, extractDirectory);
+        values.put(DownloadContract.Downloads.COLUMN_DELTA_MANIFEST_URI, deltaManifestUri);
+        values.put(DownloadContract.Downloads.COLUMN_DELTA_SEED, deltaSeed);
+        if (!streamStages.isEmpty()) {
+            values.put(DownloadContract.Downloads.COLUMN_STREAM_STAGES, joinStreamStages());
+        }
+        if (!mirrors.isEmpty()) {
+            values.put(DownloadContract.Downloads.COLUMN_MIRRORS, DownloadSources.joinMirrors(mirrors));
+        }
 
         return values;
     }
@@ -9,6 +9,10 @@ import java.util.List;
 
 public class RequestBatch {
 
+    public static final int PRIORITY_LOW = 1;
+    public static final int PRIORITY_NORMAL = 2;
+    public static final int PRIORITY_HIGH = 4;
+
     private final BatchInfo batchInfo;
     private final List<Request> requests;
 
@@ -33,6 +37,10 @@ public class RequestBatch {
         return batchInfo.getExtraData();
     }
 
+    public int getPriority() {
+        return batchInfo.getPriority();
+    }
+
     List<Request> getRequests() {
         return requests;
     }
@@ -48,6 +56,7 @@ public class RequestBatch {
         values.put(DownloadContract.Batches.COLUMN_BIG_PICTURE, batchInfo.getBigPictureUrl());
         values.put(DownloadContract.Batches.COLUMN_VISIBILITY, batchInfo.getVisibility());
         values.put(DownloadContract.Batches.COLUMN_EXTRA_DATA, batchInfo.getExtraData());
+        values.put(DownloadContract.Batches.COLUMN_PRIORITY, batchInfo.getPriority());
         return values;
     }
 
@@ -59,6 +68,7 @@ public class RequestBatch {
         @NotificationVisibility.Value
         private int visibility;
         private String extraData;
+        private int priority = PRIORITY_NORMAL;
 
         public Builder withTitle(String title) {
             this.title = title;
@@ -85,8 +95,26 @@ public class RequestBatch {
             return this;
         }
 
+        /**
+         * A higher priority batch is served first whenever a download slot frees up. Where batches may run several
+         * downloads each, they also share the concurrent downloads in proportion to their priority, so that
+         * a {@link #PRIORITY_HIGH} batch gets twice the downloads of a {@link #PRIORITY_NORMAL} one.
+         * <p/>
+         * No batch runs more downloads than the {@code com.novoda.downloadmanager.MaxConcurrentDownloadsPerBatch}
+         * meta-data allows. That limit is 1 by default, in which case the priority only decides the order batches start in.
+         *
+         * @param priority a positive weight, {@link #PRIORITY_NORMAL} by default
+         */
+        public Builder withPriority(int priority) {
+            if (priority < 1) {
+                throw new IllegalArgumentException("Priority must be positive but was " + priority);
+            }
+            this.priority = priority;
+            return this;
+        }
+
         public RequestBatch build() {
-            BatchInfo batchInfo = new BatchInfo(title, description, bigPictureUrl, visibility, extraData);
+            BatchInfo batchInfo = new BatchInfo(title, description, bigPictureUrl, visibility, extraData, priority);
             return new RequestBatch(batchInfo, new ArrayList<Request>());
         }
 
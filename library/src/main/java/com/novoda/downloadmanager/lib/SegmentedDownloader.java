@@ -0,0 +1,261 @@
+package com.novoda.downloadmanager.lib;
+
+import android.os.SystemClock;
+
+import com.novoda.downloadmanager.lib.logger.LLog;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.novoda.downloadmanager.lib.IOHelpers.closeQuietly;
+
+/**
+ * Fetches the missing ranges of a {@link DownloadSegments} in parallel, one request per range,
+ * writing each range at its own position of an already allocated file.
+ * <p/>
+ * The calling thread coordinates the transfer: it reports progress through the given {@link DataWriter},
+ * which is where pause and cancel requests surface, and periodically checkpoints the segment offsets
+ * so that an interrupted download only refetches what is missing.
+ */
+class SegmentedDownloader {
+
+    private static final long POLL_INTERVAL_MILLIS = 500;
+    private static final long CHECKPOINT_INTERVAL_MILLIS = 5000;
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 5000;
+
+    private final DownloadSegments segments;
+    private final FileChannel fileChannel;
+    private final RangeRequester rangeRequester;
+    private final SpaceVerifier spaceVerifier;
+    private final DataWriter progressWriter;
+    private final CheckpointListener checkpointListener;
+    private final BufferPool bufferPool;
+    private final int maxConnections;
+
+    private final Set<InputStream> openStreams = Collections.synchronizedSet(new HashSet<InputStream>());
+    private volatile boolean stopped;
+    private long lastCheckpoint;
+
+    SegmentedDownloader(DownloadSegments segments,
+                        FileChannel fileChannel,
+                        RangeRequester rangeRequester,
+                        SpaceVerifier spaceVerifier,
+                        DataWriter progressWriter,
+                        CheckpointListener checkpointListener,
+                        BufferPool bufferPool,
+                        int maxConnections) {
+        this.segments = segments;
+        this.fileChannel = fileChannel;
+        this.rangeRequester = rangeRequester;
+        this.spaceVerifier = spaceVerifier;
+        this.progressWriter = progressWriter;
+        this.checkpointListener = checkpointListener;
+        this.bufferPool = bufferPool;
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Downloads every incomplete segment.
+     *
+     * @param firstSegmentStream an already open response body starting at byte zero, used for the first
+     *                           segment when it has not started yet; closed in any case. May be null.
+     */
+    DownloadTask.State download(DownloadTask.State state, InputStream firstSegmentStream) throws StopRequestException {
+        int pendingSegments = 0;
+        for (DownloadSegments.Segment segment : segments.getSegments()) {
+            if (!segment.isComplete()) {
+                pendingSegments++;
+            }
+        }
+        if (pendingSegments == 0) {
+            closeQuietly(firstSegmentStream);
+            return reportProgress(state);
+        }
+
+        // Segments beyond the connection limit, as with delta updates, wait for an earlier one to finish
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(pendingSegments, maxConnections));
+        CompletionService<Void> completionService = new ExecutorCompletionService<>(executor);
+        DownloadTask.State newState = state;
+        lastCheckpoint = SystemClock.elapsedRealtime();
+        try {
+            for (DownloadSegments.Segment segment : segments.getSegments()) {
+                if (segment.isComplete()) {
+                    continue;
+                }
+                InputStream initialStream = null;
+                if (segment.getNextPosition() == 0) {
+                    initialStream = firstSegmentStream;
+                    firstSegmentStream = null;
+                }
+                completionService.submit(new SegmentFetcher(segment, initialStream));
+            }
+
+            while (pendingSegments > 0) {
+                Future<Void> finished = completionService.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (finished != null) {
+                    pendingSegments--;
+                    finished.get();
+                }
+                newState = reportProgress(newState);
+            }
+            return newState;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StopRequestException(DownloadStatus.HTTP_DATA_ERROR, "interrupted while downloading segments", e);
+        } catch (ExecutionException e) {
+            throw asStopRequestException(e.getCause());
+        } finally {
+            closeQuietly(firstSegmentStream);
+            stop(executor);
+            checkpoint();
+        }
+    }
+
+    private DownloadTask.State reportProgress(DownloadTask.State state) throws StopRequestException {
+        long newBytes = segments.getDownloadedBytes() - state.currentBytes;
+        DownloadTask.State newState = progressWriter.write(state, null, (int) newBytes);
+
+        long now = SystemClock.elapsedRealtime();
+        if (now - lastCheckpoint > CHECKPOINT_INTERVAL_MILLIS) {
+            checkpoint();
+            lastCheckpoint = now;
+        }
+        return newState;
+    }
+
+    /**
+     * Offsets are only recorded once the bytes behind them are on disk,
+     * otherwise a crash could leave holes that would never be refetched.
+     */
+    private void checkpoint() {
+        try {
+            fileChannel.force(false);
+        } catch (IOException e) {
+            LLog.w(e, "Could not sync segmented download before checkpoint");
+            return;
+        }
+        checkpointListener.onCheckpoint(segments);
+    }
+
+    /**
+     * Fetchers are stopped by closing their streams rather than interrupting them,
+     * as an interrupt during a write would close the shared {@link FileChannel}.
+     */
+    private void stop(ExecutorService executor) {
+        stopped = true;
+        synchronized (openStreams) {
+            for (InputStream stream : openStreams) {
+                closeQuietly(stream);
+            }
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static StopRequestException asStopRequestException(Throwable cause) {
+        if (cause instanceof StopRequestException) {
+            return (StopRequestException) cause;
+        }
+        return new StopRequestException(DownloadStatus.UNKNOWN_ERROR, cause);
+    }
+
+    private class SegmentFetcher implements Callable<Void> {
+
+        private final DownloadSegments.Segment segment;
+        private final InputStream initialStream;
+
+        SegmentFetcher(DownloadSegments.Segment segment, InputStream initialStream) {
+            this.segment = segment;
+            this.initialStream = initialStream;
+        }
+
+        @Override
+        public Void call() throws StopRequestException {
+            InputStream in = initialStream;
+            try {
+                if (in == null) {
+                    in = rangeRequester.openRange(segment.getNextPosition(), segment.getEnd());
+                }
+                openStreams.add(in);
+                if (stopped) {
+                    return null;
+                }
+                fetch(in);
+                return null;
+            } finally {
+                if (in != null) {
+                    openStreams.remove(in);
+                    closeQuietly(in);
+                }
+            }
+        }
+
+        private void fetch(InputStream in) throws StopRequestException {
+            byte[] buffer = bufferPool.lease(Constants.BUFFER_SIZE);
+            try {
+                while (!segment.isComplete() && !stopped) {
+                    int count = (int) Math.min(buffer.length, segment.getRemainingBytes());
+                    int read;
+                    try {
+                        read = in.read(buffer, 0, count);
+                    } catch (IOException e) {
+                        if (stopped) {
+                            return;
+                        }
+                        throw new StopRequestException(DownloadStatus.HTTP_DATA_ERROR, e);
+                    }
+                    if (read == Constants.NO_BYTES_READ) {
+                        throw new StopRequestException(DownloadStatus.HTTP_DATA_ERROR, "closed socket before end of segment");
+                    }
+                    write(buffer, read, segment.getNextPosition());
+                    segment.advance(read);
+                }
+            } finally {
+                bufferPool.release(buffer);
+            }
+        }
+
+        private void write(byte[] buffer, int count, long position) throws StopRequestException {
+            ByteBuffer source = ByteBuffer.wrap(buffer, 0, count);
+            long writePosition = position;
+            try {
+                while (source.hasRemaining()) {
+                    writePosition += fileChannel.write(source, writePosition);
+                }
+            } catch (IOException e) {
+                spaceVerifier.verifySpace(count);
+                throw new StopRequestException(DownloadStatus.FILE_ERROR, "Failed to write data: " + e);
+            }
+        }
+    }
+
+    interface RangeRequester {
+
+        /**
+         * @return the body of a partial response covering the given inclusive range
+         */
+        InputStream openRange(long start, long end) throws StopRequestException;
+    }
+
+    interface CheckpointListener {
+
+        void onCheckpoint(DownloadSegments segments);
+    }
+}
@@ -0,0 +1,89 @@
+package com.novoda.downloadmanager.lib;
+
+import com.novoda.downloadmanager.lib.logger.LLog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Races the sources of a download against each other, so that it is served by the one with the shortest time to
+ * first byte rather than the one listed first.
+ * <p/>
+ * Probes of every download share the threads of one pool, which are kept for a while once idle.
+ */
+class SourceProber {
+
+    static final int NONE = -1;
+
+    private static final ExecutorService SHARED_EXECUTOR = Executors.newCachedThreadPool();
+
+    private final ExecutorService executor;
+    private final Probe probe;
+    private final long timeoutMillis;
+
+    SourceProber(Probe probe, long timeoutMillis) {
+        this(SHARED_EXECUTOR, probe, timeoutMillis);
+    }
+
+    SourceProber(ExecutorService executor, Probe probe, long timeoutMillis) {
+        this.executor = executor;
+        this.probe = probe;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @return the index of the first source to answer, or {@link #NONE} when none did in time
+     */
+    int fastest(List<String> sources) throws InterruptedException {
+        CompletionService<Integer> completionService = new ExecutorCompletionService<>(executor);
+        List<Future<Integer>> probes = new ArrayList<>(sources.size());
+        try {
+            for (int i = 0; i < sources.size(); i++) {
+                probes.add(completionService.submit(probeOf(sources.get(i), i)));
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            for (int pending = sources.size(); pending > 0; pending--) {
+                Future<Integer> answered = completionService.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (answered == null) {
+                    return NONE;
+                }
+                try {
+                    return answered.get();
+                } catch (ExecutionException e) {
+                    LLog.w("Source unavailable: " + e.getCause().getMessage());
+                }
+            }
+            return NONE;
+        } finally {
+            for (Future<Integer> pendingProbe : probes) {
+                pendingProbe.cancel(true);
+            }
+        }
+    }
+
+    private Callable<Integer> probeOf(final String source, final int index) {
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                probe.probe(source);
+                return index;
+            }
+        };
+    }
+
+    interface Probe {
+
+        /**
+         * Returns as soon as the source starts answering with the file, or throws when it cannot serve it.
+         */
+        void probe(String source) throws Exception;
+    }
+}
@@ -0,0 +1,49 @@
+package com.novoda.downloadmanager.lib;
+
+/**
+ * Tells when a connection still delivers data, but at a trickle compared to what it achieved so far,
+ * which a read timeout never catches.
+ * <p/>
+ * The speed samples of the download build up a reference speed. A connection is stalled once every sample
+ * for a whole window stayed below a fraction of that reference. Samples during a slowdown do not lower the
+ * reference, so that a connection cannot get used to its own stall.
+ */
+class StallDetector {
+
+    private final float minSpeedRatio;
+    private final long windowMillis;
+
+    private long referenceSpeed;
+    private long slowSince = -1;
+    private boolean stalled;
+
+    StallDetector(float minSpeedRatio, long windowMillis) {
+        this.minSpeedRatio = minSpeedRatio;
+        this.windowMillis = windowMillis;
+    }
+
+    void onSpeedSample(long now, long bytesPerSecond) {
+        if (referenceSpeed > 0 && bytesPerSecond < referenceSpeed * minSpeedRatio) {
+            if (slowSince == -1) {
+                slowSince = now;
+            } else if (now - slowSince >= windowMillis) {
+                stalled = true;
+            }
+            return;
+        }
+        slowSince = -1;
+        if (referenceSpeed == 0) {
+            referenceSpeed = bytesPerSecond;
+        } else {
+            referenceSpeed = ((referenceSpeed * 3) + bytesPerSecond) / 4;
+        }
+    }
+
+    boolean isStalled() {
+        return stalled;
+    }
+
+    long getReferenceSpeed() {
+        return referenceSpeed;
+    }
+}
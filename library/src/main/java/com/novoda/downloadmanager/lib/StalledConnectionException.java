@@ -0,0 +1,12 @@
+package com.novoda.downloadmanager.lib;
+
+/**
+ * Stops a transfer whose connection stalled, so that the download reconnects and resumes where it got to.
+ * When it cannot, it fails like any other interrupted transfer.
+ */
+class StalledConnectionException extends StopRequestException {
+
+    StalledConnectionException(String message) {
+        super(DownloadStatus.HTTP_DATA_ERROR, message);
+    }
+}
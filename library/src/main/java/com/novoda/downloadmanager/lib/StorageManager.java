@@ -31,7 +31,9 @@ import com.novoda.downloadmanager.lib.logger.LLog;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Manages the storage space consumed by Downloads Data dir. When space falls below
@@ -88,6 +90,11 @@ class StorageManager {
     private final ContentResolver contentResolver;
     private final DownloadsUriProvider downloadsUriProvider;
 
+    /**
+     * Space promised to the downloads in progress, by destination file.
+     */
+    private final Map<String, Reservation> reservations = new HashMap<>();
+
     private final static String FILE_SEPARATOR = File.separator;
 
     StorageManager(
@@ -153,8 +160,58 @@ class StorageManager {
 
     void verifySpace(int destination, String path, long length) throws StopRequestException {
         resetBytesDownloadedSinceLastCheckOnSpace();
-        File dir = null;
 //        LLog.i("in verifySpace, destination: " + destination + ", path: " + path + ", length: " + length);
+        File dir = rootOf(destination, path);
+        synchronized (this) {
+            findSpace(dir, length + reservedBytesOn(dir, path), destination);
+        }
+    }
+
+    /**
+     * Reserves the space the file still needs to reach the given length, on top of what the other downloads
+     * in progress reserved on the same filesystem. Concurrent downloads then cannot each find enough space
+     * for themselves and run out together halfway through; the one that does not fit fails before transferring.
+     * <p/>
+     * The reservation shrinks as the file grows, and lasts until {@link #releaseSpace(String)}.
+     */
+    void reserveSpace(int destination, String path, long totalBytes) throws StopRequestException {
+        File dir = rootOf(destination, path);
+        synchronized (this) {
+            Reservation reservation = new Reservation(dir, totalBytes);
+            findSpace(dir, reservation.missingBytes(path) + reservedBytesOn(dir, path), destination);
+            reservations.put(path, reservation);
+        }
+    }
+
+    /**
+     * A file whose length was set up front without allocating its blocks takes less space than its length tells,
+     * so its reservation shrinks as the segments are written instead. The downloads data dir is left as it is,
+     * as its quota counts the length of the files.
+     */
+    synchronized void trackSparseFile(String path, DownloadSegments segments) {
+        Reservation reservation = reservations.get(path);
+        if (reservation != null && !reservation.dir.equals(downloadDataDir)) {
+            reservation.writtenSegments = segments;
+        }
+    }
+
+    synchronized void releaseSpace(String path) {
+        reservations.remove(path);
+    }
+
+    private long reservedBytesOn(File dir, String excludedPath) {
+        long reservedBytes = 0;
+        for (Map.Entry<String, Reservation> entry : reservations.entrySet()) {
+            Reservation reservation = entry.getValue();
+            if (reservation.dir.equals(dir) && !entry.getKey().equals(excludedPath)) {
+                reservedBytes += reservation.missingBytes(entry.getKey());
+            }
+        }
+        return reservedBytes;
+    }
+
+    private File rootOf(int destination, String path) {
+        File dir = null;
         if (path == null) {
             throw new IllegalArgumentException("path can't be null");
         }
@@ -192,7 +249,7 @@ class StorageManager {
         if (dir == null) {
             throw new IllegalStateException("invalid combination of destination: " + destination + ", path: " + path);
         }
-        findSpace(dir, length, destination);
+        return dir;
     }
 
     /**
@@ -275,7 +332,7 @@ class StorageManager {
         return space;
     }
 
-    private long getAvailableBytesInFileSystemAtGivenRoot(File root) {
+    long getAvailableBytesInFileSystemAtGivenRoot(File root) {
         StatFs stat = new StatFs(root.getPath());
         // put a bit of margin (in case creating the file grows the system by a few blocks)
         long availableBlocks = (long) stat.getAvailableBlocks() - 4;
@@ -467,4 +524,21 @@ class StorageManager {
     private synchronized void resetBytesDownloadedSinceLastCheckOnSpace() {
         bytesDownloadedSinceLastCheckOnSpace = 0;
     }
+
+    private static class Reservation {
+
+        private final File dir;
+        private final long totalBytes;
+        private DownloadSegments writtenSegments;
+
+        Reservation(File dir, long totalBytes) {
+            this.dir = dir;
+            this.totalBytes = totalBytes;
+        }
+
+        long missingBytes(String path) {
+            long writtenBytes = writtenSegments == null ? new File(path).length() : writtenSegments.getDownloadedBytes();
+            return Math.max(0, totalBytes - writtenBytes);
+        }
+    }
 }
@@ -0,0 +1,26 @@
+package com.novoda.downloadmanager.lib;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A step the downloaded data goes through on its way to the file, such as decompressing, decrypting or hashing it,
+ * in the same pass as the download rather than reading the file again once downloaded.
+ * <p/>
+ * Stages are registered by name with {@link DownloadManagerModules.Builder#withStreamStage(String, StreamStage)} and
+ * chosen per download with {@link Request#addStreamStage(String)}, or for a MIME type with
+ * {@link DownloadManagerModules.Builder#withStreamStagesFor(String, String...)}. As the file then no longer matches
+ * the bytes received, downloads going through stages start again from the beginning rather than resume.
+ */
+public interface StreamStage {
+
+    /**
+     * Called for each transfer, from the download thread, so the returned stream only serves that transfer.
+     *
+     * @param destination where the processed data goes, either the next stage or the file
+     * @return the stream the data reaches this stage through. Closing it has to write whatever the stage still holds
+     * to the destination and close it, which finishes the following stages but leaves the file open.
+     */
+    OutputStream open(OutputStream destination) throws IOException;
+
+}
@@ -0,0 +1,115 @@
+package com.novoda.downloadmanager.lib;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The {@link StreamStage}s registered with the {@link DownloadManagerModules}, by name and by MIME type.
+ */
+public final class StreamStages {
+
+    static final String NAME_SEPARATOR = ",";
+
+    private final Map<String, StreamStage> stagesByName = new HashMap<>();
+    private final Map<String, List<String>> namesByMimeType = new HashMap<>();
+
+    StreamStages() {
+        // registered through DownloadManagerModules.Builder
+    }
+
+    void register(String name, StreamStage stage) {
+        if (name.isEmpty() || name.contains(NAME_SEPARATOR)) {
+            throw new IllegalArgumentException("Invalid stream stage name: " + name);
+        }
+        stagesByName.put(name, stage);
+    }
+
+    void registerFor(String mimeType, String... names) {
+        namesByMimeType.put(normalise(mimeType), Arrays.asList(names));
+    }
+
+    /**
+     * @param requestedNames the stages chosen for the download, as stored in the database, or null
+     * @return whether data of this download goes through any stage
+     */
+    boolean appliesTo(String requestedNames, String mimeType) {
+        return !namesFor(requestedNames, mimeType).isEmpty();
+    }
+
+    /**
+     * Stages asked for by the download come first, otherwise those registered for its MIME type.
+     */
+    List<StreamStage> stagesFor(String requestedNames, String mimeType) throws StopRequestException {
+        List<String> names = namesFor(requestedNames, mimeType);
+        List<StreamStage> stages = new ArrayList<>(names.size());
+        for (String name : names) {
+            StreamStage stage = stagesByName.get(name);
+            if (stage == null) {
+                throw new StopRequestException(DownloadStatus.UNKNOWN_ERROR, "No stream stage registered as " + name);
+            }
+            stages.add(stage);
+        }
+        return stages;
+    }
+
+    private List<String> namesFor(String requestedNames, String mimeType) {
+        if (requestedNames != null && !requestedNames.isEmpty()) {
+            return Arrays.asList(requestedNames.split(NAME_SEPARATOR));
+        }
+        if (mimeType != null) {
+            List<String> names = namesByMimeType.get(normalise(mimeType));
+            if (names != null) {
+                return names;
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    private static String normalise(String mimeType) {
+        return mimeType.trim().toLowerCase(Locale.US);
+    }
+
+    /**
+     * Chains the stages in front of the destination, the first stage receiving the downloaded data.
+     *
+     * @return the stream to write the downloaded data to, the destination itself when there are no stages
+     */
+    static OutputStream open(List<StreamStage> stages, OutputStream destination) throws IOException {
+        if (stages.isEmpty()) {
+            return destination;
+        }
+        OutputStream stream = new KeepOpenOutputStream(destination);
+        for (int i = stages.size() - 1; i >= 0; i--) {
+            stream = stages.get(i).open(stream);
+        }
+        return stream;
+    }
+
+    /**
+     * Lets closing the stages finish them without closing the file, which is synced and closed separately.
+     */
+    private static class KeepOpenOutputStream extends FilterOutputStream {
+
+        KeepOpenOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            out.write(buffer, offset, count);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
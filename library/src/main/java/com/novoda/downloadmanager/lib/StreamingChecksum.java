@@ -0,0 +1,476 @@
+package com.novoda.downloadmanager.lib;
+
+import java.util.Locale;
+
+/**
+ * A checksum computed as the data streams by, whose progress can be saved and restored,
+ * which {@link java.security.MessageDigest} does not allow.
+ * <p/>
+ * A saved state records the algorithm, how many bytes were hashed and the intermediate values,
+ * so that a resumed download only hashes the bytes it has not seen yet.
+ */
+abstract class StreamingChecksum {
+
+    static final String MD5 = "MD5";
+    static final String SHA_1 = "SHA-1";
+    static final String SHA_256 = "SHA-256";
+    static final String CRC32C = "CRC32C";
+
+    private static final String STATE_SEPARATOR = ":";
+
+    private final String algorithm;
+
+    long length;
+
+    /**
+     * @throws IllegalArgumentException when the algorithm is not supported
+     */
+    static StreamingChecksum newInstance(String algorithm) {
+        String name = algorithm.toUpperCase(Locale.US);
+        if (MD5.equals(name)) {
+            return new Md5();
+        }
+        if (SHA_1.equals(name)) {
+            return new Sha1();
+        }
+        if (SHA_256.equals(name)) {
+            return new Sha256();
+        }
+        if (CRC32C.equals(name)) {
+            return new Crc32c();
+        }
+        throw new IllegalArgumentException("Unsupported checksum algorithm: " + algorithm);
+    }
+
+    static boolean isSupported(String algorithm) {
+        String name = algorithm.toUpperCase(Locale.US);
+        return MD5.equals(name) || SHA_1.equals(name) || SHA_256.equals(name) || CRC32C.equals(name);
+    }
+
+    /**
+     * @return null when the state is missing, corrupted or of another algorithm
+     */
+    static StreamingChecksum fromState(String algorithm, String state) {
+        if (state == null) {
+            return null;
+        }
+        String[] parts = state.split(STATE_SEPARATOR, -1);
+        if (parts.length != 4 || !parts[0].equalsIgnoreCase(algorithm)) {
+            return null;
+        }
+        try {
+            StreamingChecksum checksum = newInstance(algorithm);
+            checksum.length = Long.parseLong(parts[1]);
+            checksum.restore(fromHex(parts[2]), fromHex(parts[3]));
+            return checksum;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Identifies content by its checksum, whatever the case of the algorithm and hexadecimal it is given in.
+     */
+    static String contentHash(String algorithm, String hex) {
+        return algorithm.toUpperCase(Locale.US) + STATE_SEPARATOR + hex.trim().toLowerCase(Locale.US);
+    }
+
+    StreamingChecksum(String algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * How many bytes were hashed so far.
+     */
+    long getLength() {
+        return length;
+    }
+
+    abstract void update(byte[] buffer, int offset, int count);
+
+    /**
+     * The checksum of the bytes hashed so far, as lowercase hexadecimal. Hashing can carry on afterwards.
+     */
+    abstract String toHex();
+
+    String saveState() {
+        return algorithm + STATE_SEPARATOR + length + STATE_SEPARATOR + toHex(saveValues()) + STATE_SEPARATOR + toHex(savePending());
+    }
+
+    abstract byte[] saveValues();
+
+    /**
+     * The bytes hashed but not processed yet, if any.
+     */
+    abstract byte[] savePending();
+
+    /**
+     * @throws IllegalArgumentException when the saved values do not fit this algorithm
+     */
+    abstract void restore(byte[] values, byte[] pending);
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte value : bytes) {
+            hex.append(Character.forDigit((value >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(value & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Odd hexadecimal length");
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high == -1 || low == -1) {
+                throw new IllegalArgumentException("Invalid hexadecimal: " + hex);
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+
+    /**
+     * The Merkle-Damgard hashes, which process 64 byte blocks and pad the last one with the message length.
+     */
+    private abstract static class BlockChecksum extends StreamingChecksum {
+
+        private static final int BLOCK_SIZE = 64;
+
+        private final int[] values;
+        private final boolean bigEndian;
+        private final byte[] block = new byte[BLOCK_SIZE];
+        private int blockFill;
+
+        BlockChecksum(String algorithm, int[] initialValues, boolean bigEndian) {
+            super(algorithm);
+            this.values = initialValues.clone();
+            this.bigEndian = bigEndian;
+        }
+
+        abstract void processBlock(int[] values, byte[] block);
+
+        @Override
+        void update(byte[] buffer, int offset, int count) {
+            length += count;
+            int position = offset;
+            int remaining = count;
+            while (remaining > 0) {
+                int copied = Math.min(remaining, BLOCK_SIZE - blockFill);
+                System.arraycopy(buffer, position, block, blockFill, copied);
+                blockFill += copied;
+                position += copied;
+                remaining -= copied;
+                if (blockFill == BLOCK_SIZE) {
+                    processBlock(values, block);
+                    blockFill = 0;
+                }
+            }
+        }
+
+        @Override
+        String toHex() {
+            int[] finalValues = values.clone();
+            byte[] lastBlock = new byte[BLOCK_SIZE];
+            System.arraycopy(block, 0, lastBlock, 0, blockFill);
+            lastBlock[blockFill] = (byte) 0x80;
+            if (blockFill >= BLOCK_SIZE - 8) {
+                processBlock(finalValues, lastBlock);
+                lastBlock = new byte[BLOCK_SIZE];
+            }
+            long bitLength = length * 8;
+            for (int i = 0; i < 8; i++) {
+                int shift = bigEndian ? 56 - 8 * i : 8 * i;
+                lastBlock[BLOCK_SIZE - 8 + i] = (byte) (bitLength >>> shift);
+            }
+            processBlock(finalValues, lastBlock);
+            return toHex(toBytes(finalValues));
+        }
+
+        @Override
+        byte[] saveValues() {
+            return toBytes(values);
+        }
+
+        @Override
+        byte[] savePending() {
+            byte[] pending = new byte[blockFill];
+            System.arraycopy(block, 0, pending, 0, blockFill);
+            return pending;
+        }
+
+        @Override
+        void restore(byte[] savedValues, byte[] pending) {
+            if (savedValues.length != values.length * 4 || pending.length >= BLOCK_SIZE || length % BLOCK_SIZE != pending.length) {
+                throw new IllegalArgumentException("Invalid " + getAlgorithm() + " state");
+            }
+            for (int i = 0; i < values.length; i++) {
+                values[i] = readInt(savedValues, 4 * i);
+            }
+            System.arraycopy(pending, 0, block, 0, pending.length);
+            blockFill = pending.length;
+        }
+
+        int readInt(byte[] bytes, int offset) {
+            if (bigEndian) {
+                return (bytes[offset] & 0xFF) << 24
+                        | (bytes[offset + 1] & 0xFF) << 16
+                        | (bytes[offset + 2] & 0xFF) << 8
+                        | (bytes[offset + 3] & 0xFF);
+            }
+            return (bytes[offset] & 0xFF)
+                    | (bytes[offset + 1] & 0xFF) << 8
+                    | (bytes[offset + 2] & 0xFF) << 16
+                    | (bytes[offset + 3] & 0xFF) << 24;
+        }
+
+        private byte[] toBytes(int[] words) {
+            byte[] bytes = new byte[words.length * 4];
+            for (int i = 0; i < words.length; i++) {
+                for (int j = 0; j < 4; j++) {
+                    int shift = bigEndian ? 24 - 8 * j : 8 * j;
+                    bytes[4 * i + j] = (byte) (words[i] >>> shift);
+                }
+            }
+            return bytes;
+        }
+    }
+
+    private static class Md5 extends BlockChecksum {
+
+        private static final int[] SHIFTS = {
+                7, 12, 17, 22, 7, 12, 17, 22, 7, 12, 17, 22, 7, 12, 17, 22,
+                5, 9, 14, 20, 5, 9, 14, 20, 5, 9, 14, 20, 5, 9, 14, 20,
+                4, 11, 16, 23, 4, 11, 16, 23, 4, 11, 16, 23, 4, 11, 16, 23,
+                6, 10, 15, 21, 6, 10, 15, 21, 6, 10, 15, 21, 6, 10, 15, 21
+        };
+        private static final int[] CONSTANTS = new int[64];
+
+        static {
+            for (int i = 0; i < CONSTANTS.length; i++) {
+                CONSTANTS[i] = (int) (long) (Math.abs(Math.sin(i + 1)) * 4294967296.0);
+            }
+        }
+
+        Md5() {
+            super(MD5, new int[]{0x67452301, 0xefcdab89, 0x98badcfe, 0x10325476}, false);
+        }
+
+        @Override
+        void processBlock(int[] values, byte[] block) {
+            int[] words = new int[16];
+            for (int i = 0; i < 16; i++) {
+                words[i] = readInt(block, 4 * i);
+            }
+            int a = values[0];
+            int b = values[1];
+            int c = values[2];
+            int d = values[3];
+            for (int i = 0; i < 64; i++) {
+                int f;
+                int g;
+                if (i < 16) {
+                    f = (b & c) | (~b & d);
+                    g = i;
+                } else if (i < 32) {
+                    f = (d & b) | (~d & c);
+                    g = (5 * i + 1) % 16;
+                } else if (i < 48) {
+                    f = b ^ c ^ d;
+                    g = (3 * i + 5) % 16;
+                } else {
+                    f = c ^ (b | ~d);
+                    g = (7 * i) % 16;
+                }
+                f += a + CONSTANTS[i] + words[g];
+                a = d;
+                d = c;
+                c = b;
+                b += Integer.rotateLeft(f, SHIFTS[i]);
+            }
+            values[0] += a;
+            values[1] += b;
+            values[2] += c;
+            values[3] += d;
+        }
+    }
+
+    private static class Sha1 extends BlockChecksum {
+
+        Sha1() {
+            super(SHA_1, new int[]{0x67452301, 0xefcdab89, 0x98badcfe, 0x10325476, 0xc3d2e1f0}, true);
+        }
+
+        @Override
+        void processBlock(int[] values, byte[] block) {
+            int[] words = new int[80];
+            for (int i = 0; i < 16; i++) {
+                words[i] = readInt(block, 4 * i);
+            }
+            for (int i = 16; i < 80; i++) {
+                words[i] = Integer.rotateLeft(words[i - 3] ^ words[i - 8] ^ words[i - 14] ^ words[i - 16], 1);
+            }
+            int a = values[0];
+            int b = values[1];
+            int c = values[2];
+            int d = values[3];
+            int e = values[4];
+            for (int i = 0; i < 80; i++) {
+                int f;
+                int k;
+                if (i < 20) {
+                    f = (b & c) | (~b & d);
+                    k = 0x5a827999;
+                } else if (i < 40) {
+                    f = b ^ c ^ d;
+                    k = 0x6ed9eba1;
+                } else if (i < 60) {
+                    f = (b & c) | (b & d) | (c & d);
+                    k = 0x8f1bbcdc;
+                } else {
+                    f = b ^ c ^ d;
+                    k = 0xca62c1d6;
+                }
+                int temp = Integer.rotateLeft(a, 5) + f + e + k + words[i];
+                e = d;
+                d = c;
+                c = Integer.rotateLeft(b, 30);
+                b = a;
+                a = temp;
+            }
+            values[0] += a;
+            values[1] += b;
+            values[2] += c;
+            values[3] += d;
+            values[4] += e;
+        }
+    }
+
+    private static class Sha256 extends BlockChecksum {
+
+        private static final int[] CONSTANTS = {
+                0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+                0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+                0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+                0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+                0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+                0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+                0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+                0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+        };
+
+        Sha256() {
+            super(SHA_256, new int[]{
+                    0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+            }, true);
+        }
+
+        @Override
+        void processBlock(int[] values, byte[] block) {
+            int[] words = new int[64];
+            for (int i = 0; i < 16; i++) {
+                words[i] = readInt(block, 4 * i);
+            }
+            for (int i = 16; i < 64; i++) {
+                int s0 = Integer.rotateRight(words[i - 15], 7) ^ Integer.rotateRight(words[i - 15], 18) ^ (words[i - 15] >>> 3);
+                int s1 = Integer.rotateRight(words[i - 2], 17) ^ Integer.rotateRight(words[i - 2], 19) ^ (words[i - 2] >>> 10);
+                words[i] = words[i - 16] + s0 + words[i - 7] + s1;
+            }
+            int a = values[0];
+            int b = values[1];
+            int c = values[2];
+            int d = values[3];
+            int e = values[4];
+            int f = values[5];
+            int g = values[6];
+            int h = values[7];
+            for (int i = 0; i < 64; i++) {
+                int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+                int choice = (e & f) ^ (~e & g);
+                int temp1 = h + s1 + choice + CONSTANTS[i] + words[i];
+                int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+                int majority = (a & b) ^ (a & c) ^ (b & c);
+                int temp2 = s0 + majority;
+                h = g;
+                g = f;
+                f = e;
+                e = d + temp1;
+                d = c;
+                c = b;
+                b = a;
+                a = temp1 + temp2;
+            }
+            values[0] += a;
+            values[1] += b;
+            values[2] += c;
+            values[3] += d;
+            values[4] += e;
+            values[5] += f;
+            values[6] += g;
+            values[7] += h;
+        }
+    }
+
+    private static class Crc32c extends StreamingChecksum {
+
+        private static final int POLYNOMIAL = 0x82f63b78;
+        private static final int[] TABLE = new int[256];
+
+        static {
+            for (int i = 0; i < TABLE.length; i++) {
+                int crc = i;
+                for (int bit = 0; bit < 8; bit++) {
+                    crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+                }
+                TABLE[i] = crc;
+            }
+        }
+
+        private int crc = 0xffffffff;
+
+        Crc32c() {
+            super(CRC32C);
+        }
+
+        @Override
+        void update(byte[] buffer, int offset, int count) {
+            length += count;
+            int value = crc;
+            for (int i = offset; i < offset + count; i++) {
+                value = (value >>> 8) ^ TABLE[(value ^ buffer[i]) & 0xff];
+            }
+            crc = value;
+        }
+
+        @Override
+        String toHex() {
+            return String.format(Locale.US, "%08x", ~crc);
+        }
+
+        @Override
+        byte[] saveValues() {
+            return new byte[]{(byte) (crc >>> 24), (byte) (crc >>> 16), (byte) (crc >>> 8), (byte) crc};
+        }
+
+        @Override
+        byte[] savePending() {
+            return new byte[0];
+        }
+
+        @Override
+        void restore(byte[] values, byte[] pending) {
+            if (values.length != 4 || pending.length != 0) {
+                throw new IllegalArgumentException("Invalid CRC32C state");
+            }
+            crc = (values[0] & 0xff) << 24 | (values[1] & 0xff) << 16 | (values[2] & 0xff) << 8 | (values[3] & 0xff);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.novoda.downloadmanager.lib;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Syncs the file every so many bytes the wrapped writer wrote, then reports how much of the download is on the
+ * storage, so that it can resume from there after a crash instead of trusting the length of the file.
+ */
+class SyncingWriter implements DataWriter {
+
+    private final DataWriter dataWriter;
+    private final OutputStream outputStream;
+    private final FileDescriptor fileDescriptor;
+    private final long syncIntervalBytes;
+    private final SyncListener syncListener;
+
+    private long bytesSinceSync;
+
+    public SyncingWriter(DataWriter dataWriter,
+                         OutputStream outputStream,
+                         FileDescriptor fileDescriptor,
+                         long syncIntervalBytes,
+                         SyncListener syncListener) {
+        this.dataWriter = dataWriter;
+        this.outputStream = outputStream;
+        this.fileDescriptor = fileDescriptor;
+        this.syncIntervalBytes = syncIntervalBytes;
+        this.syncListener = syncListener;
+    }
+
+    @Override
+    public DownloadTask.State write(DownloadTask.State state, byte[] buffer, int count) throws StopRequestException {
+        DownloadTask.State newState = dataWriter.write(state, buffer, count);
+        bytesSinceSync += count;
+        if (bytesSinceSync >= syncIntervalBytes) {
+            sync(newState.currentBytes);
+            bytesSinceSync = 0;
+        }
+        return newState;
+    }
+
+    private void sync(long durableBytes) throws StopRequestException {
+        try {
+            outputStream.flush();
+            fileDescriptor.sync();
+        } catch (IOException e) {
+            throw new StopRequestException(DownloadStatus.FILE_ERROR, "Failed to sync data: " + e);
+        }
+        syncListener.onSynced(durableBytes);
+    }
+
+    interface SyncListener {
+        void onSynced(long durableBytes);
+    }
+}
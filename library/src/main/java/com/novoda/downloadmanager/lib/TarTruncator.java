@@ -8,17 +8,19 @@ class TarTruncator implements DataTransferer {
     private static final byte BYTE_ZERO = 0x0;
 
     private final DataWriter dataWriter;
+    private final BufferPool bufferPool;
 
-    public TarTruncator(DataWriter dataWriter) {
+    public TarTruncator(DataWriter dataWriter, BufferPool bufferPool) {
         this.dataWriter = dataWriter;
+        this.bufferPool = bufferPool;
     }
 
     @Override
     public DownloadTask.State transferData(DownloadTask.State state, InputStream in) throws StopRequestException {
         DownloadTask.State newState = state;
+        byte[] buffer = bufferPool.lease(Constants.TAR_RECORD_SIZE);
+        byte[] previousBuffer = bufferPool.lease(Constants.TAR_RECORD_SIZE);
         try {
-            byte[] buffer = new byte[Constants.TAR_RECORD_SIZE];
-            byte[] previousBuffer = new byte[Constants.TAR_RECORD_SIZE];
             byte[] swappingRef;
             int read;
             int previouslyRead = 0;
@@ -39,6 +41,9 @@ class TarTruncator implements DataTransferer {
         } catch (IOException e) {
             // It was doing the same thing in regular and exception cases
             return newState;
+        } finally {
+            bufferPool.release(buffer);
+            bufferPool.release(previousBuffer);
         }
     }
 
@@ -0,0 +1,239 @@
+package com.novoda.downloadmanager.lib;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Hands the written data over to a writer thread, so that the caller does not wait on the underlying stream.
+ * <p/>
+ * Data is copied into a bounded ring of buffers, each written to the underlying stream in one go once full.
+ * When every buffer is waiting for the writer thread, writing blocks until one is free again.
+ * <p/>
+ * A failure of the underlying stream is remembered and thrown by every following call, so it surfaces
+ * on the caller's side the same way a direct write failure would, one write late at most.
+ * {@link #flush()} and {@link #close()} only return once everything written so far has reached the underlying stream.
+ */
+class WriteBehindOutputStream extends OutputStream {
+
+    private static final Chunk END = new Chunk(null, 0, null);
+
+    private final OutputStream out;
+    private final BufferPool bufferPool;
+    private final BlockingQueue<byte[]> freeBuffers;
+    private final BlockingQueue<Chunk> pendingChunks;
+    private final Thread writerThread;
+
+    private volatile IOException failure;
+    private byte[] filling;
+    private int filled;
+    private boolean closed;
+
+    WriteBehindOutputStream(OutputStream out, BufferPool bufferPool, int bufferSize, int bufferCount) {
+        this.out = out;
+        this.bufferPool = bufferPool;
+        this.freeBuffers = new ArrayBlockingQueue<>(bufferCount);
+        this.pendingChunks = new ArrayBlockingQueue<>(bufferCount + 1);
+        for (int i = 0; i < bufferCount; i++) {
+            freeBuffers.add(bufferPool.lease(bufferSize));
+        }
+        this.writerThread = new Thread(drainChunks, "DownloadManager-WriteBehind");
+        writerThread.start();
+    }
+
+    @Override
+    public void write(int oneByte) throws IOException {
+        write(new byte[]{(byte) oneByte}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        throwIfFailedOrClosed();
+        int position = offset;
+        int remaining = count;
+        while (remaining > 0) {
+            if (filling == null) {
+                filling = take(freeBuffers);
+                filled = 0;
+            }
+            int copied = Math.min(remaining, filling.length - filled);
+            System.arraycopy(buffer, position, filling, filled, copied);
+            filled += copied;
+            position += copied;
+            remaining -= copied;
+            if (filled == filling.length) {
+                handOverFilling(null);
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        throwIfFailedOrClosed();
+        CountDownLatch written = new CountDownLatch(1);
+        handOverFilling(written);
+        await(written);
+        throwIfFailed();
+    }
+
+    /**
+     * Releases the buffers and closes the underlying stream even when writing has failed, then throws that failure.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            if (failure == null) {
+                flush();
+            }
+        } finally {
+            closed = true;
+            try {
+                stopWriter();
+            } finally {
+                releaseBuffers();
+                out.close();
+            }
+        }
+        throwIfFailed();
+    }
+
+    private void stopWriter() throws InterruptedIOException {
+        try {
+            put(END);
+            join(writerThread);
+        } catch (InterruptedIOException e) {
+            writerThread.interrupt();
+            throw e;
+        }
+    }
+
+    private void handOverFilling(CountDownLatch written) throws IOException {
+        if (filling == null && written == null) {
+            return;
+        }
+        put(new Chunk(filling, filled, written));
+        filling = null;
+        filled = 0;
+    }
+
+    private void throwIfFailedOrClosed() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        throwIfFailed();
+    }
+
+    private void throwIfFailed() throws IOException {
+        IOException writeFailure = failure;
+        if (writeFailure != null) {
+            throw new IOException("Failed to write behind: " + writeFailure.getMessage(), writeFailure);
+        }
+    }
+
+    private void releaseBuffers() {
+        if (filling != null) {
+            bufferPool.release(filling);
+            filling = null;
+        }
+        byte[] buffer;
+        while ((buffer = freeBuffers.poll()) != null) {
+            bufferPool.release(buffer);
+        }
+    }
+
+    private final Runnable drainChunks = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                Chunk chunk;
+                try {
+                    chunk = pendingChunks.take();
+                } catch (InterruptedException e) {
+                    failure = new InterruptedIOException("Interrupted while writing behind");
+                    return;
+                }
+                if (chunk == END) {
+                    return;
+                }
+                writeToDisk(chunk);
+            }
+        }
+
+        private void writeToDisk(Chunk chunk) {
+            try {
+                if (failure == null) {
+                    if (chunk.buffer != null) {
+                        out.write(chunk.buffer, 0, chunk.count);
+                    }
+                    if (chunk.written != null) {
+                        out.flush();
+                    }
+                }
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                if (chunk.buffer != null) {
+                    freeBuffers.add(chunk.buffer);
+                }
+                if (chunk.written != null) {
+                    chunk.written.countDown();
+                }
+            }
+        }
+    };
+
+    private static byte[] take(BlockingQueue<byte[]> queue) throws InterruptedIOException {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a free buffer");
+        }
+    }
+
+    private void put(Chunk chunk) throws InterruptedIOException {
+        try {
+            pendingChunks.put(chunk);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while handing data over");
+        }
+    }
+
+    private static void await(CountDownLatch latch) throws InterruptedIOException {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for data to be written");
+        }
+    }
+
+    private static void join(Thread thread) throws InterruptedIOException {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the writer to finish");
+        }
+    }
+
+    private static class Chunk {
+
+        private final byte[] buffer;
+        private final int count;
+        private final CountDownLatch written;
+
+        Chunk(byte[] buffer, int count, CountDownLatch written) {
+            this.buffer = buffer;
+            this.count = count;
+            this.written = written;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.novoda.downloadmanager.lib;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+
+public class ArchiveExtractorTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final List<ExtractionCheckpoint> checkpoints = new ArrayList<>();
+    private final CountingProgressWriter progressWriter = new CountingProgressWriter();
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = temporaryFolder.newFolder("extracted");
+    }
+
+    @Test
+    public void itExtractsEveryFileOfATar() throws Exception {
+        byte[] tar = tarOf(entry("first.txt", "first"), entry("nested/second.txt", "second"));
+
+        extract(null, tar);
+
+        assertThat(contentOf("first.txt")).isEqualTo("first");
+        assertThat(contentOf("nested/second.txt")).isEqualTo("second");
+    }
+
+    @Test
+    public void itExtractsEveryFileOfAZip() throws Exception {
+        byte[] zip = zipOf(entry("first.txt", "first"), entry("nested/second.txt", "second"));
+
+        extract(null, zip);
+
+        assertThat(contentOf("first.txt")).isEqualTo("first");
+        assertThat(contentOf("nested/second.txt")).isEqualTo("second");
+    }
+
+    @Test
+    public void itCountsEveryByteOfTheArchiveAsProgress() throws Exception {
+        byte[] tar = tarOf(entry("first.txt", "first"));
+
+        extract(null, tar);
+
+        assertThat(progressWriter.bytes).isEqualTo(tar.length);
+    }
+
+    @Test
+    public void givenATarThenACheckpointIsReportedAtEachEntryBoundary() throws Exception {
+        byte[] tar = tarOf(entry("first.txt", "first"), entry("second.txt", "second"));
+
+        extract(null, tar);
+
+        assertThat(checkpoints).hasSize(2);
+        assertThat(checkpoints.get(0).getOffset()).isEqualTo(2 * Constants.TAR_BLOCK_SIZE);
+        assertThat(checkpoints.get(1).getOffset()).isEqualTo(4 * Constants.TAR_BLOCK_SIZE);
+        assertThat(checkpoints.get(1).getEntries()).isEqualTo(2);
+    }
+
+    @Test
+    public void givenATarCheckpointThenExtractionResumesFromItsOffset() throws Exception {
+        byte[] tar = tarOf(entry("first.txt", "first"), entry("second.txt", "second"));
+        ExtractionCheckpoint checkpoint = new ExtractionCheckpoint(ExtractionCheckpoint.FORMAT_TAR, 2 * Constants.TAR_BLOCK_SIZE, 1);
+
+        extract(checkpoint, Arrays.copyOfRange(tar, 2 * Constants.TAR_BLOCK_SIZE, tar.length));
+
+        assertThat(new File(directory, "first.txt").exists()).isFalse();
+        assertThat(contentOf("second.txt")).isEqualTo("second");
+        assertThat(checkpoints.get(0).getOffset()).isEqualTo(4 * Constants.TAR_BLOCK_SIZE);
+        assertThat(checkpoints.get(0).getEntries()).isEqualTo(2);
+    }
+
+    @Test
+    public void givenACheckpointFromTheStartThenExtractedEntriesAreSkipped() throws Exception {
+        byte[] zip = zipOf(entry("first.txt", "first"), entry("second.txt", "second"));
+        ExtractionCheckpoint checkpoint = new ExtractionCheckpoint(ExtractionCheckpoint.FORMAT_ZIP, 0, 1);
+
+        extract(checkpoint, zip);
+
+        assertThat(new File(directory, "first.txt").exists()).isFalse();
+        assertThat(contentOf("second.txt")).isEqualTo("second");
+    }
+
+    @Test
+    public void givenTheArchiveIsCutShortThenNoCheckpointIsReportedForThePartialEntry() throws Exception {
+        byte[] tar = tarOf(entry("first.txt", "first"), entry("second.txt", "second"));
+
+        extract(null, Arrays.copyOf(tar, 3 * Constants.TAR_BLOCK_SIZE + 3));
+
+        assertThat(checkpoints).hasSize(1);
+        assertThat(checkpoints.get(0).getEntries()).isEqualTo(1);
+    }
+
+    @Test
+    public void givenAnEntryOutsideOfTheDirectoryThenExtractionStops() throws Exception {
+        byte[] tar = tarOf(entry("../escaped.txt", "escaped"));
+
+        try {
+            extract(null, tar);
+            fail("The entry should not have been extracted");
+        } catch (StopRequestException e) {
+            assertThat(e.getFinalStatus()).isEqualTo(DownloadStatus.FILE_ERROR);
+        }
+        assertThat(new File(directory.getParentFile(), "escaped.txt").exists()).isFalse();
+    }
+
+    @Test
+    public void givenALargeSizeInBinaryThenItIsParsed() throws Exception {
+        byte[] header = new byte[Constants.TAR_BLOCK_SIZE];
+        header[124] = (byte) 0x80;
+        header[134] = 0x01;
+        header[135] = 0x00;
+
+        assertThat(ArchiveExtractor.parseTarNumber(header, 124, 12)).isEqualTo(256);
+    }
+
+    private void extract(ExtractionCheckpoint checkpoint, byte[] archive) throws StopRequestException {
+        ArchiveExtractor extractor = new ArchiveExtractor(
+                directory,
+                checkpoint,
+                new UnlimitedSpaceVerifier(),
+                new BufferPool(1),
+                progressWriter,
+                new ArchiveExtractor.ExtractionListener() {
+                    @Override
+                    public void onEntryExtracted(ExtractionCheckpoint checkpoint) {
+                        checkpoints.add(checkpoint);
+                    }
+                }
+        );
+        extractor.transferData(new DownloadTask.State(), new ByteArrayInputStream(archive));
+    }
+
+    private String contentOf(String name) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(new File(directory, name), "r");
+        try {
+            byte[] content = new byte[(int) file.length()];
+            file.readFully(content);
+            return new String(content, "UTF-8");
+        } finally {
+            file.close();
+        }
+    }
+
+    private static String[] entry(String name, String content) {
+        return new String[]{name, content};
+    }
+
+    private static byte[] tarOf(String[]... entries) throws IOException {
+        ByteArrayOutputStream tar = new ByteArrayOutputStream();
+        for (String[] entry : entries) {
+            byte[] content = entry[1].getBytes("UTF-8");
+            byte[] header = new byte[Constants.TAR_BLOCK_SIZE];
+            byte[] name = entry[0].getBytes("UTF-8");
+            System.arraycopy(name, 0, header, 0, name.length);
+            byte[] size = String.format("%011o", content.length).getBytes("UTF-8");
+            System.arraycopy(size, 0, header, 124, size.length);
+            header[156] = '0';
+            tar.write(header);
+            tar.write(content);
+            tar.write(new byte[Constants.TAR_BLOCK_SIZE - content.length % Constants.TAR_BLOCK_SIZE]);
+        }
+        tar.write(new byte[2 * Constants.TAR_BLOCK_SIZE]);
+        return tar.toByteArray();
+    }
+
+    private static byte[] zipOf(String[]... entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(bytes);
+        for (String[] entry : entries) {
+            zip.putNextEntry(new ZipEntry(entry[0]));
+            zip.write(entry[1].getBytes("UTF-8"));
+            zip.closeEntry();
+        }
+        zip.close();
+        return bytes.toByteArray();
+    }
+
+    private static class CountingProgressWriter implements DataWriter {
+
+        private long bytes;
+
+        @Override
+        public DownloadTask.State write(DownloadTask.State state, byte[] buffer, int count) {
+            bytes += count;
+            return state;
+        }
+    }
+
+    private static class UnlimitedSpaceVerifier implements SpaceVerifier {
+
+        @Override
+        public void verifySpacePreemptively(int count) {
+            // always enough space
+        }
+
+        @Override
+        public void verifySpace(int count) {
+            // always enough space
+        }
+    }
+}
@@ -38,6 +38,8 @@ public class BatchStartingRepositoryTest {
     private static final Uri CONTENT_URI = mock(Uri.class);
     private static final Uri DOWNLOADS_WITHOUT_PROGRESS_URI = mock(Uri.class);
     private static final Uri BATCHES_WITHOUT_PROGRESS_URI = mock(Uri.class);
+    private static final Uri DOWNLOADS_PROGRESS_URI = mock(Uri.class);
+    private static final Uri BATCH_CHANGES_URI = mock(Uri.class);
 
     private static final long ANY_BATCH_ID = 1l;
     public static final int SQL_TRUE = 1;
@@ -115,7 +117,9 @@ public class BatchStartingRepositoryTest {
                 BATCHES_URI,
                 CONTENT_URI,
                 DOWNLOADS_WITHOUT_PROGRESS_URI,
-                BATCHES_WITHOUT_PROGRESS_URI
+                BATCHES_WITHOUT_PROGRESS_URI,
+                DOWNLOADS_PROGRESS_URI,
+                BATCH_CHANGES_URI
         );
     }
 }
@@ -48,6 +48,8 @@ public class BatchStatusRepositoryTests {
     private static final Uri CONTENT_URI = mock(Uri.class);
     private static final Uri DOWNLOADS_WITHOUT_PROGRESS_URI = mock(Uri.class);
     private static final Uri BATCHES_WITHOUT_PROGRESS_URI = mock(Uri.class);
+    private static final Uri DOWNLOADS_PROGRESS_URI = mock(Uri.class);
+    private static final Uri BATCH_CHANGES_URI = mock(Uri.class);
 
     private static final long CURRENT_TIME_MILLIS = 1l;
 
@@ -316,7 +318,9 @@ public class BatchStatusRepositoryTests {
                 BATCHES_URI,
                 CONTENT_URI,
                 DOWNLOADS_WITHOUT_PROGRESS_URI,
-                BATCHES_WITHOUT_PROGRESS_URI
+                BATCHES_WITHOUT_PROGRESS_URI,
+                DOWNLOADS_PROGRESS_URI,
+                BATCH_CHANGES_URI
         );
     }
 }
@@ -0,0 +1,122 @@
+package com.novoda.downloadmanager.lib;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+
+public class BlockMatcherTest {
+
+    private static final int BLOCK_SIZE = 64;
+
+    @Test
+    public void givenTheSameFileThenEveryFullBlockIsFoundInPlace() throws Exception {
+        byte[] file = dataOf(4 * BLOCK_SIZE, 1);
+
+        long[] offsets = match(file, file);
+
+        assertThat(offsets).isEqualTo(new long[]{0, 64, 128, 192});
+    }
+
+    @Test
+    public void givenBytesInsertedInThePreviousVersionThenTheFollowingBlocksAreFoundWhereTheyMoved() throws Exception {
+        byte[] file = dataOf(4 * BLOCK_SIZE, 1);
+        byte[] previousVersion = concat(slice(file, 0, BLOCK_SIZE), dataOf(10, 2), slice(file, BLOCK_SIZE, 3 * BLOCK_SIZE));
+
+        long[] offsets = match(file, previousVersion);
+
+        assertThat(offsets).isEqualTo(new long[]{0, 74, 138, 202});
+    }
+
+    @Test
+    public void givenAChangedBlockThenOnlyThatBlockIsNotFound() throws Exception {
+        byte[] file = dataOf(4 * BLOCK_SIZE, 1);
+        byte[] previousVersion = file.clone();
+        previousVersion[2 * BLOCK_SIZE + 5] ^= 0x7F;
+
+        long[] offsets = match(file, previousVersion);
+
+        assertThat(offsets).isEqualTo(new long[]{0, 64, BlockMatcher.NOT_FOUND, 192});
+    }
+
+    @Test
+    public void givenAShortLastBlockThenItIsAlwaysFetched() throws Exception {
+        byte[] file = dataOf(2 * BLOCK_SIZE + 10, 1);
+
+        long[] offsets = match(file, file);
+
+        assertThat(offsets).isEqualTo(new long[]{0, 64, BlockMatcher.NOT_FOUND});
+    }
+
+    @Test
+    public void givenAnUnrelatedPreviousVersionThenNoBlockIsFound() throws Exception {
+        byte[] file = dataOf(3 * BLOCK_SIZE, 1);
+
+        long[] offsets = match(file, dataOf(3 * BLOCK_SIZE, 2));
+
+        assertThat(offsets).isEqualTo(new long[]{BlockMatcher.NOT_FOUND, BlockMatcher.NOT_FOUND, BlockMatcher.NOT_FOUND});
+    }
+
+    @Test
+    public void givenAManifestMissingBlocksThenItIsRejected() {
+        String manifest = "Length: 128\nBlock-Size: 64\n\n0000abcd 0123456789abcdef0123456789abcdef\n";
+
+        try {
+            DeltaManifest.parse(new ByteArrayInputStream(manifest.getBytes(Charset.forName("US-ASCII"))));
+            fail("A manifest missing blocks should be rejected");
+        } catch (IOException e) {
+            assertThat(e.getMessage()).contains("block 1");
+        }
+    }
+
+    private static long[] match(byte[] file, byte[] previousVersion) throws IOException {
+        DeltaManifest manifest = DeltaManifest.parse(new ByteArrayInputStream(manifestOf(file).getBytes(Charset.forName("US-ASCII"))));
+        return new BlockMatcher(manifest).match(new ByteArrayInputStream(previousVersion));
+    }
+
+    private static String manifestOf(byte[] file) {
+        StringBuilder manifest = new StringBuilder();
+        manifest.append("Length: ").append(file.length).append('\n');
+        manifest.append("Block-Size: ").append(BLOCK_SIZE).append('\n');
+        manifest.append('\n');
+        for (int start = 0; start < file.length; start += BLOCK_SIZE) {
+            int length = Math.min(BLOCK_SIZE, file.length - start);
+            manifest.append(String.format("%08x", DeltaManifest.weakChecksum(file, start, length)))
+                    .append(' ')
+                    .append(BlockMatcher.strongChecksum(file, start, length))
+                    .append('\n');
+        }
+        return manifest.toString();
+    }
+
+    private static byte[] dataOf(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] slice(byte[] data, int start, int length) {
+        byte[] slice = new byte[length];
+        System.arraycopy(data, start, slice, 0, length);
+        return slice;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] data = new byte[length];
+        int position = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, data, position, part.length);
+            position += part.length;
+        }
+        return data;
+    }
+}
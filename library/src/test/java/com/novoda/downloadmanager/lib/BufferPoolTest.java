@@ -0,0 +1,78 @@
+package com.novoda.downloadmanager.lib;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class BufferPoolTest {
+
+    private static final int SIZE = 16;
+
+    private BufferPool bufferPool;
+
+    @Before
+    public void setUp() {
+        bufferPool = new BufferPool(2);
+    }
+
+    @Test
+    public void givenAnEmptyPoolThenANewBufferIsAllocated() {
+        byte[] buffer = bufferPool.lease(SIZE);
+
+        assertThat(buffer).hasSize(SIZE);
+        assertThat(bufferPool.getMissCount()).isEqualTo(1);
+        assertThat(bufferPool.getHitCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void givenAReleasedBufferThenItIsLeasedAgain() {
+        byte[] buffer = bufferPool.lease(SIZE);
+        bufferPool.release(buffer);
+
+        byte[] leased = bufferPool.lease(SIZE);
+
+        assertThat(leased).isSameAs(buffer);
+        assertThat(bufferPool.getHitCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void givenAReleasedBufferOfAnotherSizeThenANewBufferIsAllocated() {
+        bufferPool.release(new byte[SIZE * 2]);
+
+        byte[] leased = bufferPool.lease(SIZE);
+
+        assertThat(leased).hasSize(SIZE);
+        assertThat(bufferPool.getMissCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void givenAReleasedDirectBufferThenItIsLeasedAgainCleared() {
+        ByteBuffer buffer = bufferPool.leaseDirect(SIZE);
+        buffer.put((byte) 1);
+        bufferPool.release(buffer);
+
+        ByteBuffer leased = bufferPool.leaseDirect(SIZE);
+
+        assertThat(leased).isSameAs(buffer);
+        assertThat(leased.isDirect()).isTrue();
+        assertThat(leased.remaining()).isEqualTo(SIZE);
+        assertThat(bufferPool.getHitCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void givenThePoolIsFullThenReleasedBuffersAreDropped() {
+        bufferPool.release(new byte[SIZE]);
+        bufferPool.release(new byte[SIZE]);
+        bufferPool.release(new byte[SIZE]);
+
+        bufferPool.lease(SIZE);
+        bufferPool.lease(SIZE);
+        bufferPool.lease(SIZE);
+
+        assertThat(bufferPool.getHitCount()).isEqualTo(2);
+        assertThat(bufferPool.getMissCount()).isEqualTo(1);
+    }
+}
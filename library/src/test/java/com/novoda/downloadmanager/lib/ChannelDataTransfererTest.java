@@ -0,0 +1,155 @@
+package com.novoda.downloadmanager.lib;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.verify;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class ChannelDataTransfererTest {
+
+    private static final int SLICES = 3;
+
+    @Mock
+    private SpaceVerifier spaceVerifier;
+
+    private File file;
+    private FileOutputStream out;
+    private DownloadTask.State state;
+    private BufferPool bufferPool;
+
+    @Before
+    public void setUp() throws IOException {
+        initMocks(this);
+        file = File.createTempFile("channel", ".tmp");
+        state = new DownloadTask.State();
+        bufferPool = new BufferPool(1);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (out != null) {
+            out.close();
+        }
+        file.delete();
+    }
+
+    @Test
+    public void itMovesTheWholeBodyIntoTheFile() throws Exception {
+        byte[] body = bodyOf(SLICES * (int) Constants.CHANNEL_TRANSFER_SLICE_SIZE + 42);
+
+        DownloadTask.State newState = transfer(new ByteArrayInputStream(body));
+
+        assertThat(contentOf(file)).isEqualTo(body);
+        assertThat(newState.currentBytes).isEqualTo(body.length);
+        assertThat(newState.gotData).isTrue();
+    }
+
+    @Test
+    public void itAppendsToWhatWasAlreadyDownloaded() throws Exception {
+        byte[] alreadyDownloaded = bodyOf(10);
+        FileOutputStream existing = new FileOutputStream(file);
+        existing.write(alreadyDownloaded);
+        existing.close();
+        byte[] body = bodyOf(20);
+
+        transfer(new ByteArrayInputStream(body));
+
+        byte[] expected = Arrays.copyOf(alreadyDownloaded, 30);
+        System.arraycopy(body, 0, expected, 10, 20);
+        assertThat(contentOf(file)).isEqualTo(expected);
+    }
+
+    @Test
+    public void itVerifiesSpaceBeforeEachSlice() throws Exception {
+        transfer(new ByteArrayInputStream(bodyOf(42)));
+
+        verify(spaceVerifier, atLeastOnce()).verifySpacePreemptively(anyInt());
+    }
+
+    @Test
+    public void givenTheConnectionDropsThenWhatWasReadSoFarIsAccountedFor() throws Exception {
+        byte[] body = bodyOf(100);
+
+        DownloadTask.State newState = transfer(new DroppingInputStream(body));
+
+        assertThat(newState.currentBytes).isEqualTo(body.length);
+        assertThat(file.length()).isEqualTo(body.length);
+    }
+
+    @Test
+    public void givenASecondTransferThenItReusesTheBufferOfTheFirst() throws Exception {
+        transfer(new ByteArrayInputStream(bodyOf(42)));
+        out.close();
+
+        transfer(new ByteArrayInputStream(bodyOf(42)));
+
+        assertThat(bufferPool.getMissCount()).isEqualTo(1);
+        assertThat(bufferPool.getHitCount()).isEqualTo(1);
+    }
+
+    private DownloadTask.State transfer(InputStream in) throws Exception {
+        out = new FileOutputStream(file, true);
+        ChannelDataTransferer transferer = new ChannelDataTransferer(out.getChannel(), spaceVerifier, new CountingWriter(), bufferPool);
+        return transferer.transferData(state, in);
+    }
+
+    private static byte[] bodyOf(int size) {
+        byte[] body = new byte[size];
+        for (int i = 0; i < size; i++) {
+            body[i] = (byte) i;
+        }
+        return body;
+    }
+
+    private static byte[] contentOf(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            byte[] content = new byte[(int) randomAccessFile.length()];
+            randomAccessFile.readFully(content);
+            return content;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static class DroppingInputStream extends InputStream {
+
+        private final ByteArrayInputStream body;
+
+        DroppingInputStream(byte[] body) {
+            this.body = new ByteArrayInputStream(body);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = body.read();
+            if (read == -1) {
+                throw new IOException("connection reset");
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = body.read(buffer, offset, length);
+            if (read == -1) {
+                throw new IOException("connection reset");
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.novoda.downloadmanager.lib;
+
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class ChunkSizerTest {
+
+    private static final int MIN_CHUNK_SIZE = 4 * 1024;
+    private static final int MAX_CHUNK_SIZE = 128 * 1024;
+
+    private final ChunkSizer chunkSizer = new ChunkSizer(MIN_CHUNK_SIZE, MAX_CHUNK_SIZE);
+
+    @Test
+    public void givenTheSpeedIsNotKnownYetThenTheSmallestChunkIsUsed() {
+        assertThat(chunkSizer.sizeFor(0)).isEqualTo(MIN_CHUNK_SIZE);
+    }
+
+    @Test
+    public void givenASlowDownloadThenTheSmallestChunkIsUsed() {
+        assertThat(chunkSizer.sizeFor(10 * 1024)).isEqualTo(MIN_CHUNK_SIZE);
+    }
+
+    @Test
+    public void givenAFastDownloadThenTheLargestChunkIsUsed() {
+        assertThat(chunkSizer.sizeFor(100 * 1024 * 1024)).isEqualTo(MAX_CHUNK_SIZE);
+    }
+
+    @Test
+    public void givenASpeedWithinTheBoundsThenTheChunkTakesAtMostTheChunkDurationToArrive() {
+        long bytesPerSecond = 500 * 1024;
+
+        int chunkSize = chunkSizer.sizeFor(bytesPerSecond);
+
+        assertThat(chunkSize).isEqualTo(32 * 1024);
+        assertThat(chunkSize * 1000L / bytesPerSecond).isLessThanOrEqualTo(Constants.CHUNK_DURATION_MILLIS);
+    }
+
+    @Test
+    public void givenBoundsThatAreNotPowersOfTwoThenTheyAreRoundedDown() {
+        ChunkSizer sizer = new ChunkSizer(5000, 100000);
+
+        assertThat(sizer.sizeFor(0)).isEqualTo(4096);
+        assertThat(sizer.getMaxChunkSize()).isEqualTo(65536);
+    }
+
+    @Test
+    public void givenAMaximumBelowTheMinimumThenTheMinimumIsUsedThroughout() {
+        ChunkSizer sizer = new ChunkSizer(MIN_CHUNK_SIZE, 1024);
+
+        assertThat(sizer.sizeFor(100 * 1024 * 1024)).isEqualTo(MIN_CHUNK_SIZE);
+    }
+}
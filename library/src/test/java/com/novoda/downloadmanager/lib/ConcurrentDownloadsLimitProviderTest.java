@@ -20,6 +20,7 @@ public class ConcurrentDownloadsLimitProviderTest {
 
     private static final String PACKAGE_NAME = "PACKAGE_NAME";
     private static final String METADATA_MAX_CONCURRENT_DOWNLOADS = "com.novoda.downloadmanager.MaxConcurrentDownloads";
+    private static final String METADATA_MAX_CONCURRENT_DOWNLOADS_PER_BATCH = "com.novoda.downloadmanager.MaxConcurrentDownloadsPerBatch";
 
     @Mock
     PackageManager packageManager;
@@ -64,6 +65,28 @@ public class ConcurrentDownloadsLimitProviderTest {
         assertThat(concurrentDownloadsLimit).isEqualTo(expected);
     }
 
+    @Test
+    public void givenANullMetadataBundleWhenThePerBatchLimitIsRetrievedThenOneDownloadPerBatchIsAllowed() throws Exception {
+        when(packageManager.getApplicationInfo(PACKAGE_NAME, PackageManager.GET_META_DATA)).thenReturn(new StubApplicationInfo(null));
+        ConcurrentDownloadsLimitProvider provider = new ConcurrentDownloadsLimitProvider(packageManager, PACKAGE_NAME);
+
+        int concurrentDownloadsPerBatchLimit = provider.getConcurrentDownloadsPerBatchLimit();
+
+        assertThat(concurrentDownloadsPerBatchLimit).isEqualTo(1);
+    }
+
+    @Test
+    public void givenAPerBatchLimitAboveTheOverallLimitWhenThePerBatchLimitIsRetrievedThenTheOverallLimitIsUsed() throws Exception {
+        when(bundle.getInt(eq(METADATA_MAX_CONCURRENT_DOWNLOADS), anyInt())).thenReturn(3);
+        when(bundle.getInt(eq(METADATA_MAX_CONCURRENT_DOWNLOADS_PER_BATCH), anyInt())).thenReturn(8);
+        when(packageManager.getApplicationInfo(PACKAGE_NAME, PackageManager.GET_META_DATA)).thenReturn(new StubApplicationInfo(bundle));
+        ConcurrentDownloadsLimitProvider provider = new ConcurrentDownloadsLimitProvider(packageManager, PACKAGE_NAME);
+
+        int concurrentDownloadsPerBatchLimit = provider.getConcurrentDownloadsPerBatchLimit();
+
+        assertThat(concurrentDownloadsPerBatchLimit).isEqualTo(3);
+    }
+
     static class StubApplicationInfo extends ApplicationInfo {
         StubApplicationInfo(Bundle metaData) {
             this.metaData = metaData;
@@ -0,0 +1,246 @@
+package com.novoda.downloadmanager.lib;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class ContentLengthPrefetcherTest {
+
+    private static final long NOW = 1000;
+    private static final long SIZE = 4096;
+
+    @Mock
+    private ContentLengthFetcher contentLengthFetcher;
+    @Mock
+    private DownloadsRepository downloadsRepository;
+    @Mock
+    private Clock clock;
+
+    private QueuedExecutorService executor;
+    private ContentLengthPrefetcher prefetcher;
+
+    @Before
+    public void setUp() {
+        initMocks(this);
+        when(clock.currentTimeMillis()).thenReturn(NOW);
+        executor = new QueuedExecutorService();
+        prefetcher = new ContentLengthPrefetcher(contentLengthFetcher, downloadsRepository, executor, clock);
+    }
+
+    @Test
+    public void givenADownloadOfUnknownSizeThenTheFoundSizeIsPersisted() {
+        FileDownloadInfo info = pendingDownload(1, "http://example.com/a");
+        when(contentLengthFetcher.fetchContentLengthFor(info)).thenReturn(SIZE);
+
+        prefetcher.prefetchFor(Collections.singletonList(info));
+        executor.runAll();
+
+        verify(downloadsRepository).setTotalBytesIfUnknown(info, SIZE);
+    }
+
+    @Test
+    public void givenTheSizeIsNotFoundThenNothingIsPersisted() {
+        FileDownloadInfo info = pendingDownload(1, "http://example.com/a");
+        when(contentLengthFetcher.fetchContentLengthFor(info)).thenReturn((long) Constants.UNKNOWN_BYTE_SIZE);
+
+        prefetcher.prefetchFor(Collections.singletonList(info));
+        executor.runAll();
+
+        verify(downloadsRepository, never()).setTotalBytesIfUnknown(any(FileDownloadInfo.class), anyLong());
+    }
+
+    @Test
+    public void givenAFetchIsInFlightThenTheDownloadIsNotRequestedAgain() {
+        FileDownloadInfo info = pendingDownload(1, "http://example.com/a");
+
+        prefetcher.prefetchFor(Collections.singletonList(info));
+        prefetcher.prefetchFor(Collections.singletonList(info));
+
+        assertThat(executor.queued()).isEqualTo(1);
+    }
+
+    @Test
+    public void givenTheSizeWasNotFoundThenItIsNotRequestedAgainUntilTheBackOffElapses() {
+        FileDownloadInfo info = pendingDownload(1, "http://example.com/a");
+        when(contentLengthFetcher.fetchContentLengthFor(info)).thenReturn((long) Constants.UNKNOWN_BYTE_SIZE);
+        prefetcher.prefetchFor(Collections.singletonList(info));
+        executor.runAll();
+
+        prefetcher.prefetchFor(Collections.singletonList(info));
+        assertThat(executor.queued()).isEqualTo(0);
+
+        when(clock.currentTimeMillis()).thenReturn(NOW + ContentLengthPrefetcher.INITIAL_BACK_OFF_MILLIS);
+        prefetcher.prefetchFor(Collections.singletonList(info));
+        assertThat(executor.queued()).isEqualTo(1);
+    }
+
+    @Test
+    public void givenManyDownloadsFromTheSameHostThenOnlyTheHostLimitIsFetchedAtOnce() {
+        List<FileDownloadInfo> downloads = Arrays.asList(
+                pendingDownload(1, "http://example.com/a"),
+                pendingDownload(2, "http://example.com/b"),
+                pendingDownload(3, "http://example.com/c"),
+                pendingDownload(4, "http://other.com/d")
+        );
+
+        prefetcher.prefetchFor(downloads);
+
+        assertThat(executor.queued()).isEqualTo(ContentLengthPrefetcher.MAX_FETCHES_PER_HOST + 1);
+    }
+
+    @Test
+    public void givenAFetchCompletesThenTheNextDownloadFromTheSameHostIsFetched() {
+        List<FileDownloadInfo> downloads = Arrays.asList(
+                pendingDownload(1, "http://example.com/a"),
+                pendingDownload(2, "http://example.com/b"),
+                pendingDownload(3, "http://example.com/c")
+        );
+        prefetcher.prefetchFor(downloads);
+
+        executor.runNext();
+
+        assertThat(executor.queued()).isEqualTo(ContentLengthPrefetcher.MAX_FETCHES_PER_HOST);
+    }
+
+    @Test
+    public void givenADownloadIsFetchedThenItsOwnCopyIsUsedRatherThanTheCachedOne() {
+        FileDownloadInfo cachedInfo = cachedDownload(1, "http://example.com/a");
+        FileDownloadInfo freshInfo = cachedDownload(1, "http://example.com/a");
+        when(downloadsRepository.getDownloadFor(1)).thenReturn(freshInfo);
+        when(contentLengthFetcher.fetchContentLengthFor(freshInfo)).thenReturn(SIZE);
+
+        prefetcher.prefetchFor(Collections.singletonList(cachedInfo));
+        executor.runAll();
+
+        verify(contentLengthFetcher, never()).fetchContentLengthFor(cachedInfo);
+        verify(downloadsRepository).setTotalBytesIfUnknown(freshInfo, SIZE);
+    }
+
+    @Test
+    public void givenTheDownloadStartedBeforeItsTurnThenItsSizeIsNotFetchedNorBackedOff() {
+        FileDownloadInfo info = pendingDownload(1, "http://example.com/a");
+        prefetcher.prefetchFor(Collections.singletonList(info));
+        when(info.isSubmittedOrRunning()).thenReturn(true);
+        executor.runAll();
+
+        verify(contentLengthFetcher, never()).fetchContentLengthFor(any(FileDownloadInfo.class));
+        when(info.isSubmittedOrRunning()).thenReturn(false);
+        prefetcher.prefetchFor(Collections.singletonList(info));
+        assertThat(executor.queued()).isEqualTo(1);
+    }
+
+    @Test
+    public void givenTheDownloadWasDeletedBeforeItsTurnThenItsSizeIsNotFetched() {
+        FileDownloadInfo info = pendingDownload(1, "http://example.com/a");
+        prefetcher.prefetchFor(Collections.singletonList(info));
+        when(downloadsRepository.getDownloadFor(1)).thenReturn(null);
+
+        executor.runAll();
+
+        verify(contentLengthFetcher, never()).fetchContentLengthFor(any(FileDownloadInfo.class));
+    }
+
+    @Test
+    public void givenARunningDownloadThenItsSizeIsNotRequested() {
+        FileDownloadInfo info = pendingDownload(1, "http://example.com/a");
+        when(info.isSubmittedOrRunning()).thenReturn(true);
+
+        prefetcher.prefetchFor(Collections.singletonList(info));
+
+        assertThat(executor.queued()).isEqualTo(0);
+    }
+
+    @Test
+    public void givenACompletedDownloadThenItsSizeIsNotRequested() {
+        FileDownloadInfo info = pendingDownload(1, "http://example.com/a");
+        when(info.getStatus()).thenReturn(DownloadStatus.SUCCESS);
+
+        prefetcher.prefetchFor(Collections.singletonList(info));
+
+        assertThat(executor.queued()).isEqualTo(0);
+    }
+
+    private FileDownloadInfo pendingDownload(long id, String uri) {
+        FileDownloadInfo info = cachedDownload(id, uri);
+        when(downloadsRepository.getDownloadFor(id)).thenReturn(info);
+        return info;
+    }
+
+    private static FileDownloadInfo cachedDownload(long id, String uri) {
+        FileDownloadInfo info = mock(FileDownloadInfo.class);
+        when(info.getId()).thenReturn(id);
+        when(info.getUri()).thenReturn(uri);
+        when(info.getStatus()).thenReturn(DownloadStatus.PENDING);
+        when(info.hasUnknownTotalBytes()).thenReturn(true);
+        return info;
+    }
+
+    private static class QueuedExecutorService extends AbstractExecutorService {
+
+        private final List<Runnable> tasks = new ArrayList<>();
+        private boolean shutdown;
+
+        int queued() {
+            return tasks.size();
+        }
+
+        void runNext() {
+            tasks.remove(0).run();
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                runNext();
+            }
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            shutdown = true;
+            List<Runnable> pending = new ArrayList<>(tasks);
+            tasks.clear();
+            return pending;
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return shutdown && tasks.isEmpty();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return isTerminated();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.novoda.downloadmanager.lib;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DownloadBatchCacheTest {
+
+    private static final String SINGLE_ID_SELECTION = DownloadContract.Batches._ID + " IN (?)";
+
+    private final ContentResolver contentResolver = mock(ContentResolver.class);
+    private final DownloadsUriProvider downloadsUriProvider = mock(DownloadsUriProvider.class);
+    private final Uri batchesUri = mock(Uri.class);
+
+    private DownloadBatchCache downloadBatchCache;
+
+    @Before
+    public void setUp() {
+        when(downloadsUriProvider.getBatchesUri()).thenReturn(batchesUri);
+        downloadBatchCache = new DownloadBatchCache(contentResolver, downloadsUriProvider);
+    }
+
+    @Test
+    public void givenNothingChangedThenTheBatchesAreNotQueriedAgain() {
+        whenEverythingIsQueriedReturn(1L, 2L);
+        List<FileDownloadInfo> downloads = Arrays.asList(download(1, 1), download(2, 2));
+        downloadBatchCache.getBatchesFor(downloads);
+
+        List<DownloadBatch> batches = downloadBatchCache.getBatchesFor(downloads);
+
+        assertThat(idsOf(batches)).containsExactly(1L, 2L);
+        verify(contentResolver, times(1)).query(any(Uri.class), any(String[].class), anyString(), any(String[].class), anyString());
+    }
+
+    @Test
+    public void givenOneBatchChangedThenOnlyThatBatchIsQueried() {
+        whenEverythingIsQueriedReturn(1L, 2L);
+        List<FileDownloadInfo> downloads = Arrays.asList(download(1, 1), download(2, 2));
+        downloadBatchCache.getBatchesFor(downloads);
+        whenQueriedForReturn("2", 2L);
+
+        downloadBatchCache.onBatchChanged(2L);
+        List<DownloadBatch> batches = downloadBatchCache.getBatchesFor(downloads);
+
+        verify(contentResolver).query(batchesUri, null, SINGLE_ID_SELECTION, new String[]{"2"}, null);
+        assertThat(idsOf(batches)).containsExactly(1L, 2L);
+    }
+
+    @Test
+    public void givenAChangedBatchIsNoLongerThereThenItIsDropped() {
+        whenEverythingIsQueriedReturn(1L, 2L);
+        List<FileDownloadInfo> downloads = Arrays.asList(download(1, 1), download(2, 2));
+        downloadBatchCache.getBatchesFor(downloads);
+        whenQueriedForReturn("2");
+
+        downloadBatchCache.onBatchChanged(2L);
+        List<DownloadBatch> batches = downloadBatchCache.getBatchesFor(downloads);
+
+        assertThat(idsOf(batches)).containsExactly(1L);
+    }
+
+    @Test
+    public void givenAChangeThatCannotBeTiedToABatchThenEveryBatchIsQueriedAgain() {
+        whenEverythingIsQueriedReturn(1L);
+        List<FileDownloadInfo> downloads = Arrays.asList(download(1, 1), download(2, 2));
+        downloadBatchCache.getBatchesFor(downloads);
+        whenEverythingIsQueriedReturn(1L, 2L);
+
+        downloadBatchCache.onBatchesChanged();
+        List<DownloadBatch> batches = downloadBatchCache.getBatchesFor(downloads);
+
+        assertThat(idsOf(batches)).containsExactly(1L, 2L);
+        verify(contentResolver, times(2)).query(eq(batchesUri), any(String[].class), isNull(String.class), any(String[].class), anyString());
+    }
+
+    @Test
+    public void givenABatchWithoutDownloadsThenItIsLeftOut() {
+        whenEverythingIsQueriedReturn(1L, 2L);
+
+        List<DownloadBatch> batches = downloadBatchCache.getBatchesFor(Arrays.asList(download(1, 2)));
+
+        assertThat(idsOf(batches)).containsExactly(2L);
+    }
+
+    @Test
+    public void givenTheDownloadsOfABatchThenItsSizesAddUpTheirsWithoutQueryingTheBatchAgain() {
+        whenEverythingIsQueriedReturn(1L);
+        downloadBatchCache.getBatchesFor(Arrays.asList(download(1, 1)));
+        FileDownloadInfo first = download(1, 1, 100, 1000);
+        FileDownloadInfo second = download(2, 1, 50, 500);
+
+        DownloadBatch batch = downloadBatchCache.getBatchesFor(Arrays.asList(first, second)).get(0);
+
+        assertThat(batch.getCurrentSize()).isEqualTo(150);
+        assertThat(batch.getTotalSize()).isEqualTo(1500);
+        assertThat(batch.getDownloads()).containsExactly(first, second);
+        verify(contentResolver, times(1)).query(any(Uri.class), any(String[].class), anyString(), any(String[].class), anyString());
+    }
+
+    private void whenEverythingIsQueriedReturn(Long... ids) {
+        Cursor cursor = new MockCursorWithBatchIds(Arrays.asList(ids));
+        when(contentResolver.query(eq(batchesUri), any(String[].class), isNull(String.class), any(String[].class), anyString())).thenReturn(cursor);
+    }
+
+    private void whenQueriedForReturn(String queriedId, Long... ids) {
+        Cursor cursor = new MockCursorWithBatchIds(Arrays.asList(ids));
+        when(contentResolver.query(batchesUri, null, SINGLE_ID_SELECTION, new String[]{queriedId}, null)).thenReturn(cursor);
+    }
+
+    private static FileDownloadInfo download(long id, long batchId) {
+        return download(id, batchId, 0, 0);
+    }
+
+    private static FileDownloadInfo download(long id, long batchId, long currentBytes, long totalBytes) {
+        FileDownloadInfo download = mock(FileDownloadInfo.class);
+        when(download.getId()).thenReturn(id);
+        when(download.getBatchId()).thenReturn(batchId);
+        when(download.getCurrentBytes()).thenReturn(currentBytes);
+        when(download.getTotalBytes()).thenReturn(totalBytes);
+        return download;
+    }
+
+    private static List<Long> idsOf(List<DownloadBatch> batches) {
+        List<Long> ids = new ArrayList<>(batches.size());
+        for (DownloadBatch batch : batches) {
+            ids.add(batch.getBatchId());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,82 @@
+package com.novoda.downloadmanager.lib;
+
+import android.util.Pair;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class DownloadCoalescerTest {
+
+    private static final String URI = "http://example.com/file.zip";
+    private static final Collection<Pair<String, String>> NO_HEADERS = Collections.emptyList();
+
+    private DownloadCoalescer coalescer;
+
+    @Before
+    public void setUp() {
+        coalescer = new DownloadCoalescer();
+    }
+
+    @Test
+    public void givenNoTransferOfTheRequestThenTheDownloadLeadsANewOne() {
+        DownloadCoalescer.Transfer transfer = coalescer.join(1, URI, NO_HEADERS);
+
+        assertThat(transfer.isLedBy(1)).isTrue();
+    }
+
+    @Test
+    public void givenATransferOfTheRequestInFlightThenTheDownloadFollowsIt() {
+        DownloadCoalescer.Transfer leading = coalescer.join(1, URI, NO_HEADERS);
+
+        DownloadCoalescer.Transfer following = coalescer.join(2, URI, NO_HEADERS);
+
+        assertThat(following).isSameAs(leading);
+        assertThat(following.isLedBy(2)).isFalse();
+    }
+
+    @Test
+    public void givenADifferentRequestThenTheDownloadLeadsItsOwnTransfer() {
+        coalescer.join(1, URI, NO_HEADERS);
+
+        DownloadCoalescer.Transfer transfer = coalescer.join(2, URI + "?v=2", NO_HEADERS);
+
+        assertThat(transfer.isLedBy(2)).isTrue();
+    }
+
+    @Test
+    public void givenTheTransferCompletedThenTheNextDownloadLeadsANewOne() {
+        DownloadCoalescer.Transfer leading = coalescer.join(1, URI, NO_HEADERS);
+        coalescer.complete(leading, null);
+
+        DownloadCoalescer.Transfer transfer = coalescer.join(2, URI, NO_HEADERS);
+
+        assertThat(transfer.isLedBy(2)).isTrue();
+    }
+
+    @Test
+    public void givenTheLeadingDownloadSucceededThenFollowersGetItsFile() throws Exception {
+        DownloadCoalescer.Transfer transfer = coalescer.join(1, URI, NO_HEADERS);
+        DownloadTask.State state = new DownloadTask.State();
+        state.filename = "/downloads/file.zip";
+
+        coalescer.complete(transfer, state);
+
+        assertThat(transfer.awaitCompletion(0)).isTrue();
+        assertThat(transfer.getFilename()).isEqualTo("/downloads/file.zip");
+    }
+
+    @Test
+    public void givenTheLeadingDownloadFailedThenFollowersGetNoFile() throws Exception {
+        DownloadCoalescer.Transfer transfer = coalescer.join(1, URI, NO_HEADERS);
+
+        coalescer.complete(transfer, null);
+
+        assertThat(transfer.awaitCompletion(0)).isTrue();
+        assertThat(transfer.getFilename()).isNull();
+    }
+}
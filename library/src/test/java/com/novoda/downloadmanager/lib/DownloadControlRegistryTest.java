@@ -0,0 +1,105 @@
+package com.novoda.downloadmanager.lib;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import java.io.Closeable;
+import java.util.Collections;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class DownloadControlRegistryTest {
+
+    private static final long DOWNLOAD_ID = 42;
+    private static final long OTHER_DOWNLOAD_ID = 43;
+
+    @Mock
+    private FileDownloadInfo.ControlStatus.Reader controlReader;
+    @Mock
+    private Closeable stream;
+
+    private DownloadControlRegistry registry;
+
+    @Before
+    public void setUp() {
+        initMocks(this);
+        when(controlReader.newControlStatus()).thenReturn(
+                new FileDownloadInfo.ControlStatus(DownloadsControl.CONTROL_RUN, DownloadStatus.RUNNING, false)
+        );
+        registry = new DownloadControlRegistry();
+    }
+
+    @Test
+    public void givenNothingWasPublishedThenTheControlStatusIsTheOneReadOnRegistration() {
+        DownloadControlRegistry.Registration registration = registry.register(DOWNLOAD_ID, controlReader);
+
+        assertThat(registration.getControlStatus().isStopping()).isFalse();
+    }
+
+    @Test
+    public void givenAPauseIsPublishedThenTheDownloadIsPaused() {
+        DownloadControlRegistry.Registration registration = registry.register(DOWNLOAD_ID, controlReader);
+
+        registry.publish(Collections.singletonList(DOWNLOAD_ID), DownloadsControl.CONTROL_PAUSED, null, false);
+
+        assertThat(registration.getControlStatus().isPaused()).isTrue();
+    }
+
+    @Test
+    public void givenACancelIsPublishedThenTheStreamInFlightIsClosed() throws Exception {
+        DownloadControlRegistry.Registration registration = registry.register(DOWNLOAD_ID, controlReader);
+        registration.abortOnStop(stream);
+
+        registry.publish(Collections.singletonList(DOWNLOAD_ID), null, DownloadStatus.CANCELED, false);
+
+        verify(stream).close();
+    }
+
+    @Test
+    public void givenAStreamWasForgottenThenItIsNotClosedOnStop() throws Exception {
+        DownloadControlRegistry.Registration registration = registry.register(DOWNLOAD_ID, controlReader);
+        registration.abortOnStop(stream);
+        registration.forget(stream);
+
+        registry.publish(Collections.singletonList(DOWNLOAD_ID), null, null, true);
+
+        verify(stream, never()).close();
+    }
+
+    @Test
+    public void givenTheDownloadIsAlreadyStoppingThenANewStreamIsClosedStraightAway() throws Exception {
+        DownloadControlRegistry.Registration registration = registry.register(DOWNLOAD_ID, controlReader);
+        registry.publish(Collections.singletonList(DOWNLOAD_ID), DownloadsControl.CONTROL_PAUSED, null, false);
+
+        registration.abortOnStop(stream);
+
+        verify(stream).close();
+    }
+
+    @Test
+    public void givenAnotherDownloadIsCanceledThenTheDownloadCarriesOn() throws Exception {
+        DownloadControlRegistry.Registration registration = registry.register(DOWNLOAD_ID, controlReader);
+        registration.abortOnStop(stream);
+
+        registry.publish(Collections.singletonList(OTHER_DOWNLOAD_ID), null, DownloadStatus.CANCELED, false);
+
+        assertThat(registration.getControlStatus().isStopping()).isFalse();
+        verify(stream, never()).close();
+    }
+
+    @Test
+    public void givenTheDownloadWasUnregisteredThenPublishingIsIgnored() throws Exception {
+        DownloadControlRegistry.Registration registration = registry.register(DOWNLOAD_ID, controlReader);
+        registration.abortOnStop(stream);
+        registry.unregister(DOWNLOAD_ID, registration);
+
+        registry.publish(Collections.singletonList(DOWNLOAD_ID), null, DownloadStatus.CANCELED, false);
+
+        verify(stream, never()).close();
+    }
+}
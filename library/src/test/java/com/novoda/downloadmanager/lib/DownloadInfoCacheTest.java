@@ -0,0 +1,127 @@
+package com.novoda.downloadmanager.lib;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DownloadInfoCacheTest {
+
+    private static final String SINGLE_ID_SELECTION = DownloadContract.Downloads._ID + " IN (?)";
+
+    private final ContentResolver contentResolver = mock(ContentResolver.class);
+    private final DownloadsUriProvider downloadsUriProvider = mock(DownloadsUriProvider.class);
+    private final Uri allDownloadsUri = mock(Uri.class);
+
+    private int created;
+    private DownloadInfoCache downloadInfoCache;
+
+    @Before
+    public void setUp() {
+        when(downloadsUriProvider.getAllDownloadsUri()).thenReturn(allDownloadsUri);
+        downloadInfoCache = new DownloadInfoCache(contentResolver, downloadsUriProvider, new DownloadsRepository.DownloadInfoCreator() {
+            @Override
+            public FileDownloadInfo create(FileDownloadInfo.Reader reader) {
+                created++;
+                FileDownloadInfo info = new FileDownloadInfo(mock(SystemFacade.class), mock(RandomNumberGenerator.class), downloadsUriProvider);
+                reader.updateFromDatabase(info);
+                return info;
+            }
+        });
+    }
+
+    @Test
+    public void givenNothingWasReadYetThenEveryDownloadIsRead() {
+        whenEverythingIsQueriedReturn(1L, 2L);
+
+        List<FileDownloadInfo> downloads = downloadInfoCache.getAllDownloads();
+
+        assertThat(idsOf(downloads)).containsExactly(1L, 2L);
+        assertThat(created).isEqualTo(2);
+    }
+
+    @Test
+    public void givenNothingChangedThenTheDownloadsAreNotQueriedAgain() {
+        whenEverythingIsQueriedReturn(1L, 2L);
+        downloadInfoCache.getAllDownloads();
+
+        List<FileDownloadInfo> downloads = downloadInfoCache.getAllDownloads();
+
+        assertThat(idsOf(downloads)).containsExactly(1L, 2L);
+        verify(contentResolver, times(1)).query(any(Uri.class), any(String[].class), anyString(), any(String[].class), anyString());
+    }
+
+    @Test
+    public void givenOneDownloadChangedThenOnlyThatDownloadIsReadIntoTheSameInstance() {
+        whenEverythingIsQueriedReturn(1L, 2L);
+        List<FileDownloadInfo> before = downloadInfoCache.getAllDownloads();
+        whenQueriedForReturn("2", 2L);
+
+        downloadInfoCache.onDownloadChanged(2L);
+        List<FileDownloadInfo> after = downloadInfoCache.getAllDownloads();
+
+        verify(contentResolver).query(allDownloadsUri, null, SINGLE_ID_SELECTION, new String[]{"2"}, null);
+        assertThat(after.get(1)).isSameAs(before.get(1));
+        assertThat(created).isEqualTo(2);
+    }
+
+    @Test
+    public void givenAChangedDownloadIsNoLongerThereThenItIsDropped() {
+        whenEverythingIsQueriedReturn(1L, 2L);
+        downloadInfoCache.getAllDownloads();
+        whenQueriedForReturn("2");
+
+        downloadInfoCache.onDownloadChanged(2L);
+        List<FileDownloadInfo> downloads = downloadInfoCache.getAllDownloads();
+
+        assertThat(idsOf(downloads)).containsExactly(1L);
+    }
+
+    @Test
+    public void givenAChangeThatCannotBeTiedToADownloadThenEveryDownloadIsReadIntoTheSameInstances() {
+        whenEverythingIsQueriedReturn(1L, 2L);
+        List<FileDownloadInfo> before = downloadInfoCache.getAllDownloads();
+        whenEverythingIsQueriedReturn(2L, 3L);
+
+        downloadInfoCache.onDownloadsChanged();
+        List<FileDownloadInfo> after = downloadInfoCache.getAllDownloads();
+
+        assertThat(idsOf(after)).containsExactly(2L, 3L);
+        assertThat(after.get(0)).isSameAs(before.get(1));
+        assertThat(created).isEqualTo(3);
+    }
+
+    private void whenEverythingIsQueriedReturn(Long... ids) {
+        Cursor cursor = new MockCursorWithBatchIds(Arrays.asList(ids));
+        when(contentResolver.query(eq(allDownloadsUri), any(String[].class), isNull(String.class), any(String[].class), anyString())).thenReturn(cursor);
+    }
+
+    private void whenQueriedForReturn(String queriedId, Long... ids) {
+        Cursor cursor = new MockCursorWithBatchIds(Arrays.asList(ids));
+        when(contentResolver.query(allDownloadsUri, null, SINGLE_ID_SELECTION, new String[]{queriedId}, null)).thenReturn(cursor);
+    }
+
+    private static List<Long> idsOf(List<FileDownloadInfo> downloads) {
+        List<Long> ids = new ArrayList<>(downloads.size());
+        for (FileDownloadInfo download : downloads) {
+            ids.add(download.getId());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,123 @@
+package com.novoda.downloadmanager.lib;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class DownloadSchedulerTest {
+
+    private static final int NO_RUNNING_DOWNLOADS = 0;
+
+    @Test
+    public void givenTwoBatchesOfTheSamePriorityThenTheSlotsAreSharedBetweenThem() {
+        DownloadScheduler scheduler = new DownloadScheduler(4, 4);
+        List<FileDownloadInfo> hugeBatch = givenDownloads(10);
+        List<FileDownloadInfo> smallBatch = givenDownloads(2);
+
+        List<FileDownloadInfo> scheduled = scheduler.schedule(
+                Arrays.asList(
+                        new DownloadScheduler.Candidate(RequestBatch.PRIORITY_NORMAL, 0, hugeBatch),
+                        new DownloadScheduler.Candidate(RequestBatch.PRIORITY_NORMAL, 0, smallBatch)
+                ),
+                NO_RUNNING_DOWNLOADS
+        );
+
+        assertThat(scheduled).containsExactly(hugeBatch.get(0), smallBatch.get(0), hugeBatch.get(1), smallBatch.get(1));
+    }
+
+    @Test
+    public void givenABatchAlreadyUsingSlotsThenANewBatchIsServedFirst() {
+        DownloadScheduler scheduler = new DownloadScheduler(4, 4);
+        List<FileDownloadInfo> runningBatch = givenDownloads(10);
+        List<FileDownloadInfo> newBatch = givenDownloads(10);
+
+        List<FileDownloadInfo> scheduled = scheduler.schedule(
+                Arrays.asList(
+                        new DownloadScheduler.Candidate(RequestBatch.PRIORITY_NORMAL, 3, runningBatch),
+                        new DownloadScheduler.Candidate(RequestBatch.PRIORITY_NORMAL, 0, newBatch)
+                ),
+                3
+        );
+
+        assertThat(scheduled).containsExactly(newBatch.get(0));
+    }
+
+    @Test
+    public void givenAHighPriorityBatchThenItGetsAProportionallyLargerShare() {
+        DownloadScheduler scheduler = new DownloadScheduler(6, 6);
+        List<FileDownloadInfo> normalBatch = givenDownloads(10);
+        List<FileDownloadInfo> urgentBatch = givenDownloads(10);
+
+        List<FileDownloadInfo> scheduled = scheduler.schedule(
+                Arrays.asList(
+                        new DownloadScheduler.Candidate(RequestBatch.PRIORITY_NORMAL, 0, normalBatch),
+                        new DownloadScheduler.Candidate(RequestBatch.PRIORITY_HIGH, 0, urgentBatch)
+                ),
+                NO_RUNNING_DOWNLOADS
+        );
+
+        assertThat(scheduled.get(0)).isEqualTo(urgentBatch.get(0));
+        assertThat(scheduled).containsOnly(
+                urgentBatch.get(0), urgentBatch.get(1), urgentBatch.get(2), urgentBatch.get(3),
+                normalBatch.get(0), normalBatch.get(1)
+        );
+    }
+
+    @Test
+    public void givenOneDownloadPerBatchThenAHighPriorityBatchOnlyStartsFirst() {
+        DownloadScheduler scheduler = new DownloadScheduler(2, 1);
+        List<FileDownloadInfo> normalBatch = givenDownloads(10);
+        List<FileDownloadInfo> urgentBatch = givenDownloads(10);
+
+        List<FileDownloadInfo> scheduled = scheduler.schedule(
+                Arrays.asList(
+                        new DownloadScheduler.Candidate(RequestBatch.PRIORITY_NORMAL, 0, normalBatch),
+                        new DownloadScheduler.Candidate(RequestBatch.PRIORITY_HIGH, 0, urgentBatch)
+                ),
+                NO_RUNNING_DOWNLOADS
+        );
+
+        assertThat(scheduled).containsExactly(urgentBatch.get(0), normalBatch.get(0));
+    }
+
+    @Test
+    public void givenThePerBatchLimitIsReachedThenNoMoreDownloadsOfThatBatchAreStarted() {
+        DownloadScheduler scheduler = new DownloadScheduler(5, 2);
+        List<FileDownloadInfo> batch = givenDownloads(10);
+
+        List<FileDownloadInfo> scheduled = scheduler.schedule(
+                Collections.singletonList(new DownloadScheduler.Candidate(RequestBatch.PRIORITY_NORMAL, 1, batch)),
+                1
+        );
+
+        assertThat(scheduled).containsExactly(batch.get(0));
+    }
+
+    @Test
+    public void givenNoFreeSlotsThenNothingIsStarted() {
+        DownloadScheduler scheduler = new DownloadScheduler(2, 2);
+        List<FileDownloadInfo> batch = givenDownloads(3);
+
+        List<FileDownloadInfo> scheduled = scheduler.schedule(
+                Collections.singletonList(new DownloadScheduler.Candidate(RequestBatch.PRIORITY_NORMAL, 0, batch)),
+                2
+        );
+
+        assertThat(scheduled).isEmpty();
+    }
+
+    private static List<FileDownloadInfo> givenDownloads(int count) {
+        List<FileDownloadInfo> downloads = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            downloads.add(mock(FileDownloadInfo.class));
+        }
+        return downloads;
+    }
+
+}
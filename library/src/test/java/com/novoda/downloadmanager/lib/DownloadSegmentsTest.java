@@ -0,0 +1,89 @@
+package com.novoda.downloadmanager.lib;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class DownloadSegmentsTest {
+
+    @Test
+    public void itSplitsTheFileIntoContiguousSegmentsCoveringEveryByte() {
+        DownloadSegments segments = DownloadSegments.split(10, 3);
+
+        List<DownloadSegments.Segment> list = segments.getSegments();
+        assertThat(list).hasSize(3);
+        assertThat(list.get(0).getStart()).isEqualTo(0);
+        assertThat(list.get(0).getEnd()).isEqualTo(2);
+        assertThat(list.get(1).getStart()).isEqualTo(3);
+        assertThat(list.get(1).getEnd()).isEqualTo(5);
+        assertThat(list.get(2).getStart()).isEqualTo(6);
+        assertThat(list.get(2).getEnd()).isEqualTo(9);
+        assertThat(segments.getTotalBytes()).isEqualTo(10);
+    }
+
+    @Test
+    public void givenBlocksFoundInThePreviousVersionThenEachRunOfBlocksIsASegment() {
+        DeltaManifest manifest = new DeltaManifest(35, 10, new int[4], new String[4]);
+        long[] blockOffsets = {0, 10, BlockMatcher.NOT_FOUND, BlockMatcher.NOT_FOUND};
+
+        DownloadSegments segments = DownloadSegments.forDelta(manifest, blockOffsets);
+
+        List<DownloadSegments.Segment> list = segments.getSegments();
+        assertThat(list).hasSize(2);
+        assertThat(list.get(0).getStart()).isEqualTo(0);
+        assertThat(list.get(0).getEnd()).isEqualTo(19);
+        assertThat(list.get(1).getStart()).isEqualTo(20);
+        assertThat(list.get(1).getEnd()).isEqualTo(34);
+        assertThat(segments.getDownloadedBytes()).isZero();
+    }
+
+    @Test
+    public void itSumsTheBytesWrittenToEachSegment() {
+        DownloadSegments segments = DownloadSegments.split(10, 2);
+
+        segments.getSegments().get(0).advance(3);
+        segments.getSegments().get(1).advance(5);
+
+        assertThat(segments.getDownloadedBytes()).isEqualTo(8);
+        assertThat(segments.isComplete()).isFalse();
+    }
+
+    @Test
+    public void itIsCompleteWhenEverySegmentIsWritten() {
+        DownloadSegments segments = DownloadSegments.split(10, 2);
+
+        segments.getSegments().get(0).advance(5);
+        segments.getSegments().get(1).advance(5);
+
+        assertThat(segments.isComplete()).isTrue();
+    }
+
+    @Test
+    public void itRestoresTheSegmentsItWasStoredAs() {
+        DownloadSegments segments = DownloadSegments.split(10, 2);
+        segments.getSegments().get(1).advance(4);
+
+        DownloadSegments restored = DownloadSegments.fromDatabaseValue(segments.toDatabaseValue());
+
+        assertThat(restored.toDatabaseValue()).isEqualTo("0-4-0;5-9-4");
+        assertThat(restored.getDownloadedBytes()).isEqualTo(4);
+    }
+
+    @Test
+    public void givenAMissingValueThenNoSegmentsAreRestored() {
+        assertThat(DownloadSegments.fromDatabaseValue(null)).isNull();
+    }
+
+    @Test
+    public void givenAMalformedValueThenNoSegmentsAreRestored() {
+        assertThat(DownloadSegments.fromDatabaseValue("0-4;5-x-4")).isNull();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void givenNoSegmentsThenSplittingFails() {
+        DownloadSegments.split(10, 0);
+    }
+
+}
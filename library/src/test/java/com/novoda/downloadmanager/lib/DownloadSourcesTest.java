@@ -0,0 +1,129 @@
+package com.novoda.downloadmanager.lib;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class DownloadSourcesTest {
+
+    private static final String PRIMARY = "http://example.com/file";
+    private static final String FIRST_MIRROR = "http://mirror1.example.com/file";
+    private static final String SECOND_MIRROR = "http://mirror2.example.com/file";
+
+    @Test
+    public void givenJoinedMirrorsThenTheyFollowThePrimarySourceInOrder() {
+        String mirrors = DownloadSources.joinMirrors(Arrays.asList(FIRST_MIRROR, SECOND_MIRROR));
+
+        DownloadSources sources = DownloadSources.from(PRIMARY, mirrors);
+
+        assertThat(sources.getAll()).containsExactly(PRIMARY, FIRST_MIRROR, SECOND_MIRROR);
+        assertThat(sources.getCurrent()).isEqualTo(PRIMARY);
+    }
+
+    @Test
+    public void givenNoMirrorsThenThereIsNothingToFailOverTo() {
+        DownloadSources sources = DownloadSources.from(PRIMARY, null);
+
+        assertThat(sources.hasMirrors()).isFalse();
+        assertThat(sources.failOver()).isFalse();
+    }
+
+    @Test
+    public void givenAFasterMirrorWasSelectedThenFailingOverWrapsAroundToEveryOtherSourceOnce() {
+        DownloadSources sources = DownloadSources.from(PRIMARY, DownloadSources.joinMirrors(Arrays.asList(FIRST_MIRROR, SECOND_MIRROR)));
+        sources.select(1);
+
+        assertThat(sources.failOver()).isTrue();
+        assertThat(sources.getCurrent()).isEqualTo(SECOND_MIRROR);
+        assertThat(sources.failOver()).isTrue();
+        assertThat(sources.getCurrent()).isEqualTo(PRIMARY);
+        assertThat(sources.failOver()).isFalse();
+    }
+
+    @Test
+    public void itPicksTheSourceThatAnswersFirst() throws Exception {
+        List<String> sources = Arrays.asList(PRIMARY, FIRST_MIRROR, SECOND_MIRROR);
+        SourceProber prober = new SourceProber(new DelayedProbe(FIRST_MIRROR, 0, 500), 2000);
+
+        assertThat(prober.fastest(sources)).isEqualTo(1);
+    }
+
+    @Test
+    public void givenTheFastestSourceFailsThenTheNextToAnswerIsPicked() throws Exception {
+        List<String> sources = Arrays.asList(PRIMARY, FIRST_MIRROR);
+        SourceProber prober = new SourceProber(new SourceProber.Probe() {
+            @Override
+            public void probe(String source) throws Exception {
+                if (source.equals(FIRST_MIRROR)) {
+                    throw new IOException("HTTP 404");
+                }
+                Thread.sleep(100);
+            }
+        }, 2000);
+
+        assertThat(prober.fastest(sources)).isEqualTo(0);
+    }
+
+    @Test
+    public void givenNoSourceAnswersInTimeThenNoneIsPicked() throws Exception {
+        List<String> sources = Arrays.asList(PRIMARY, FIRST_MIRROR);
+        SourceProber prober = new SourceProber(new DelayedProbe(null, 0, 1000), 50);
+
+        assertThat(prober.fastest(sources)).isEqualTo(SourceProber.NONE);
+    }
+
+    @Test
+    public void givenASourceAnsweredThenTheOtherProbesAreStoppedWithoutStoppingTheSharedThreads() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        final CountDownLatch slowProbeStarted = new CountDownLatch(1);
+        final CountDownLatch slowProbeStopped = new CountDownLatch(1);
+        SourceProber prober = new SourceProber(executor, new SourceProber.Probe() {
+            @Override
+            public void probe(String source) throws Exception {
+                if (source.equals(PRIMARY)) {
+                    slowProbeStarted.countDown();
+                    try {
+                        Thread.sleep(5000);
+                    } catch (InterruptedException e) {
+                        slowProbeStopped.countDown();
+                        throw e;
+                    }
+                } else {
+                    // Answer only once the slow probe runs, or cancelling it would not need to interrupt anything
+                    slowProbeStarted.await();
+                }
+            }
+        }, 2000);
+
+        assertThat(prober.fastest(Arrays.asList(PRIMARY, FIRST_MIRROR))).isEqualTo(1);
+        assertThat(slowProbeStopped.await(1, TimeUnit.SECONDS)).isTrue();
+        assertThat(executor.isShutdown()).isFalse();
+        executor.shutdownNow();
+    }
+
+    private static class DelayedProbe implements SourceProber.Probe {
+
+        private final String fastSource;
+        private final long fastMillis;
+        private final long slowMillis;
+
+        DelayedProbe(String fastSource, long fastMillis, long slowMillis) {
+            this.fastSource = fastSource;
+            this.fastMillis = fastMillis;
+            this.slowMillis = slowMillis;
+        }
+
+        @Override
+        public void probe(String source) throws Exception {
+            Thread.sleep(source.equals(fastSource) ? fastMillis : slowMillis);
+        }
+    }
+}
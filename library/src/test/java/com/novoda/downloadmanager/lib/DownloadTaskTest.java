@@ -0,0 +1,232 @@
+package com.novoda.downloadmanager.lib;
+
+import android.content.Context;
+
+import com.novoda.downloadmanager.notifications.DownloadNotifier;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.powermock.reflect.Whitebox;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Collections;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DownloadTaskTest {
+
+    private static final String URI = "http://example.com/file.bin";
+    private static final String OLD_ETAG = "\"v1\"";
+    private static final String NEW_ETAG = "\"v2\"";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final FileDownloadInfo downloadInfo = mock(FileDownloadInfo.class);
+    private final DownloadsRepository downloadsRepository = mock(DownloadsRepository.class);
+    private final HttpURLConnection connection = mock(HttpURLConnection.class);
+    private final NetworkChecker networkChecker = mock(NetworkChecker.class);
+    private final DownloadReadyChecker downloadReadyChecker = mock(DownloadReadyChecker.class);
+    private final StreamStages streamStages = new StreamStages();
+
+    private File completedFile;
+
+    @Before
+    public void setUp() throws IOException {
+        completedFile = File.createTempFile("completed", ".bin");
+        write(completedFile, "old content");
+
+        when(downloadInfo.getId()).thenReturn(1L);
+        when(downloadInfo.getUri()).thenReturn(URI);
+        when(downloadInfo.getFileName()).thenReturn(completedFile.getPath());
+        when(downloadInfo.getHint()).thenReturn("file://" + completedFile.getPath());
+        when(downloadInfo.getDestination()).thenReturn(DownloadsDestination.DESTINATION_FILE_URI);
+        when(downloadInfo.getMimeType()).thenReturn("application/octet-stream");
+        when(downloadInfo.getCurrentBytes()).thenReturn(completedFile.length());
+        when(downloadInfo.getTotalBytes()).thenReturn(completedFile.length());
+        when(downloadInfo.getETag()).thenReturn(OLD_ETAG);
+        when(downloadInfo.shouldRevalidate()).thenReturn(true);
+        when(networkChecker.checkCanUseNetwork(downloadInfo)).thenReturn(FileDownloadInfo.NetworkState.OK);
+        when(downloadReadyChecker.clientAllowsToDownload(any(DownloadBatch.class))).thenReturn(true);
+    }
+
+    @After
+    public void tearDown() {
+        completedFile.delete();
+    }
+
+    @Test
+    public void givenACompletedDownloadToRevalidateThenTheServerIsAskedWhetherItChanged() throws Exception {
+        when(connection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_NOT_MODIFIED);
+
+        executeDownload();
+
+        verify(connection).addRequestProperty("If-None-Match", OLD_ETAG);
+    }
+
+    @Test
+    public void givenTheServerAnswersNotModifiedThenTheFileIsKeptAndTheRevalidationFinishes() throws Exception {
+        when(connection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_NOT_MODIFIED);
+
+        executeDownload();
+
+        assertThat(read(completedFile)).isEqualTo("old content");
+        verify(downloadInfo).setRevalidate(false);
+        verify(downloadsRepository).finishRevalidation(downloadInfo, true);
+    }
+
+    @Test
+    public void givenTheServerAnswersWithANewVersionThenTheCompletedFileIsDiscardedForIt() throws Exception {
+        when(connection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(connection.getHeaderField("ETag")).thenReturn(NEW_ETAG);
+
+        try {
+            executeDownload();
+            fail("A response without a length should stop the download");
+        } catch (StopRequestException e) {
+            assertThat(e.getFinalStatus()).isEqualTo(DownloadStatus.CANNOT_RESUME);
+        }
+
+        assertThat(completedFile.exists()).isFalse();
+        verify(downloadInfo).setRevalidate(false);
+        verify(downloadsRepository).finishRevalidation(downloadInfo, false);
+        verify(downloadsRepository, never()).finishRevalidation(downloadInfo, true);
+    }
+
+    @Test
+    public void givenACompletedDownloadOfTheSameUriThenTheServerIsAskedWhetherItsFileIsStillCurrent() throws Exception {
+        givenANewDownload();
+        FileDownloadInfo completedDownload = completedDownloadOf(completedFile);
+        when(downloadsRepository.getCompletedDownloadsOf(URI, 1L)).thenReturn(Collections.singletonList(completedDownload));
+        when(connection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_NOT_FOUND);
+        DownloadTask task = newTask();
+        DownloadTask.State state = newState();
+
+        reuseCompletedDownload(task, state);
+        executeDownloadIgnoringTheResponse(task, state);
+
+        assertThat(state.reusableDownload).isSameAs(completedDownload);
+        verify(connection).addRequestProperty("If-None-Match", OLD_ETAG);
+    }
+
+    @Test
+    public void givenTheCompletedDownloadWentThroughTheStreamStagesOfItsMimeTypeThenItsFileIsNotReused() throws Exception {
+        givenANewDownload();
+        streamStages.registerFor("application/vnd.example.encrypted", "decrypt");
+        FileDownloadInfo completedDownload = completedDownloadOf(completedFile);
+        when(completedDownload.getMimeType()).thenReturn("application/vnd.example.encrypted");
+        when(downloadsRepository.getCompletedDownloadsOf(URI, 1L)).thenReturn(Collections.singletonList(completedDownload));
+        when(connection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_NOT_FOUND);
+        DownloadTask task = newTask();
+        DownloadTask.State state = newState();
+
+        reuseCompletedDownload(task, state);
+        executeDownloadIgnoringTheResponse(task, state);
+
+        assertThat(state.reusableDownload).isNull();
+        verify(connection, never()).addRequestProperty("If-None-Match", OLD_ETAG);
+    }
+
+    private void givenANewDownload() {
+        when(downloadInfo.getFileName()).thenReturn(null);
+        when(downloadInfo.getHint()).thenReturn(null);
+        when(downloadInfo.getCurrentBytes()).thenReturn(0L);
+        when(downloadInfo.getTotalBytes()).thenReturn(-1L);
+        when(downloadInfo.getETag()).thenReturn(null);
+        when(downloadInfo.shouldRevalidate()).thenReturn(false);
+    }
+
+    private static FileDownloadInfo completedDownloadOf(File file) {
+        FileDownloadInfo completedDownload = mock(FileDownloadInfo.class);
+        when(completedDownload.getId()).thenReturn(2L);
+        when(completedDownload.getUri()).thenReturn(URI);
+        when(completedDownload.getFileName()).thenReturn(file.getPath());
+        when(completedDownload.getMimeType()).thenReturn("application/octet-stream");
+        when(completedDownload.getTotalBytes()).thenReturn(file.length());
+        when(completedDownload.getETag()).thenReturn(OLD_ETAG);
+        return completedDownload;
+    }
+
+    private static void reuseCompletedDownload(DownloadTask task, DownloadTask.State state) throws Exception {
+        boolean reused = Whitebox.invokeMethod(task, "reuseCompletedDownload", state);
+        assertThat(reused).isFalse();
+    }
+
+    private static void executeDownloadIgnoringTheResponse(DownloadTask task, DownloadTask.State state) throws Exception {
+        try {
+            Whitebox.invokeMethod(task, "executeDownload", state);
+            fail("The server only answers with an error");
+        } catch (StopRequestException e) {
+            assertThat(e.getFinalStatus()).isEqualTo(HttpURLConnection.HTTP_NOT_FOUND);
+        }
+    }
+
+    private void executeDownload() throws Exception {
+        Whitebox.invokeMethod(newTask(), "executeDownload", newState());
+    }
+
+    private DownloadTask.State newState() throws Exception {
+        DownloadTask.State state = new DownloadTask.State(downloadInfo);
+        state.url = new URL(URI);
+        return state;
+    }
+
+    private DownloadTask newTask() {
+        DownloadTask task = new DownloadTask(
+                mock(Context.class),
+                mock(SystemFacade.class),
+                downloadInfo,
+                mock(DownloadBatch.class),
+                mock(StorageManager.class),
+                mock(DownloadNotifier.class),
+                mock(BatchInformationBroadcaster.class),
+                mock(BatchRepository.class),
+                mock(DownloadsUriProvider.class),
+                mock(FileDownloadInfo.ControlStatus.Reader.class),
+                networkChecker,
+                downloadReadyChecker,
+                mock(Clock.class),
+                downloadsRepository,
+                new HttpConnectionFactory() {
+                    @Override
+                    public HttpURLConnection openConnection(URL url) {
+                        return connection;
+                    }
+                },
+                new DownloadControlRegistry(),
+                mock(ProgressAggregator.class),
+                new BufferPool(1),
+                new ChunkSizer(Constants.BUFFER_SIZE, Constants.BUFFER_SIZE),
+                streamStages,
+                mock(DownloadCoalescer.class)
+        );
+        FileDownloadInfo.ControlStatus.Reader controlReader = mock(FileDownloadInfo.ControlStatus.Reader.class);
+        when(controlReader.newControlStatus()).thenReturn(new FileDownloadInfo.ControlStatus(DownloadsControl.CONTROL_RUN, DownloadStatus.RUNNING, false));
+        Whitebox.setInternalState(task, "controlRegistration", new DownloadControlRegistry().register(1, controlReader));
+        return task;
+    }
+
+    private static void write(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes(UTF_8));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(FileUtils.readFileToByteArray(file), UTF_8);
+    }
+}
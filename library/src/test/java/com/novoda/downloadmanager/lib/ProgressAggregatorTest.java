@@ -0,0 +1,131 @@
+package com.novoda.downloadmanager.lib;
+
+import com.novoda.downloadmanager.notifications.DownloadNotifier;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class ProgressAggregatorTest {
+
+    private static final long DOWNLOAD_ID = 1;
+    private static final long OTHER_DOWNLOAD_ID = 2;
+    private static final Map<Long, Long> NO_BYTES = Collections.emptyMap();
+    private static final Map<Long, Long> NO_SPEEDS = Collections.emptyMap();
+
+    @Mock
+    private DownloadsRepository downloadsRepository;
+    @Mock
+    private DownloadNotifier downloadNotifier;
+    @Mock
+    private ScheduledExecutorService flushExecutor;
+
+    private ProgressAggregator progressAggregator;
+
+    @Before
+    public void setUp() {
+        initMocks(this);
+        progressAggregator = new ProgressAggregator(downloadsRepository, downloadNotifier, flushExecutor);
+    }
+
+    @Test
+    public void givenSeveralDownloadsReportedProgressThenTheyAreAllPersistedInOneWrite() {
+        progressAggregator.reportBytes(DOWNLOAD_ID, 100);
+        progressAggregator.reportBytes(OTHER_DOWNLOAD_ID, 200);
+
+        progressAggregator.flush();
+
+        Map<Long, Long> expected = new HashMap<>();
+        expected.put(DOWNLOAD_ID, 100L);
+        expected.put(OTHER_DOWNLOAD_ID, 200L);
+        verify(downloadsRepository).updateProgress(expected, NO_SPEEDS);
+    }
+
+    @Test
+    public void givenADownloadReportedManyTimesBetweenTicksThenOnlyTheLatestProgressIsPersisted() {
+        progressAggregator.reportBytes(DOWNLOAD_ID, 100);
+        progressAggregator.reportBytes(DOWNLOAD_ID, 150);
+
+        progressAggregator.flush();
+
+        verify(downloadsRepository).updateProgress(Collections.singletonMap(DOWNLOAD_ID, 150L), NO_SPEEDS);
+    }
+
+    @Test
+    public void givenNothingChangedSinceTheLastTickThenNothingIsWritten() {
+        progressAggregator.reportBytes(DOWNLOAD_ID, 100);
+        progressAggregator.flush();
+
+        progressAggregator.flush();
+
+        verify(downloadsRepository, times(1)).updateProgress(anyMapOf(Long.class, Long.class), anyMapOf(Long.class, Long.class));
+    }
+
+    @Test
+    public void givenASpeedWasReportedThenItIsHandedToTheNotifierOnTheNextTick() {
+        progressAggregator.reportSpeed(DOWNLOAD_ID, 1024);
+
+        progressAggregator.flush();
+
+        verify(downloadNotifier).notifyDownloadSpeed(DOWNLOAD_ID, 1024);
+    }
+
+    @Test
+    public void givenASpeedWasReportedThenItIsPersistedOnTheNextTick() {
+        progressAggregator.reportSpeed(DOWNLOAD_ID, 1024);
+
+        progressAggregator.flush();
+
+        verify(downloadsRepository).updateProgress(NO_BYTES, Collections.singletonMap(DOWNLOAD_ID, 1024L));
+    }
+
+    @Test
+    public void givenADownloadWithASpeedFinishesThenItsPersistedSpeedIsCleared() {
+        progressAggregator.reportSpeed(DOWNLOAD_ID, 1024);
+        progressAggregator.flush();
+
+        progressAggregator.finish(DOWNLOAD_ID);
+
+        verify(downloadsRepository).updateProgress(NO_BYTES, Collections.singletonMap(DOWNLOAD_ID, 0L));
+    }
+
+    @Test
+    public void givenADownloadFinishesThenItsPendingProgressIsPersistedAndItsSpeedCleared() {
+        progressAggregator.reportBytes(DOWNLOAD_ID, 100);
+
+        progressAggregator.finish(DOWNLOAD_ID);
+
+        verify(downloadsRepository).updateProgress(Collections.singletonMap(DOWNLOAD_ID, 100L), NO_SPEEDS);
+        verify(downloadNotifier).notifyDownloadSpeed(DOWNLOAD_ID, 0);
+    }
+
+    @Test
+    public void givenADownloadFinishedThenLaterTicksDoNotWriteItsProgress() {
+        progressAggregator.reportBytes(DOWNLOAD_ID, 100);
+        progressAggregator.finish(DOWNLOAD_ID);
+
+        progressAggregator.flush();
+
+        verify(downloadsRepository, times(1)).updateProgress(anyMapOf(Long.class, Long.class), anyMapOf(Long.class, Long.class));
+    }
+
+    @Test
+    public void givenADownloadNeverReportedThenFinishingItWritesNothing() {
+        progressAggregator.finish(DOWNLOAD_ID);
+
+        verify(downloadsRepository, never()).updateProgress(anyMapOf(Long.class, Long.class), anyMapOf(Long.class, Long.class));
+        verify(downloadNotifier, never()).notifyDownloadSpeed(anyLong(), anyLong());
+    }
+}
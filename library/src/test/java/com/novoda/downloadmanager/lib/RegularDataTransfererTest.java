@@ -0,0 +1,134 @@
+package com.novoda.downloadmanager.lib;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class RegularDataTransfererTest {
+
+    private static final int MIN_CHUNK_SIZE = 1024;
+    private static final int MAX_CHUNK_SIZE = 64 * 1024;
+
+    private RecordingWriter writer;
+    private RegularDataTransferer transferer;
+    private DownloadTask.State state;
+
+    @Before
+    public void setUp() {
+        writer = new RecordingWriter();
+        transferer = new RegularDataTransferer(writer, new BufferPool(1), new ChunkSizer(MIN_CHUNK_SIZE, MAX_CHUNK_SIZE));
+        state = new DownloadTask.State();
+    }
+
+    @Test
+    public void itWritesTheWholeBody() throws Exception {
+        byte[] body = bodyOf(10 * MIN_CHUNK_SIZE + 7);
+
+        transferer.transferData(state, new TricklingInputStream(body));
+
+        assertThat(writer.written.toByteArray()).isEqualTo(body);
+    }
+
+    @Test
+    public void givenTheSpeedIsNotKnownThenSmallChunksAreWritten() throws Exception {
+        transferer.transferData(state, new TricklingInputStream(bodyOf(4 * MIN_CHUNK_SIZE)));
+
+        assertThat(writer.counts).containsExactly(MIN_CHUNK_SIZE, MIN_CHUNK_SIZE, MIN_CHUNK_SIZE, MIN_CHUNK_SIZE);
+    }
+
+    @Test
+    public void givenAFastDownloadThenLargeChunksAreWritten() throws Exception {
+        state.speed = 100 * 1024 * 1024;
+
+        transferer.transferData(state, new TricklingInputStream(bodyOf(2 * MAX_CHUNK_SIZE)));
+
+        assertThat(writer.counts).containsExactly(MAX_CHUNK_SIZE, MAX_CHUNK_SIZE);
+    }
+
+    @Test
+    public void givenTheConnectionDropsThenWhatWasReadIsWritten() throws Exception {
+        byte[] body = bodyOf(MIN_CHUNK_SIZE / 2);
+
+        transferer.transferData(state, new DroppingInputStream(body));
+
+        assertThat(writer.written.toByteArray()).isEqualTo(body);
+    }
+
+    private static byte[] bodyOf(int size) {
+        byte[] body = new byte[size];
+        for (int i = 0; i < size; i++) {
+            body[i] = (byte) i;
+        }
+        return body;
+    }
+
+    private static class RecordingWriter implements DataWriter {
+
+        private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        private final List<Integer> counts = new ArrayList<>();
+
+        @Override
+        public DownloadTask.State write(DownloadTask.State state, byte[] buffer, int count) {
+            written.write(buffer, 0, count);
+            counts.add(count);
+            return state;
+        }
+    }
+
+    /**
+     * Hands out at most 100 bytes per read, as a network stream would.
+     */
+    private static class TricklingInputStream extends InputStream {
+
+        private final ByteArrayInputStream body;
+
+        TricklingInputStream(byte[] body) {
+            this.body = new ByteArrayInputStream(body);
+        }
+
+        @Override
+        public int read() {
+            return body.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            return body.read(buffer, offset, Math.min(length, 100));
+        }
+    }
+
+    private static class DroppingInputStream extends InputStream {
+
+        private final ByteArrayInputStream body;
+
+        DroppingInputStream(byte[] body) {
+            this.body = new ByteArrayInputStream(body);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = body.read();
+            if (read == -1) {
+                throw new IOException("connection reset");
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = body.read(buffer, offset, length);
+            if (read == -1) {
+                throw new IOException("connection reset");
+            }
+            return read;
+        }
+    }
+}
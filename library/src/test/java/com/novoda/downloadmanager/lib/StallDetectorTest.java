@@ -0,0 +1,74 @@
+package com.novoda.downloadmanager.lib;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class StallDetectorTest {
+
+    private static final float MIN_SPEED_RATIO = 0.1f;
+    private static final long WINDOW_MILLIS = 10000;
+    private static final long SAMPLE_MILLIS = 500;
+    private static final long USUAL_SPEED = 1000 * 1000;
+    private static final long TRICKLE_SPEED = 1000;
+
+    private StallDetector stallDetector;
+    private long now;
+
+    @Before
+    public void setUp() {
+        stallDetector = new StallDetector(MIN_SPEED_RATIO, WINDOW_MILLIS);
+        now = 0;
+    }
+
+    @Test
+    public void givenASteadySpeedThenTheConnectionIsNotStalled() {
+        sample(USUAL_SPEED, 100);
+
+        assertThat(stallDetector.isStalled()).isFalse();
+    }
+
+    @Test
+    public void givenADownloadThatWasAlwaysSlowThenTheConnectionIsNotStalled() {
+        sample(TRICKLE_SPEED, 100);
+
+        assertThat(stallDetector.isStalled()).isFalse();
+    }
+
+    @Test
+    public void givenATrickleForAWholeWindowThenTheConnectionIsStalled() {
+        sample(USUAL_SPEED, 10);
+
+        sample(TRICKLE_SPEED, (int) (WINDOW_MILLIS / SAMPLE_MILLIS) + 1);
+
+        assertThat(stallDetector.isStalled()).isTrue();
+    }
+
+    @Test
+    public void givenATrickleShorterThanTheWindowThenTheConnectionIsNotStalled() {
+        sample(USUAL_SPEED, 10);
+
+        sample(TRICKLE_SPEED, (int) (WINDOW_MILLIS / SAMPLE_MILLIS) - 1);
+        sample(USUAL_SPEED, 1);
+        sample(TRICKLE_SPEED, (int) (WINDOW_MILLIS / SAMPLE_MILLIS) - 1);
+
+        assertThat(stallDetector.isStalled()).isFalse();
+    }
+
+    @Test
+    public void givenATrickleThenTheReferenceSpeedIsNotLowered() {
+        sample(USUAL_SPEED, 10);
+
+        sample(TRICKLE_SPEED, 10);
+
+        assertThat(stallDetector.getReferenceSpeed()).isEqualTo(USUAL_SPEED);
+    }
+
+    private void sample(long bytesPerSecond, int samples) {
+        for (int i = 0; i < samples; i++) {
+            now += SAMPLE_MILLIS;
+            stallDetector.onSpeedSample(now, bytesPerSecond);
+        }
+    }
+}
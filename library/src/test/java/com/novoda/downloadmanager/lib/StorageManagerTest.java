@@ -0,0 +1,133 @@
+package com.novoda.downloadmanager.lib;
+
+import android.content.ContentResolver;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.powermock.reflect.Whitebox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+import static org.mockito.Mockito.mock;
+
+public class StorageManagerTest {
+
+    private static final long MB = 1024 * 1024;
+    private static final long FILESYSTEM_AVAILABLE_BYTES = 100 * MB;
+
+    private File root;
+    private File downloadDataDir;
+    private File systemCacheDir;
+    private StorageManager storageManager;
+
+    @Before
+    public void setUp() throws Exception {
+        root = File.createTempFile("storage", "");
+        root.delete();
+        downloadDataDir = new File(root, "data");
+        systemCacheDir = new File(root, "cache");
+        File externalStorageDir = new File(root, "external");
+        File internalStorageDir = new File(root, "internal");
+        for (File dir : new File[]{downloadDataDir, systemCacheDir, externalStorageDir, internalStorageDir}) {
+            dir.mkdirs();
+        }
+
+        storageManager = new StorageManager(
+                mock(ContentResolver.class),
+                externalStorageDir,
+                new File[]{externalStorageDir},
+                internalStorageDir,
+                systemCacheDir,
+                downloadDataDir,
+                mock(DownloadsUriProvider.class)
+        ) {
+            @Override
+            long getAvailableBytesInFileSystemAtGivenRoot(File root) {
+                return FILESYSTEM_AVAILABLE_BYTES;
+            }
+        };
+        // The clean up started along with the manager would remove the files of these tests
+        Thread cleanupThread = Whitebox.getInternalState(storageManager, "cleanupThread");
+        cleanupThread.join();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(root);
+    }
+
+    @Test
+    public void givenASecondReservationDoesNotFitAlongsideTheFirstThenItFails() throws Exception {
+        storageManager.reserveSpace(DownloadsDestination.DESTINATION_CACHE_PARTITION, dataFile("first"), 60 * MB);
+
+        try {
+            storageManager.reserveSpace(DownloadsDestination.DESTINATION_CACHE_PARTITION, dataFile("second"), 60 * MB);
+            fail("The space is already reserved for the first download");
+        } catch (StopRequestException e) {
+            assertThat(e.getFinalStatus()).isEqualTo(DownloadStatus.INSUFFICIENT_SPACE_ERROR);
+        }
+    }
+
+    @Test
+    public void givenTheFileOfAReservationGrewThenItsReservationShrinksAsMuch() throws Exception {
+        String first = dataFile("first");
+        storageManager.reserveSpace(DownloadsDestination.DESTINATION_CACHE_PARTITION, first, 60 * MB);
+
+        setLength(first, 30 * MB);
+
+        storageManager.reserveSpace(DownloadsDestination.DESTINATION_CACHE_PARTITION, dataFile("second"), 40 * MB);
+    }
+
+    @Test
+    public void givenAReservationWasReleasedThenItsSpaceIsFree() throws Exception {
+        String first = dataFile("first");
+        storageManager.reserveSpace(DownloadsDestination.DESTINATION_CACHE_PARTITION, first, 60 * MB);
+
+        storageManager.releaseSpace(first);
+
+        storageManager.reserveSpace(DownloadsDestination.DESTINATION_CACHE_PARTITION, dataFile("second"), 90 * MB);
+    }
+
+    @Test
+    public void givenASparseFileThenItsReservationOnlyShrinksAsItsSegmentsAreWritten() throws Exception {
+        String first = cacheFile("first");
+        DownloadSegments segments = DownloadSegments.split(60 * MB, 2);
+        storageManager.reserveSpace(DownloadsDestination.DESTINATION_SYSTEMCACHE_PARTITION, first, 60 * MB);
+        setLength(first, 60 * MB);
+        storageManager.trackSparseFile(first, segments);
+
+        try {
+            storageManager.reserveSpace(DownloadsDestination.DESTINATION_SYSTEMCACHE_PARTITION, cacheFile("second"), 50 * MB);
+            fail("Nothing of the sparse file was written yet");
+        } catch (StopRequestException e) {
+            assertThat(e.getFinalStatus()).isEqualTo(DownloadStatus.INSUFFICIENT_SPACE_ERROR);
+        }
+
+        segments.getSegments().get(0).advance(30 * MB);
+
+        storageManager.reserveSpace(DownloadsDestination.DESTINATION_SYSTEMCACHE_PARTITION, cacheFile("second"), 50 * MB);
+    }
+
+    private String dataFile(String name) {
+        return new File(downloadDataDir, name).getPath();
+    }
+
+    private String cacheFile(String name) {
+        return new File(systemCacheDir, name).getPath();
+    }
+
+    private static void setLength(String path, long length) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            file.setLength(length);
+        } finally {
+            file.close();
+        }
+    }
+}
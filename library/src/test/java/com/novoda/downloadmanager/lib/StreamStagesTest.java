@@ -0,0 +1,142 @@
+package com.novoda.downloadmanager.lib;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterOutputStream;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+
+public class StreamStagesTest {
+
+    private static final StreamStage UPPER_CASE = new StreamStage() {
+        @Override
+        public OutputStream open(OutputStream destination) {
+            return new FilterOutputStream(destination) {
+                @Override
+                public void write(int oneByte) throws IOException {
+                    out.write(Character.toUpperCase(oneByte));
+                }
+            };
+        }
+    };
+
+    private static final StreamStage REVERSE = new StreamStage() {
+        @Override
+        public OutputStream open(final OutputStream destination) {
+            return new ByteArrayOutputStream() {
+                @Override
+                public void close() throws IOException {
+                    byte[] written = toByteArray();
+                    for (int i = written.length - 1; i >= 0; i--) {
+                        destination.write(written[i]);
+                    }
+                    destination.close();
+                }
+            };
+        }
+    };
+
+    private StreamStages streamStages;
+
+    @Before
+    public void setUp() {
+        streamStages = new StreamStages();
+        streamStages.register("upper", UPPER_CASE);
+        streamStages.register("reverse", REVERSE);
+    }
+
+    @Test
+    public void givenStagesForTheDownloadThenTheyAreUsedInOrder() throws Exception {
+        List<StreamStage> stages = streamStages.stagesFor("reverse,upper", "text/plain");
+
+        assertThat(stages).containsExactly(REVERSE, UPPER_CASE);
+    }
+
+    @Test
+    public void givenNoStagesForTheDownloadThenThoseOfItsMimeTypeAreUsed() throws Exception {
+        streamStages.registerFor("Text/Plain", "upper");
+
+        assertThat(streamStages.stagesFor(null, "text/plain")).containsExactly(UPPER_CASE);
+        assertThat(streamStages.appliesTo(null, "text/html")).isFalse();
+    }
+
+    @Test
+    public void givenAnUnknownStageThenTheDownloadStops() throws Exception {
+        try {
+            streamStages.stagesFor("unknown", null);
+            fail("An unknown stage should stop the download");
+        } catch (StopRequestException e) {
+            assertThat(e.getFinalStatus()).isEqualTo(DownloadStatus.UNKNOWN_ERROR);
+        }
+    }
+
+    @Test
+    public void itPassesTheDataThroughEachStageOnItsWayToTheDestination() throws Exception {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        OutputStream stagesIn = StreamStages.open(Arrays.asList(UPPER_CASE, REVERSE), file);
+
+        stagesIn.write("abc".getBytes("UTF-8"));
+        stagesIn.close();
+
+        assertThat(file.toString("UTF-8")).isEqualTo("CBA");
+    }
+
+    @Test
+    public void givenTheStagesAreClosedThenTheDestinationStaysOpen() throws Exception {
+        ClosingAwareOutputStream file = new ClosingAwareOutputStream();
+        OutputStream stagesIn = StreamStages.open(Collections.singletonList(UPPER_CASE), file);
+
+        stagesIn.close();
+
+        assertThat(file.closed).isFalse();
+    }
+
+    @Test
+    public void givenADecompressingStageThenTheDestinationHoldsTheOriginalData() throws Exception {
+        byte[] original = "some text that compresses".getBytes("UTF-8");
+        StreamStage inflate = new StreamStage() {
+            @Override
+            public OutputStream open(OutputStream destination) {
+                return new InflaterOutputStream(destination);
+            }
+        };
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        DeflaterOutputStream deflater = new DeflaterOutputStream(deflated);
+        deflater.write(original);
+        deflater.close();
+
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        OutputStream stagesIn = StreamStages.open(Collections.singletonList(inflate), file);
+        stagesIn.write(deflated.toByteArray());
+        stagesIn.close();
+
+        assertThat(file.toByteArray()).isEqualTo(original);
+    }
+
+    @Test
+    public void givenNoStagesThenTheDestinationIsWrittenDirectly() throws Exception {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+
+        assertThat(StreamStages.open(Collections.<StreamStage>emptyList(), file)).isSameAs(file);
+    }
+
+    private static class ClosingAwareOutputStream extends ByteArrayOutputStream {
+
+        private boolean closed;
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
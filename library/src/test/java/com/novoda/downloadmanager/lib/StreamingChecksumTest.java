@@ -0,0 +1,108 @@
+package com.novoda.downloadmanager.lib;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class StreamingChecksumTest {
+
+    private static final int[] LENGTHS = {0, 1, 55, 56, 63, 64, 65, 119, 120, 128, 1000, 100000};
+    private static final String[] DIGESTS = {StreamingChecksum.MD5, StreamingChecksum.SHA_1, StreamingChecksum.SHA_256};
+
+    @Test
+    public void itMatchesThePlatformDigestsWhateverTheLength() throws Exception {
+        for (String algorithm : DIGESTS) {
+            for (int length : LENGTHS) {
+                byte[] data = dataOf(length);
+                StreamingChecksum checksum = StreamingChecksum.newInstance(algorithm);
+
+                checksum.update(data, 0, data.length);
+
+                assertThat(checksum.toHex()).as(algorithm + " of " + length + " bytes").isEqualTo(platformDigestOf(algorithm, data));
+            }
+        }
+    }
+
+    @Test
+    public void itComputesTheStandardCrc32c() {
+        byte[] data = "123456789".getBytes(Charset.forName("US-ASCII"));
+        StreamingChecksum checksum = StreamingChecksum.newInstance(StreamingChecksum.CRC32C);
+
+        checksum.update(data, 0, data.length);
+
+        assertThat(checksum.toHex()).isEqualTo("e3069283");
+    }
+
+    @Test
+    public void givenTheSameChecksumInAnotherCaseThenTheContentHashIsTheSame() {
+        String contentHash = StreamingChecksum.contentHash("sha-256", " E3B0C44298FC1C149AFBF4C8996FB924 ");
+
+        assertThat(contentHash).isEqualTo(StreamingChecksum.contentHash(StreamingChecksum.SHA_256, "e3b0c44298fc1c149afbf4c8996fb924"));
+    }
+
+    @Test
+    public void givenASavedStateThenHashingCarriesOnFromWhereItStopped() {
+        byte[] data = dataOf(10000);
+        for (String algorithm : new String[]{StreamingChecksum.MD5, StreamingChecksum.SHA_1, StreamingChecksum.SHA_256, StreamingChecksum.CRC32C}) {
+            StreamingChecksum whole = StreamingChecksum.newInstance(algorithm);
+            whole.update(data, 0, data.length);
+            StreamingChecksum first = StreamingChecksum.newInstance(algorithm);
+            first.update(data, 0, 4321);
+
+            StreamingChecksum resumed = StreamingChecksum.fromState(algorithm, first.saveState());
+            resumed.update(data, 4321, data.length - 4321);
+
+            assertThat(resumed.getLength()).isEqualTo(data.length);
+            assertThat(resumed.toHex()).as(algorithm).isEqualTo(whole.toHex());
+        }
+    }
+
+    @Test
+    public void givenTheChecksumWasReadThenHashingCanCarryOn() {
+        byte[] data = dataOf(200);
+        StreamingChecksum whole = StreamingChecksum.newInstance(StreamingChecksum.SHA_256);
+        whole.update(data, 0, data.length);
+        StreamingChecksum checksum = StreamingChecksum.newInstance(StreamingChecksum.SHA_256);
+
+        checksum.update(data, 0, 100);
+        checksum.toHex();
+        checksum.update(data, 100, 100);
+
+        assertThat(checksum.toHex()).isEqualTo(whole.toHex());
+    }
+
+    @Test
+    public void givenAStateOfAnotherAlgorithmThenItIsNotRestored() {
+        StreamingChecksum md5 = StreamingChecksum.newInstance(StreamingChecksum.MD5);
+
+        assertThat(StreamingChecksum.fromState(StreamingChecksum.SHA_1, md5.saveState())).isNull();
+    }
+
+    @Test
+    public void givenACorruptedStateThenItIsNotRestored() {
+        assertThat(StreamingChecksum.fromState(StreamingChecksum.MD5, "MD5:12:zz:")).isNull();
+        assertThat(StreamingChecksum.fromState(StreamingChecksum.MD5, "MD5:12:0123")).isNull();
+        assertThat(StreamingChecksum.fromState(StreamingChecksum.MD5, null)).isNull();
+    }
+
+    @Test
+    public void itAcceptsAlgorithmNamesInAnyCase() {
+        assertThat(StreamingChecksum.isSupported("sha-256")).isTrue();
+        assertThat(StreamingChecksum.isSupported("whirlpool")).isFalse();
+    }
+
+    private static String platformDigestOf(String algorithm, byte[] data) throws Exception {
+        return StreamingChecksum.toHex(MessageDigest.getInstance(algorithm).digest(data));
+    }
+
+    private static byte[] dataOf(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+        return data;
+    }
+}
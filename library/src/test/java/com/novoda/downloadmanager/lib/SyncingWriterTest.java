@@ -0,0 +1,81 @@
+package com.novoda.downloadmanager.lib;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class SyncingWriterTest {
+
+    private static final int SYNC_INTERVAL_BYTES = 10;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final List<Long> syncedBytes = new ArrayList<>();
+
+    private FileOutputStream file;
+    private SyncingWriter syncingWriter;
+    private DownloadTask.State state;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new FileOutputStream(temporaryFolder.newFile());
+        syncingWriter = new SyncingWriter(
+                new CheckedWriter(new NoOpSpaceVerifier(), file),
+                file,
+                file.getFD(),
+                SYNC_INTERVAL_BYTES,
+                new SyncingWriter.SyncListener() {
+                    @Override
+                    public void onSynced(long durableBytes) {
+                        syncedBytes.add(durableBytes);
+                    }
+                }
+        );
+        state = new DownloadTask.State();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.close();
+    }
+
+    @Test
+    public void givenLessThanTheIntervalIsWrittenThenNothingIsSynced() throws Exception {
+        syncingWriter.write(state, new byte[SYNC_INTERVAL_BYTES - 1], SYNC_INTERVAL_BYTES - 1);
+
+        assertThat(syncedBytes).isEmpty();
+    }
+
+    @Test
+    public void givenTheIntervalIsWrittenThenTheBytesWrittenSoFarAreReportedAsSynced() throws Exception {
+        state.currentBytes = 100;
+
+        syncingWriter.write(state, new byte[6], 6);
+        syncingWriter.write(state, new byte[6], 6);
+        syncingWriter.write(state, new byte[6], 6);
+
+        assertThat(syncedBytes).containsExactly(112L);
+    }
+
+    private static class NoOpSpaceVerifier implements SpaceVerifier {
+
+        @Override
+        public void verifySpacePreemptively(int count) {
+            // always enough space
+        }
+
+        @Override
+        public void verifySpace(int count) {
+            // always enough space
+        }
+    }
+}
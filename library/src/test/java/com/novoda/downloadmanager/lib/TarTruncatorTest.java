@@ -69,14 +69,14 @@ public class TarTruncatorTest {
     private void givenATarFileWithEndBlockMarker() throws IOException {
         resourceAsStream = getResourceAsStream("tar/testOriginal.tar");
         fileOutputStream = new FileOutputStream("TarFileTruncatorTest.tar");
-        tarTruncator = new TarTruncator(new TestDataWriter(fileOutputStream));
+        tarTruncator = new TarTruncator(new TestDataWriter(fileOutputStream), new BufferPool(1));
         state = new DownloadTask.State();
     }
 
     private void givenATarFileWithoutEndBlockMarker() throws IOException {
         resourceAsStream = getResourceAsStream("tar/testExpectedResult.tar");
         fileOutputStream = new FileOutputStream("TarFileTruncatorTest.tar");
-        tarTruncator = new TarTruncator(new TestDataWriter(fileOutputStream));
+        tarTruncator = new TarTruncator(new TestDataWriter(fileOutputStream), new BufferPool(1));
         state = new DownloadTask.State();
     }
 
@@ -0,0 +1,165 @@
+package com.novoda.downloadmanager.lib;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+
+public class WriteBehindOutputStreamTest {
+
+    private static final int BUFFER_SIZE = 8;
+    private static final int BUFFER_COUNT = 2;
+
+    private final BufferPool bufferPool = new BufferPool(BUFFER_COUNT);
+
+    @Test
+    public void givenDataIsFlushedThenAllOfItReachesTheUnderlyingStream() throws Exception {
+        ByteArrayOutputStream disk = new ByteArrayOutputStream();
+        WriteBehindOutputStream out = writingBehindTo(disk);
+        byte[] data = bytesOf(3 * BUFFER_SIZE + 5);
+
+        out.write(data, 0, data.length);
+        out.flush();
+
+        assertThat(disk.toByteArray()).isEqualTo(data);
+        out.close();
+    }
+
+    @Test
+    public void givenTheStreamIsClosedThenPendingDataIsWritten() throws Exception {
+        ByteArrayOutputStream disk = new ByteArrayOutputStream();
+        WriteBehindOutputStream out = writingBehindTo(disk);
+        byte[] data = bytesOf(BUFFER_SIZE / 2);
+
+        out.write(data, 0, data.length);
+        out.close();
+
+        assertThat(disk.toByteArray()).isEqualTo(data);
+    }
+
+    @Test
+    public void givenFullBuffersThenTheyAreWrittenInOneGo() throws Exception {
+        RecordingOutputStream disk = new RecordingOutputStream();
+        WriteBehindOutputStream out = writingBehindTo(disk);
+
+        for (int i = 0; i < 2 * BUFFER_SIZE; i++) {
+            out.write(i);
+        }
+        out.flush();
+
+        assertThat(disk.writes).isEqualTo(2);
+        out.close();
+    }
+
+    @Test
+    public void givenTheUnderlyingStreamFailsThenTheFailureIsThrownOnFlush() throws Exception {
+        WriteBehindOutputStream out = writingBehindTo(new FailingOutputStream());
+        out.write(bytesOf(BUFFER_SIZE), 0, BUFFER_SIZE);
+
+        try {
+            out.flush();
+            fail("The write failure should have surfaced");
+        } catch (IOException e) {
+            assertThat(e.getCause()).hasMessage("disk full");
+        }
+    }
+
+    @Test
+    public void givenTheUnderlyingStreamFailedThenLaterWritesFail() throws Exception {
+        WriteBehindOutputStream out = writingBehindTo(new FailingOutputStream());
+        out.write(bytesOf(BUFFER_SIZE), 0, BUFFER_SIZE);
+        flushQuietly(out);
+
+        try {
+            out.write(bytesOf(1), 0, 1);
+            fail("The write failure should have surfaced");
+        } catch (IOException e) {
+            assertThat(e.getCause()).hasMessage("disk full");
+        }
+    }
+
+    @Test
+    public void givenTheUnderlyingStreamFailedThenClosingStillClosesIt() throws Exception {
+        FailingOutputStream disk = new FailingOutputStream();
+        WriteBehindOutputStream out = writingBehindTo(disk);
+        out.write(bytesOf(BUFFER_SIZE), 0, BUFFER_SIZE);
+        flushQuietly(out);
+
+        try {
+            out.close();
+            fail("The write failure should have surfaced");
+        } catch (IOException e) {
+            assertThat(disk.closed).isTrue();
+        }
+    }
+
+    @Test
+    public void givenTheStreamIsClosedThenItsBuffersGoBackToThePool() throws Exception {
+        WriteBehindOutputStream out = writingBehindTo(new ByteArrayOutputStream());
+        out.close();
+
+        bufferPool.lease(BUFFER_SIZE);
+        bufferPool.lease(BUFFER_SIZE);
+
+        assertThat(bufferPool.getHitCount()).isEqualTo(BUFFER_COUNT);
+    }
+
+    private WriteBehindOutputStream writingBehindTo(OutputStream disk) {
+        return new WriteBehindOutputStream(disk, bufferPool, BUFFER_SIZE, BUFFER_COUNT);
+    }
+
+    private static void flushQuietly(OutputStream out) {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static byte[] bytesOf(int size) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) i;
+        }
+        return bytes;
+    }
+
+    private static class RecordingOutputStream extends OutputStream {
+
+        private int writes;
+
+        @Override
+        public void write(int oneByte) {
+            writes++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) {
+            writes++;
+        }
+    }
+
+    private static class FailingOutputStream extends OutputStream {
+
+        private boolean closed;
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            throw new IOException("disk full");
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            throw new IOException("disk full");
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}